@@ -0,0 +1,115 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.precog.json.FromJson;
+import com.precog.json.JsonCodec;
+import com.precog.json.ToJson;
+
+/**
+ * Compares Gson's reflective serialization of a record with the codec
+ * generated for it by the {@link JsonCodec} annotation processor, both to
+ * and from a {@code String}, and written into a reused buffer as
+ * {@link JsonStreamBody} does. The score is records per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@JsonCodec
+	public static class Location {
+		double lat;
+		double lon;
+	}
+
+	@JsonCodec
+	public static class Event {
+		long id;
+		String name;
+		double score;
+		boolean active;
+		List<String> tags;
+		Location location;
+	}
+
+	private Gson gson;
+	private ToJson<Event> toJson;
+	private FromJson<Event> fromJson;
+	private Event event;
+	private String json;
+	private StringBuilder buffer;
+
+	@Setup
+	public void setUp() {
+		gson = new Gson();
+		toJson = JsonCodecs.getToJson(Event.class);
+		fromJson = JsonCodecs.getFromJson(Event.class);
+		if (toJson == null || fromJson == null) {
+			throw new IllegalStateException("No codec was generated for " + Event.class);
+		}
+
+		event = new Event();
+		event.id = 123456789L;
+		event.name = "user-42 \"signed up\"";
+		event.score = 0.75;
+		event.active = true;
+		event.tags = new ArrayList<String>(Arrays.asList("new", "mobile", "trial"));
+		event.location = new Location();
+		event.location.lat = 43.6532;
+		event.location.lon = -79.3832;
+		json = gson.toJson(event);
+		buffer = new StringBuilder(256);
+
+		if (!toJson.serialize(event).equals(json)) {
+			throw new IllegalStateException("The codec and Gson disagree: " +
+					toJson.serialize(event) + " vs " + json);
+		}
+	}
+
+	@Benchmark
+	public String gsonSerialize() {
+		return gson.toJson(event);
+	}
+
+	@Benchmark
+	public String codecSerialize() {
+		return toJson.serialize(event);
+	}
+
+	@Benchmark
+	public int codecWrite() throws IOException {
+		buffer.setLength(0);
+		toJson.write(event, buffer);
+		return buffer.length();
+	}
+
+	@Benchmark
+	public Event gsonDeserialize() {
+		return gson.fromJson(json, Event.class);
+	}
+
+	@Benchmark
+	public Event codecDeserialize() {
+		return fromJson.deserialize(json);
+	}
+}
@@ -0,0 +1,185 @@
+package com.precog.client;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Compares the raw copy used by
+ * {@link PrecogClient#downloadQueryResults(Query, File)} against the
+ * {@code JsonReader} to {@code JsonWriter} round trip it replaced. Each
+ * operation copies the data of a query result of {@code megabytes} MB from
+ * one file to another, so the disk is part of what is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DownloadBenchmark {
+
+	@Param({ "1024" })
+	public int megabytes;
+
+	private File input;
+	private File output;
+
+	@Setup
+	public void setUp() throws IOException {
+		input = File.createTempFile("precog-result", ".json");
+		input.deleteOnExit();
+		output = File.createTempFile("precog-download", ".json");
+		output.deleteOnExit();
+
+		long size = megabytes * 1024L * 1024L;
+		Writer writer = new OutputStreamWriter(new BufferedOutputStream(
+				new FileOutputStream(input), 64 * 1024), "UTF-8");
+		try {
+			writer.write("{\"errors\":[],\"warnings\":[],\"data\":[");
+			long written = 0;
+			for (int i = 0; written < size; i++) {
+				String row = (i > 0 ? "," : "") + "{\"id\":" + i +
+						",\"name\":\"user \\\"" + i + "\\\"\",\"city\":\"Montréal\"" +
+						",\"score\":" + (i * 0.25) + ",\"tags\":[\"a\",\"b\"],\"parent\":null}";
+				writer.write(row);
+				written += row.length();
+			}
+			writer.write("],\"serverErrors\":[]}");
+		} finally {
+			writer.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		input.delete();
+		output.delete();
+	}
+
+	@Benchmark
+	public boolean rawCopy() throws IOException {
+		InputStream in = new FileInputStream(input);
+		FileOutputStream out = new FileOutputStream(output);
+		try {
+			return RawResultCopier.copyData(in, out.getChannel());
+		} finally {
+			out.close();
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public boolean jsonRoundTrip() throws IOException {
+		InputStream in = new FileInputStream(input);
+		OutputStream out = new FileOutputStream(output);
+		try {
+			JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.beginArray();
+			JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String key = reader.nextName();
+				if (key.equals("data")) {
+					reader.beginArray();
+					while (reader.peek() != JsonToken.END_ARRAY) {
+						writeValue(writer, reader);
+					}
+					reader.endArray();
+				} else if (key.equals("errors") || key.equals("serverErrors")) {
+					reader.beginArray();
+					if (reader.peek() != JsonToken.END_ARRAY) {
+						return false;
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			writer.endArray();
+			writer.flush();
+			return true;
+		} finally {
+			out.close();
+			in.close();
+		}
+	}
+
+	// The old PrecogClient.writeValue: pipes a single JSON value from reader
+	// to writer.
+	private static void writeValue(JsonWriter writer, JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+			case BEGIN_ARRAY:
+				reader.beginArray();
+				writer.beginArray();
+				while (reader.peek() != JsonToken.END_ARRAY) {
+					writeValue(writer, reader);
+				}
+				writer.endArray();
+				reader.endArray();
+				break;
+
+			case BEGIN_OBJECT:
+				reader.beginObject();
+				writer.beginObject();
+				while (reader.peek() != JsonToken.END_OBJECT) {
+					writer.name(reader.nextName());
+					writeValue(writer, reader);
+				}
+				writer.endObject();
+				reader.endObject();
+				break;
+
+			case NULL:
+				reader.nextNull();
+				writer.nullValue();
+				break;
+
+			case BOOLEAN:
+				writer.value(reader.nextBoolean());
+				break;
+
+			case NUMBER:
+				try {
+					writer.value(reader.nextLong());
+				} catch (NumberFormatException nfe) {
+					writer.value(reader.nextDouble());
+				}
+				break;
+
+			case STRING:
+				writer.value(reader.nextString());
+				break;
+
+			default:
+				throw new IllegalStateException("Unexpected JSON token found: " + reader.peek());
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.precog.client.fake.FakePrecogServer;
+import com.precog.client.rest.Compression;
+import com.precog.client.rest.HttpException;
+
+/**
+ * Drives a {@link PrecogClient} against a {@link FakePrecogServer} on
+ * loopback, from several threads at once, reporting both throughput and the
+ * distribution of call latencies. {@code latency} adds a fixed server-side
+ * delay to every response, to see how the client behaves when the server,
+ * rather than the client, is the bottleneck.
+ * <p>
+ * Vary the number of client threads with {@code -t}, eg.
+ * {@code java -jar target/benchmarks.jar EndToEnd -t 32}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	@Param({ "0" })
+	public int latency;
+
+	@Param({ "1000" })
+	public int records;
+
+	private FakePrecogServer server;
+	private PrecogClient client;
+	private PrecogClient gzipClient;
+	private List<Map<String, Object>> batch;
+	private Map<String, Object> record;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new FakePrecogServer().start();
+		server.setLatency(latency, latency, TimeUnit.MILLISECONDS);
+		server.setPendingPolls(2);
+
+		List<String> rows = new ArrayList<String>(100);
+		for (int i = 0; i < 100; i++) {
+			rows.add(Integer.toString(i * 7));
+		}
+		server.setQueryResults(rows);
+
+		client = new PrecogClient(server.getService(), server.getApiKey(),
+				server.getAccountId());
+		gzipClient = new PrecogClient(server.getService(), server.getApiKey(),
+				server.getAccountId());
+		gzipClient.setCompression(Compression.gzip());
+
+		batch = new ArrayList<Map<String, Object>>(records);
+		for (int i = 0; i < records; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", "user-" + i);
+			record.put("city", i % 3 == 0 ? "Montréal" : "Boulder");
+			record.put("score", i * 0.5);
+			batch.add(record);
+		}
+		record = batch.get(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		gzipClient.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public AppendResult append() throws HttpException {
+		return client.append("events", record);
+	}
+
+	@Benchmark
+	public AppendResult appendAll() throws HttpException {
+		return client.appendAll("events", batch);
+	}
+
+	@Benchmark
+	public AppendResult appendAllGzip() throws HttpException {
+		return gzipClient.appendAll("events", batch);
+	}
+
+	@Benchmark
+	public QueryResult query() throws HttpException {
+		return client.query("count(//events)");
+	}
+
+	@Benchmark
+	public int queryStream() throws HttpException {
+		QueryResultStream<String> rows = client.queryStream("count(//events)");
+		try {
+			int n = 0;
+			for (String row : rows) {
+				n += row.length();
+			}
+			return n;
+		} finally {
+			rows.close();
+		}
+	}
+
+	@Benchmark
+	public QueryResult queryAsync() throws HttpException {
+		Query query = client.queryAsync("count(//events)");
+		QueryResult result = null;
+		while (result == null) {
+			result = client.queryResults(query);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,79 @@
+package com.precog.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.precog.client.rest.HttpException;
+
+/**
+ * Measures deserializing the bodies of query and append responses with Gson,
+ * as {@link PrecogClient#query(String)} and the append methods used to, and
+ * with the built-in decoders in {@link Envelopes} that they use now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GsonBenchmark {
+
+	@Param({ "10", "1000" })
+	public int records;
+
+	private Gson gson;
+	private PojoMapper pojos;
+	private String queryResult;
+	private String appendResult;
+
+	@Setup
+	public void setUp() {
+		gson = new Gson();
+		pojos = new PojoMapper(gson);
+		StringBuilder sb = new StringBuilder("{\"data\":[");
+		for (int i = 0; i < records; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("\"{\\\"id\\\":").append(i)
+				.append(",\\\"name\\\":\\\"user-").append(i).append("\\\"}\"");
+		}
+		sb.append("],\"errors\":[],\"warnings\":[{\"message\":\"unused binding\"," +
+				"\"position\":{\"line\":1,\"column\":3,\"text\":\"a := 1\"}}],\"serverErrors\":[]}");
+		queryResult = sb.toString();
+		appendResult = "{\"ingestId\":\"0b6f6b5c-1d3a\",\"total\":" + records + ",\"ingested\":" +
+				(records - 1) + ",\"failed\":1,\"skipped\":0,\"errors\":[\"line 3: bad record\"]}";
+	}
+
+	@Benchmark
+	public QueryResult queryResult() {
+		return gson.fromJson(queryResult, QueryResult.class);
+	}
+
+	@Benchmark
+	public AppendResult appendResult() {
+		return gson.fromJson(appendResult, AppendResult.class);
+	}
+
+	@Benchmark
+	public QueryResult envelopeQueryResult() throws HttpException {
+		return Envelopes.decodeQueryResult(queryResult, pojos);
+	}
+
+	@Benchmark
+	public AppendResult envelopeAppendResult() throws HttpException {
+		return Envelopes.decode(appendResult, Envelopes.APPEND_RESULT);
+	}
+}
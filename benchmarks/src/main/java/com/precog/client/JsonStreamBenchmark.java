@@ -0,0 +1,189 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.precog.json.JsonText;
+import com.precog.json.ToJson;
+import com.precog.json.ToJsonWriter;
+
+/**
+ * Compares the newline delimited JSON encoder used by
+ * {@link PrecogClient#appendAll(String, Iterable)} against the
+ * {@code InputStream} based {@code JsonStream} encoder it replaced, and a
+ * hand-written {@link ToJson} against the same serializer written as a
+ * {@link ToJsonWriter}. Each operation encodes {@code records} records; the
+ * score is encoded batches per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonStreamBenchmark {
+
+	@Param({ "1000" })
+	public int records;
+
+	private Gson gson;
+	private List<Map<String, Object>> data;
+	private JsonStreamBody<Map<String, Object>> body;
+	private JsonStreamBody<Map<String, Object>> toJsonBody;
+	private JsonStreamBody<Map<String, Object>> toJsonWriterBody;
+	private NullOutputStream out;
+
+	@Setup
+	public void setUp() {
+		data = new ArrayList<Map<String, Object>>(records);
+		for (int i = 0; i < records; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", "user-" + i);
+			record.put("city", i % 3 == 0 ? "Montréal" : "Boulder");
+			record.put("score", i * 0.5);
+			data.add(record);
+		}
+		gson = new Gson();
+		body = new JsonStreamBody<Map<String, Object>>(new PojoMapper(gson), data);
+		toJsonBody = new JsonStreamBody<Map<String, Object>>(new ToJson<Map<String, Object>>() {
+			public String serialize(Map<String, Object> record) {
+				StringBuilder json = new StringBuilder(64);
+				try {
+					writeRecord(record, json);
+				} catch (IOException ioe) {
+					throw new IllegalStateException(ioe);
+				}
+				return json.toString();
+			}
+		}, data);
+		toJsonWriterBody = new JsonStreamBody<Map<String, Object>>(
+				new ToJsonWriter<Map<String, Object>>() {
+			public void write(Map<String, Object> record, Appendable out) throws IOException {
+				writeRecord(record, out);
+			}
+		}, data);
+		out = new NullOutputStream();
+	}
+
+	@Benchmark
+	public long jsonStreamBody() throws IOException {
+		body.writeTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long toJson() throws IOException {
+		toJsonBody.writeTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long toJsonWriter() throws IOException {
+		toJsonWriterBody.writeTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long legacyJsonStream() throws IOException {
+		InputStream in = new LegacyJsonStream(gson, data.iterator());
+		byte[] chunk = new byte[16 * 1024];
+		int n;
+		while ((n = in.read(chunk)) >= 0) {
+			out.write(chunk, 0, n);
+		}
+		return out.count;
+	}
+
+	// The serializer shared by the ToJson and ToJsonWriter cases.
+	private static void writeRecord(Map<String, Object> record, Appendable out)
+			throws IOException {
+		out.append("{\"id\":").append(record.get("id").toString());
+		out.append(",\"name\":");
+		JsonText.writeString((String) record.get("name"), out);
+		out.append(",\"city\":");
+		JsonText.writeString((String) record.get("city"), out);
+		out.append(",\"score\":").append(record.get("score").toString()).append('}');
+	}
+
+	/**
+	 * The old encoder: each record is serialized to a {@code String} and
+	 * encoded to a new {@code byte[]}, which is then read out by the
+	 * transport through a 16K buffer.
+	 */
+	private static class LegacyJsonStream extends InputStream {
+		private final Gson gson;
+		private final Iterator<? extends Object> iter;
+		private int offset = 0;
+		private byte[] chunk = new byte[0];
+
+		LegacyJsonStream(Gson gson, Iterator<? extends Object> iter) {
+			this.gson = gson;
+			this.iter = iter;
+		}
+
+		private boolean isEmpty() throws IOException {
+			while (offset >= chunk.length && iter.hasNext()) {
+				chunk = gson.toJson(iter.next()).getBytes("UTF-8");
+				offset = 0;
+			}
+			return offset >= chunk.length;
+		}
+
+		public int read() throws IOException {
+			return isEmpty() ? -1 : chunk[offset++];
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			} else if (isEmpty()) {
+				return -1;
+			}
+			int pos = off;
+			while (len > 0 && !isEmpty()) {
+				int bs = Math.min(chunk.length - offset, len);
+				System.arraycopy(chunk, offset, bytes, pos, bs);
+				offset += bs;
+				pos += bs;
+				len -= bs;
+			}
+			return pos - off;
+		}
+	}
+
+	static class NullOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count += 1;
+		}
+
+		@Override
+		public void write(byte[] bytes, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.precog.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.precog.json.FromJson;
+import com.precog.json.FromJsonReader;
+import com.precog.json.JsonInput;
+
+/**
+ * Measures decoding the rows of a streamed query result into objects: from
+ * a JSON string per row with a {@link FromJson}, with Gson from each row's
+ * JSON text, and straight from the stream with a hand-written
+ * {@link FromJsonReader}. Each operation decodes {@code records} rows; the
+ * score is results decoded per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryStreamBenchmark {
+
+	@Param({ "1000" })
+	public int records;
+
+	private Gson gson;
+	private byte[] body;
+	private FromJson<User> fromJson;
+	private FromJsonReader<User> fromJsonReader;
+	private FromJsonReader<User> gsonRows;
+
+	public static class User {
+		long id;
+		String name;
+		double score;
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		gson = new Gson();
+		StringBuilder sb = new StringBuilder("{\"data\":[");
+		for (int i = 0; i < records; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"id\":").append(i).append(",\"name\":\"user-").append(i)
+				.append("\",\"score\":").append(i * 0.5).append('}');
+		}
+		sb.append("],\"errors\":[],\"warnings\":[],\"serverErrors\":[]}");
+		body = sb.toString().getBytes("UTF-8");
+
+		fromJson = new FromJson<User>() {
+			public User deserialize(String json) {
+				return gson.fromJson(json, User.class);
+			}
+		};
+		fromJsonReader = new FromJsonReader<User>() {
+			public User read(JsonInput in) throws IOException {
+				User user = new User();
+				in.beginObject();
+				while (in.hasNext()) {
+					String name = in.nextName();
+					if (name.equals("id")) {
+						user.id = in.nextLong();
+					} else if (name.equals("name")) {
+						user.name = in.nextString();
+					} else if (name.equals("score")) {
+						user.score = in.nextDouble();
+					} else {
+						in.skipValue();
+					}
+				}
+				in.endObject();
+				return user;
+			}
+		};
+		gsonRows = new PojoMapper(gson).rows(User.class);
+	}
+
+	@Benchmark
+	public double fromJsonString() throws IOException {
+		return decode(fromJson);
+	}
+
+	@Benchmark
+	public double gsonClass() throws IOException {
+		return decode(gsonRows);
+	}
+
+	@Benchmark
+	public double fromJsonReader() throws IOException {
+		return decode(fromJsonReader);
+	}
+
+	private double decode(FromJsonReader<User> rows) throws IOException {
+		QueryResultStream<User> stream = new QueryResultStream<User>(
+				new ByteArrayInputStream(body), rows);
+		double sum = 0.0;
+		for (User user : stream) {
+			sum += user.score;
+		}
+		return sum;
+	}
+}
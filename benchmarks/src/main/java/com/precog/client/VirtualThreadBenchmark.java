@@ -0,0 +1,98 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.precog.client.fake.FakePrecogServer;
+
+/**
+ * Compares running a burst of {@code calls} non-blocking appends on the
+ * client's default pool of platform threads against
+ * {@link PrecogClient#useVirtualThreads() virtual threads}. The client may
+ * open {@code connections} connections, and the {@link FakePrecogServer}
+ * handles as many requests at once, each delayed by {@code latency} ms, so
+ * the calls spend most of their time waiting on the server. The score is the
+ * time to complete the whole burst.
+ * <p>
+ * The {@code virtual} runs need Java 21 or later, eg.
+ * {@code $JAVA21/bin/java -jar target/benchmarks.jar VirtualThread}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// The JDK's HttpServer, behind the fake server, closes keep-alive connections
+// beyond 200 idle ones, which the client would then try to reuse.
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.maxIdleConnections=4096")
+public class VirtualThreadBenchmark {
+
+	@Param({ "platform", "virtual" })
+	public String threads;
+
+	@Param({ "64", "256", "1024" })
+	public int connections;
+
+	@Param({ "4096" })
+	public int calls;
+
+	@Param({ "20" })
+	public int latency;
+
+	private FakePrecogServer server;
+	private PrecogClient client;
+	private Map<String, Object> record;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new FakePrecogServer(FakePrecogServer.DEFAULT_API_KEY,
+				FakePrecogServer.DEFAULT_ACCOUNT_ID, connections).start();
+		server.setLatency(latency, latency, TimeUnit.MILLISECONDS);
+
+		client = new PrecogClient(server.getService(), server.getApiKey(),
+				server.getAccountId());
+		client.setMaxConnections(connections);
+		if (threads.equals("virtual")) {
+			client.useVirtualThreads();
+		}
+
+		record = new LinkedHashMap<String, Object>();
+		record.put("id", 12345);
+		record.put("name", "user-12345");
+		record.put("city", "Montréal");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public long appendBurst() {
+		AsyncPrecogClient async = client.async();
+		CompletableFuture<?>[] pending = new CompletableFuture<?>[calls];
+		for (int i = 0; i < calls; i++) {
+			pending[i] = async.append("events", record);
+		}
+		CompletableFuture.allOf(pending).join();
+		return server.getRecordsIngested();
+	}
+}
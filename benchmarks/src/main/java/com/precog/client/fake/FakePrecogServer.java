@@ -0,0 +1,488 @@
+package com.precog.client.fake;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for Precog's REST API, listening on loopback, for
+ * driving a {@link com.precog.client.PrecogClient} under load without a
+ * Precog account. It implements just enough of each service for the client
+ * to work against it:
+ * <ul>
+ * <li>{@code /ingest/v1/fs/...}: {@code POST} counts the records in the body
+ * (one per line, less the header for CSV) and replies with an append receipt;
+ * {@code DELETE} succeeds.
+ * <li>{@code /analytics/v1/fs/...}: {@code GET} replies with the canned query
+ * results, whatever the query.
+ * <li>{@code /analytics/v1/queries}: {@code POST} starts a job; polling
+ * {@code /analytics/v1/queries/<jobId>} answers {@code 202} a configurable
+ * number of times, then replies with the canned results.
+ * <li>{@code /accounts/v1/accounts/...}: {@code POST} creates and {@code GET}
+ * describes the account. The client only makes these calls over HTTPS, so
+ * they can only be reached with a raw {@link com.precog.client.rest.Rest}.
+ * </ul>
+ * Every request other than the account calls must carry the server's
+ * {@link #getApiKey() API key}, or gets a {@code 403}.
+ * <p>
+ * Responses can be delayed by a random latency, a fraction of requests can
+ * be failed with an error status, and responses can be gzipped for clients
+ * that accept it. All settings can be changed while the server is running.
+ */
+public class FakePrecogServer {
+
+	public static final String DEFAULT_API_KEY = "00000000-0000-0000-0000-000000000000";
+	public static final String DEFAULT_ACCOUNT_ID = "0000000001";
+	public static final int DEFAULT_THREADS = 64;
+
+	static {
+		// The JDK's server writes response headers and body separately, so
+		// with Nagle's algorithm on, small responses wait ~40ms on the
+		// client's delayed ACK. This must be set before the server is loaded.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final String apiKey;
+	private final String accountId;
+	private final int threads;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private volatile long minLatencyNanos = 0L;
+	private volatile long maxLatencyNanos = 0L;
+	private volatile double errorRate = 0.0;
+	private volatile int errorStatus = 503;
+	private volatile boolean compressResponses = false;
+	private volatile int pendingPolls = 0;
+	private volatile byte[] queryResults = results(Collections.<String>emptyList());
+
+	private final AtomicLong nextJobId = new AtomicLong();
+	private final ConcurrentMap<String, AtomicInteger> jobs =
+			new ConcurrentHashMap<String, AtomicInteger>();
+
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder records = new LongAdder();
+	private final LongAdder bytesIngested = new LongAdder();
+
+	/**
+	 * Creates a server with the given API key and account, that handles up to
+	 * {@code threads} requests at once. Call {@link #start()} to start it.
+	 */
+	public FakePrecogServer(String apiKey, String accountId, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		this.apiKey = apiKey;
+		this.accountId = accountId;
+		this.threads = threads;
+	}
+
+	/**
+	 * Creates a server with the default API key and account, that handles up
+	 * to {@link #DEFAULT_THREADS} requests at once.
+	 */
+	public FakePrecogServer() {
+		this(DEFAULT_API_KEY, DEFAULT_ACCOUNT_ID, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Starts the server on a free port on the loopback interface.
+	 *
+	 * @return this server
+	 * @throws IOException if the server can't bind
+	 */
+	public synchronized FakePrecogServer start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Server already started.");
+		}
+		HttpServer server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 256);
+		server.createContext("/ingest/v1/fs", new IngestHandler());
+		server.createContext("/analytics/v1/fs", new QueryHandler());
+		server.createContext("/analytics/v1/queries", new AsyncQueryHandler());
+		server.createContext("/accounts/v1", new AccountsHandler());
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fake-precog-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+		this.server = server;
+		return this;
+	}
+
+	/** Stops the server, dropping any requests in progress. */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	/** Returns the URL of the running server, to pass to the client. */
+	public synchronized URL getService() {
+		if (server == null) {
+			throw new IllegalStateException("Server not started.");
+		}
+		try {
+			return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/");
+		} catch (MalformedURLException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public String getApiKey() {
+		return apiKey;
+	}
+
+	public String getAccountId() {
+		return accountId;
+	}
+
+	/**
+	 * Delays each response by a random time between {@code min} and
+	 * {@code max}. The delay holds on to one of the server's threads.
+	 */
+	public void setLatency(long min, long max, TimeUnit unit) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("Invalid latency range: " + min + " to " + max);
+		}
+		this.minLatencyNanos = unit.toNanos(min);
+		this.maxLatencyNanos = unit.toNanos(max);
+	}
+
+	/**
+	 * Fails a random {@code rate} (between 0 and 1) of requests with the
+	 * HTTP status {@code status}, instead of handling them.
+	 */
+	public void setErrorRate(double rate, int status) {
+		if (rate < 0.0 || rate > 1.0) {
+			throw new IllegalArgumentException("rate must be between 0 and 1");
+		}
+		this.errorStatus = status;
+		this.errorRate = rate;
+	}
+
+	/** Sets whether responses are gzipped for clients that accept gzip. */
+	public void setCompressResponses(boolean compressResponses) {
+		this.compressResponses = compressResponses;
+	}
+
+	/**
+	 * Sets the number of times an async query's results are polled before
+	 * they are ready. Only affects queries started afterwards.
+	 */
+	public void setPendingPolls(int polls) {
+		this.pendingPolls = polls;
+	}
+
+	/**
+	 * Sets the results returned for every query. Each row is the JSON
+	 * encoding of one result.
+	 */
+	public void setQueryResults(List<String> rows) {
+		this.queryResults = results(rows);
+	}
+
+	/** Returns the number of requests received, including failed ones. */
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	/** Returns the number of requests failed by error injection. */
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/** Returns the number of records ingested. */
+	public long getRecordsIngested() {
+		return records.sum();
+	}
+
+	/** Returns the bytes ingested, after decompression. */
+	public long getBytesIngested() {
+		return bytesIngested.sum();
+	}
+
+	private static byte[] results(List<String> rows) {
+		StringBuilder sb = new StringBuilder("{\"data\":[");
+		for (int i = 0; i < rows.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(rows.get(i));
+		}
+		sb.append("],\"errors\":[],\"warnings\":[],\"serverErrors\":[]}");
+		return utf8(sb.toString());
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Handles the latency, error injection and authentication common to all
+	 * the services, before passing the request on to {@link #serve}.
+	 */
+	private abstract class Handler implements HttpHandler {
+
+		protected boolean requiresApiKey() {
+			return true;
+		}
+
+		protected abstract void serve(HttpExchange exchange, String path,
+				Map<String, String> params) throws IOException;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.increment();
+				delay();
+				Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+				double errorRate = FakePrecogServer.this.errorRate;
+				if (errorRate > 0.0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+					errors.increment();
+					discard(exchange.getRequestBody());
+					reply(exchange, errorStatus, "{\"error\":\"Injected failure.\"}");
+				} else if (requiresApiKey() && !apiKey.equals(params.get("apiKey"))) {
+					discard(exchange.getRequestBody());
+					reply(exchange, 403, "{\"error\":\"Invalid API key.\"}");
+				} else {
+					String context = exchange.getHttpContext().getPath();
+					String path = exchange.getRequestURI().getPath().substring(context.length());
+					serve(exchange, path, params);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void delay() throws InterruptedException {
+			long min = minLatencyNanos;
+			long max = maxLatencyNanos;
+			if (max > 0) {
+				long nanos = min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			}
+		}
+
+		protected void reply(HttpExchange exchange, int status, String body) throws IOException {
+			reply(exchange, status, body == null ? null : utf8(body));
+		}
+
+		protected void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			if (body == null || body.length == 0) {
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+			String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (compressResponses && accept != null && accept.contains("gzip")) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+				GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+				gzip.write(body);
+				gzip.close();
+				body = bytes.toByteArray();
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+			exchange.sendResponseHeaders(status, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+
+	private class IngestHandler extends Handler {
+		protected void serve(HttpExchange exchange, String path, Map<String, String> params)
+				throws IOException {
+			String method = exchange.getRequestMethod();
+			if (method.equals("DELETE")) {
+				discard(exchange.getRequestBody());
+				reply(exchange, 200, (byte[]) null);
+			} else if (method.equals("POST")) {
+				InputStream in = decode(exchange);
+				boolean csv = String.valueOf(exchange.getRequestHeaders().getFirst("Content-Type"))
+					.startsWith("text/csv");
+				long[] counts = countLines(in);
+				long lines = csv ? Math.max(counts[0] - 1, 0) : counts[0];
+				records.add(lines);
+				bytesIngested.add(counts[1]);
+				reply(exchange, 200, "{\"ingestId\":\"" + nextJobId.incrementAndGet() +
+						"\",\"total\":" + lines + ",\"ingested\":" + lines +
+						",\"failed\":0,\"skipped\":0,\"errors\":[]}");
+			} else {
+				discard(exchange.getRequestBody());
+				reply(exchange, 405, (byte[]) null);
+			}
+		}
+
+		private InputStream decode(HttpExchange exchange) throws IOException {
+			String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+			InputStream in = exchange.getRequestBody();
+			if ("gzip".equalsIgnoreCase(encoding)) {
+				return new GZIPInputStream(in, 16 * 1024);
+			} else if ("deflate".equalsIgnoreCase(encoding)) {
+				return new InflaterInputStream(in);
+			}
+			return in;
+		}
+
+		// Returns the number of non-empty lines, and the number of bytes.
+		private long[] countLines(InputStream in) throws IOException {
+			byte[] buffer = new byte[16 * 1024];
+			long lines = 0;
+			long bytes = 0;
+			boolean blank = true;
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				bytes += n;
+				for (int i = 0; i < n; i++) {
+					byte b = buffer[i];
+					if (b == '\n') {
+						if (!blank) {
+							lines++;
+						}
+						blank = true;
+					} else if (b != '\r' && b != ' ' && b != '\t') {
+						blank = false;
+					}
+				}
+			}
+			return new long[] { blank ? lines : lines + 1, bytes };
+		}
+	}
+
+	private class QueryHandler extends Handler {
+		protected void serve(HttpExchange exchange, String path, Map<String, String> params)
+				throws IOException {
+			discard(exchange.getRequestBody());
+			if (!exchange.getRequestMethod().equals("GET")) {
+				reply(exchange, 405, (byte[]) null);
+			} else if (params.get("q") == null) {
+				reply(exchange, 400, "{\"error\":\"Missing query.\"}");
+			} else {
+				reply(exchange, 200, queryResults);
+			}
+		}
+	}
+
+	private class AsyncQueryHandler extends Handler {
+		protected void serve(HttpExchange exchange, String path, Map<String, String> params)
+				throws IOException {
+			discard(exchange.getRequestBody());
+			String method = exchange.getRequestMethod();
+			if (method.equals("POST") && (path.equals("") || path.equals("/"))) {
+				if (params.get("q") == null) {
+					reply(exchange, 400, "{\"error\":\"Missing query.\"}");
+					return;
+				}
+				String jobId = "job-" + nextJobId.incrementAndGet();
+				jobs.put(jobId, new AtomicInteger(pendingPolls));
+				reply(exchange, 202, "{\"jobId\":\"" + jobId + "\"}");
+			} else if (method.equals("GET")) {
+				String jobId = path.startsWith("/") ? path.substring(1) : path;
+				AtomicInteger pending = jobs.get(jobId);
+				if (pending == null) {
+					reply(exchange, 404, "{\"error\":\"No such job.\"}");
+				} else if (pending.getAndDecrement() > 0) {
+					reply(exchange, 202, (byte[]) null);
+				} else {
+					jobs.remove(jobId);
+					reply(exchange, 200, queryResults);
+				}
+			} else {
+				reply(exchange, 405, (byte[]) null);
+			}
+		}
+	}
+
+	private class AccountsHandler extends Handler {
+		@Override
+		protected boolean requiresApiKey() {
+			return false;
+		}
+
+		protected void serve(HttpExchange exchange, String path, Map<String, String> params)
+				throws IOException {
+			discard(exchange.getRequestBody());
+			String method = exchange.getRequestMethod();
+			if (method.equals("POST") && path.equals("/accounts/")) {
+				reply(exchange, 200, "{\"accountId\":\"" + accountId + "\"}");
+			} else if (method.equals("GET") && path.equals("/accounts/" + accountId)) {
+				reply(exchange, 200, "{\"accountId\":\"" + accountId + "\"," +
+						"\"email\":\"test@example.com\"," +
+						"\"accountCreationDate\":\"2013-01-01T00:00:00.000Z\"," +
+						"\"apiKey\":\"" + apiKey + "\"," +
+						"\"rootPath\":\"/" + accountId + "/\"," +
+						"\"plan\":{\"type\":\"Free\"}}");
+			} else {
+				reply(exchange, 404, "{\"error\":\"No such account.\"}");
+			}
+		}
+	}
+
+	private static Map<String, String> params(String query) throws UnsupportedEncodingException {
+		if (query == null || query.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> params = new HashMap<String, String>();
+		for (String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq < 0) {
+				params.put(URLDecoder.decode(param, "UTF-8"), "");
+			} else {
+				params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	private static void discard(InputStream in) throws IOException {
+		byte[] buffer = new byte[4096];
+		while (in.read(buffer) >= 0) {
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.precog.client.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the requests the client sends for every call: an ingest
+ * request built the way {@code PrecogClient} builds one, and the
+ * {@link Path} operations used to work out its path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuilderBenchmark {
+
+	private final Path service = new Path("/ingest/v1/fs");
+	private final Path base = new Path("/0000000042");
+	private final String path = "events/2013/clicks";
+	private final String body = "{\"id\":1,\"name\":\"user-1\"}\n";
+
+	@Benchmark
+	public Request build() {
+		return new RequestBuilder(Method.POST, service.append(base.append(path)))
+			.addParam("apiKey", "C5EF0038-A2A2-47EB-88A4-AAFCE59EC22B")
+			.addParam("mode", "batch")
+			.addParam("receipt", "true")
+			.addParam("ownerAccountId", "0000000042")
+			.setContentType(ContentType.JSON_STREAM)
+			.setBody(body)
+			.build();
+	}
+
+	@Benchmark
+	public Request copy() {
+		Request request = new RequestBuilder(Method.POST, service)
+			.addParam("apiKey", "C5EF0038-A2A2-47EB-88A4-AAFCE59EC22B")
+			.addParam("mode", "batch")
+			.build();
+		return new RequestBuilder(request)
+			.addParam("delimiter", ",")
+			.addParam("quote", "\"")
+			.addParam("escape", "\\")
+			.build();
+	}
+
+	@Benchmark
+	public Path append() {
+		return service.append(base).append(path);
+	}
+
+	@Benchmark
+	public Path absolutize() {
+		return new Path(path).absolutize();
+	}
+}
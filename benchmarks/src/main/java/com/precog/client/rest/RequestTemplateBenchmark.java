@@ -0,0 +1,93 @@
+package com.precog.client.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-request cost of an ingest and a query request, up to the
+ * encoded target {@link Rest} sends: built from scratch by a
+ * {@link RequestBuilder} and encoded on every call, as the client used to,
+ * against made from a {@link RequestTemplate} built once. The body is a
+ * short JSON string, so this is the overhead of a small append.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestTemplateBenchmark {
+	private static final Path INGEST = new Path("ingest/v1/");
+	private static final Path ANALYTICS = new Path("analytics/v1/");
+	private static final Path FS = new Path("/fs");
+
+	private final String apiKey = "00000000-0000-0000-0000-000000000000";
+	private final String accountId = "0000000001";
+	private final Path basePath = new Path("/0000000001");
+	private final String path = "/events/clicks";
+	private final String body = "{\"id\":12345,\"name\":\"user-12345\",\"city\":\"Montreal\"}";
+	private final String query = "count(//events/clicks where //events/clicks.id > 100)";
+
+	private RequestTemplate ingest;
+	private RequestTemplate analytics;
+
+	@Setup
+	public void setUp() {
+		ingest = newIngestBuilder().buildTemplate();
+		analytics = new RequestBuilder(analyticsPath())
+			.addParam("apiKey", apiKey)
+			.addParam("format", "detailed")
+			.buildTemplate();
+	}
+
+	@Benchmark
+	public String ingestBuilder() throws Exception {
+		Request request = newIngestBuilder().setBody(body).build();
+		request.getContentLength();
+		return RequestTemplate.encodeTarget(request.getPath(), request.getParams());
+	}
+
+	@Benchmark
+	public String ingestTemplate() throws Exception {
+		Request request = ingest.withBody(body);
+		request.getContentLength();
+		return request.getTarget();
+	}
+
+	@Benchmark
+	public String queryBuilder() {
+		Request request = new RequestBuilder(analyticsPath())
+			.addParam("apiKey", apiKey)
+			.addParam("q", query)
+			.addParam("format", "detailed")
+			.build();
+		return RequestTemplate.encodeTarget(request.getPath(), request.getParams());
+	}
+
+	@Benchmark
+	public String queryTemplate() {
+		return analytics.withParam("q", query).getTarget();
+	}
+
+	private RequestBuilder newIngestBuilder() {
+		return new RequestBuilder(Method.POST, INGEST.append(FS.append(basePath).append(new Path(path))))
+			.addParam("apiKey", apiKey)
+			.addParam("mode", "batch")
+			.addParam("receipt", "true")
+			.addParam("ownerAccountId", accountId);
+	}
+
+	private Path analyticsPath() {
+		return ANALYTICS.append(FS.append(basePath).append(new Path(path)));
+	}
+}
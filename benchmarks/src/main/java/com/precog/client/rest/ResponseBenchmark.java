@@ -0,0 +1,76 @@
+package com.precog.client.rest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link Response#asString()}, which reads every JSON response the
+ * client parses, on bodies of {@code size} bytes made of short lines: with
+ * and without a {@code Content-Length} to presize the text, and against the
+ * {@code BufferedReader.readLine} loop it used to be (which also dropped the
+ * newlines).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+	@Param({ "1024", "1048576" })
+	public int size;
+
+	private byte[] body;
+	private Map<String, String> headers;
+
+	@Setup
+	public void setUp() throws Exception {
+		byte[] line = "{\"id\":12345,\"name\":\"user-12345\",\"city\":\"Montréal\"}\n"
+			.getBytes("UTF-8");
+		body = new byte[size];
+		for (int i = 0; i < size; i++) {
+			body[i] = line[i % line.length];
+		}
+		headers = Collections.singletonMap("Content-Length", String.valueOf(size));
+	}
+
+	@Benchmark
+	public String asString() throws HttpException {
+		return new Response(200, "OK", new ByteArrayInputStream(body)).asString();
+	}
+
+	@Benchmark
+	public String asStringWithLength() throws HttpException {
+		return new Response(200, "OK", headers, new ByteArrayInputStream(body)).asString();
+	}
+
+	@Benchmark
+	public String readLines() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader buff = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(body), "UTF-8"));
+		String inputLine;
+		while ((inputLine = buff.readLine()) != null) {
+			sb.append(inputLine);
+		}
+		return sb.toString();
+	}
+}
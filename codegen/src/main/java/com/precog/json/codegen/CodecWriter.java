@@ -0,0 +1,877 @@
+package com.precog.json.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+
+/**
+ * Writes the source of the codec for one {@code @JsonCodec} class.
+ * <p>
+ * The codec has a {@code write} and a {@code read} method for the class
+ * itself, plus a static {@code write$N} and {@code read$N} helper for each
+ * other type it meets (eg. {@code List<String>}), and a {@code codec$N}
+ * constant for each other {@code @JsonCodec} class it refers to. Everything
+ * in the generated source is fully qualified, so it never clashes with the
+ * names of the fields.
+ */
+final class CodecWriter {
+
+	static final String JSON_CODEC = "com.precog.json.JsonCodec";
+
+	private static final String SUFFIX = "$JsonCodec";
+	private static final String JSON_TEXT = "com.precog.json.JsonText";
+	private static final String JSON_INPUT = "com.precog.json.JsonInput";
+	private static final String NULL_TOKEN = JSON_INPUT + ".Token.NULL";
+
+	// Primitive wrappers, by name.
+	private static final Map<String, TypeKind> BOXES = new HashMap<String, TypeKind>();
+
+	// The classes created for fields declared as collection or map interfaces.
+	private static final Map<String, String> IMPLEMENTATIONS = new HashMap<String, String>();
+
+	static {
+		BOXES.put("java.lang.Boolean", TypeKind.BOOLEAN);
+		BOXES.put("java.lang.Byte", TypeKind.BYTE);
+		BOXES.put("java.lang.Short", TypeKind.SHORT);
+		BOXES.put("java.lang.Integer", TypeKind.INT);
+		BOXES.put("java.lang.Long", TypeKind.LONG);
+		BOXES.put("java.lang.Float", TypeKind.FLOAT);
+		BOXES.put("java.lang.Double", TypeKind.DOUBLE);
+		BOXES.put("java.lang.Character", TypeKind.CHAR);
+
+		IMPLEMENTATIONS.put("java.util.Collection", "java.util.ArrayList");
+		IMPLEMENTATIONS.put("java.util.List", "java.util.ArrayList");
+		IMPLEMENTATIONS.put("java.util.Set", "java.util.LinkedHashSet");
+		IMPLEMENTATIONS.put("java.util.SortedSet", "java.util.TreeSet");
+		IMPLEMENTATIONS.put("java.util.NavigableSet", "java.util.TreeSet");
+		IMPLEMENTATIONS.put("java.util.Queue", "java.util.LinkedList");
+		IMPLEMENTATIONS.put("java.util.Deque", "java.util.LinkedList");
+		IMPLEMENTATIONS.put("java.util.Map", "java.util.LinkedHashMap");
+		IMPLEMENTATIONS.put("java.util.SortedMap", "java.util.TreeMap");
+		IMPLEMENTATIONS.put("java.util.NavigableMap", "java.util.TreeMap");
+	}
+
+	private final ProcessingEnvironment env;
+	private final Types types;
+	private final Elements elements;
+	private final Messager messager;
+
+	private final TypeElement type;
+	private final String packageName;
+	private final String typeName;
+	private final String codecName;
+
+	private final TypeMirror collectionType;
+	private final TypeMirror mapType;
+
+	// Helpers and codecs, by the source name of their type.
+	private final Map<String, Integer> helpers = new LinkedHashMap<String, Integer>();
+	private final List<TypeMirror> helperTypes = new ArrayList<TypeMirror>();
+	private final Map<String, Integer> codecs = new LinkedHashMap<String, Integer>();
+
+	private boolean failed = false;
+
+	CodecWriter(ProcessingEnvironment env, TypeElement type) {
+		this.env = env;
+		this.types = env.getTypeUtils();
+		this.elements = env.getElementUtils();
+		this.messager = env.getMessager();
+		this.type = type;
+		this.packageName = elements.getPackageOf(type).getQualifiedName().toString();
+		this.typeName = type.getQualifiedName().toString();
+		this.codecName = simpleBinaryName(type) + SUFFIX;
+		this.collectionType = types.erasure(elements.getTypeElement("java.util.Collection").asType());
+		this.mapType = types.erasure(elements.getTypeElement("java.util.Map").asType());
+	}
+
+	/** Generates the codec, or reports why it can't be. */
+	void write() {
+		checkClass();
+		List<Property> properties = properties();
+		if (failed) {
+			return;
+		}
+
+		StringBuilder src = new StringBuilder(4096);
+		if (!packageName.isEmpty()) {
+			src.append("package ").append(packageName).append(";\n\n");
+		}
+		src.append("/** The JSON codec for {@link ").append(typeName).append("}. Generated; do not edit. */\n");
+		src.append("public final class ").append(codecName)
+				.append(" implements com.precog.json.ToJson<").append(typeName)
+				.append(">, com.precog.json.FromJson<").append(typeName).append("> {\n");
+
+		StringBuilder methods = new StringBuilder(4096);
+		writeSerialize(methods);
+		writeWrite(methods, properties);
+		writeRead(methods, properties);
+		// Helpers may add further helpers as they're written.
+		for (int i = 0; i < helperTypes.size(); i++) {
+			writeHelpers(methods, i, helperTypes.get(i));
+		}
+
+		for (Map.Entry<String, Integer> codec : codecs.entrySet()) {
+			src.append("\n\tprivate static final ").append(codec.getKey()).append(" codec$")
+					.append(codec.getValue()).append(" = new ").append(codec.getKey()).append("();\n");
+		}
+		src.append(methods).append("}\n");
+
+		String name = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+		try {
+			Writer out = env.getFiler().createSourceFile(name, type).openWriter();
+			try {
+				out.write(src.toString());
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe) {
+			error("Failed to write " + name + ": " + ioe.getMessage(), type);
+		}
+	}
+
+	// The class must be constructible, and visible, from its package.
+	private void checkClass() {
+		if (!type.getTypeParameters().isEmpty()) {
+			error("@JsonCodec classes can't be generic.", type);
+		}
+		if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+			error("@JsonCodec classes can't be abstract.", type);
+		}
+		if (type.getNestingKind() != NestingKind.TOP_LEVEL) {
+			if (type.getNestingKind() != NestingKind.MEMBER ||
+					!type.getModifiers().contains(Modifier.STATIC)) {
+				error("@JsonCodec classes must be top level or static nested classes.", type);
+			}
+			for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+				if (e.getModifiers().contains(Modifier.PRIVATE)) {
+					error("@JsonCodec classes can't be private, or nested in private classes.", type);
+					break;
+				}
+			}
+		}
+		boolean constructible = false;
+		for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+				constructible = true;
+			}
+		}
+		if (!constructible) {
+			error("@JsonCodec classes need a constructor without arguments that isn't private.", type);
+		}
+	}
+
+	// Finds the fields to read and write: the class's own first, then its
+	// superclasses', as Gson orders them.
+	private List<Property> properties() {
+		List<Property> properties = new ArrayList<Property>();
+		Set<String> names = new HashSet<String>();
+		DeclaredType self = (DeclaredType) type.asType();
+		TypeElement t = type;
+		while (t != null && !t.getQualifiedName().contentEquals("java.lang.Object")) {
+			for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+					continue;
+				}
+				TypeMirror fieldType = types.asMemberOf(self, field);
+				String name = serializedName(field);
+				if (!names.add(name)) {
+					error(typeName + " has more than one field named \"" + name + "\" in JSON.", field);
+					continue;
+				}
+				String unsupported = check(fieldType);
+				if (unsupported != null) {
+					error("Can't encode field " + field.getSimpleName() + ": " + unsupported, field);
+					continue;
+				}
+				Property property = property(field, fieldType, name);
+				if (property != null) {
+					properties.add(property);
+				}
+			}
+			TypeMirror superclass = t.getSuperclass();
+			t = superclass.getKind() == TypeKind.DECLARED ?
+					(TypeElement) ((DeclaredType) superclass).asElement() : null;
+		}
+		return properties;
+	}
+
+	// Works out how to get and set field: directly if the codec can see it,
+	// or else through its bean accessors.
+	private Property property(VariableElement field, TypeMirror fieldType, String name) {
+		String fieldName = field.getSimpleName().toString();
+		boolean isFinal = field.getModifiers().contains(Modifier.FINAL);
+		if (isAccessible(field)) {
+			if (isFinal) {
+				warning("Final field " + fieldName + " will be written, but not read.", field);
+				return new Property(name, fieldType, "value." + fieldName, null);
+			}
+			return new Property(name, fieldType, "value." + fieldName, "value." + fieldName + " = ");
+		}
+
+		String suffix = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+		String getter = null;
+		String setter = null;
+		for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+			if (method.getModifiers().contains(Modifier.STATIC) || !isAccessible(method)) {
+				continue;
+			}
+			String methodName = method.getSimpleName().toString();
+			ExecutableType methodType =
+					(ExecutableType) types.asMemberOf((DeclaredType) type.asType(), method);
+			List<? extends TypeMirror> params = methodType.getParameterTypes();
+			TypeMirror returns = methodType.getReturnType();
+			if (params.isEmpty() && types.isSameType(returns, fieldType) &&
+					(methodName.equals("get" + suffix) ||
+					(methodName.equals("is" + suffix) && fieldType.getKind() == TypeKind.BOOLEAN))) {
+				getter = "value." + methodName + "()";
+			} else if (params.size() == 1 && types.isSameType(params.get(0), fieldType) &&
+					methodName.equals("set" + suffix)) {
+				setter = "value." + methodName + "(";
+			}
+		}
+		if (getter == null) {
+			error("Field " + fieldName + " isn't visible to the codec, so needs a get" + suffix +
+					"() method, or must not be private.", field);
+			return null;
+		}
+		if (setter == null) {
+			if (!isFinal) {
+				warning("Field " + fieldName + " has no set" + suffix +
+						" method, so will be written, but not read.", field);
+			}
+		}
+		return new Property(name, fieldType, getter, setter);
+	}
+
+	private boolean isAccessible(Element member) {
+		Set<Modifier> modifiers = member.getModifiers();
+		if (modifiers.contains(Modifier.PRIVATE)) {
+			return false;
+		}
+		return modifiers.contains(Modifier.PUBLIC) ||
+				elements.getPackageOf(member).getQualifiedName().contentEquals(packageName);
+	}
+
+	// Returns why t can't be encoded, or null if it can.
+	private String check(TypeMirror t) {
+		switch (t.getKind()) {
+		case BOOLEAN: case BYTE: case SHORT: case INT: case LONG: case FLOAT: case DOUBLE: case CHAR:
+			return null;
+		case ARRAY:
+			TypeMirror component = ((ArrayType) t).getComponentType();
+			if (component.getKind() == TypeKind.DECLARED &&
+					!((DeclaredType) component).getTypeArguments().isEmpty()) {
+				return "arrays of generic types aren't supported.";
+			}
+			return check(component);
+		case DECLARED:
+			break;
+		default:
+			return "type " + t + " isn't supported.";
+		}
+
+		DeclaredType declared = (DeclaredType) t;
+		TypeElement element = (TypeElement) declared.asElement();
+		String name = element.getQualifiedName().toString();
+		if (BOXES.containsKey(name) || name.equals("java.lang.String") ||
+				name.equals("java.math.BigDecimal") || name.equals("java.math.BigInteger") ||
+				element.getKind() == ElementKind.ENUM || isCodec(element)) {
+			return null;
+		}
+
+		List<? extends TypeMirror> args = declared.getTypeArguments();
+		boolean isMap = types.isAssignable(types.erasure(t), mapType);
+		if (isMap || types.isAssignable(types.erasure(t), collectionType)) {
+			if (implementation(element) == null) {
+				return "don't know which class to create for " + name + ".";
+			}
+			if (args.size() != (isMap ? 2 : 1)) {
+				return "the type parameters of " + name + " must be given.";
+			}
+			for (TypeMirror arg : args) {
+				if (arg.getKind() != TypeKind.DECLARED && arg.getKind() != TypeKind.ARRAY) {
+					return "type " + arg + " isn't supported.";
+				}
+			}
+			if (isMap && !isNamed(args.get(0), "java.lang.String")) {
+				return "only maps with String keys are supported.";
+			}
+			return check(args.get(args.size() - 1));
+		}
+		return "type " + name + " isn't supported; it could be annotated with @JsonCodec.";
+	}
+
+	// The class to create for a collection or map declared as element.
+	private String implementation(TypeElement element) {
+		String name = element.getQualifiedName().toString();
+		if (IMPLEMENTATIONS.containsKey(name)) {
+			return IMPLEMENTATIONS.get(name);
+		}
+		if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)) {
+			return null;
+		}
+		for (ExecutableElement c : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+			if (c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PUBLIC)) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	private void writeSerialize(StringBuilder out) {
+		out.append("\n\tpublic String serialize(").append(typeName).append(" value) {\n");
+		out.append("\t\treturn com.precog.client.JsonCodecs.encode(this, value);\n");
+		out.append("\t}\n");
+		out.append("\n\tpublic ").append(typeName).append(" deserialize(String json) {\n");
+		out.append("\t\treturn com.precog.client.JsonCodecs.decode(this, json);\n");
+		out.append("\t}\n");
+	}
+
+	private void writeWrite(StringBuilder out, List<Property> properties) {
+		out.append("\n\tpublic void write(").append(typeName)
+				.append(" value, Appendable out) throws java.io.IOException {\n");
+		out.append("\t\tif (value == null) {\n");
+		out.append("\t\t\tout.append(\"null\");\n");
+		out.append("\t\t\treturn;\n");
+		out.append("\t\t}\n");
+		out.append("\t\tchar sep = '{';\n");
+		for (Property p : properties) {
+			String key = javaString(jsonString(p.name) + ":");
+			if (p.type.getKind().isPrimitive()) {
+				out.append("\t\tout.append(sep).append(").append(key).append(");\n");
+				out.append("\t\t").append(writeValue(p.type, p.getter)).append("\n");
+				out.append("\t\tsep = ',';\n");
+			} else {
+				// Null fields are left out, as Gson does by default.
+				out.append("\t\t{\n");
+				out.append("\t\t\t").append(sourceName(p.type)).append(" v = ").append(p.getter).append(";\n");
+				out.append("\t\t\tif (v != null) {\n");
+				out.append("\t\t\t\tout.append(sep).append(").append(key).append(");\n");
+				out.append("\t\t\t\t").append(writeValue(p.type, "v")).append("\n");
+				out.append("\t\t\t\tsep = ',';\n");
+				out.append("\t\t\t}\n");
+				out.append("\t\t}\n");
+			}
+		}
+		out.append("\t\tout.append(sep == '{' ? \"{}\" : \"}\");\n");
+		out.append("\t}\n");
+	}
+
+	private void writeRead(StringBuilder out, List<Property> properties) {
+		out.append("\n\tpublic ").append(typeName).append(" read(").append(JSON_INPUT)
+				.append(" in) throws java.io.IOException {\n");
+		out.append("\t\tif (in.peek() == ").append(NULL_TOKEN).append(") {\n");
+		out.append("\t\t\tin.nextNull();\n");
+		out.append("\t\t\treturn null;\n");
+		out.append("\t\t}\n");
+		out.append("\t\t").append(typeName).append(" value = new ").append(typeName).append("();\n");
+		out.append("\t\tin.beginObject();\n");
+		out.append("\t\twhile (in.hasNext()) {\n");
+		out.append("\t\t\tswitch (in.nextName()) {\n");
+		for (Property p : properties) {
+			if (p.setter == null) {
+				continue;
+			}
+			String close = p.setter.endsWith("(") ? ");" : ";";
+			out.append("\t\t\tcase ").append(javaString(p.name)).append(":\n");
+			if (p.type.getKind().isPrimitive()) {
+				// A null leaves a primitive field as it is, as with Gson.
+				out.append("\t\t\t\tif (in.peek() == ").append(NULL_TOKEN).append(") {\n");
+				out.append("\t\t\t\t\tin.nextNull();\n");
+				out.append("\t\t\t\t} else {\n");
+				out.append("\t\t\t\t\t").append(p.setter).append(readValue(p.type)).append(close).append("\n");
+				out.append("\t\t\t\t}\n");
+			} else {
+				out.append("\t\t\t\t").append(p.setter).append(readValue(p.type)).append(close).append("\n");
+			}
+			out.append("\t\t\t\tbreak;\n");
+		}
+		out.append("\t\t\tdefault:\n");
+		out.append("\t\t\t\tin.skipValue();\n");
+		out.append("\t\t\t}\n");
+		out.append("\t\t}\n");
+		out.append("\t\tin.endObject();\n");
+		out.append("\t\treturn value;\n");
+		out.append("\t}\n");
+	}
+
+	// Returns a statement that writes expr, which is not null, of type t.
+	private String writeValue(TypeMirror t, String expr) {
+		TypeKind kind = primitiveKind(t);
+		if (kind != null) {
+			String value = t.getKind().isPrimitive() ? expr :
+					expr + "." + kind.name().toLowerCase() + "Value()";
+			switch (kind) {
+			case BOOLEAN:
+				return "out.append(" + value + " ? \"true\" : \"false\");";
+			case CHAR:
+				return JSON_TEXT + ".writeString(String.valueOf(" + value + "), out);";
+			case LONG:
+			case FLOAT:
+			case DOUBLE:
+				return JSON_TEXT + ".writeNumber(" + value + ", out);";
+			default:
+				// A byte, short or int.
+				return JSON_TEXT + ".writeNumber((long) " + value + ", out);";
+			}
+		}
+		if (isNamed(t, "java.lang.String")) {
+			return JSON_TEXT + ".writeString(" + expr + ", out);";
+		}
+		if (isNamed(t, "java.math.BigDecimal") || isNamed(t, "java.math.BigInteger")) {
+			return "out.append(" + expr + ".toString());";
+		}
+		if (t.getKind() == TypeKind.DECLARED) {
+			TypeElement element = (TypeElement) ((DeclaredType) t).asElement();
+			if (isCodec(element)) {
+				return "codec$" + codec(element) + ".write(" + expr + ", out);";
+			}
+			if (element.getKind() == ElementKind.ENUM && !hasRenamedConstants(element)) {
+				return JSON_TEXT + ".writeString(" + expr + ".name(), out);";
+			}
+		}
+		return "write$" + helper(t) + "(" + expr + ", out);";
+	}
+
+	// Returns an expression that reads a value of type t. Unless t is
+	// primitive, a null is read as null.
+	private String readValue(TypeMirror t) {
+		if (t.getKind().isPrimitive()) {
+			switch (t.getKind()) {
+			case BOOLEAN:
+				return "in.nextBoolean()";
+			case BYTE:
+				return "(byte) in.nextInt()";
+			case SHORT:
+				return "(short) in.nextInt()";
+			case INT:
+				return "in.nextInt()";
+			case LONG:
+				return "in.nextLong()";
+			case FLOAT:
+				return "(float) in.nextDouble()";
+			case DOUBLE:
+				return "in.nextDouble()";
+			default:
+				break;
+			}
+		}
+		if (t.getKind() == TypeKind.DECLARED) {
+			TypeElement element = (TypeElement) ((DeclaredType) t).asElement();
+			if (isCodec(element)) {
+				return "codec$" + codec(element) + ".read(in)";
+			}
+		}
+		return "read$" + helper(t) + "(in)";
+	}
+
+	private void writeHelpers(StringBuilder out, int id, TypeMirror t) {
+		String name = sourceName(t);
+		boolean isChar = t.getKind() == TypeKind.CHAR;
+
+		if (!isChar) {
+			out.append("\n\tprivate static void write$").append(id).append("(").append(name)
+					.append(" v, Appendable out) throws java.io.IOException {\n");
+			writeHelperBody(out, t);
+			out.append("\t}\n");
+		}
+
+		out.append("\n\tprivate static ").append(name).append(" read$").append(id).append("(")
+				.append(JSON_INPUT).append(" in) throws java.io.IOException {\n");
+		if (!isChar) {
+			out.append("\t\tif (in.peek() == ").append(NULL_TOKEN).append(") {\n");
+			out.append("\t\t\tin.nextNull();\n");
+			out.append("\t\t\treturn null;\n");
+			out.append("\t\t}\n");
+		}
+		readHelperBody(out, t);
+		out.append("\t}\n");
+	}
+
+	private void writeHelperBody(StringBuilder out, TypeMirror t) {
+		if (t.getKind() == TypeKind.ARRAY) {
+			TypeMirror component = ((ArrayType) t).getComponentType();
+			out.append("\t\tout.append('[');\n");
+			out.append("\t\tfor (int i = 0; i < v.length; i++) {\n");
+			out.append("\t\t\tif (i > 0) {\n");
+			out.append("\t\t\t\tout.append(',');\n");
+			out.append("\t\t\t}\n");
+			writeElement(out, component, "v[i]");
+			out.append("\t\t}\n");
+			out.append("\t\tout.append(']');\n");
+			return;
+		}
+
+		DeclaredType declared = (DeclaredType) t;
+		TypeElement element = (TypeElement) declared.asElement();
+		List<? extends TypeMirror> args = declared.getTypeArguments();
+		if (element.getKind() == ElementKind.ENUM) {
+			out.append("\t\tswitch (v.name()) {\n");
+			for (VariableElement constant : enumConstants(element)) {
+				String renamed = serializedName(constant);
+				if (!renamed.contentEquals(constant.getSimpleName())) {
+					out.append("\t\tcase ").append(javaString(constant.getSimpleName().toString())).append(":\n");
+					out.append("\t\t\tout.append(").append(javaString(jsonString(renamed))).append(");\n");
+					out.append("\t\t\tbreak;\n");
+				}
+			}
+			out.append("\t\tdefault:\n");
+			out.append("\t\t\t").append(JSON_TEXT).append(".writeString(v.name(), out);\n");
+			out.append("\t\t}\n");
+		} else if (types.isAssignable(types.erasure(t), mapType)) {
+			TypeMirror valueType = args.get(1);
+			String valueName = sourceName(valueType);
+			out.append("\t\tchar sep = '{';\n");
+			out.append("\t\tfor (java.util.Map.Entry<String, ").append(valueName).append("> e : v.entrySet()) {\n");
+			out.append("\t\t\t").append(valueName).append(" x = e.getValue();\n");
+			out.append("\t\t\tif (x != null) {\n");
+			out.append("\t\t\t\tout.append(sep);\n");
+			out.append("\t\t\t\t").append(JSON_TEXT).append(".writeString(String.valueOf(e.getKey()), out);\n");
+			out.append("\t\t\t\tout.append(':');\n");
+			out.append("\t\t\t\t").append(writeValue(valueType, "x")).append("\n");
+			out.append("\t\t\t\tsep = ',';\n");
+			out.append("\t\t\t}\n");
+			out.append("\t\t}\n");
+			out.append("\t\tout.append(sep == '{' ? \"{}\" : \"}\");\n");
+		} else if (types.isAssignable(types.erasure(t), collectionType)) {
+			TypeMirror elementType = args.get(0);
+			out.append("\t\tout.append('[');\n");
+			out.append("\t\tboolean first = true;\n");
+			out.append("\t\tfor (").append(sourceName(elementType)).append(" e : v) {\n");
+			out.append("\t\t\tif (!first) {\n");
+			out.append("\t\t\t\tout.append(',');\n");
+			out.append("\t\t\t}\n");
+			out.append("\t\t\tfirst = false;\n");
+			writeElement(out, elementType, "e");
+			out.append("\t\t}\n");
+			out.append("\t\tout.append(']');\n");
+		} else {
+			// A wrapper, string or number, which are otherwise written inline.
+			out.append("\t\t").append(writeValue(t, "v")).append("\n");
+		}
+	}
+
+	// Writes an element of an array or collection, which may be null.
+	private void writeElement(StringBuilder out, TypeMirror t, String expr) {
+		if (t.getKind().isPrimitive()) {
+			out.append("\t\t\t").append(writeValue(t, expr)).append("\n");
+			return;
+		}
+		out.append("\t\t\t").append(sourceName(t)).append(" x = ").append(expr).append(";\n");
+		out.append("\t\t\tif (x == null) {\n");
+		out.append("\t\t\t\tout.append(\"null\");\n");
+		out.append("\t\t\t} else {\n");
+		out.append("\t\t\t\t").append(writeValue(t, "x")).append("\n");
+		out.append("\t\t\t}\n");
+	}
+
+	private void readHelperBody(StringBuilder out, TypeMirror t) {
+		TypeKind kind = primitiveKind(t);
+		if (kind == TypeKind.CHAR) {
+			out.append("\t\tString s = in.nextString();\n");
+			out.append("\t\tif (s.length() != 1) {\n");
+			out.append("\t\t\tthrow new java.io.IOException(\"Expected a character but was \\\"\" + s + \"\\\".\");\n");
+			out.append("\t\t}\n");
+			out.append("\t\treturn s.charAt(0);\n");
+			return;
+		}
+		if (kind != null) {
+			out.append("\t\treturn ").append(readValue(types.getPrimitiveType(kind))).append(";\n");
+			return;
+		}
+		if (isNamed(t, "java.lang.String")) {
+			out.append("\t\treturn in.nextString();\n");
+			return;
+		}
+		if (isNamed(t, "java.math.BigDecimal") || isNamed(t, "java.math.BigInteger")) {
+			out.append("\t\treturn new ").append(sourceName(t)).append("(in.nextString());\n");
+			return;
+		}
+
+		if (t.getKind() == TypeKind.ARRAY) {
+			// Read into an array that's doubled as needed, then trimmed.
+			String name = sourceName(t);
+			TypeMirror component = ((ArrayType) t).getComponentType();
+			String creation = newArray(t, "8");
+			out.append("\t\t").append(name).append(" a = ").append(creation).append(";\n");
+			out.append("\t\tint n = 0;\n");
+			out.append("\t\tin.beginArray();\n");
+			out.append("\t\twhile (in.hasNext()) {\n");
+			out.append("\t\t\tif (n == a.length) {\n");
+			out.append("\t\t\t\ta = java.util.Arrays.copyOf(a, n * 2);\n");
+			out.append("\t\t\t}\n");
+			out.append("\t\t\ta[n++] = ").append(readValue(component)).append(";\n");
+			out.append("\t\t}\n");
+			out.append("\t\tin.endArray();\n");
+			out.append("\t\treturn n == a.length ? a : java.util.Arrays.copyOf(a, n);\n");
+			return;
+		}
+
+		DeclaredType declared = (DeclaredType) t;
+		TypeElement element = (TypeElement) declared.asElement();
+		String name = sourceName(t);
+		if (element.getKind() == ElementKind.ENUM) {
+			out.append("\t\tswitch (in.nextString()) {\n");
+			for (VariableElement constant : enumConstants(element)) {
+				out.append("\t\tcase ").append(javaString(serializedName(constant))).append(":\n");
+				out.append("\t\t\treturn ").append(name).append(".").append(constant.getSimpleName()).append(";\n");
+			}
+			out.append("\t\tdefault:\n");
+			out.append("\t\t\treturn null;\n");
+			out.append("\t\t}\n");
+			return;
+		}
+
+		List<? extends TypeMirror> args = declared.getTypeArguments();
+		StringBuilder impl = new StringBuilder(implementation(element)).append('<');
+		for (int i = 0; i < args.size(); i++) {
+			impl.append(i > 0 ? ", " : "").append(sourceName(args.get(i)));
+		}
+		impl.append('>');
+		out.append("\t\t").append(name).append(" c = new ").append(impl).append("();\n");
+		if (types.isAssignable(types.erasure(t), mapType)) {
+			out.append("\t\tin.beginObject();\n");
+			out.append("\t\twhile (in.hasNext()) {\n");
+			out.append("\t\t\tc.put(in.nextName(), ").append(readValue(args.get(1))).append(");\n");
+			out.append("\t\t}\n");
+			out.append("\t\tin.endObject();\n");
+		} else {
+			out.append("\t\tin.beginArray();\n");
+			out.append("\t\twhile (in.hasNext()) {\n");
+			out.append("\t\t\tc.add(").append(readValue(args.get(0))).append(");\n");
+			out.append("\t\t}\n");
+			out.append("\t\tin.endArray();\n");
+		}
+		out.append("\t\treturn c;\n");
+	}
+
+	// Returns the id of the helpers for t, adding them if they're new.
+	private int helper(TypeMirror t) {
+		String name = t.getKind() == TypeKind.CHAR ? "char" : sourceName(t);
+		Integer id = helpers.get(name);
+		if (id == null) {
+			id = helperTypes.size();
+			helpers.put(name, id);
+			helperTypes.add(t);
+		}
+		return id;
+	}
+
+	// Returns the id of the constant holding the codec of element.
+	private int codec(TypeElement element) {
+		String name = codecName(element);
+		Integer id = codecs.get(name);
+		if (id == null) {
+			id = codecs.size();
+			codecs.put(name, id);
+		}
+		return id;
+	}
+
+	private String codecName(TypeElement element) {
+		String pkg = elements.getPackageOf(element).getQualifiedName().toString();
+		String simple = simpleBinaryName(element) + SUFFIX;
+		return pkg.isEmpty() ? simple : pkg + "." + simple;
+	}
+
+	// Eg. Outer$Inner for the nested class pkg.Outer.Inner.
+	private String simpleBinaryName(TypeElement element) {
+		String binary = elements.getBinaryName(element).toString();
+		String pkg = elements.getPackageOf(element).getQualifiedName().toString();
+		return pkg.isEmpty() ? binary : binary.substring(pkg.length() + 1);
+	}
+
+	// Returns t as it's written in source, without any type annotations.
+	private String sourceName(TypeMirror t) {
+		switch (t.getKind()) {
+		case ARRAY:
+			return sourceName(((ArrayType) t).getComponentType()) + "[]";
+		case DECLARED:
+			DeclaredType declared = (DeclaredType) t;
+			StringBuilder name = new StringBuilder(
+					((TypeElement) declared.asElement()).getQualifiedName());
+			List<? extends TypeMirror> args = declared.getTypeArguments();
+			if (!args.isEmpty()) {
+				name.append('<');
+				for (int i = 0; i < args.size(); i++) {
+					name.append(i > 0 ? ", " : "").append(sourceName(args.get(i)));
+				}
+				name.append('>');
+			}
+			return name.toString();
+		default:
+			return t.getKind().name().toLowerCase();
+		}
+	}
+
+	// Eg. "new int[8][]" for an int[][].
+	private String newArray(TypeMirror t, String length) {
+		int dimensions = 0;
+		while (t.getKind() == TypeKind.ARRAY) {
+			t = ((ArrayType) t).getComponentType();
+			dimensions++;
+		}
+		StringBuilder creation = new StringBuilder("new ").append(sourceName(t))
+				.append('[').append(length).append(']');
+		for (int i = 1; i < dimensions; i++) {
+			creation.append("[]");
+		}
+		return creation.toString();
+	}
+
+	// Returns the primitive kind of a primitive or a wrapper, or null.
+	private static TypeKind primitiveKind(TypeMirror t) {
+		if (t.getKind().isPrimitive()) {
+			return t.getKind();
+		}
+		if (t.getKind() == TypeKind.DECLARED) {
+			return BOXES.get(((TypeElement) ((DeclaredType) t).asElement()).getQualifiedName().toString());
+		}
+		return null;
+	}
+
+	private static boolean isNamed(TypeMirror t, String name) {
+		return t.getKind() == TypeKind.DECLARED &&
+				((TypeElement) ((DeclaredType) t).asElement()).getQualifiedName().contentEquals(name);
+	}
+
+	private static boolean isCodec(TypeElement element) {
+		return findAnnotation(element, JSON_CODEC) != null;
+	}
+
+	private static List<VariableElement> enumConstants(TypeElement element) {
+		List<VariableElement> constants = new ArrayList<VariableElement>();
+		for (VariableElement field : ElementFilter.fieldsIn(element.getEnclosedElements())) {
+			if (field.getKind() == ElementKind.ENUM_CONSTANT) {
+				constants.add(field);
+			}
+		}
+		return constants;
+	}
+
+	private static boolean hasRenamedConstants(TypeElement element) {
+		for (VariableElement constant : enumConstants(element)) {
+			if (!serializedName(constant).contentEquals(constant.getSimpleName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// The name given by Gson's @SerializedName (relocated or not), or else
+	// the field's own name.
+	private static String serializedName(VariableElement field) {
+		for (AnnotationMirror mirror : field.getAnnotationMirrors()) {
+			TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+			if (annotation.getSimpleName().contentEquals("SerializedName")) {
+				for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e :
+						mirror.getElementValues().entrySet()) {
+					if (e.getKey().getSimpleName().contentEquals("value")) {
+						return String.valueOf(e.getValue().getValue());
+					}
+				}
+			}
+		}
+		return field.getSimpleName().toString();
+	}
+
+	private static AnnotationMirror findAnnotation(Element element, String name) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	// Returns s as JSON, including the quotes.
+	private static String jsonString(String s) {
+		StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"').toString();
+	}
+
+	// Returns s as a Java string literal. Only ASCII is written, and never a
+	// unicode escape that javac would see before the string.
+	private static String javaString(String s) {
+		StringBuilder java = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				java.append('\\').append(c);
+			} else if (c == '\n') {
+				java.append("\\n");
+			} else if (c == '\r') {
+				java.append("\\r");
+			} else if (c < 0x20) {
+				java.append(String.format("\\%03o", (int) c));
+			} else if (c > 0x7e) {
+				java.append(String.format("\\u%04x", (int) c));
+			} else {
+				java.append(c);
+			}
+		}
+		return java.append('"').toString();
+	}
+
+	private void error(String message, Element element) {
+		failed = true;
+		messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private void warning(String message, Element element) {
+		messager.printMessage(Diagnostic.Kind.WARNING, message, element);
+	}
+
+	/** A field, and how the codec gets and sets it. */
+	private static final class Property {
+		final String name;
+		final TypeMirror type;
+		final String getter;
+		final String setter;
+
+		Property(String name, TypeMirror type, String getter, String setter) {
+			this.name = name;
+			this.type = type;
+			this.getter = getter;
+			this.setter = setter;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.precog.json.codegen;
+
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a codec for each class annotated with
+ * {@code com.precog.json.JsonCodec}: for a class {@code Foo}, a class
+ * {@code Foo$JsonCodec} in the same package that implements both
+ * {@code ToJson<Foo>} and {@code FromJson<Foo>}, reading and writing each
+ * field directly rather than through reflection.
+ * <p>
+ * The processor is found by {@code javac} through
+ * {@code META-INF/services}, so it's enough to put this jar on the compiler's
+ * class path (eg. as a {@code provided} dependency). Classes that can't be
+ * given a codec are reported as compile errors.
+ */
+@SupportedAnnotationTypes(CodecWriter.JSON_CODEC)
+public final class JsonCodecProcessor extends AbstractProcessor {
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		TypeElement annotation = processingEnv.getElementUtils().getTypeElement(CodecWriter.JSON_CODEC);
+		if (annotation == null) {
+			return false;
+		}
+		for (Element element : round.getElementsAnnotatedWith(annotation)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+						"@JsonCodec can only be applied to classes.", element);
+				continue;
+			}
+			new CodecWriter(processingEnv, (TypeElement) element).write();
+		}
+		return true;
+	}
+}
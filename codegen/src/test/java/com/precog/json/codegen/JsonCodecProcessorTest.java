@@ -0,0 +1,222 @@
+package com.precog.json.codegen;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.precog.json.FromJson;
+import com.precog.json.ToJson;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compiles classes with the processor, then checks that the codecs it
+ * generates read and write the same JSON as Gson.
+ */
+public class JsonCodecProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String BASE =
+			"package sample;\n" +
+			"public class Base {\n" +
+			"	protected String id;\n" +
+			"}\n";
+
+	private static final String ITEM =
+			"package sample;\n" +
+			"@com.precog.json.JsonCodec\n" +
+			"public class Item {\n" +
+			"	String sku;\n" +
+			"	int quantity;\n" +
+			"	public Item() {}\n" +
+			"	public Item(String sku, int quantity) { this.sku = sku; this.quantity = quantity; }\n" +
+			"}\n";
+
+	private static final String ORDER =
+			"package sample;\n" +
+			"import java.math.BigDecimal;\n" +
+			"import java.util.*;\n" +
+			"import com.google.gson.annotations.SerializedName;\n" +
+			"@com.precog.json.JsonCodec\n" +
+			"public class Order extends Base {\n" +
+			"	public enum Status { OPEN, SHIPPED }\n" +
+			"	static int ignored = 1;\n" +
+			"	transient int skipped = 2;\n" +
+			"	byte b = -8;\n" +
+			"	short s = 300;\n" +
+			"	int count = 3;\n" +
+			"	long total = 1L << 40;\n" +
+			"	float ratio = 0.25f;\n" +
+			"	double price = -12.5;\n" +
+			"	boolean paid = true;\n" +
+			"	Integer missing;\n" +
+			"	Long boxed = 7L;\n" +
+			"	String note = \"a \\\"quote\\\", a tab\\t, a \\u00e9 and a <tag>\";\n" +
+			"	Status status = Status.SHIPPED;\n" +
+			"	BigDecimal amount = new BigDecimal(\"12345678901234567890.125\");\n" +
+			"	int[] codes = { 1, 2, 3 };\n" +
+			"	List<Item> items = new ArrayList<Item>(Arrays.asList(new Item(\"x\", 1), new Item(\"y\", 2)));\n" +
+			"	Map<String, Double> scores = new LinkedHashMap<String, Double>();\n" +
+			"	@SerializedName(\"renamed\") String original = \"o\";\n" +
+			"	private String secret = \"s\";\n" +
+			"	public Order() { id = \"order-1\"; scores.put(\"a\", 1.5); scores.put(\"b\", null); }\n" +
+			"	public String getSecret() { return secret; }\n" +
+			"	public void setSecret(String secret) { this.secret = secret; }\n" +
+			"}\n";
+
+	@Test
+	public void testCodecsMatchGson() throws Exception {
+		ClassLoader loader = compile(BASE, ITEM, ORDER);
+		Class<?> orderClass = loader.loadClass("sample.Order");
+		Object order = orderClass.newInstance();
+		String json = codec(loader, "sample.Order").serialize(order);
+		assertEquals(new JsonParser().parse(new Gson().toJson(order)), new JsonParser().parse(json));
+		assertFalse(json, json.contains("ignored"));
+		assertFalse(json, json.contains("skipped"));
+		assertFalse(json, json.contains("missing"));
+	}
+
+	@Test
+	public void testCodecsReadWhatTheyWrite() throws Exception {
+		ClassLoader loader = compile(BASE, ITEM, ORDER);
+		ToJson<Object> codec = codec(loader, "sample.Order");
+		String json = codec.serialize(loader.loadClass("sample.Order").newInstance());
+		@SuppressWarnings("unchecked")
+		FromJson<Object> reader = (FromJson<Object>) codec;
+		Object copy = reader.deserialize(json);
+		assertEquals(json, codec.serialize(copy));
+		// Gson reads the same JSON into the same object.
+		assertEquals(new JsonParser().parse(json), new JsonParser().parse(
+				new Gson().toJson(new Gson().fromJson(json, copy.getClass()))));
+	}
+
+	@Test
+	public void testReportsGenericClasses() throws Exception {
+		List<String> errors = compileWithErrors(
+				"package sample;\n" +
+				"@com.precog.json.JsonCodec\n" +
+				"public class Box<T> { int value; }\n");
+		assertEquals(Arrays.asList("@JsonCodec classes can't be generic."), errors);
+	}
+
+	@Test
+	public void testReportsMissingConstructor() throws Exception {
+		List<String> errors = compileWithErrors(
+				"package sample;\n" +
+				"@com.precog.json.JsonCodec\n" +
+				"public class Point {\n" +
+				"	int x;\n" +
+				"	public Point(int x) { this.x = x; }\n" +
+				"}\n");
+		assertEquals(Arrays.asList(
+				"@JsonCodec classes need a constructor without arguments that isn't private."),
+				errors);
+	}
+
+	@Test
+	public void testReportsHiddenFields() throws Exception {
+		List<String> errors = compileWithErrors(
+				"package sample;\n" +
+				"@com.precog.json.JsonCodec\n" +
+				"public class Secret {\n" +
+				"	private int x;\n" +
+				"}\n");
+		assertEquals(1, errors.size());
+		assertTrue(errors.get(0), errors.get(0).startsWith("Field x isn't visible to the codec"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ToJson<Object> codec(ClassLoader loader, String className) throws Exception {
+		return (ToJson<Object>) loader.loadClass(className + "$JsonCodec").newInstance();
+	}
+
+	// Compiles sources, which must compile cleanly, and loads the classes.
+	private ClassLoader compile(String... sources) throws IOException {
+		File out = folder.newFolder();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		assertTrue(diagnostics.getDiagnostics().toString(), run(out, diagnostics, sources));
+		return new URLClassLoader(new URL[] { out.toURI().toURL() }, getClass().getClassLoader());
+	}
+
+	// Compiles sources, which must fail, and returns the errors reported.
+	private List<String> compileWithErrors(String... sources) throws IOException {
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		assertFalse(run(folder.newFolder(), diagnostics, sources));
+		List<String> errors = new ArrayList<String>();
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+			if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+				errors.add(diagnostic.getMessage(Locale.ROOT));
+			}
+		}
+		return errors;
+	}
+
+	private static boolean run(File out, DiagnosticCollector<JavaFileObject> diagnostics,
+			String... sources) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		List<JavaFileObject> files = new ArrayList<JavaFileObject>();
+		for (String source : sources) {
+			files.add(new Source(source));
+		}
+		String classPath = location(ToJson.class) + File.pathSeparator + location(Gson.class);
+		List<String> options = Arrays.asList("-d", out.getPath(), "-classpath", classPath,
+				"-processorpath", location(JsonCodecProcessor.class),
+				"-processor", JsonCodecProcessor.class.getName());
+		return compiler.getTask(null, null, diagnostics, options, null, files).call();
+	}
+
+	private static String location(Class<?> type) {
+		try {
+			return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	// A source file held in memory, named after its public class.
+	private static class Source extends SimpleJavaFileObject {
+		private final String code;
+
+		Source(String code) {
+			super(URI.create("string:///" + className(code).replace('.', '/') +
+					Kind.SOURCE.extension), Kind.SOURCE);
+			this.code = code;
+		}
+
+		private static String className(String code) {
+			String pkg = code.substring(code.indexOf("package ") + 8, code.indexOf(';'));
+			int start = code.indexOf("public class ") + 13;
+			int end = start;
+			while (Character.isJavaIdentifierPart(code.charAt(end))) {
+				end++;
+			}
+			return pkg + "." + code.substring(start, end);
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return code;
+		}
+	}
+}
@@ -82,4 +82,35 @@ public class AppendResult {
 	public void setIngestId(String ingestId) {
 		this.ingestId = ingestId;
 	}
+
+	/**
+	 * Adds the counts and errors of {@code that} to this result. The ingest ID
+	 * is left as that of the most recently added result.
+	 */
+	void accumulate(AppendResult that) {
+		total += that.total;
+		ingested += that.ingested;
+		failed += that.failed;
+		skipped += that.skipped;
+		if (that.errors != null && that.errors.length > 0) {
+			if (errors == null || errors.length == 0) {
+				errors = that.errors.clone();
+			} else {
+				String[] all = new String[errors.length + that.errors.length];
+				System.arraycopy(errors, 0, all, 0, errors.length);
+				System.arraycopy(that.errors, 0, all, errors.length, that.errors.length);
+				errors = all;
+			}
+		}
+		if (that.ingestId != null) {
+			ingestId = that.ingestId;
+		}
+	}
+
+	/** Returns a copy of this result. */
+	AppendResult copy() {
+		AppendResult copy = new AppendResult();
+		copy.accumulate(this);
+		return copy;
+	}
 }
@@ -0,0 +1,491 @@
+package com.precog.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.precog.client.rest.HttpException;
+import com.precog.client.rest.Path;
+import com.precog.client.rest.Request;
+import com.precog.client.rest.Response;
+import com.precog.json.FromJsonReader;
+import com.precog.json.ToJson;
+import com.precog.json.ToJsonWriter;
+
+/**
+ * A non-blocking view of a {@link PrecogClient}. Every method mirrors the
+ * blocking method of the same name on {@link PrecogClient}, but returns
+ * immediately with a {@link CompletableFuture} that is completed once the
+ * server has replied.
+ * <p>
+ * Requests are sent by the client's non-blocking HTTP engine (see
+ * {@link com.precog.client.rest.Rest#executeAsync(Request)}), so a request in
+ * flight holds no thread; how many talk to the server at once is set by
+ * {@link PrecogClient#setMaxConnections(int)}, and the rest wait for a free
+ * connection. Request bodies are serialized (or read, for files and streams)
+ * into memory on the calling thread, and responses are read into memory
+ * before being decoded on the client's {@link PrecogClient#getExecutor()
+ * executor}. The {@code queryStream} methods are the exception: their
+ * results are streamed, so they run the blocking method on the executor,
+ * and hold one of its threads until the server has replied.
+ * <p>
+ * If a call fails, the future is completed exceptionally with the same
+ * exception the blocking method would have thrown (usually an
+ * {@link HttpException}).
+ * <p>
+ * Instances are obtained from {@link PrecogClient#async()}.
+ */
+public class AsyncPrecogClient {
+	private final PrecogClient client;
+
+	AsyncPrecogClient(PrecogClient client) {
+		this.client = client;
+	}
+
+	/** Returns the blocking client this wraps. */
+	public PrecogClient getClient() {
+		return client;
+	}
+
+	/** @see PrecogClient#appendAllFromString(String, String, Format) */
+	public CompletableFuture<AppendResult> appendAllFromString(final String path,
+			final String contents, final Format format) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, format).withBody(contents);
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#appendAllFromFile(String, File, Format) */
+	public CompletableFuture<AppendResult> appendAllFromFile(final String path,
+			final File file, final Format format) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, format).withBody(file);
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#appendAllFromInputStream(String, InputStream, Format) */
+	public CompletableFuture<AppendResult> appendAllFromInputStream(final String path,
+			final InputStream in, final Format format) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, format).withBody(in);
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#append(String, Object) */
+	public CompletableFuture<AppendResult> append(final String path, final Object obj) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, JsonFormat.JSON_STREAM)
+						.withBody(client.toJson(obj));
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#append(String, Object, ToJson) */
+	public <T> CompletableFuture<AppendResult> append(final String path, final T obj,
+			final ToJson<T> toJson) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, JsonFormat.JSON_STREAM)
+						.withBody(toJson.serialize(obj));
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#appendAll(String, Iterable) */
+	public <T> CompletableFuture<AppendResult> appendAll(final String path, final Iterable<T> coll) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, JsonFormat.JSON_STREAM)
+						.withBody(new JsonStreamBody<T>(client.pojos, coll));
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#appendAll(String, Iterable, ToJson) */
+	public <T> CompletableFuture<AppendResult> appendAll(final String path,
+			final Iterable<T> coll, final ToJson<T> toJson) {
+		return appendAll(path, coll, (ToJsonWriter<T>) toJson);
+	}
+
+	/** @see PrecogClient#append(String, Object, ToJsonWriter) */
+	public <T> CompletableFuture<AppendResult> append(final String path, final T obj,
+			final ToJsonWriter<T> toJson) {
+		return appendAll(path, Collections.singletonList(obj), toJson);
+	}
+
+	/** @see PrecogClient#appendAll(String, Iterable, ToJsonWriter) */
+	public <T> CompletableFuture<AppendResult> appendAll(final String path,
+			final Iterable<T> coll, final ToJsonWriter<T> toJson) {
+		return new Append(path) {
+			Request request() {
+				return client.ingestTemplate(path, JsonFormat.JSON_STREAM)
+						.withBody(new JsonStreamBody<T>(toJson, coll));
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#uploadFile(String, File, Format) */
+	public CompletableFuture<AppendResult> uploadFile(final String path, final File file,
+			final Format format) {
+		return delete(path).thenCompose(new Function<Void, CompletionStage<AppendResult>>() {
+			public CompletionStage<AppendResult> apply(Void deleted) {
+				return appendAllFromFile(path, file, format);
+			}
+		});
+	}
+
+	/** @see PrecogClient#delete(String) */
+	public CompletableFuture<Void> delete(final String path) {
+		return new Call<Void>() {
+			Request request() {
+				return client.deleteRequest(path);
+			}
+
+			void responded() {
+				client.written(path);
+			}
+
+			Void decode(Response response) throws HttpException {
+				response.asString();
+				return null;
+			}
+		}.send();
+	}
+
+	/** @see PrecogClient#query(String, String) */
+	public CompletableFuture<QueryResult> query(final String path, final String q) {
+		final QueryCache cache = client.getQueryCache();
+		final Path storagePath = client.buildStoragePath(new Path(path));
+		QueryResult cached = client.cached(cache, storagePath, q);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		SingleFlight.AsyncCall<QueryResult> call = new SingleFlight.AsyncCall<QueryResult>() {
+			public CompletableFuture<QueryResult> call() {
+				return new Call<QueryResult>() {
+					Request request() {
+						return client.queryRequest(path, q);
+					}
+
+					QueryResult decode(Response response) throws HttpException {
+						return client.queryResult(q, cache, storagePath, response.asString());
+					}
+				}.send();
+			}
+		};
+		if (!client.isCoalesceQueries()) {
+			return call.call();
+		}
+		return client.queries.submit(PrecogClient.queryKey(storagePath, q), call,
+				client.new Coalesced(path, q));
+	}
+
+	/** @see PrecogClient#query(String) */
+	public CompletableFuture<QueryResult> query(String q) {
+		return query("", q);
+	}
+
+	/** @see PrecogClient#queryStream(String, String) */
+	public CompletableFuture<QueryResultStream<String>> queryStream(final String path, final String q) {
+		return submit(new Operation<QueryResultStream<String>>() {
+			public QueryResultStream<String> run() throws HttpException {
+				return client.queryStream(path, q);
+			}
+		});
+	}
+
+	/** @see PrecogClient#queryStream(String) */
+	public CompletableFuture<QueryResultStream<String>> queryStream(String q) {
+		return queryStream("", q);
+	}
+
+	/** @see PrecogClient#queryStream(String, String, FromJsonReader) */
+	public <T> CompletableFuture<QueryResultStream<T>> queryStream(final String path,
+			final String q, final FromJsonReader<T> rows) {
+		return submit(new Operation<QueryResultStream<T>>() {
+			public QueryResultStream<T> run() throws HttpException {
+				return client.queryStream(path, q, rows);
+			}
+		});
+	}
+
+	/** @see PrecogClient#queryStream(String, String, Class) */
+	public <T> CompletableFuture<QueryResultStream<T>> queryStream(final String path,
+			final String q, final Class<T> klass) {
+		return submit(new Operation<QueryResultStream<T>>() {
+			public QueryResultStream<T> run() throws HttpException {
+				return client.queryStream(path, q, klass);
+			}
+		});
+	}
+
+	/** @see PrecogClient#queryAsync(String, String) */
+	public CompletableFuture<Query> queryAsync(final String path, final String q) {
+		SingleFlight.AsyncCall<Query> call = new SingleFlight.AsyncCall<Query>() {
+			public CompletableFuture<Query> call() {
+				return new Call<Query>() {
+					Request request() {
+						return client.queryAsyncRequest(path, q);
+					}
+
+					Query decode(Response response) throws HttpException {
+						return Envelopes.decode(response.asString(), Envelopes.QUERY);
+					}
+				}.send();
+			}
+		};
+		if (!client.isCoalesceQueries()) {
+			return call.call();
+		}
+		return client.asyncQueries.submit(client.queryAsyncKey(path, q), call,
+				client.new Coalesced(path, q));
+	}
+
+	/** @see PrecogClient#queryAsync(String) */
+	public CompletableFuture<Query> queryAsync(String q) {
+		return queryAsync("", q);
+	}
+
+	/** @see PrecogClient#queryResults(Query) */
+	public CompletableFuture<QueryResult> queryResults(final Query query) {
+		return new Call<QueryResult>() {
+			Request request() {
+				return client.queryResultsRequest(query);
+			}
+
+			QueryResult decode(Response response) throws HttpException {
+				return client.queryResults(query, response.asString());
+			}
+		}.send();
+	}
+
+	/**
+	 * Returns a future completed with the results of {@code query} once they
+	 * are ready, polling with the client's shared {@link QueryPoller}.
+	 *
+	 * @see QueryPoller#poll(Query)
+	 */
+	public CompletableFuture<QueryResult> awaitQueryResults(Query query) {
+		return client.getQueryPoller().poll(query);
+	}
+
+	/**
+	 * Returns a future completed with the results of {@code query} once they
+	 * are ready, or with a {@code TimeoutException} after {@code timeout}.
+	 *
+	 * @see QueryPoller#poll(Query, long, TimeUnit)
+	 */
+	public CompletableFuture<QueryResult> awaitQueryResults(Query query, long timeout,
+			TimeUnit unit) {
+		return client.getQueryPoller().poll(query, timeout, unit);
+	}
+
+	/**
+	 * Unlike the blocking method, this reads the results into memory before
+	 * writing them to {@code file}. Between polls, it waits on the
+	 * {@link QueryPoller}'s scheduler rather than a thread of its own.
+	 *
+	 * @see PrecogClient#downloadQueryResults(Query, File)
+	 */
+	public CompletableFuture<Boolean> downloadQueryResults(final Query query, final File file) {
+		Download download = new Download(query, file);
+		download.run();
+		return download.future;
+	}
+
+	// A request whose response is decoded on the client's executor.
+	private abstract class Call<T> {
+
+		// Builds the request. Called on the caller's thread.
+		abstract Request request();
+
+		// Decodes the response. Called on the client's executor.
+		abstract T decode(Response response) throws HttpException, IOException;
+
+		// Called on the engine's thread once the request has finished,
+		// whether or not it succeeded.
+		void responded() {
+		}
+
+		CompletableFuture<T> send() {
+			final CompletableFuture<Response> response;
+			try {
+				response = client.rest.executeAsync(request());
+			} catch (RuntimeException ex) {
+				return failed(ex);
+			}
+			CompletableFuture<T> result = response.whenComplete(new BiConsumer<Response, Throwable>() {
+				public void accept(Response r, Throwable error) {
+					responded();
+				}
+			}).thenApplyAsync(new Function<Response, T>() {
+				public T apply(Response r) {
+					try {
+						return decode(r);
+					} catch (HttpException ex) {
+						throw new CompletionException(ex);
+					} catch (IOException ex) {
+						throw new CompletionException(ex);
+					}
+				}
+			}, client.getExecutor());
+			// Cancelling the result stops a request still waiting to be sent.
+			result.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T value, Throwable error) {
+					if (error != null) {
+						response.cancel(false);
+					}
+				}
+			});
+			return result;
+		}
+	}
+
+	// An ingest, after which cached query results for its path are dropped.
+	private abstract class Append extends Call<AppendResult> {
+		private final String path;
+
+		Append(String path) {
+			this.path = path;
+		}
+
+		void responded() {
+			client.written(path);
+		}
+
+		AppendResult decode(Response response) throws HttpException {
+			return client.appended(path, response.asString());
+		}
+	}
+
+	// Polls for the results of a query until they are ready, and then
+	// writes them to a file.
+	private final class Download implements Runnable {
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		private final Query query;
+		private final File file;
+		private int attempt = 0;
+
+		Download(Query query, File file) {
+			this.query = query;
+			this.file = file;
+		}
+
+		// Sends a poll, now and whenever the last one found the results
+		// weren't ready yet.
+		public void run() {
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				client.rest.executeAsync(client.queryResultsRequest(query))
+					.whenComplete(new BiConsumer<Response, Throwable>() {
+						public void accept(Response response, Throwable error) {
+							if (error != null) {
+								future.completeExceptionally(unwrap(error));
+							} else {
+								polled(response);
+							}
+						}
+					});
+			} catch (RuntimeException ex) {
+				future.completeExceptionally(ex);
+			}
+		}
+
+		private void polled(final Response response) {
+			if (response.getStatusCode() == 202) {
+				client.polled(query, false);
+				try {
+					client.getQueryPoller().schedule(this,
+							PrecogClient.DOWNLOAD_BACKOFF.delayNanos(attempt++));
+				} catch (RejectedExecutionException ree) {
+					future.completeExceptionally(ree);
+				}
+			} else if (response.getStatusCode() != 200) {
+				future.completeExceptionally(HttpException.unexpectedResponse(response));
+			} else {
+				client.polled(query, true);
+				try {
+					client.getExecutor().execute(new Runnable() {
+						public void run() {
+							write(response);
+						}
+					});
+				} catch (RejectedExecutionException ree) {
+					future.completeExceptionally(ree);
+				}
+			}
+		}
+
+		private void write(Response response) {
+			try {
+				FileOutputStream out = new FileOutputStream(file);
+				try {
+					future.complete(RawResultCopier.copyData(response.getData(), out.getChannel()));
+				} finally {
+					out.close();
+				}
+			} catch (IOException ioe) {
+				future.completeExceptionally(ioe);
+			} catch (RuntimeException ex) {
+				future.completeExceptionally(ex);
+			}
+		}
+	}
+
+	/** A blocking client operation. */
+	private static interface Operation<T> {
+		public T run() throws Exception;
+	}
+
+	private <T> CompletableFuture<T> submit(final Operation<T> op) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		Executor executor = client.getExecutor();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (future.isDone()) {
+						return; // Cancelled before we got to it.
+					}
+					try {
+						future.complete(op.run());
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			future.completeExceptionally(ree);
+		}
+		return future;
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+		return future;
+	}
+
+	// The cause of an error passed on by a dependent stage.
+	private static Throwable unwrap(Throwable t) {
+		return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+	}
+}
@@ -0,0 +1,435 @@
+package com.precog.client;
+
+import java.io.Closeable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.precog.json.ToJson;
+
+/**
+ * Buffers records in memory and appends them to Precog in batches, rather
+ * than making one request per record.
+ * <p>
+ * Records are grouped by path. A path's batch is sent, as a single
+ * {@link Formats#JSON_STREAM} request, as soon as it holds
+ * {@code maxBatchRecords} records or {@code maxBatchBytes} bytes, or once its
+ * oldest record has waited {@code lingerMillis} milliseconds. Batches are sent
+ * on the client's {@link PrecogClient#getExecutor() executor}, so several may
+ * be in flight at once and may complete out of order.
+ * <p>
+ * At most {@code maxBufferedBytes} bytes of records (both waiting and in
+ * flight) are held in memory. Once that limit is reached, {@code append}
+ * blocks until enough earlier batches have been sent.
+ * <p>
+ * The result of every batch is added to a running total per path, available
+ * from {@link #getResult(String)}. A batch that fails to send is reported to
+ * the {@link Listener}, if one was given, and its records are dropped.
+ * <p>
+ * Call {@link #flush()} to wait for everything appended so far to be sent,
+ * and {@link #close()} when done with the appender.
+ */
+public class BatchingAppender implements Closeable {
+	private static final Logger logger = Logger.getLogger(BatchingAppender.class.getName());
+
+	/** The default maximum number of records in a batch. */
+	public static final int DEFAULT_MAX_BATCH_RECORDS = 1000;
+
+	/** The default maximum size of a batch, in bytes. */
+	public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+	/** The default time a record may wait for its batch to fill up. */
+	public static final long DEFAULT_LINGER_MILLIS = 100L;
+
+	/** The default limit on memory used to hold records, in bytes. */
+	public static final long DEFAULT_MAX_BUFFERED_BYTES = 32L * 1024 * 1024;
+
+	private static final byte NEWLINE = '\n';
+
+	/**
+	 * Notified as each batch completes. Callbacks run on the thread that sent
+	 * the batch, so should return quickly.
+	 */
+	public static interface Listener {
+		public void batchAppended(String path, int records, AppendResult result);
+		public void batchFailed(String path, int records, Exception error);
+	}
+
+	private final PrecogClient client;
+	private final int maxBatchRecords;
+	private final int maxBatchBytes;
+	private final long lingerMillis;
+	private final long maxBufferedBytes;
+	private final ScheduledExecutorService scheduler;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition spaceAvailable = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+	private final Map<String, AppendResult> results = new HashMap<String, AppendResult>();
+	private long bufferedBytes = 0;
+	private int inFlight = 0;
+	private int failedBatches = 0;
+	private boolean closed = false;
+
+	private volatile Listener listener;
+
+	/**
+	 * Creates a batching appender for {@code client}.
+	 *
+	 * @param client the client used to send batches
+	 * @param maxBatchRecords the most records sent in one request
+	 * @param maxBatchBytes the largest request body sent, in bytes
+	 * @param lingerMillis how long a record may wait for its batch to fill
+	 * @param maxBufferedBytes the most memory used to hold records, in bytes
+	 */
+	public BatchingAppender(PrecogClient client, int maxBatchRecords, int maxBatchBytes,
+			long lingerMillis, long maxBufferedBytes) {
+		if (maxBatchRecords < 1 || maxBatchBytes < 1 || lingerMillis < 0 ||
+				maxBufferedBytes < maxBatchBytes) {
+			throw new IllegalArgumentException("Invalid batch limits.");
+		}
+		this.client = client;
+		this.maxBatchRecords = maxBatchRecords;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerMillis = lingerMillis;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "precog-batching-appender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Creates a batching appender for {@code client} with the default limits. */
+	public BatchingAppender(PrecogClient client) {
+		this(client, DEFAULT_MAX_BATCH_RECORDS, DEFAULT_MAX_BATCH_BYTES,
+				DEFAULT_LINGER_MILLIS, DEFAULT_MAX_BUFFERED_BYTES);
+	}
+
+	/** Sets the listener notified as each batch completes. */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Buffers {@code obj} to be appended to {@code path}. It is serialized by
+	 * its generated codec, if its class is annotated with
+	 * {@link com.precog.json.JsonCodec}, otherwise by Gson. This blocks if the
+	 * appender's memory limit has been reached.
+	 *
+	 * @param path the path in Precog to append the record to
+	 * @param obj the record to append
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public void append(String path, Object obj) throws InterruptedException {
+		appendJson(path, client.toJson(obj));
+	}
+
+	/**
+	 * Buffers {@code obj}, serialized by {@code toJson}, to be appended to
+	 * {@code path}. This blocks if the appender's memory limit has been
+	 * reached.
+	 *
+	 * @param path the path in Precog to append the record to
+	 * @param obj the record to append
+	 * @param toJson the serializer for {@code obj}
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public <T> void append(String path, T obj, ToJson<T> toJson) throws InterruptedException {
+		appendJson(path, toJson.serialize(obj));
+	}
+
+	private void appendJson(String path, String json) throws InterruptedException {
+		byte[] record = utf8(json);
+		int size = record.length + 1;
+		if (size > maxBatchBytes) {
+			throw new IllegalArgumentException("Record of " + size +
+					" bytes is larger than the maximum batch size.");
+		}
+
+		List<Batch> ready = new ArrayList<Batch>(2);
+		lock.lock();
+		try {
+			while (!closed && bufferedBytes + size > maxBufferedBytes) {
+				spaceAvailable.await();
+			}
+			if (closed) {
+				throw new IllegalStateException("BatchingAppender has been closed.");
+			}
+			Batch batch = batches.get(path);
+			if (batch != null && batch.size + size > maxBatchBytes) {
+				ready.add(seal(batch));
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(path, maxBatchBytes);
+				batches.put(path, batch);
+				if (lingerMillis > 0) {
+					batch.linger = scheduler.schedule(new Linger(batch), lingerMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			batch.add(record);
+			bufferedBytes += size;
+			if (batch.records >= maxBatchRecords || batch.size >= maxBatchBytes || lingerMillis == 0) {
+				ready.add(seal(batch));
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Batch batch : ready) {
+			send(batch);
+		}
+	}
+
+	/**
+	 * Sends all buffered records and waits for every batch sent so far to
+	 * complete.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+		List<Batch> ready = new ArrayList<Batch>();
+		lock.lock();
+		try {
+			for (Batch batch : batches.values()) {
+				ready.add(batch);
+			}
+			for (Batch batch : ready) {
+				seal(batch);
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Batch batch : ready) {
+			send(batch);
+		}
+
+		lock.lock();
+		try {
+			while (inFlight > 0) {
+				drained.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting records, flushes all buffered records, then releases
+	 * the appender's resources. Records appended after this is called are
+	 * rejected.
+	 */
+	public void close() {
+		// Closed first, so that no append can start a batch once the flush
+		// has sealed the last ones; its linger would never run.
+		lock.lock();
+		try {
+			closed = true;
+			spaceAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flush();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the combined result of all batches appended to {@code path} so
+	 * far, or {@code null} if no batch to that path has completed.
+	 */
+	public AppendResult getResult(String path) {
+		lock.lock();
+		try {
+			AppendResult result = results.get(path);
+			return result == null ? null : result.copy();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the combined result of all batches appended so far. */
+	public AppendResult getResult() {
+		lock.lock();
+		try {
+			AppendResult total = new AppendResult();
+			for (AppendResult result : results.values()) {
+				total.accumulate(result);
+			}
+			return total;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of batches that could not be sent. */
+	public int getFailedBatches() {
+		lock.lock();
+		try {
+			return failedBatches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of bytes of records currently held in memory. */
+	public long getBufferedBytes() {
+		lock.lock();
+		try {
+			return bufferedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Removes batch from the set of open batches. Must hold the lock.
+	private Batch seal(Batch batch) {
+		if (batches.get(batch.path) == batch) {
+			batches.remove(batch.path);
+		}
+		if (batch.linger != null) {
+			batch.linger.cancel(false);
+		}
+		inFlight += 1;
+		return batch;
+	}
+
+	private void send(final Batch batch) {
+		try {
+			client.getExecutor().execute(new Runnable() {
+				public void run() {
+					deliver(batch);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			completed(batch, null, ree);
+		}
+	}
+
+	private void deliver(Batch batch) {
+		try {
+			AppendResult result = client.appendAllFromBytes(batch.path, batch.bytes, 0,
+					batch.size, Formats.JSON_STREAM);
+			completed(batch, result, null);
+		} catch (Exception ex) {
+			completed(batch, null, ex);
+		}
+	}
+
+	private void completed(Batch batch, AppendResult result, Exception error) {
+		lock.lock();
+		try {
+			if (result != null) {
+				AppendResult total = results.get(batch.path);
+				if (total == null) {
+					total = new AppendResult();
+					results.put(batch.path, total);
+				}
+				total.accumulate(result);
+			} else {
+				failedBatches += 1;
+			}
+			bufferedBytes -= batch.size;
+			inFlight -= 1;
+			spaceAvailable.signalAll();
+			if (inFlight == 0) {
+				drained.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		Listener listener = this.listener;
+		if (result == null) {
+			logger.log(Level.WARNING, "Failed to append batch of " + batch.records +
+					" records to " + batch.path, error);
+		}
+		if (listener != null) {
+			if (result != null) {
+				listener.batchAppended(batch.path, batch.records, result);
+			} else {
+				listener.batchFailed(batch.path, batch.records, error);
+			}
+		}
+	}
+
+	private static byte[] utf8(String json) {
+		try {
+			return json.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+	}
+
+	// Sends a batch that has waited for lingerMillis, if it's still open.
+	private class Linger implements Runnable {
+		private final Batch batch;
+
+		Linger(Batch batch) {
+			this.batch = batch;
+		}
+
+		public void run() {
+			boolean open;
+			lock.lock();
+			try {
+				open = batches.get(batch.path) == batch;
+				if (open) {
+					seal(batch);
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (open) {
+				send(batch);
+			}
+		}
+	}
+
+	// Newline separated JSON records bound for a single path.
+	private static class Batch {
+		final String path;
+		final int capacity;
+		byte[] bytes;
+		int size = 0;
+		int records = 0;
+		ScheduledFuture<?> linger;
+
+		Batch(String path, int capacity) {
+			this.path = path;
+			this.capacity = capacity;
+			this.bytes = new byte[Math.min(capacity, 4096)];
+		}
+
+		void add(byte[] record) {
+			int needed = size + record.length + 1;
+			if (needed > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.min(capacity, Math.max(needed, bytes.length * 2)));
+			}
+			System.arraycopy(record, 0, bytes, size, record.length);
+			bytes[size + record.length] = NEWLINE;
+			size = needed;
+			records += 1;
+		}
+	}
+}
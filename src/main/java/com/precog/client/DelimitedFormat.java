@@ -66,4 +66,26 @@ public class DelimitedFormat implements Format {
 	public <A> A accept(FormatVisitor<A> visitor) {
 		return visitor.visitCsvFormat(this);
 	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + delim;
+		result = prime * result + quote;
+		result = prime * result + escape;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		DelimitedFormat other = (DelimitedFormat) obj;
+		return delim == other.delim && quote == other.quote && escape == other.escape;
+	}
 }
\ No newline at end of file
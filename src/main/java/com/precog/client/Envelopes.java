@@ -0,0 +1,306 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.precog.client.rest.HttpException;
+import com.precog.client.text.Position;
+import com.precog.client.text.TextTag;
+import com.precog.json.FromJsonReader;
+import com.precog.json.JsonInput;
+import com.precog.json.JsonTextReader;
+
+/**
+ * Decodes the JSON bodies of the service's responses into the client's own
+ * classes, with the built-in {@link JsonTextReader} rather than Gson. Members
+ * that aren't known are skipped, and ones that are missing or {@code null}
+ * keep their defaults.
+ */
+final class Envelopes {
+
+	static final FromJsonReader<AppendResult> APPEND_RESULT = new FromJsonReader<AppendResult>() {
+		public AppendResult read(JsonInput in) throws IOException {
+			if (skipNull(in)) {
+				return null;
+			}
+			AppendResult result = new AppendResult();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (skipNull(in)) {
+					continue;
+				}
+				if (name.equals("ingestId")) {
+					result.setIngestId(in.nextString());
+				} else if (name.equals("total")) {
+					result.setTotal(in.nextInt());
+				} else if (name.equals("ingested")) {
+					result.setIngested(in.nextInt());
+				} else if (name.equals("failed")) {
+					result.setFailed(in.nextInt());
+				} else if (name.equals("skipped")) {
+					result.setSkipped(in.nextInt());
+				} else if (name.equals("errors")) {
+					List<String> errors = STRINGS.read(in);
+					result.setErrors(errors.toArray(new String[errors.size()]));
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return result;
+		}
+	};
+
+	static final FromJsonReader<Query> QUERY = new FromJsonReader<Query>() {
+		public Query read(JsonInput in) throws IOException {
+			if (skipNull(in)) {
+				return null;
+			}
+			String jobId = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (skipNull(in)) {
+					continue;
+				}
+				if (name.equals("jobId")) {
+					jobId = in.nextString();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new Query(jobId);
+		}
+	};
+
+	static final FromJsonReader<AccountInfo> ACCOUNT_INFO = new FromJsonReader<AccountInfo>() {
+		public AccountInfo read(JsonInput in) throws IOException {
+			if (skipNull(in)) {
+				return null;
+			}
+			AccountInfo account = new AccountInfo();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (skipNull(in)) {
+					continue;
+				}
+				if (name.equals("accountId")) {
+					account.setAccountId(in.nextString());
+				} else if (name.equals("email")) {
+					account.setEmail(in.nextString());
+				} else if (name.equals("accountCreationDate")) {
+					account.setAccountCreationDate(in.nextString());
+				} else if (name.equals("apiKey")) {
+					account.setApiKey(in.nextString());
+				} else if (name.equals("rootPath")) {
+					account.setRootPath(in.nextString());
+				} else if (name.equals("plan")) {
+					account.setPlan(readPlan(in));
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return account;
+		}
+	};
+
+	/**
+	 * Reads a list of strings. Values that aren't strings are read as their
+	 * JSON encoding.
+	 */
+	static final FromJsonReader<List<String>> STRINGS = new FromJsonReader<List<String>>() {
+		public List<String> read(JsonInput in) throws IOException {
+			if (skipNull(in)) {
+				return Collections.emptyList();
+			}
+			List<String> strings = new ArrayList<String>();
+			in.beginArray();
+			while (in.hasNext()) {
+				strings.add(readString(in));
+			}
+			in.endArray();
+			return strings;
+		}
+	};
+
+	static final FromJsonReader<List<TextTag>> TEXT_TAGS = new FromJsonReader<List<TextTag>>() {
+		public List<TextTag> read(JsonInput in) throws IOException {
+			if (skipNull(in)) {
+				return Collections.emptyList();
+			}
+			List<TextTag> tags = new ArrayList<TextTag>();
+			in.beginArray();
+			while (in.hasNext()) {
+				tags.add(readTextTag(in));
+			}
+			in.endArray();
+			return tags;
+		}
+	};
+
+	private Envelopes() {
+	}
+
+	/**
+	 * Decodes {@code json} with {@code reader}. Returns {@code null} if the
+	 * body is empty.
+	 *
+	 * @throws HttpException if the body is malformed
+	 */
+	static <T> T decode(String json, FromJsonReader<T> reader) throws HttpException {
+		if (json == null) {
+			return null;
+		}
+		try {
+			JsonTextReader in = new JsonTextReader(json);
+			if (in.peek() == JsonInput.Token.END_DOCUMENT) {
+				return null;
+			}
+			return reader.read(in);
+		} catch (IOException ioe) {
+			throw new HttpException("Malformed response: " + ioe.getMessage(), ioe);
+		} catch (IllegalStateException ise) {
+			throw new HttpException("Malformed response: " + ise.getMessage(), ise);
+		} catch (NumberFormatException nfe) {
+			throw new HttpException("Malformed response: " + nfe.getMessage(), nfe);
+		}
+	}
+
+	/**
+	 * Decodes a query result, whose rows are mapped to objects by
+	 * {@code pojos}. Returns {@code null} if the body is empty.
+	 *
+	 * @throws HttpException if the body is malformed
+	 */
+	static QueryResult decodeQueryResult(String json, final PojoMapper pojos) throws HttpException {
+		return decode(json, new FromJsonReader<QueryResult>() {
+			public QueryResult read(JsonInput in) throws IOException {
+				if (skipNull(in)) {
+					return null;
+				}
+				List<String> data = Collections.emptyList();
+				List<TextTag> errors = Collections.emptyList();
+				List<TextTag> warnings = Collections.emptyList();
+				List<String> serverErrors = Collections.emptyList();
+				in.beginObject();
+				while (in.hasNext()) {
+					String name = in.nextName();
+					if (name.equals("data")) {
+						data = STRINGS.read(in);
+					} else if (name.equals("errors")) {
+						errors = TEXT_TAGS.read(in);
+					} else if (name.equals("warnings")) {
+						warnings = TEXT_TAGS.read(in);
+					} else if (name.equals("serverErrors")) {
+						serverErrors = STRINGS.read(in);
+					} else {
+						in.skipValue();
+					}
+				}
+				in.endObject();
+				return new QueryResult(pojos, data, errors, warnings, serverErrors);
+			}
+		});
+	}
+
+	/**
+	 * Reads a string, number or boolean as a string, {@code null} as
+	 * {@code null}, and an array or object as its JSON encoding.
+	 */
+	static String readString(JsonInput in) throws IOException {
+		switch (in.peek()) {
+		case STRING:
+		case NUMBER:
+			return in.nextString();
+		case BOOLEAN:
+			return in.nextBoolean() ? "true" : "false";
+		case NULL:
+			in.nextNull();
+			return null;
+		default:
+			return in.nextJson();
+		}
+	}
+
+	private static TextTag readTextTag(JsonInput in) throws IOException {
+		if (skipNull(in)) {
+			return null;
+		}
+		String message = null;
+		String timestamp = null;
+		Position position = null;
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (skipNull(in)) {
+				continue;
+			}
+			if (name.equals("message")) {
+				message = readString(in);
+			} else if (name.equals("timestamp")) {
+				timestamp = readString(in);
+			} else if (name.equals("position")) {
+				position = readPosition(in);
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return new TextTag(message, timestamp, position);
+	}
+
+	private static Position readPosition(JsonInput in) throws IOException {
+		Position position = new Position();
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (skipNull(in)) {
+				continue;
+			}
+			if (name.equals("text")) {
+				position.setText(readString(in));
+			} else if (name.equals("column")) {
+				position.setColumn(in.nextInt());
+			} else if (name.equals("line")) {
+				position.setLine(in.nextInt());
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return position;
+	}
+
+	private static AccountPlan readPlan(JsonInput in) throws IOException {
+		String type = null;
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (skipNull(in)) {
+				continue;
+			}
+			if (name.equals("type")) {
+				type = in.nextString();
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return new AccountPlan(type);
+	}
+
+	// Consumes the next value if it's null, and returns true if it was.
+	private static boolean skipNull(JsonInput in) throws IOException {
+		if (in.peek() == JsonInput.Token.NULL) {
+			in.nextNull();
+			return true;
+		}
+		return false;
+	}
+}
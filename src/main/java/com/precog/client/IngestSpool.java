@@ -0,0 +1,1008 @@
+package com.precog.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.precog.client.rest.Backoff;
+import com.precog.client.rest.HttpException;
+import com.precog.json.ToJson;
+
+/**
+ * Appends records to Precog by way of a write-ahead log on local disk, so
+ * that records aren't lost while the service can't be reached.
+ * <p>
+ * {@code append} writes each record to the end of the current segment file
+ * in {@code dir} and returns; it doesn't wait for the network. A background
+ * thread reads the records back in order and appends them to Precog in
+ * {@link Formats#JSON_STREAM} batches of consecutive records bound for the
+ * same path, of up to {@code maxBatchRecords} records or
+ * {@code maxBatchBytes} bytes. A batch that fails is retried, after a
+ * {@link Backoff}, until it succeeds or the spool is closed. A batch the
+ * server rejects outright (with a 4xx status other than 408 or 429) would
+ * never succeed, so it is instead written to a file of its own in the
+ * {@code dead-letter} subdirectory of {@code dir}, reported to the listener,
+ * and skipped.
+ * <p>
+ * Once a batch has been appended, the position after it is saved to a
+ * checkpoint file, so a spool opened on the same directory (eg. after a
+ * restart) carries on from there. Records are therefore sent at least once:
+ * a batch whose response was lost is sent again.
+ * <p>
+ * A segment is closed, and a new one started, once it holds
+ * {@code maxSegmentBytes} bytes; segments are deleted once all their records
+ * have been sent. If the segments on disk would grow past
+ * {@code maxDiskBytes}, {@code append} fails rather than use more space.
+ * <p>
+ * Records are written to the file system as they're appended, so they
+ * survive the process exiting, but are only forced to the disk itself when a
+ * segment is closed or {@link #sync()} is called.
+ * <p>
+ * Each record is framed by its length and a CRC-32 checksum. A record left
+ * half written by a crash is dropped when the spool is next opened; a
+ * segment found to be corrupt is skipped, with a warning.
+ * <p>
+ * Only one spool may use a directory at a time.
+ */
+public class IngestSpool implements Closeable {
+	private static final Logger logger = Logger.getLogger(IngestSpool.class.getName());
+
+	/** The default size at which a new segment is started, in bytes. */
+	public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+	/** The default limit on the size of all segments, in bytes. */
+	public static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+
+	/** The default backoff after a batch fails: from 100ms, doubling up to 30s. */
+	public static final Backoff DEFAULT_BACKOFF =
+			Backoff.exponential(100L, 30000L, TimeUnit.MILLISECONDS);
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT = "checkpoint";
+	private static final String CHECKPOINT_TMP = "checkpoint.tmp";
+	private static final String LOCK = "lock";
+	private static final String DEAD_LETTER = "dead-letter";
+
+	// Each record is written as its length and CRC, followed by its path's
+	// length, its path and its JSON.
+	private static final int HEADER_BYTES = 8;
+	private static final int MAX_PATH_BYTES = 0xFFFF;
+
+	// The time constant of the drain rates, in seconds.
+	private static final double RATE_WINDOW = 10.0;
+
+	private final PrecogClient client;
+	private final File dir;
+	private final long maxSegmentBytes;
+	private final long maxDiskBytes;
+	private final int maxBatchRecords;
+	private final int maxBatchBytes;
+	private final Backoff backoff;
+	private final FileChannel lockChannel;
+	private final FileLock dirLock;
+	private final Thread shipper;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+
+	// The segment being written to.
+	private long activeId;
+	private long activeSize;
+	private FileChannel activeChannel;
+
+	// The position of the first record not yet sent.
+	private long ackedId;
+	private long ackedOffset;
+
+	private long diskBytes = 0;
+	private int segments = 0;
+	private long recordsSpooled = 0;
+	private long recordsRejected = 0;
+	private long recordsShipped = 0;
+	private long bytesShipped = 0;
+	private int failedBatches = 0;
+	private double recordRate = 0.0;
+	private double byteRate = 0.0;
+	private long rateUpdated = System.nanoTime();
+	private boolean closed = false;
+
+	private volatile BatchingAppender.Listener listener;
+
+	/**
+	 * Opens the spool in {@code dir}, creating the directory if need be, and
+	 * starts sending any records left in it.
+	 *
+	 * @param client the client used to send batches
+	 * @param dir the directory to keep segments in
+	 * @param maxSegmentBytes the size at which a new segment is started
+	 * @param maxDiskBytes the most disk space used by segments
+	 * @param maxBatchRecords the most records sent in one request
+	 * @param maxBatchBytes the largest request body sent, in bytes
+	 * @param backoff the delays before retrying a batch that failed
+	 * @throws IOException if the directory can't be read or written, or is
+	 *         in use by another spool
+	 */
+	public IngestSpool(PrecogClient client, File dir, long maxSegmentBytes, long maxDiskBytes,
+			int maxBatchRecords, int maxBatchBytes, Backoff backoff) throws IOException {
+		if (maxBatchRecords < 1 || maxBatchBytes < 1 || maxSegmentBytes < 1 ||
+				maxDiskBytes < maxSegmentBytes) {
+			throw new IllegalArgumentException("Invalid spool limits.");
+		}
+		if (backoff == null) {
+			throw new IllegalArgumentException("backoff must not be null");
+		}
+		this.client = client;
+		this.dir = dir;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxDiskBytes = maxDiskBytes;
+		this.maxBatchRecords = maxBatchRecords;
+		this.maxBatchBytes = maxBatchBytes;
+		this.backoff = backoff;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create spool directory " + dir);
+		}
+		this.lockChannel = FileChannel.open(new File(dir, LOCK).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock dirLock = null;
+		try {
+			dirLock = lockChannel.tryLock();
+			if (dirLock == null) {
+				throw new IOException("Spool directory " + dir + " is in use.");
+			}
+			recover();
+		} catch (OverlappingFileLockException ofle) {
+			closeQuietly(lockChannel);
+			throw new IOException("Spool directory " + dir + " is in use.");
+		} catch (IOException ioe) {
+			closeQuietly(activeChannel);
+			closeQuietly(lockChannel);
+			throw ioe;
+		}
+		this.dirLock = dirLock;
+
+		this.shipper = new Thread(new Runnable() {
+			public void run() {
+				ship();
+			}
+		}, "precog-ingest-spool");
+		shipper.setDaemon(true);
+		shipper.start();
+	}
+
+	/**
+	 * Opens the spool in {@code dir} with the default limits: 64MB segments,
+	 * 1GB of disk, and the batch limits of a {@link BatchingAppender}.
+	 *
+	 * @param client the client used to send batches
+	 * @param dir the directory to keep segments in
+	 * @throws IOException if the directory can't be read or written, or is
+	 *         in use by another spool
+	 */
+	public IngestSpool(PrecogClient client, File dir) throws IOException {
+		this(client, dir, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_DISK_BYTES,
+				BatchingAppender.DEFAULT_MAX_BATCH_RECORDS, BatchingAppender.DEFAULT_MAX_BATCH_BYTES,
+				DEFAULT_BACKOFF);
+	}
+
+	/** Sets the listener notified as each batch completes or fails. */
+	public void setListener(BatchingAppender.Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Spools {@code obj} to be appended to {@code path}. It is serialized by
+	 * its generated codec, if its class is annotated with
+	 * {@link com.precog.json.JsonCodec}, otherwise by Gson.
+	 *
+	 * @param path the path in Precog to append the record to
+	 * @param obj the record to append
+	 * @throws IOException if the record can't be written, or the spool is full
+	 */
+	public void append(String path, Object obj) throws IOException {
+		appendJson(path, client.toJson(obj));
+	}
+
+	/**
+	 * Spools {@code obj}, serialized by {@code toJson}, to be appended to
+	 * {@code path}.
+	 *
+	 * @param path the path in Precog to append the record to
+	 * @param obj the record to append
+	 * @param toJson the serializer for {@code obj}
+	 * @throws IOException if the record can't be written, or the spool is full
+	 */
+	public <T> void append(String path, T obj, ToJson<T> toJson) throws IOException {
+		appendJson(path, toJson.serialize(obj));
+	}
+
+	private void appendJson(String path, String json) throws IOException {
+		byte[] pathBytes = utf8(path);
+		byte[] record = utf8(json);
+		if (record.length + 1 > maxBatchBytes) {
+			throw new IllegalArgumentException("Record of " + (record.length + 1) +
+					" bytes is larger than the maximum batch size.");
+		}
+		if (pathBytes.length > MAX_PATH_BYTES) {
+			throw new IllegalArgumentException("Path is too long.");
+		}
+		int length = 2 + pathBytes.length + record.length;
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + length);
+		frame.putInt(length).putInt(0)
+			.putShort((short) pathBytes.length).put(pathBytes).put(record);
+		CRC32 crc = new CRC32();
+		crc.update(frame.array(), HEADER_BYTES, length);
+		frame.putInt(4, (int) crc.getValue());
+		frame.flip();
+
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("IngestSpool has been closed.");
+			}
+			if (activeSize > 0 && activeSize + frame.remaining() > maxSegmentBytes) {
+				roll();
+			}
+			if (diskBytes + frame.remaining() > maxDiskBytes) {
+				recordsRejected += 1;
+				throw new IOException("Ingest spool is full (" + diskBytes + " bytes).");
+			}
+			int size = frame.remaining();
+			try {
+				writeFully(activeChannel, frame, activeSize);
+			} catch (IOException ioe) {
+				// Don't leave part of a record behind.
+				activeChannel.truncate(activeSize);
+				throw ioe;
+			}
+			activeSize += size;
+			diskBytes += size;
+			recordsSpooled += 1;
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forces the records spooled so far to the disk, so they survive a crash
+	 * of the machine, and not just of the process.
+	 *
+	 * @throws IOException if the segment can't be synced
+	 */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			if (!closed) {
+				activeChannel.force(false);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for every record spooled so far to be sent, for at most
+	 * {@code timeout}.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit the unit of {@code timeout}
+	 * @return {@code true} if everything was sent, {@code false} on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (!isDrained()) {
+				if (nanos <= 0L || closed) {
+					return false;
+				}
+				nanos = drained.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops sending records, waiting for a batch in flight to complete, and
+	 * closes the current segment. Records not yet sent stay on disk, and are
+	 * sent once a spool is opened on the directory again.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			appended.signalAll();
+			drained.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		shipper.interrupt();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				shipper.join();
+				break;
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		lock.lock();
+		try {
+			activeChannel.force(false);
+		} catch (IOException ioe) {
+			logger.log(Level.WARNING, "Failed to sync ingest spool segment", ioe);
+		} finally {
+			closeQuietly(activeChannel);
+			lock.unlock();
+		}
+		try {
+			dirLock.release();
+		} catch (IOException ioe) {
+			// Released when the channel is closed anyway.
+		}
+		closeQuietly(lockChannel);
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns the number of records spooled by this spool. */
+	public long getRecordsSpooled() {
+		lock.lock();
+		try {
+			return recordsSpooled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of records rejected because the spool was full. */
+	public long getRecordsRejected() {
+		lock.lock();
+		try {
+			return recordsRejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of records sent by this spool. */
+	public long getRecordsShipped() {
+		lock.lock();
+		try {
+			return recordsShipped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of bytes of records sent by this spool. */
+	public long getBytesShipped() {
+		lock.lock();
+		try {
+			return bytesShipped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of attempts to send a batch that failed. */
+	public int getFailedBatches() {
+		lock.lock();
+		try {
+			return failedBatches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of segment files on disk. */
+	public int getSegmentCount() {
+		lock.lock();
+		try {
+			return segments;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the size of the segment files on disk, in bytes. */
+	public long getDiskBytes() {
+		lock.lock();
+		try {
+			return diskBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the size of the records on disk that have yet to be sent. */
+	public long getBacklogBytes() {
+		lock.lock();
+		try {
+			return diskBytes - ackedOffset;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the rate records are being sent at, in records per second,
+	 * averaged over roughly the last 10 seconds.
+	 */
+	public double getDrainRate() {
+		lock.lock();
+		try {
+			return recordRate * decay(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the rate records are being sent at, in bytes (of segment) per
+	 * second, averaged over roughly the last 10 seconds.
+	 */
+	public double getDrainByteRate() {
+		lock.lock();
+		try {
+			return byteRate * decay(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			double decay = decay(System.nanoTime());
+			return String.format("IngestSpool(dir=%s, segments=%d, disk=%d, backlog=%d, " +
+					"spooled=%d, rejected=%d, shipped=%d, failedBatches=%d, rate=%.1f/s)",
+					dir, segments, diskBytes, diskBytes - ackedOffset, recordsSpooled,
+					recordsRejected, recordsShipped, failedBatches, recordRate * decay);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// OPENING
+
+	// Finds the segments left by a previous spool, drops those that were
+	// completely sent and any half-written record at the end of the last,
+	// and opens the last for writing.
+	private void recover() throws IOException {
+		long[] ids = listSegments();
+		long[] checkpoint = readCheckpoint();
+		ackedId = checkpoint[0];
+		ackedOffset = checkpoint[1];
+
+		long firstId = 0;
+		long lastId = 0;
+		for (long id : ids) {
+			File file = segmentFile(id);
+			if (id < ackedId) {
+				Files.deleteIfExists(file.toPath());
+			} else {
+				if (firstId == 0) {
+					firstId = id;
+				}
+				lastId = id;
+				segments += 1;
+				diskBytes += file.length();
+			}
+		}
+
+		if (lastId == 0) {
+			// Nothing left to send.
+			activeId = Math.max(ackedId, 1L);
+			ackedId = activeId;
+			ackedOffset = 0;
+		} else {
+			activeId = lastId;
+			if (ackedId < firstId) {
+				ackedId = firstId;
+				ackedOffset = 0;
+			}
+		}
+
+		File file = segmentFile(activeId);
+		activeChannel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (lastId == 0) {
+			segments += 1;
+		}
+		long size = activeChannel.size();
+		activeSize = validLength(activeChannel, size);
+		if (activeSize < size) {
+			logger.warning("Dropping " + (size - activeSize) +
+					" bytes of incomplete records from " + file);
+			activeChannel.truncate(activeSize);
+			diskBytes -= size - activeSize;
+		}
+		if (ackedId == activeId && ackedOffset > activeSize) {
+			ackedOffset = activeSize;
+		}
+	}
+
+	private long[] listSegments() {
+		String[] names = dir.list();
+		long[] ids = new long[names == null ? 0 : names.length];
+		int n = 0;
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						ids[n++] = Long.parseLong(
+								name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+					} catch (NumberFormatException nfe) {
+						// Not one of ours.
+					}
+				}
+			}
+		}
+		ids = Arrays.copyOf(ids, n);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	// Returns the length of the run of complete, intact records at the start
+	// of a segment.
+	private static long validLength(FileChannel channel, long size) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		ByteBuffer body = ByteBuffer.allocate(4096);
+		long pos = 0;
+		while (pos + HEADER_BYTES <= size) {
+			header.clear();
+			readFully(channel, header, pos);
+			int length = header.getInt(0);
+			int crc = header.getInt(4);
+			if (length < 2 || pos + HEADER_BYTES + length > size) {
+				break;
+			}
+			if (body.capacity() < length) {
+				body = ByteBuffer.allocate(length);
+			}
+			body.clear().limit(length);
+			readFully(channel, body, pos + HEADER_BYTES);
+			if (crc(body.array(), 0, length) != crc) {
+				break;
+			}
+			pos += HEADER_BYTES + length;
+		}
+		return pos;
+	}
+
+	// Returns the segment and offset of the checkpoint, or segment 0 if there
+	// isn't one.
+	private long[] readCheckpoint() throws IOException {
+		File file = new File(dir, CHECKPOINT);
+		if (!file.exists()) {
+			return new long[] { 0L, 0L };
+		}
+		String text = new String(Files.readAllBytes(file.toPath()), "UTF-8").trim();
+		String[] parts = text.split(" ");
+		try {
+			return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+		} catch (RuntimeException ex) {
+			throw new IOException("Corrupt spool checkpoint: " + text);
+		}
+	}
+
+	// Saves the position of the first record not yet sent: written to a
+	// temporary file, then renamed over the old checkpoint, so a crash
+	// leaves one or the other.
+	private void writeCheckpoint(long id, long offset) throws IOException {
+		File tmp = new File(dir, CHECKPOINT_TMP);
+		FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeFully(channel, ByteBuffer.wrap(utf8(id + " " + offset + "\n")), 0);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// WRITING
+
+	// Closes the active segment and starts a new one. Must hold the lock.
+	private void roll() throws IOException {
+		activeChannel.force(false);
+		activeChannel.close();
+		activeId += 1;
+		activeSize = 0;
+		activeChannel = FileChannel.open(segmentFile(activeId).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		segments += 1;
+	}
+
+	// SHIPPING
+
+	// Runs on the shipper thread until the spool is closed.
+	private void ship() {
+		Batch batch = new Batch(maxBatchBytes);
+		FileChannel channel = null;
+		long channelId = 0;
+		int attempt = 0;
+		try {
+			while (true) {
+				long id;
+				long offset;
+				long limit;
+				lock.lock();
+				try {
+					while (!closed && isDrained()) {
+						appended.await();
+					}
+					if (closed) {
+						return;
+					}
+					id = ackedId;
+					offset = ackedOffset;
+					limit = id == activeId ? activeSize : -1L;
+				} finally {
+					lock.unlock();
+				}
+
+				try {
+					if (channel == null || channelId != id) {
+						closeQuietly(channel);
+						channel = null;
+						File file = segmentFile(id);
+						if (!file.exists()) {
+							logger.warning("Ingest spool segment " + file + " is missing.");
+							nextSegment(id);
+							continue;
+						}
+						channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+						channelId = id;
+					}
+					boolean sealed = limit < 0;
+					if (sealed) {
+						limit = channel.size();
+					}
+					boolean intact = batch.read(channel, id, offset, limit, maxBatchRecords);
+					if (batch.records == 0) {
+						if (!intact) {
+							logger.warning("Skipping corrupt records in " + segmentFile(id) +
+									" from offset " + offset);
+						} else if (!sealed) {
+							continue;
+						}
+						closeQuietly(channel);
+						channel = null;
+						nextSegment(id);
+						continue;
+					}
+				} catch (IOException ioe) {
+					logger.log(Level.WARNING, "Failed to read ingest spool segment " + id, ioe);
+					closeQuietly(channel);
+					channel = null;
+					if (!pause(backoff.delayNanos(attempt++))) {
+						return;
+					}
+					continue;
+				}
+
+				try {
+					AppendResult result = client.appendAllFromBytes(batch.path, batch.bytes, 0,
+							batch.size, Formats.JSON_STREAM);
+					shipped(batch, result);
+					attempt = 0;
+				} catch (Exception ex) {
+					if (isRejection(ex)) {
+						rejected(batch, ex);
+						attempt = 0;
+						continue;
+					}
+					failed(batch, ex, attempt == 0);
+					if (!pause(backoff.delayNanos(attempt++))) {
+						return;
+					}
+				}
+			}
+		} catch (InterruptedException ie) {
+			// Closed.
+		} finally {
+			closeQuietly(channel);
+		}
+	}
+
+	// Records that batch has been appended, and saves the checkpoint.
+	private void shipped(Batch batch, AppendResult result) {
+		acknowledge(batch, true);
+		BatchingAppender.Listener listener = this.listener;
+		if (listener != null) {
+			listener.batchAppended(batch.path, batch.records, result);
+		}
+	}
+
+	// Whether error is the server refusing a batch for good, rather than
+	// being unable to take it right now.
+	private static boolean isRejection(Exception error) {
+		if (!(error instanceof HttpException)) {
+			return false;
+		}
+		int status = ((HttpException) error).getStatusCode();
+		return status / 100 == 4 && status != 408 && status != 429;
+	}
+
+	// Moves a batch the server rejected to the dead-letter directory, and
+	// skips past it.
+	private void rejected(Batch batch, Exception error) {
+		lock.lock();
+		try {
+			failedBatches += 1;
+		} finally {
+			lock.unlock();
+		}
+		File file = new File(new File(dir, DEAD_LETTER),
+				String.format("%019d-%019d.json", batch.id, batch.start));
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.write(file.toPath(), Arrays.copyOf(batch.bytes, batch.size));
+			logger.log(Level.WARNING, "Server rejected spooled batch of " + batch.records +
+					" records to " + batch.path + "; moved it to " + file, error);
+		} catch (IOException ioe) {
+			logger.log(Level.SEVERE, "Server rejected spooled batch of " + batch.records +
+					" records to " + batch.path + ", which could not be saved to " + file +
+					"; dropping it", ioe);
+		}
+		acknowledge(batch, false);
+		BatchingAppender.Listener listener = this.listener;
+		if (listener != null) {
+			listener.batchFailed(batch.path, batch.records, error);
+		}
+	}
+
+	// Saves the checkpoint after batch, which has been sent (or given up on).
+	private void acknowledge(Batch batch, boolean shipped) {
+		try {
+			writeCheckpoint(batch.id, batch.end);
+		} catch (IOException ioe) {
+			logger.log(Level.WARNING, "Failed to save ingest spool checkpoint", ioe);
+		}
+		lock.lock();
+		try {
+			ackedOffset = batch.end;
+			if (shipped) {
+				recordsShipped += batch.records;
+				bytesShipped += batch.end - batch.start;
+				long now = System.nanoTime();
+				double decay = decay(now);
+				recordRate = recordRate * decay + batch.records / RATE_WINDOW;
+				byteRate = byteRate * decay + (batch.end - batch.start) / RATE_WINDOW;
+				rateUpdated = now;
+			}
+			if (isDrained()) {
+				drained.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Only the first failure of an outage is logged as a warning.
+	private void failed(Batch batch, Exception error, boolean first) {
+		lock.lock();
+		try {
+			failedBatches += 1;
+		} finally {
+			lock.unlock();
+		}
+		logger.log(first ? Level.WARNING : Level.FINE, "Failed to append spooled batch of " + batch.records +
+				" records to " + batch.path + "; will retry", error);
+		BatchingAppender.Listener listener = this.listener;
+		if (listener != null) {
+			listener.batchFailed(batch.path, batch.records, error);
+		}
+	}
+
+	// Moves on from segment id, which has been read, deleting it. If it's
+	// the segment being written to, a new one is started first.
+	private void nextSegment(long id) throws IOException {
+		lock.lock();
+		try {
+			if (id == activeId) {
+				if (closed) {
+					return;
+				}
+				roll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		writeCheckpoint(id + 1, 0L);
+		File file = segmentFile(id);
+		long size = file.length();
+		boolean deleted = Files.deleteIfExists(file.toPath());
+		lock.lock();
+		try {
+			ackedId = id + 1;
+			ackedOffset = 0;
+			if (deleted) {
+				segments -= 1;
+				diskBytes -= size;
+			}
+			if (isDrained()) {
+				drained.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Waits before a retry; returns false if the spool was closed meanwhile.
+	private boolean pause(long nanos) throws InterruptedException {
+		lock.lock();
+		try {
+			while (!closed && nanos > 0L) {
+				nanos = drained.awaitNanos(nanos);
+			}
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Must hold the lock.
+	private boolean isDrained() {
+		return ackedId == activeId && ackedOffset == activeSize;
+	}
+
+	// How much the drain rates have decayed since they were last updated.
+	// Must hold the lock.
+	private double decay(long now) {
+		return Math.exp(-(now - rateUpdated) / 1e9 / RATE_WINDOW);
+	}
+
+	private File segmentFile(long id) {
+		return new File(dir, String.format("%019d", id) + SEGMENT_SUFFIX);
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of ingest spool segment.");
+			}
+			pos += n;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ioe) {
+				// Nothing more we can do.
+			}
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+	}
+
+	// Newline separated JSON records read from a segment, all bound for the
+	// same path. Reused for every batch.
+	private static class Batch {
+		byte[] bytes;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		ByteBuffer frame = ByteBuffer.allocate(4096);
+		String path;
+		int size;
+		int records;
+		long id;
+		long start;
+		long end;
+
+		Batch(int capacity) {
+			this.bytes = new byte[capacity];
+		}
+
+		// Reads the records of segment id from offset up to limit, stopping at
+		// a change of path or a full batch. Returns false if a corrupt record
+		// was found, which is left unread.
+		boolean read(FileChannel channel, long id, long offset, long limit, int maxRecords)
+				throws IOException {
+			this.path = null;
+			this.size = 0;
+			this.records = 0;
+			this.id = id;
+			this.start = offset;
+			long pos = offset;
+			try {
+				while (records < maxRecords && pos < limit) {
+					if (pos + HEADER_BYTES > limit) {
+						return false;
+					}
+					header.clear();
+					readFully(channel, header, pos);
+					int length = header.getInt(0);
+					if (length < 2 || pos + HEADER_BYTES + length > limit) {
+						return false;
+					}
+					if (frame.capacity() < length) {
+						frame = ByteBuffer.allocate(length);
+					}
+					frame.clear().limit(length);
+					readFully(channel, frame, pos + HEADER_BYTES);
+					byte[] body = frame.array();
+					if (crc(body, 0, length) != header.getInt(4)) {
+						return false;
+					}
+					int pathLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+					int recordLength = length - 2 - pathLength;
+					if (recordLength < 0) {
+						return false;
+					}
+					String recordPath = new String(body, 2, pathLength, "UTF-8");
+					if (path == null) {
+						path = recordPath;
+						if (recordLength + 1 > bytes.length) {
+							// Spooled with a larger batch size.
+							bytes = new byte[recordLength + 1];
+						}
+					} else if (!path.equals(recordPath) || size + recordLength + 1 > bytes.length) {
+						break;
+					}
+					System.arraycopy(body, 2 + pathLength, bytes, size, recordLength);
+					bytes[size + recordLength] = '\n';
+					size += recordLength + 1;
+					records += 1;
+					pos += HEADER_BYTES + length;
+				}
+				return true;
+			} finally {
+				this.end = pos;
+			}
+		}
+	}
+}
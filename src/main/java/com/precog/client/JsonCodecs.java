@@ -0,0 +1,108 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.precog.json.FromJson;
+import com.precog.json.FromJsonReader;
+import com.precog.json.JsonCodec;
+import com.precog.json.JsonTextReader;
+import com.precog.json.ToJson;
+import com.precog.json.ToJsonWriter;
+
+/**
+ * Finds the codecs generated for {@link JsonCodec} classes, and converts
+ * between values and JSON strings with streaming codecs.
+ * <p>
+ * A generated codec is looked up once per class, by name, and then cached.
+ */
+public final class JsonCodecs {
+	private static final Logger logger = Logger.getLogger(JsonCodecs.class.getName());
+
+	private static final String SUFFIX = "$JsonCodec";
+	private static final Object NONE = new Object();
+
+	private static final ClassValue<Object> codecs = new ClassValue<Object>() {
+		@Override
+		protected Object computeValue(Class<?> type) {
+			if (type.isPrimitive() || type.isArray()) {
+				return NONE;
+			}
+			try {
+				Class<?> codec = Class.forName(type.getName() + SUFFIX, true,
+						type.getClassLoader());
+				Object instance = codec.newInstance();
+				if (instance instanceof ToJson && instance instanceof FromJson) {
+					return instance;
+				}
+				logger.warning(codec.getName() + " is not a JSON codec.");
+			} catch (ClassNotFoundException cnfe) {
+				// No codec was generated.
+			} catch (Exception ex) {
+				logger.log(Level.WARNING, "Failed to load the JSON codec for " + type.getName(), ex);
+			} catch (LinkageError le) {
+				logger.log(Level.WARNING, "Failed to load the JSON codec for " + type.getName(), le);
+			}
+			return NONE;
+		}
+	};
+
+	private JsonCodecs() {
+	}
+
+	/**
+	 * Returns the serializer generated for {@code klass}, or {@code null} if
+	 * it isn't annotated with {@link JsonCodec}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ToJson<T> getToJson(Class<T> klass) {
+		Object codec = codecs.get(klass);
+		return codec == NONE ? null : (ToJson<T>) codec;
+	}
+
+	/**
+	 * Returns the deserializer generated for {@code klass}, or {@code null}
+	 * if it isn't annotated with {@link JsonCodec}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> FromJson<T> getFromJson(Class<T> klass) {
+		Object codec = codecs.get(klass);
+		return codec == NONE ? null : (FromJson<T>) codec;
+	}
+
+	/**
+	 * Returns the JSON encoding of {@code value}, written by {@code toJson}.
+	 *
+	 * @param toJson the serializer for {@code value}
+	 * @param value the value to serialize
+	 * @return the JSON encoding of {@code value}
+	 */
+	public static <T> String encode(ToJsonWriter<T> toJson, T value) {
+		StringBuilder json = new StringBuilder(64);
+		try {
+			toJson.write(value, json);
+		} catch (IOException ioe) {
+			// A StringBuilder doesn't throw.
+			throw new UncheckedIOException(ioe);
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Decodes the single JSON value in {@code json} with {@code fromJson}.
+	 *
+	 * @param fromJson the deserializer for the value
+	 * @param json the JSON encoding of the value
+	 * @return the value read
+	 * @throws UncheckedIOException if the JSON is malformed
+	 */
+	public static <T> T decode(FromJsonReader<T> fromJson, String json) {
+		try {
+			return fromJson.read(new JsonTextReader(json));
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+}
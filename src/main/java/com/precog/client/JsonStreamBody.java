@@ -0,0 +1,70 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import com.precog.client.rest.StreamingBody;
+import com.precog.json.ToJson;
+import com.precog.json.ToJsonWriter;
+
+/**
+ * A request body made up of the JSON serialization of each record in an
+ * {@code Iterable}, separated by newlines (ie. {@link JsonFormat#JSON_STREAM}).
+ * <p>
+ * Records are serialized straight into a pooled buffer by a
+ * {@link Utf8Writer}, so no intermediate {@code String} or {@code byte[]}
+ * is created per record when using Gson, a {@link ToJsonWriter} or a codec
+ * generated for a {@link com.precog.json.JsonCodec} class. Records
+ * serialized by a {@link ToJson} are still turned into a {@code String}
+ * first, but are then encoded without copying. The body's length isn't
+ * known in advance, so it is sent using chunked transfer-encoding.
+ */
+final class JsonStreamBody<T> implements StreamingBody {
+	private final Iterable<T> records;
+	private final PojoMapper pojos;
+	private final ToJsonWriter<T> toJson;
+
+	/** Serializes each record using {@code pojos}. */
+	JsonStreamBody(PojoMapper pojos, Iterable<T> records) {
+		this.records = records;
+		this.pojos = pojos;
+		this.toJson = null;
+	}
+
+	/** Serializes each record using {@code toJson}. */
+	JsonStreamBody(ToJsonWriter<T> toJson, Iterable<T> records) {
+		this.records = records;
+		this.pojos = null;
+		this.toJson = toJson;
+	}
+
+	public long getContentLength() {
+		return -1L;
+	}
+
+	// Any other Iterable (eg. a QueryResultStream) may only be walked once.
+	public boolean isReplayable() {
+		return records instanceof Collection;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		Utf8Writer writer = new Utf8Writer(out);
+		try {
+			if (pojos != null) {
+				PojoMapper.RecordWriter pojoWriter = pojos.newRecordWriter(writer);
+				for (T record : records) {
+					pojoWriter.write(record);
+					writer.write('\n');
+				}
+			} else {
+				for (T record : records) {
+					toJson.write(record, writer);
+					writer.write('\n');
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
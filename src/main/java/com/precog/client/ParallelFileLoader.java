@@ -0,0 +1,369 @@
+package com.precog.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.precog.client.rest.BufferPool;
+import com.precog.client.rest.FileTransfer;
+import com.precog.client.rest.HttpException;
+import com.precog.client.rest.StreamingBody;
+
+/**
+ * Appends a large file to Precog by splitting it into parts and uploading
+ * several parts at once, rather than sending the whole file down a single
+ * connection.
+ * <p>
+ * The file is split into parts of roughly {@code partSize} bytes, each ending
+ * on a record boundary:
+ * <ul>
+ * <li>{@link DelimitedFormat} files are split on line breaks that aren't
+ *     inside a quoted value, honouring the format's quote and escape
+ *     characters. The first row is taken to be the header, and is sent at the
+ *     start of every part. Finding the boundaries means reading through the
+ *     whole file once before uploading.</li>
+ * <li>{@link JsonFormat#JSON_STREAM} files are split on newlines.</li>
+ * <li>{@link JsonFormat#JSON} files can't be split, so are sent as a single
+ *     request.</li>
+ * </ul>
+ * Up to {@code parallelism} parts are uploaded at once, using the calling
+ * thread and the client's {@link PrecogClient#getExecutor() executor}. Each
+ * part is its own request, so the server sees several appends to the same
+ * path; their results are combined into one {@link AppendResult}. If any part
+ * fails, no further parts are started, but parts that were already sent are
+ * not undone.
+ */
+public class ParallelFileLoader {
+
+	/** The default number of parts uploaded at once. */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/** The default size of each part, in bytes. */
+	public static final long DEFAULT_PART_SIZE = 32L * 1024 * 1024;
+
+	private final PrecogClient client;
+	private final int parallelism;
+	private final long partSize;
+
+	/**
+	 * Creates a loader that uploads files through {@code client}.
+	 *
+	 * @param client the client used to upload each part
+	 * @param parallelism the most parts uploaded at once
+	 * @param partSize the approximate size of each part, in bytes
+	 */
+	public ParallelFileLoader(PrecogClient client, int parallelism, long partSize) {
+		if (parallelism < 1 || partSize < 1) {
+			throw new IllegalArgumentException("parallelism and partSize must be positive");
+		}
+		this.client = client;
+		this.parallelism = parallelism;
+		this.partSize = partSize;
+	}
+
+	/** Creates a loader for {@code client} with the default settings. */
+	public ParallelFileLoader(PrecogClient client) {
+		this(client, DEFAULT_PARALLELISM, DEFAULT_PART_SIZE);
+	}
+
+	/** Returns the most parts uploaded at once. */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/** Returns the approximate size of each part, in bytes. */
+	public long getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Appends the records in {@code file} to {@code path}, uploading parts of
+	 * the file in parallel.
+	 *
+	 * @param path the path in Precog to ingest the data into
+	 * @param file the data file to ingest
+	 * @param format the format of the data
+	 * @return the combined results of every part
+	 * @throws HttpException if the file can't be read, or if any part fails
+	 * @see PrecogClient#appendAllFromFile(String, File, Format)
+	 */
+	public AppendResult appendAllFromFile(String path, File file, Format format)
+			throws HttpException {
+		final List<Part> parts;
+		try {
+			parts = split(file, format, partSize);
+		} catch (IOException ioe) {
+			throw new HttpException("Failed to read " + file, ioe);
+		}
+		if (parts.size() <= 1) {
+			return client.appendAllFromFile(path, file, format);
+		}
+		return upload(path, file, format, parts);
+	}
+
+	/** A part of a file, sent after the file's header (if any). */
+	static final class Part {
+		final byte[] header;
+		final long position;
+		final long count;
+
+		Part(byte[] header, long position, long count) {
+			this.header = header;
+			this.position = position;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Splits {@code file} into parts of at least {@code partSize} bytes (bar
+	 * the last), each ending on a record boundary. Returns a single part if
+	 * the file can't, or needn't, be split.
+	 */
+	static List<Part> split(File file, Format format, long partSize) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			List<Part> parts = new ArrayList<Part>();
+			if (size <= partSize) {
+				parts.add(new Part(new byte[0], 0L, size));
+			} else if (format instanceof DelimitedFormat) {
+				splitDelimited(channel, (DelimitedFormat) format, partSize, parts);
+			} else if (format == JsonFormat.JSON_STREAM) {
+				splitLines(channel, partSize, parts);
+			} else {
+				parts.add(new Part(new byte[0], 0L, size));
+			}
+			return parts;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Splits a delimited file on unquoted line breaks. This has to read the
+	// whole file, as whether a line break is quoted depends on everything
+	// before it.
+	private static void splitDelimited(FileChannel channel, DelimitedFormat format,
+			long partSize, List<Part> parts) throws IOException {
+		long size = channel.size();
+		char quote = format.getQuote();
+		char escape = format.getEscape();
+		if (quote >= 0x80 || escape >= 0x80) {
+			// Can't be matched a byte at a time in UTF-8.
+			parts.add(new Part(new byte[0], 0L, size));
+			return;
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		byte[] chunk = pool.acquire();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			boolean quoted = false;
+			boolean escaped = false;
+			byte[] header = null;
+			long start = 0;
+			long target = 0;
+			long position = 0;
+			while (position < size) {
+				buffer.clear();
+				int n = channel.read(buffer, position);
+				if (n < 0) {
+					break;
+				}
+				for (int i = 0; i < n; i++) {
+					byte b = chunk[i];
+					if (quoted) {
+						if (escaped) {
+							escaped = false;
+						} else if (b == escape && escape != quote) {
+							escaped = true;
+						} else if (b == quote) {
+							quoted = false;
+						}
+					} else if (b == quote) {
+						quoted = true;
+					} else if (b == '\n') {
+						long end = position + i + 1;
+						if (header == null) {
+							header = read(channel, 0L, (int) end);
+							start = end;
+							target = end + partSize;
+						} else if (end >= target && end < size) {
+							parts.add(new Part(header, start, end - start));
+							start = end;
+							target = end + partSize;
+						}
+					}
+				}
+				position += n;
+			}
+			if (header == null) {
+				// Just a header, no records.
+				parts.add(new Part(new byte[0], 0L, size));
+			} else if (start < size) {
+				parts.add(new Part(header, start, size - start));
+			}
+		} finally {
+			pool.release(chunk);
+		}
+	}
+
+	// Splits a JSON stream on newlines. A newline can't appear inside a JSON
+	// string, so we only need to look near each target offset.
+	private static void splitLines(FileChannel channel, long partSize, List<Part> parts)
+			throws IOException {
+		long size = channel.size();
+		byte[] header = new byte[0];
+		BufferPool pool = BufferPool.getDefault();
+		byte[] chunk = pool.acquire();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			long start = 0;
+			long position = partSize - 1;
+			while (position < size) {
+				buffer.clear();
+				int n = channel.read(buffer, position);
+				if (n < 0) {
+					break;
+				}
+				int i = 0;
+				while (i < n && chunk[i] != '\n') {
+					i++;
+				}
+				if (i == n) {
+					position += n;
+					continue;
+				}
+				long end = position + i + 1;
+				if (end >= size) {
+					break;
+				}
+				parts.add(new Part(header, start, end - start));
+				start = end;
+				position = end + partSize - 1;
+			}
+			if (start < size) {
+				parts.add(new Part(header, start, size - start));
+			}
+		} finally {
+			pool.release(chunk);
+		}
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("File changed while it was being read");
+			}
+		}
+		return buffer.array();
+	}
+
+	private AppendResult upload(final String path, final File file, final Format format,
+			final List<Part> parts) throws HttpException {
+		final AppendResult[] results = new AppendResult[parts.size()];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		// The calling thread uploads parts too, so this can't deadlock on a
+		// busy (or even single-threaded) executor.
+		int workers = Math.min(parallelism, parts.size());
+		final CountDownLatch done = new CountDownLatch(workers - 1);
+		final Runnable worker = new Runnable() {
+			public void run() {
+				int i;
+				while (failure.get() == null && (i = next.getAndIncrement()) < parts.size()) {
+					try {
+						results[i] = client.appendAllFromBody(path,
+								new PartBody(file, parts.get(i)), format);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}
+		};
+
+		Executor executor = client.getExecutor();
+		for (int i = 1; i < workers; i++) {
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							worker.run();
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				done.countDown();
+			}
+		}
+		worker.run();
+		try {
+			done.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, ie); // Stops the other workers.
+			throw new HttpException("Interrupted while uploading " + file, ie);
+		}
+
+		Exception e = failure.get();
+		if (e instanceof HttpException) {
+			throw (HttpException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e != null) {
+			throw new HttpException(e);
+		}
+
+		AppendResult total = new AppendResult();
+		for (AppendResult result : results) {
+			// A part answered with an empty body has no receipt to add.
+			if (result != null) {
+				total.accumulate(result);
+			}
+		}
+		return total;
+	}
+
+	/** The header of a file followed by a region of the file. */
+	private static final class PartBody implements StreamingBody {
+		private final File file;
+		private final Part part;
+
+		PartBody(File file, Part part) {
+			this.file = file;
+			this.part = part;
+		}
+
+		public long getContentLength() {
+			return part.header.length + part.count;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(part.header);
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileTransfer.transfer(in.getChannel(), part.position, part.count, out);
+			} finally {
+				in.close();
+			}
+		}
+
+		public boolean isReplayable() {
+			return true;
+		}
+	}
+}
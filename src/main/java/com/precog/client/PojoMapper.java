@@ -0,0 +1,105 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.precog.json.FromJson;
+import com.precog.json.FromJsonReader;
+import com.precog.json.JsonInput;
+import com.precog.json.ToJson;
+
+/**
+ * Maps the application's own objects to and from JSON: with the codec
+ * generated for a {@link com.precog.json.JsonCodec} class, if there is one,
+ * or else with Gson, by reflection.
+ * <p>
+ * This is the only part of the client that uses Gson. Unless one was given
+ * to the client, the {@code Gson} instance is only created (and Gson's
+ * classes loaded) once an object without a generated codec needs mapping.
+ */
+final class PojoMapper {
+	private volatile Gson gson;
+
+	/** @param gson the Gson to use, or {@code null} for a default one */
+	PojoMapper(Gson gson) {
+		this.gson = gson;
+	}
+
+	Gson gson() {
+		// Racing threads may each create one; any of them will do.
+		Gson gson = this.gson;
+		if (gson == null) {
+			gson = new Gson();
+			this.gson = gson;
+		}
+		return gson;
+	}
+
+	/** Returns the JSON encoding of {@code obj}. */
+	@SuppressWarnings("unchecked")
+	String toJson(Object obj) {
+		ToJson<Object> codec = obj == null ? null :
+				JsonCodecs.getToJson((Class<Object>) obj.getClass());
+		return codec != null ? JsonCodecs.encode(codec, obj) : gson().toJson(obj);
+	}
+
+	/** Returns the instance of {@code klass} encoded by {@code json}. */
+	<T> T fromJson(String json, Class<T> klass) {
+		FromJson<T> codec = JsonCodecs.getFromJson(klass);
+		return codec != null ? codec.deserialize(json) : gson().fromJson(json, klass);
+	}
+
+	/** Reads each row of a query result into an instance of {@code klass}. */
+	<T> FromJsonReader<T> rows(final Class<T> klass) {
+		FromJson<T> codec = JsonCodecs.getFromJson(klass);
+		if (codec != null) {
+			return codec;
+		}
+		return new FromJsonReader<T>() {
+			public T read(JsonInput in) throws IOException {
+				return gson().fromJson(in.nextJson(), klass);
+			}
+		};
+	}
+
+	/** Returns a writer of records to {@code out}. */
+	RecordWriter newRecordWriter(Writer out) {
+		return new RecordWriter(out);
+	}
+
+	/**
+	 * Writes a series of records, each as a top-level value. The Gson
+	 * {@code JsonWriter} is only created if a record needs it.
+	 */
+	final class RecordWriter {
+		private final Writer out;
+		private JsonWriter json;
+
+		private RecordWriter(Writer out) {
+			this.out = out;
+		}
+
+		@SuppressWarnings("unchecked")
+		void write(Object record) throws IOException {
+			ToJson<Object> codec;
+			if (record == null) {
+				out.append("null");
+			} else if ((codec = JsonCodecs.getToJson((Class<Object>) record.getClass())) != null) {
+				codec.write(record, out);
+			} else {
+				if (json == null) {
+					// A single JsonWriter is reused for every record. It must
+					// be lenient, since it sees each record as another
+					// top-level value. This also skips any pretty printing
+					// configured on gson, which would break the newline
+					// delimited format.
+					json = new JsonWriter(out);
+					json.setLenient(true);
+				}
+				gson().toJson(record, record.getClass(), json);
+			}
+		}
+	}
+}
@@ -1,29 +1,45 @@
 package com.precog.client;
 
+import com.precog.client.metrics.InMemoryMetrics;
+import com.precog.client.metrics.MetricsListener;
+import com.precog.client.rest.Backoff;
+import com.precog.client.rest.Compression;
+import com.precog.client.rest.ConnectionPool;
 import com.precog.client.rest.HttpException;
 import com.precog.client.rest.Method;
 import com.precog.client.rest.Path;
 import com.precog.client.rest.Request;
 import com.precog.client.rest.RequestBuilder;
+import com.precog.client.rest.RequestTemplate;
 import com.precog.client.rest.Response;
 import com.precog.client.rest.Rest;
+import com.precog.client.rest.RetryPolicy;
+import com.precog.client.rest.StreamingBody;
+import com.precog.json.FromJsonReader;
+import com.precog.json.JsonTextWriter;
 import com.precog.json.ToJson;
+import com.precog.json.ToJsonWriter;
 
 import com.google.gson.Gson;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonToken;
-import com.google.gson.stream.JsonWriter;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.xml.bind.DatatypeConverter;
@@ -37,12 +53,19 @@ import javax.xml.bind.DatatypeConverter;
  * also create new accounts and get the account details for existing accounts.
  * <p>
  * All methods are blocking, which means that the method returns when the
- * server has replied with the answer.
+ * server has replied with the answer. Non-blocking versions of each method,
+ * which return a {@link java.util.concurrent.CompletableFuture}, are available
+ * from {@link #async()}.
+ * <p>
+ * A client keeps a pool of persistent connections to its end-point, so that
+ * repeated calls don't each pay for a new TCP connection and TLS handshake.
+ * The pool can be sized with {@link #setMaxConnections(int)} and is released
+ * by {@link #close()}.
  *
  * @author Kris Nuttycombe <kris@precog.com>
  * @author Tom Switzer <switzer@precog.com>
  */
-public class PrecogClient {
+public class PrecogClient implements Closeable {
 	private static final Logger logger = Logger.getLogger(PrecogClient.class.getName());
 	
 	static final URL fromHost(String host) {
@@ -73,6 +96,12 @@ public class PrecogClient {
     public static final int API_VERSION = 1;
     
     private static Path FS = new Path("/fs/");
+    
+    // The delays between polls in downloadQueryResults.
+    static final Backoff DOWNLOAD_BACKOFF = QueryPoller.DEFAULT_BACKOFF;
+    
+    // The most request templates kept at once.
+    private static final int MAX_TEMPLATES = 256;
 
     private static class Paths {
     	private static Path service(String serv) {
@@ -85,12 +114,28 @@ public class PrecogClient {
     }
     
     
-    private final Gson gson;
+    final PojoMapper pojos;
     private final URL service;
-    private final Rest rest;
+    final Rest rest;
     private final String accountId;
     private final Path basePath;
 	private final String apiKey;
+	private final AsyncPrecogClient async;
+	
+	private volatile Executor executor;
+	private ExecutorService defaultExecutor;
+	private volatile Compression compression;
+	private volatile MetricsListener metrics;
+	private QueryPoller poller;
+	private volatile QueryCache queryCache;
+	private volatile boolean coalesceQueries = false;
+	final SingleFlight<String, QueryResult> queries =
+			new SingleFlight<String, QueryResult>();
+	final SingleFlight<String, Query> asyncQueries =
+			new SingleFlight<String, Query>();
+	// Least recently used first. Guarded by itself.
+	private final LinkedHashMap<TemplateKey, RequestTemplate> templates =
+			new LinkedHashMap<TemplateKey, RequestTemplate>(16, 0.75f, true);
 	
 
     /**
@@ -100,15 +145,17 @@ public class PrecogClient {
      * @param apiKey API key used to authenticate with Precog
      * @param accountId the account to use as the data owner
      * @param basePath The base path to use for all requests
-     * @param gson An optional Gson object to use for JSON serialization
+     * @param gson An optional Gson object to use for mapping objects to and
+     *             from JSON
      */
     PrecogClient(URL service, String apiKey, String accountId, String basePath, Gson gson) {
         this.service = service;
         this.apiKey = apiKey;
         this.accountId = accountId;
         this.basePath = basePath == null ? new Path("/") : new Path("/" + basePath);
-        this.gson = gson == null ? new Gson() : gson;
-        this.rest = new Rest(service);
+        this.pojos = new PojoMapper(gson);
+        this.rest = new Rest(service, new ConnectionPool());
+        this.async = new AsyncPrecogClient(this);
     }
 
     /**
@@ -300,6 +347,275 @@ public class PrecogClient {
     	return basePath;
     }
     
+    /**
+     * Returns the pool of persistent connections used by this client. This
+     * can be used to inspect how often connections are being reused.
+     */
+    public ConnectionPool getConnectionPool() {
+    	return rest.getConnectionPool();
+    }
+    
+    /**
+     * Sets the maximum number of connections this client will open to its
+     * end-point at any one time. Calls made while all connections are in use
+     * wait for one to become free. The default is
+     * {@link ConnectionPool#DEFAULT_MAX_CONNECTIONS_PER_HOST}.
+     * <p>
+     * If the client is using its default pool of platform threads, then this
+     * also sets the number of threads used to run non-blocking calls.
+     * 
+     * @param maxConnections the maximum number of open connections
+     */
+    public void setMaxConnections(int maxConnections) {
+    	rest.getConnectionPool().setMaxConnectionsPerHost(maxConnections);
+    	synchronized (this) {
+    		if (defaultExecutor instanceof ThreadPoolExecutor) {
+    			resize((ThreadPoolExecutor) defaultExecutor, maxConnections);
+    		}
+    	}
+    }
+    
+    /**
+     * Returns how ingest request bodies are compressed, or {@code null} if
+     * they are sent uncompressed (the default).
+     */
+    public Compression getCompression() {
+    	return compression;
+    }
+    
+    /**
+     * Compresses the bodies of ingest requests (the {@code append} and
+     * {@code upload} methods) with {@code compression}. JSON records usually
+     * compress very well, so this can greatly reduce the bandwidth used by
+     * large appends, at the cost of some CPU. Pass {@code null} to turn
+     * compression off again.
+     * 
+     * @param compression how to compress ingest bodies, or {@code null}
+     */
+    public void setCompression(Compression compression) {
+    	this.compression = compression;
+    }
+    
+    /** Returns the listener told about this client's requests, or {@code null}. */
+    public MetricsListener getMetricsListener() {
+    	return metrics;
+    }
+    
+    /**
+     * Sets the listener told about every request this client makes, and
+     * every append and query poll it completes. Pass {@code null} to stop
+     * reporting metrics (the default).
+     * 
+     * @param metrics the listener to report to, eg. an {@link InMemoryMetrics}
+     */
+    public void setMetricsListener(MetricsListener metrics) {
+    	this.metrics = metrics;
+    	rest.setMetricsListener(metrics);
+    }
+    
+    /** Returns the policy failed requests are retried by, or {@code null}. */
+    public RetryPolicy getRetryPolicy() {
+    	return rest.getRetryPolicy();
+    }
+    
+    /**
+     * Retries requests that fail with a network error or a 502, 503 or 504
+     * status, as allowed by {@code policy}. Queries, deletes and appends of
+     * strings, byte arrays, files and {@code Collection}s of records are
+     * retried. Appends of any other {@code Iterable}, which may only be
+     * walked once, and uploads read from an {@code InputStream} are not.
+     * Pass {@code null} to stop retrying requests (the default).
+     * 
+     * @param policy the policy to retry requests by, eg.
+     *        {@link RetryPolicy#defaults()}
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+    	rest.setRetryPolicy(policy);
+    }
+    
+    /**
+     * Returns a non-blocking view of this client. Calls made through it are
+     * sent by this client's non-blocking HTTP engine, and their responses
+     * are decoded on its {@link #getExecutor() executor}.
+     */
+    public AsyncPrecogClient async() {
+    	return async;
+    }
+    
+    /**
+     * Returns the executor that decodes the responses of this client's
+     * non-blocking calls, and runs its other background work. Unless
+     * one has been set with {@link #setExecutor(Executor)} or
+     * {@link #useVirtualThreads()}, this is a pool of daemon threads, one per
+     * {@link #setMaxConnections(int) connection}.
+     */
+    public Executor getExecutor() {
+    	Executor executor = this.executor;
+    	if (executor == null) {
+    		synchronized (this) {
+    			if (this.executor == null) {
+    				defaultExecutor = newDefaultExecutor(
+    						rest.getConnectionPool().getMaxConnectionsPerHost());
+    				this.executor = defaultExecutor;
+    			}
+    			executor = this.executor;
+    		}
+    	}
+    	return executor;
+    }
+    
+    /**
+     * Sets the executor used to run this client's background work. The
+     * client does not shut down executors it was given.
+     * 
+     * @param executor the executor to run non-blocking calls on
+     */
+    public void setExecutor(Executor executor) {
+    	if (executor == null) {
+    		throw new IllegalArgumentException("executor must not be null");
+    	}
+    	ExecutorService previous;
+    	synchronized (this) {
+    		previous = defaultExecutor;
+    		defaultExecutor = null;
+    		this.executor = executor;
+    	}
+    	if (previous != null) {
+    		previous.shutdown();
+    	}
+    }
+    
+    /**
+     * Runs this client's background work each on a virtual thread of its
+     * own, rather than on its default pool of one platform thread per
+     * connection. This covers the uploads of a {@link ParallelFileLoader},
+     * the flushes of a {@link BatchingAppender}, the
+     * {@link AsyncPrecogClient#queryStream(String, String) queryStream} calls
+     * made through {@link #async()}, and the decoding of the responses of the
+     * others. A waiting call then costs little more than its stack, so many
+     * thousands can be in flight at once; how many talk to the server at a
+     * time is still set by {@link #setMaxConnections(int)}.
+     * <p>
+     * This requires Java 21 or later. The client owns the executor, and shuts
+     * it down when it is closed or replaced.
+     * 
+     * @throws UnsupportedOperationException if the JVM doesn't support
+     *         virtual threads
+     */
+    public void useVirtualThreads() {
+    	ExecutorService executor = VirtualThreads.newExecutor("precog-client-");
+    	ExecutorService previous;
+    	synchronized (this) {
+    		previous = defaultExecutor;
+    		defaultExecutor = executor;
+    		this.executor = executor;
+    	}
+    	if (previous != null) {
+    		previous.shutdown();
+    	}
+    }
+    
+    /**
+     * Returns the cache used by {@link #query(String, String)}, or
+     * {@code null} if query results aren't cached.
+     */
+    public QueryCache getQueryCache() {
+    	return queryCache;
+    }
+    
+    /**
+     * Sets the cache used to answer repeated synchronous queries. Appends,
+     * uploads and deletes made through this client invalidate the cached
+     * results they may affect.
+     * 
+     * @param queryCache the cache to use, or {@code null} to stop caching
+     */
+    public void setQueryCache(QueryCache queryCache) {
+    	this.queryCache = queryCache;
+    }
+    
+    /**
+     * Returns {@code true} if identical concurrent queries share a request.
+     */
+    public boolean isCoalesceQueries() {
+    	return coalesceQueries;
+    }
+    
+    /**
+     * Sets whether identical queries made at the same time share a request.
+     * If so, a call to {@link #query(String, String)} or
+     * {@link #queryAsync(String, String)} made while an identical call (same
+     * path and query) is waiting on the server doesn't make a request of its
+     * own; it waits for the other call and returns the same result, or
+     * throws the same error. This is off by default.
+     * <p>
+     * Shared results are the same {@link QueryResult} object, so callers
+     * must not modify them.
+     * 
+     * @param coalesceQueries whether to share requests between identical queries
+     */
+    public void setCoalesceQueries(boolean coalesceQueries) {
+    	this.coalesceQueries = coalesceQueries;
+    }
+    
+    /**
+     * Returns the {@link QueryPoller} shared by users of this client, creating
+     * it with the default settings the first time it is needed.
+     */
+    public synchronized QueryPoller getQueryPoller() {
+    	if (poller == null) {
+    		poller = new QueryPoller(this);
+    	}
+    	return poller;
+    }
+    
+    /**
+     * Closes the connections held by this client, and stops its default
+     * executor and query poller. Calls that are already running are allowed
+     * to finish, but the client cannot be used to make requests once it has
+     * been closed.
+     * <p>
+     * A client that is never closed still has its idle connections closed
+     * after the pool's {@link ConnectionPool#getIdleTimeout() idle timeout},
+     * but closing it frees them straight away.
+     */
+    public void close() {
+    	synchronized (this) {
+    		if (defaultExecutor != null) {
+    			defaultExecutor.shutdown();
+    		}
+    		if (poller != null) {
+    			poller.close();
+    		}
+    	}
+    	rest.getConnectionPool().close();
+    }
+    
+    private static ThreadPoolExecutor newDefaultExecutor(int threads) {
+    	final AtomicInteger count = new AtomicInteger();
+    	ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+    			60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+    			new ThreadFactory() {
+    				public Thread newThread(Runnable r) {
+    					Thread thread = new Thread(r, "precog-client-" + count.incrementAndGet());
+    					thread.setDaemon(true);
+    					return thread;
+    				}
+    			});
+    	executor.allowCoreThreadTimeOut(true);
+    	return executor;
+    }
+    
+    private static void resize(ThreadPoolExecutor executor, int threads) {
+    	if (threads > executor.getMaximumPoolSize()) {
+    		executor.setMaximumPoolSize(threads);
+    		executor.setCorePoolSize(threads);
+    	} else {
+    		executor.setCorePoolSize(threads);
+    		executor.setMaximumPoolSize(threads);
+    	}
+    }
+    
     
     // ACCOUNTS
     
@@ -320,15 +636,32 @@ public class PrecogClient {
     public static AccountInfo createAccount(URL service, String email, String password)
     		throws HttpException {
         Request r = new RequestBuilder(Method.POST, Paths.ACCOUNTS.append("accounts/"))
-        	.setBody("{ \"email\": \"" + email + "\", \"password\": \"" + password + "\" }")
+        	.setBody(accountJson(email, password))
         	.setHttpsRequired(true)
         	.build();
         Response response = Rest.execute(service, r);
-        Gson gson = new Gson();
-        AccountInfo account0 = gson.fromJson(response.asString(), AccountInfo.class);
+        AccountInfo account0 = Envelopes.decode(response.asString(), Envelopes.ACCOUNT_INFO);
+        if (account0 == null) {
+        	throw new HttpException("No account was returned.");
+        }
         return PrecogClient.describeAccount(service, email, password, account0.getAccountId());
     }
 
+    // The body of a request to create an account.
+    private static String accountJson(String email, String password) {
+    	StringBuilder json = new StringBuilder(64);
+    	try {
+    		new JsonTextWriter(json).beginObject()
+    			.name("email").value(email)
+    			.name("password").value(password)
+    			.endObject();
+    	} catch (IOException ioe) {
+    		// A StringBuilder doesn't throw.
+    		throw new UncheckedIOException(ioe);
+    	}
+    	return json.toString();
+    }
+
     /**
      * Creates a new account ID, accessible by the specified email address and
      * password, or returns the existing account ID. This just calls
@@ -368,8 +701,7 @@ public class PrecogClient {
 			.setHttpsRequired(true)
 			.build();
         String json = Rest.execute(service, request).asString();
-        Gson gson = new Gson();
-        return gson.fromJson(json, AccountInfo.class);
+        return Envelopes.decode(json, Envelopes.ACCOUNT_INFO);
     }
 
     /**
@@ -408,9 +740,20 @@ public class PrecogClient {
      */
     public AppendResult appendAllFromString(String path, String contents, Format format)
     		throws HttpException {
-    	Request request = new RequestBuilder(ingestRequest(path, format))
-    		.setBody(contents).build();
-    	return gson.fromJson(rest.execute(request).asString(), AppendResult.class);
+    	return executeAppend(path, ingestTemplate(path, format).withBody(contents));
+    }
+    
+    // Appends length bytes of contents, starting at offset, without copying.
+    AppendResult appendAllFromBytes(String path, byte[] contents, int offset, int length,
+    		Format format) throws HttpException {
+    	return executeAppend(path,
+    			ingestTemplate(path, format).withBody(contents, offset, length));
+    }
+    
+    // Serializes obj using its generated codec, if it has one, or else this
+    // client's Gson instance.
+    String toJson(Object obj) {
+    	return pojos.toJson(obj);
     }
     
     /**
@@ -436,9 +779,7 @@ public class PrecogClient {
      */
     public AppendResult appendAllFromFile(String path, File file, Format format)
     		throws HttpException {
-    	Request request = new RequestBuilder(ingestRequest(path, format))
-    		.setBody(file).build();
-    	return gson.fromJson(rest.execute(request).asString(), AppendResult.class);
+    	return executeAppend(path, ingestTemplate(path, format).withBody(file));
     }
 
     /**
@@ -457,44 +798,105 @@ public class PrecogClient {
      */
     public AppendResult appendAllFromInputStream(String path, InputStream in, Format format)
     		throws HttpException {
-    	Request request = new RequestBuilder(ingestRequest(path, format))
-    		.setBody(in).build();
-    	return gson.fromJson(rest.execute(request).asString(), AppendResult.class);
+    	return executeAppend(path, ingestTemplate(path, format).withBody(in));
+    }
+    
+    // Appends the records written by body, whose contents are in format.
+    AppendResult appendAllFromBody(String path, StreamingBody body, Format format)
+    		throws HttpException {
+    	return executeAppend(path, ingestTemplate(path, format).withBody(body));
     }
     	
-    // Builds the bulk of an ingest request -- everything but the body.
-    private Request ingestRequest(String path0, Format format) {
+    // Sends an ingest request and reads its result.
+    private AppendResult executeAppend(String path, Request request) throws HttpException {
+    	String json;
+    	try {
+    		json = rest.execute(request).asString();
+    	} finally {
+    		written(path);
+    	}
+    	return appended(path, json);
+    }
+    
+    // Decodes the result of an ingest to path, and reports it to the metrics
+    // listener.
+    AppendResult appended(String path, String json) throws HttpException {
+    	AppendResult result = Envelopes.decode(json, Envelopes.APPEND_RESULT);
+    	MetricsListener metrics = this.metrics;
+    	if (metrics != null && result != null) {
+    		metrics.appendCompleted(path, result.getIngested(), result.getFailed(),
+    				result.getSkipped());
+    	}
+    	return result;
+    }
+    
+    // Returns the template of ingest requests to path0 -- everything but the
+    // body.
+    RequestTemplate ingestTemplate(String path0, Format format) {
+    	Compression compression = this.compression;
+    	TemplateKey key = new TemplateKey(path0, format, compression);
+    	RequestTemplate template = cachedTemplate(key);
+    	if (template == null) {
+    		template = newIngestTemplate(path0, format, compression);
+    		cacheTemplate(key, template);
+    	}
+    	return template;
+    }
+    
+    private RequestTemplate newIngestTemplate(String path0, Format format,
+    		Compression compression) {
     	Path path = Paths.INGEST.append(buildStoragePath(new Path(path0)));
-    	RequestBuilder rb = new RequestBuilder(Method.POST, path)
+    	final RequestBuilder rb = new RequestBuilder(Method.POST, path)
     		.addParam("apiKey", apiKey)
     		.addParam("mode", "batch")
     		.addParam("receipt", "true")
-    		.setContentType(format.getContentType());
+    		.setContentType(format.getContentType())
+    		.setCompression(compression);
     	
-    	final Request request = accountId == null
-    			? rb.build()
-    			: rb.addParam("ownerAccountId", accountId).build();
+    	if (accountId != null) {
+    		rb.addParam("ownerAccountId", accountId);
+    	}
     	
-    	return format.accept(new FormatVisitor<Request>() {
-			public Request visitJsonFormat(JsonFormat format) {
-				return request;
+    	return format.accept(new FormatVisitor<RequestBuilder>() {
+			public RequestBuilder visitJsonFormat(JsonFormat format) {
+				return rb;
 			}
 
-			public Request visitCsvFormat(DelimitedFormat format) {
-				return new RequestBuilder(request)
+			public RequestBuilder visitCsvFormat(DelimitedFormat format) {
+				return rb
 					.addParam("delimiter", "" + format.getDelimiter())
 					.addParam("quote", "" + format.getQuote())
-					.addParam("escape", "" + format.getEscape())
-					.build();
+					.addParam("escape", "" + format.getEscape());
 			}
-    	});
+    	}).buildTemplate();
+    }
+    
+    private RequestTemplate cachedTemplate(TemplateKey key) {
+    	synchronized (templates) {
+    		return templates.get(key);
+    	}
+    }
+    
+    // Remembers a template. Once the cache is full, the template used least
+    // recently is dropped.
+    private void cacheTemplate(TemplateKey key, RequestTemplate template) {
+    	synchronized (templates) {
+    		templates.put(key, template);
+    		if (templates.size() > MAX_TEMPLATES) {
+    			Iterator<TemplateKey> eldest = templates.keySet().iterator();
+    			eldest.next();
+    			eldest.remove();
+    		}
+    	}
     }
 
     /**
-     * Store the object {@code obj} as a record in Precog. It is serialized by
-     * Gson using reflection. If a {@code Gson} object was provided during
-     * construction, then it will be used, otherwise the default Gson
-     * serialization will be used.
+     * Store the object {@code obj} as a record in Precog. If its class is
+     * annotated with {@link com.precog.json.JsonCodec}, it is serialized by
+     * the generated codec. Otherwise it is serialized by Gson using
+     * reflection. If a {@code Gson} object was provided during construction,
+     * then it will be used, otherwise the default Gson serialization will be
+     * used.
      * <p>
      * Note: Calling this method guarantees the object is stored in the Precog
      *       transaction log.
@@ -505,7 +907,7 @@ public class PrecogClient {
      */
     public AppendResult append(String path, Object obj)
     		throws HttpException {
-    	String json = gson.toJson(obj);
+    	String json = toJson(obj);
     	return appendAllFromString(path, json, JsonFormat.JSON_STREAM);
     }
     
@@ -518,8 +920,8 @@ public class PrecogClient {
      */
     public <T> AppendResult appendAll(String path, Iterable<T> coll)
     		throws HttpException {
-    	InputStream in = new JsonStream(new JsonIterator<T>(gson, coll.iterator()));
-    	return appendAllFromInputStream(path, in, JsonFormat.JSON_STREAM);
+    	return appendAllFromBody(path, new JsonStreamBody<T>(pojos, coll),
+    			JsonFormat.JSON_STREAM);
     }
     
     /**
@@ -548,8 +950,37 @@ public class PrecogClient {
      */
     public <T> AppendResult appendAll(String path, Iterable<T> coll, ToJson<T> toJson)
     		throws HttpException {
-    	InputStream in = new JsonStream(new JsonIterator<T>(toJson, coll.iterator()));
-    	return appendAllFromInputStream(path, in, JsonFormat.JSON_STREAM);
+    	return appendAll(path, coll, (ToJsonWriter<T>) toJson);
+    }
+    
+    /**
+     * Store the object {@code obj} as a record in Precog. It is serialized by
+     * {@code toJson}, straight into the request body.
+     * 
+     * @param path The path in the virtual file system to store the record
+     * @param obj The object to serialize to JSON and store in the VFS
+     * @param toJson the serializer for {@code obj}
+     * @throws HttpException if the server sends an unexpected response
+     */
+    public <T> AppendResult append(String path, T obj, ToJsonWriter<T> toJson)
+    		throws HttpException {
+    	return appendAll(path, Collections.singletonList(obj), toJson);
+    }
+    
+    /**
+     * Append a collection of records in Precog. Each record is serialized by
+     * {@code toJson} straight into the request body, so no {@code String} is
+     * created per record.
+     * 
+     * @param path the sub-path to store the records in
+     * @param coll the collection of records to store
+     * @param toJson the serializer for the records
+     * @throws HttpException if the server sends an unexpected response
+     */
+    public <T> AppendResult appendAll(String path, Iterable<T> coll, ToJsonWriter<T> toJson)
+    		throws HttpException {
+    	return appendAllFromBody(path, new JsonStreamBody<T>(toJson, coll),
+    			JsonFormat.JSON_STREAM);
     }
     
     /**
@@ -588,9 +1019,25 @@ public class PrecogClient {
      * @throws HttpException if the server sends an unexpected response
      */
     public void delete(String path) throws HttpException {
+    	try {
+    		rest.execute(deleteRequest(path)).asString();
+    	} finally {
+    		written(path);
+    	}
+    }
+    
+    // Builds the request that deletes the data at path.
+    Request deleteRequest(String path) {
     	Path path0 = Paths.INGEST.append(buildStoragePath(new Path(path)));
-    	rest.execute(new RequestBuilder(Method.DELETE, path0)
-    		.addParam("apiKey", apiKey).build());
+    	return new RequestBuilder(Method.DELETE, path0).addParam("apiKey", apiKey).build();
+    }
+    
+    // Invalidates cached results of queries that may read data written to path.
+    void written(String path) {
+    	QueryCache cache = this.queryCache;
+    	if (cache != null) {
+    		cache.invalidate(service, buildStoragePath(new Path(path)));
+    	}
     }
     
     
@@ -604,22 +1051,59 @@ public class PrecogClient {
      * <p>
      * Not recommended for long-running queries, because if the connection is
      * interrupted, there will be no way to retrieve the results of the query.
+     * <p>
+     * If a {@link #setQueryCache(QueryCache) cache} has been set, results are
+     * returned from it when they can be.
      *
      * @param path relative storage path to query
      * @param q    quirrel query to excecute
      * @return result as Json string
      * @throws HttpException if the server sends an unexpected response
      */
-    public QueryResult query(String path, String q) throws HttpException {
-    	Path path0 = Paths.ANALYTICS.append(buildStoragePath(new Path(path)));
-        Request request = new RequestBuilder(path0)
-        	.addParam("apiKey", apiKey)
-        	.addParam("q", q)
-        	.addParam("format", "detailed")
-        	.build();
-        String json = rest.execute(request).asString();
-        QueryResult result = gson.fromJson(json, QueryResult.class);
-        result.setGson(gson);
+    public QueryResult query(final String path, final String q) throws HttpException {
+    	final QueryCache cache = this.queryCache;
+    	final Path storagePath = buildStoragePath(new Path(path));
+    	QueryResult cached = cached(cache, storagePath, q);
+    	if (cached != null) {
+    		return cached;
+    	}
+    	if (!coalesceQueries) {
+    		return runQuery(path, q, cache, storagePath);
+    	}
+    	return queries.execute(queryKey(storagePath, q), new SingleFlight.Call<QueryResult>() {
+    		public QueryResult call() throws HttpException {
+    			return runQuery(path, q, cache, storagePath);
+    		}
+    	}, new Coalesced(path, q));
+    }
+    
+    private QueryResult runQuery(String path, String q, QueryCache cache, Path storagePath)
+    		throws HttpException {
+        String json = rest.execute(queryRequest(path, q)).asString();
+        return queryResult(q, cache, storagePath, json);
+    }
+    
+    // Identifies the synchronous queries that can share a request.
+    static String queryKey(Path storagePath, String q) {
+    	return storagePath + "\u0000" + q;
+    }
+    
+    // Returns the cached results of q, run against storagePath, if there are
+    // any.
+    QueryResult cached(QueryCache cache, Path storagePath, String q) {
+    	return cache == null ? null : cache.get(service, apiKey, storagePath, q);
+    }
+    
+    // Decodes the results of q, run against storagePath, and caches them.
+    QueryResult queryResult(String q, QueryCache cache, Path storagePath, String json)
+    		throws HttpException {
+        QueryResult result = Envelopes.decodeQueryResult(json, pojos);
+        if (result == null) {
+        	throw new HttpException("No query result was returned.");
+        }
+        if (cache != null && result.succeeded()) {
+        	cache.put(service, apiKey, storagePath, q, result, json);
+        }
         return result;
     }
     
@@ -639,6 +1123,125 @@ public class PrecogClient {
     	return query("", q);
     }
     
+    /**
+     * Executes a synchronous query relative to the specified base path, and
+     * returns a stream that reads the results from the server as they are
+     * iterated. Each row is returned as its JSON encoding.
+     * <p>
+     * This is suited to queries with very large results, since only one row
+     * is held in memory at a time. The returned stream holds on to a
+     * connection until it has been read to the end, or closed.
+     * <p>
+     * For example:
+     * <p>
+     * <pre>
+     * {@code
+     * QueryResultStream<String> rows = precog.queryStream("foo/", "//bar");
+     * try {
+     *     for (String json : rows) {
+     *         System.out.println(json);
+     *     }
+     * } finally {
+     *     rows.close();
+     * }
+     * }
+     * </pre>
+     *
+     * @param path relative storage path to query
+     * @param q    quirrel query to excecute
+     * @return the (unread) results of the query
+     * @throws HttpException if the server sends an unexpected response
+     */
+    public QueryResultStream<String> queryStream(String path, String q) throws HttpException {
+    	return queryStream(path, q, QueryResultStream.JSON_ROWS);
+    }
+    
+    /**
+     * Executes a synchronous query relative to the specified base path, and
+     * returns a stream that decodes each row with {@code rows} as it is
+     * iterated. Rows are read straight from the response, so no JSON string
+     * is created per row (unless {@code rows} is a
+     * {@link com.precog.json.FromJson}).
+     *
+     * @param path relative storage path to query
+     * @param q    quirrel query to excecute
+     * @param rows the decoder for each row
+     * @return the (unread) results of the query
+     * @throws HttpException if the server sends an unexpected response
+     * @see PrecogClient#queryStream(String, String)
+     */
+    public <T> QueryResultStream<T> queryStream(String path, String q, FromJsonReader<T> rows)
+    		throws HttpException {
+    	Response response = rest.execute(queryRequest(path, q));
+    	InputStream data = response.getData();
+    	try {
+    		if (response.getStatusCode() / 100 != 2) {
+    			throw HttpException.unexpectedResponse(response);
+    		}
+    		QueryResultStream<T> stream = new QueryResultStream<T>(data, rows);
+    		data = null;
+    		return stream;
+    	} catch (IOException ioe) {
+    		throw new HttpException(ioe);
+    	} finally {
+    		if (data != null) {
+    			closeQuietly(data);
+    		}
+    	}
+    }
+    
+    /**
+     * Executes a synchronous query relative to the base path, returning a
+     * stream that reads the results from the server as they are iterated.
+     * 
+     * @see PrecogClient#queryStream(String, String)
+     */
+    public QueryResultStream<String> queryStream(String q) throws HttpException {
+    	return queryStream("", q);
+    }
+    
+    /**
+     * Executes a synchronous query relative to the specified base path, and
+     * returns a stream that deserializes each row (using reflection, or the
+     * codec generated for a {@link com.precog.json.JsonCodec} class) to the
+     * class of {@code klass} as it is iterated. Rows are read straight from
+     * the response, without first being turned into JSON strings.
+     *
+     * @param path relative storage path to query
+     * @param q    quirrel query to excecute
+     * @param klass the Class to deserialize each row to
+     * @return the (unread) results of the query
+     * @throws HttpException if the server sends an unexpected response
+     * @see PrecogClient#queryStream(String, String)
+     */
+    public <T> QueryResultStream<T> queryStream(String path, String q, Class<T> klass)
+    		throws HttpException {
+    	return queryStream(path, q, pojos.rows(klass));
+    }
+    
+    // Builds the request for a synchronous query.
+    Request queryRequest(String path, String q) {
+    	TemplateKey key = new TemplateKey(path, null, null);
+    	RequestTemplate template = cachedTemplate(key);
+    	if (template == null) {
+    		Path path0 = Paths.ANALYTICS.append(buildStoragePath(new Path(path)));
+    		template = new RequestBuilder(path0)
+    			.addParam("apiKey", apiKey)
+    			.addParam("format", "detailed")
+    			.buildTemplate();
+    		cacheTemplate(key, template);
+    	}
+    	return template.withParam("q", q);
+    }
+    
+    private static void closeQuietly(InputStream in) {
+    	try {
+    		in.close();
+    	} catch (IOException ioe) {
+    		logger.warning("IOException thrown on close() from HTTP connection.");
+    	}
+    }
+    
     /**
      * Runs an asynchronous query against Precog. An async query is a query
      * that simply returns a Job ID, rather than the query results. You can
@@ -663,6 +1266,16 @@ public class PrecogClient {
      * }
      * </pre>
      * <p>
+     * Rather than polling by hand, the query can be handed to a
+     * {@link QueryPoller}, which polls with backoff and completes a future
+     * once the results are ready:
+     * <p>
+     * <pre>
+     * {@code
+     * CompletableFuture<QueryResult> result = precog.getQueryPoller().poll(query);
+     * }
+     * </pre>
+     * <p>
      * This is ideal for long running queries.
      * 
      * @param path the base path to use in the query
@@ -671,15 +1284,54 @@ public class PrecogClient {
      * @throws HttpException if the server sends an unexpected response
      */
     public Query queryAsync(String path, String q) throws HttpException {
-    	Path prefixPath = basePath.append(new Path(path).stripTrailingSlash());
+    	final Request request = queryAsyncRequest(path, q);
+    	SingleFlight.Call<Query> call = new SingleFlight.Call<Query>() {
+    		public Query call() throws HttpException {
+    			String json = rest.execute(request).asString();
+    			return Envelopes.decode(json, Envelopes.QUERY);
+    		}
+    	};
+    	if (!coalesceQueries) {
+    		return call.call();
+    	}
+    	return asyncQueries.execute(queryAsyncKey(path, q), call, new Coalesced(path, q));
+    }
+    
+    // Builds the request that starts an async query.
+    Request queryAsyncRequest(String path, String q) {
     	Path path0 = Paths.ANALYTICS.append("queries");
-    	Request request = new RequestBuilder(Method.POST, path0)
+    	return new RequestBuilder(Method.POST, path0)
     		.addParam("apiKey", apiKey)
     		.addParam("q", q)
-    		.addParam("prefixPath", prefixPath.toString())
+    		.addParam("prefixPath", prefixPath(path).toString())
     		.build();
-    	String json = rest.execute(request).asString();
-    	return gson.fromJson(json, Query.class);
+    }
+    
+    // Identifies the async queries that can share a request.
+    String queryAsyncKey(String path, String q) {
+    	return prefixPath(path) + "\u0000" + q;
+    }
+    
+    private Path prefixPath(String path) {
+    	return basePath.append(new Path(path).stripTrailingSlash());
+    }
+    
+    // Reports a query that shared another's request to the metrics listener.
+    class Coalesced implements Runnable {
+    	private final String path;
+    	private final String query;
+    	
+    	Coalesced(String path, String query) {
+    		this.path = path;
+    		this.query = query;
+    	}
+    	
+    	public void run() {
+    		MetricsListener metrics = PrecogClient.this.metrics;
+    		if (metrics != null) {
+    			metrics.queryCoalesced(path, query);
+    		}
+    	}
     }
     
     /**
@@ -703,15 +1355,23 @@ public class PrecogClient {
      * @throws HttpException if the server sends an unexpected response
      */
     public QueryResult queryResults(Query query) throws HttpException {
+        return queryResults(query, rest.execute(queryResultsRequest(query)).asString());
+    }
+    
+    // Builds the request that polls for the results of query.
+    Request queryResultsRequest(Query query) {
     	Path path = Paths.ANALYTICS.append("queries/").append(query.getJobId());
-        Request request = new RequestBuilder(path)
+        return new RequestBuilder(path)
         	.addParam("apiKey", apiKey)
         	.build();
-        String json = rest.execute(request).asString();
-        if (json != null && !json.equals("")) {
-        	QueryResult result = gson.fromJson(json, QueryResult.class);
-        	result.setGson(gson);
-        	return result;
+    }
+    
+    // Decodes a poll of query's results, or returns null if they aren't ready.
+    QueryResult queryResults(Query query, String json) throws HttpException {
+        boolean ready = json != null && !json.equals("");
+        polled(query, ready);
+        if (ready) {
+        	return Envelopes.decodeQueryResult(json, pojos);
         } else {
         	return null;
         }
@@ -719,10 +1379,13 @@ public class PrecogClient {
     
     /**
      * Downloads the results of a query to a file. This will block until the
-     * query has completed and results are ready.
+     * query has completed and results are ready, polling with the same
+     * backoff as {@link QueryPoller#DEFAULT_BACKOFF}.
      * <p>
      * This will stream the results to the file, so it is suitable for working
-     * with very large result sets.
+     * with very large result sets. The file holds a JSON array of the rows
+     * exactly as the server sent them: the rows are copied without being
+     * parsed, so numbers keep their full precision.
      * <p>
      * If the query has any errors (or server errors), then {@code false} will
      * be returned. Otherwise, the query results will be downloaded to the File
@@ -734,16 +1397,15 @@ public class PrecogClient {
      * @throws HttpException if there are any network problems or the server returns an unexpected result
      */
     public boolean downloadQueryResults(Query query, File file) throws IOException, HttpException {
-    	Path path = Paths.ANALYTICS.append("queries/").append(query.getJobId());
-        Request request = new RequestBuilder(path)
-        	.addParam("apiKey", apiKey)
-        	.build();
+        Request request = queryResultsRequest(query);
         
         Response response = rest.execute(request);
         try {
+        	int attempt = 0;
 	        while (response.getStatusCode() == 202) {
+	        	polled(query, false);
 	        	try {
-	        		Thread.sleep(100);
+	        		TimeUnit.NANOSECONDS.sleep(DOWNLOAD_BACKOFF.delayNanos(attempt++));
 	        		response.getData().close();
 	        		response = rest.execute(request);
 	        	} catch (InterruptedException ex) {
@@ -756,213 +1418,60 @@ public class PrecogClient {
 	        if (response.getStatusCode() != 200) {
 	        	throw HttpException.unexpectedResponse(response);
 	        }
+	        polled(query, true);
 	    	
-	    	FileWriter writer0 = new FileWriter(file);
+	    	FileOutputStream out = new FileOutputStream(file);
 	    	try {
-		    	JsonWriter writer = new JsonWriter(writer0);
-		    	
-		    	writer.beginArray();
-		    	
-		    	Reader reader0 = new BufferedReader(new InputStreamReader(response.getData()));
-		    	JsonReader reader = new JsonReader(reader0);
-		    	reader.beginObject();
-		    	while (reader.hasNext()) {
-		    		String key = reader.nextName();
-		    		if (key.equals("data")) {
-		    			reader.beginArray();
-		    			while (reader.peek() != JsonToken.END_ARRAY) {
-		    				writeValue(writer, reader);
-		    			}
-		    			reader.endArray();
-		    			
-		    		} else if (key.equals("errors")) {
-		    			reader.beginArray();
-		    			if (reader.peek() != JsonToken.END_ARRAY) {
-		    				return false;
-		    			}
-		    			reader.endArray();
-		    			
-		    		} else if (key.equals("serverErrors")) {
-		    			reader.beginArray();
-		    			if (reader.peek() != JsonToken.END_ARRAY) {
-		    				return false;
-		    			}
-		    			reader.endArray();
-		    			
-		    		} else {
-		    			reader.skipValue();
-		    		}
-		    	}
-		    	reader.endObject();
-		    	
-		    	writer.endArray();
-		    	
+	    		return RawResultCopier.copyData(response.getData(), out.getChannel());
 	    	} finally {
-	    		writer0.close();
+	    		out.close();
 	    	}
         } finally {
         	response.getData().close();
         }
-        
-        return true;
     }
     
-    // Pipes a single JSON value from reader -> writer.
-    private static void writeValue(JsonWriter writer, JsonReader reader) throws IOException {
-    	switch(reader.peek()) {
-    		case BEGIN_ARRAY:
-    			reader.beginArray();
-    			writer.beginArray();
-    			while (reader.peek() != JsonToken.END_ARRAY) {
-    				writeValue(writer, reader);
-    			}
-    			writer.endArray();
-    			reader.endArray();
-    			break;
-    			
-    		case BEGIN_OBJECT:
-    			reader.beginObject();
-    			writer.beginObject();
-    			while (reader.peek() != JsonToken.END_OBJECT) {
-    				writer.name(reader.nextName());
-    				writeValue(writer, reader);
-    			}
-    			writer.endObject();
-    			reader.endObject();
-    			break;
-    			
-
-    		case NULL:
-    			reader.nextNull();
-    			writer.nullValue();
-    			break;
-    			
-    		case BOOLEAN:
-    			writer.value(reader.nextBoolean());
-    			break;
-    			
-    		case NUMBER:
-    			try {
-    				long value = reader.nextLong();
-    				writer.value(value);
-    			} catch (NumberFormatException nfe) {
-    				double value = reader.nextDouble();
-    				writer.value(value);
-    			}
-    			break;
-    			
-    		case STRING:
-    			writer.value(reader.nextString());
-    			break;
-    			
-    		default:
-    			throw new IllegalStateException("Unexpected JSON token found: " + reader.peek());
+    // Reports a poll of query's results to the metrics listener.
+    void polled(Query query, boolean ready) {
+    	MetricsListener metrics = this.metrics;
+    	if (metrics != null) {
+    		metrics.queryPolled(query.getJobId(), ready);
     	}
     }
     
-    private static class JsonIterator<T> implements Iterator<String> {
-    	private ToJson<T> toJson;
-    	private Iterator<T> iter;
-
-		JsonIterator(ToJson<T> toJson, Iterator<T> iter) {
-			this.toJson = toJson;
-			this.iter = iter;
-		}
-		
-		JsonIterator(final Gson gson, Iterator<T> iter) {
-			this.toJson = new ToJson<T>() {
-				public String serialize(T value) {
-					return gson.toJson(value);
-				}
-			};
-			this.iter = iter;
-		}
-		
-		public boolean hasNext() {
-			return iter.hasNext();
-		}
-
-		public String next() {
-			return toJson.serialize(iter.next());
-		}
-
-		public void remove() {
-			iter.remove();			
-		}
-    }
-        
-    /**
-     * Given an {@code Iterator<T>}, this will create a new-line separated
-     * input stream of the JSON serialization of each element in the iterator.
-     */
-    private static class JsonStream extends InputStream {
-    	private static enum Mode {
-    		SEPARATE, INSERT;
-    	}
-    	private static byte[] WS = new byte[] { 10 };
-    	
-    	private Iterator<String> iter;
+    // Identifies the template of the ingest requests to a path in a format,
+    // with a compression, or of the queries of a path (with no format).
+    private static final class TemplateKey {
+    	private final String path;
+    	private final Format format;
+    	private final Compression compression;
     	
-    	private Mode mode = Mode.INSERT;
-    	private int offset = 0;
-    	private byte[] chunk = new byte[0];
-    	
-    	JsonStream(Iterator<String> iter) {
-    		this.iter = iter;
+    	TemplateKey(String path, Format format, Compression compression) {
+    		this.path = path;
+    		this.format = format;
+    		this.compression = compression;
     	}
     	
-    	private boolean isEmpty() throws IOException {
-    		while (offset >= chunk.length && queueNext()) {
-    			// Spin.
+    	@Override
+    	public boolean equals(Object obj) {
+    		if (!(obj instanceof TemplateKey)) {
+    			return false;
     		}
-    		return offset >= chunk.length;
+    		TemplateKey that = (TemplateKey) obj;
+    		return path.equals(that.path) && equal(format, that.format) &&
+    				equal(compression, that.compression);
     	}
     	
-    	private boolean queueNext() throws IOException {
-    		if (iter.hasNext()) {
-    			if (mode == Mode.SEPARATE) {
-    				chunk = WS;
-    			} else {
-	    			String json = iter.next();
-	    			chunk = json.getBytes("UTF-8");
-    			}
-    			offset = 0;
-    			return true;
-    		} else {
-    			return false;
-    		}
+    	@Override
+    	public int hashCode() {
+    		int result = path.hashCode();
+    		result = 31 * result + (format == null ? 0 : format.hashCode());
+    		result = 31 * result + (compression == null ? 0 : compression.hashCode());
+    		return result;
+    	}
+    	
+    	private static boolean equal(Object a, Object b) {
+    		return a == null ? b == null : a.equals(b);
     	}
-
-		public int read() throws IOException {
-			if (isEmpty()) {
-				return -1;
-			} else {
-				return chunk[offset++];
-			}
-		}
-		
-		@Override
-		public int read(byte[] bytes) throws IOException {
-			return read(bytes, 0, bytes.length);
-		}
-		
-		@Override
-		public int read(byte[] bytes, int off, int len) throws IOException {
-			if (len == 0) {
-				return 0;
-			} else if (isEmpty()) {
-				return -1;
-			} else {
-				int pos = off;
-				while (len > 0 && !isEmpty()) {
-					int bs = Math.min(chunk.length - offset, len);
-					System.arraycopy(chunk, offset, bytes, pos, bs);
-					offset += bs;
-					pos += bs;
-					len -= bs;
-				}
-				return pos - off;
-			}
-		}
     }
 }
@@ -0,0 +1,281 @@
+package com.precog.client;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.precog.client.rest.Path;
+
+/**
+ * A client-side cache of the results of synchronous queries, for
+ * applications that run the same queries over and over. Give one to
+ * {@link PrecogClient#setQueryCache(QueryCache)} and
+ * {@link PrecogClient#query(String, String)} will answer repeated queries from
+ * the cache until their results are {@code ttl} old.
+ * <p>
+ * Results are cached by service, API key, path (including the client's base
+ * path) and query text, so one cache can be shared by several clients.
+ * Results of queries that failed are not cached.
+ * <p>
+ * The cache holds at most {@code maxEntries} results, and at most
+ * {@code maxBytes} bytes of them, estimated from the length of their JSON.
+ * Past either limit, the least recently used results are evicted.
+ * <p>
+ * Writes through a client that uses the cache (appends, uploads and
+ * deletes) {@link #invalidate(URL, Path) invalidate} the results of queries
+ * run at the path written to, or at any path above it, since those queries
+ * may read the data written. Writes made any other way aren't seen, so stale
+ * results may be returned until they expire, or are invalidated by hand.
+ * <p>
+ * Cached {@link QueryResult}s are shared by everyone that gets them from the
+ * cache, and so must not be modified.
+ */
+public class QueryCache {
+
+	/** The default time results are cached for, in milliseconds. */
+	public static final long DEFAULT_TTL_MILLIS = 60000L;
+
+	/** The default limit on the number of results cached. */
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	/** The default limit on the size of the results cached, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	// Per-entry overhead, on top of the result's JSON, in bytes.
+	private static final long ENTRY_OVERHEAD = 256L;
+
+	private final long ttlNanos;
+	private final int maxEntries;
+	private final long maxBytes;
+
+	// In access order, so the eldest entry is the least recently used.
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long bytes = 0L;
+	private long hits = 0L;
+	private long misses = 0L;
+	private long evictions = 0L;
+	private long expirations = 0L;
+	private long invalidations = 0L;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param ttl how long results are cached for
+	 * @param unit the unit of {@code ttl}
+	 * @param maxEntries the most results cached at once
+	 * @param maxBytes the most bytes of results cached at once
+	 */
+	public QueryCache(long ttl, TimeUnit unit, int maxEntries, long maxBytes) {
+		if (ttl <= 0 || maxEntries < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("Invalid cache limits.");
+		}
+		this.ttlNanos = unit.toNanos(ttl);
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/** Creates an empty cache with the default limits. */
+	public QueryCache() {
+		this(DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+
+	public long getTtl(TimeUnit unit) {
+		return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the cached result of running {@code query} at {@code path}, or
+	 * {@code null} if there is none or it has expired.
+	 */
+	synchronized QueryResult get(URL service, String apiKey, Path path, String query) {
+		Key key = new Key(service, apiKey, path, query);
+		Entry entry = entries.get(key);
+		if (entry != null && System.nanoTime() - entry.created >= ttlNanos) {
+			remove(key, entry);
+			expirations++;
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result;
+	}
+
+	/**
+	 * Caches {@code result}, whose JSON encoding is {@code json}, as the
+	 * result of running {@code query} at {@code path}.
+	 */
+	synchronized void put(URL service, String apiKey, Path path, String query,
+			QueryResult result, String json) {
+		long size = ENTRY_OVERHEAD + 2L * (json.length() + query.length());
+		if (size > maxBytes) {
+			return;
+		}
+		Key key = new Key(service, apiKey, path, query);
+		Entry previous = entries.put(key, new Entry(result, size, System.nanoTime()));
+		if (previous != null) {
+			bytes -= previous.size;
+		}
+		bytes += size;
+
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (entries.size() > maxEntries || bytes > maxBytes) {
+			Entry entry = eldest.next();
+			eldest.remove();
+			bytes -= entry.size;
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes the results of queries run against {@code service} at
+	 * {@code path}, or at any path above it, whatever the API key. The path is
+	 * the full storage path, as returned by
+	 * {@link PrecogClient#buildStoragePath(Path)}.
+	 *
+	 * @param service the service the path is on
+	 * @param path the storage path data was written to
+	 */
+	public synchronized void invalidate(URL service, Path path) {
+		String service0 = service.toString();
+		String written = withTrailingSlash(path);
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> e = it.next();
+			Key key = e.getKey();
+			if (key.service.equals(service0) && written.startsWith(key.path)) {
+				it.remove();
+				bytes -= e.getValue().size;
+				invalidations++;
+			}
+		}
+	}
+
+	/** Removes every cached result. */
+	public synchronized void invalidateAll() {
+		invalidations += entries.size();
+		entries.clear();
+		bytes = 0L;
+	}
+
+	/** Returns the number of results cached, including any that have expired. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Returns the estimated size of the results cached, in bytes. */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Returns the number of queries answered from the cache. */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/** Returns the number of queries not found (or expired) in the cache. */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/** Returns the fraction of lookups that were hits, or 0 if there were none. */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0.0 : (double) hits / lookups;
+	}
+
+	/** Returns the number of results evicted to stay within the limits. */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/** Returns the number of results dropped because they had expired. */
+	public synchronized long getExpirationCount() {
+		return expirations;
+	}
+
+	/** Returns the number of results removed by invalidation. */
+	public synchronized long getInvalidationCount() {
+		return invalidations;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "QueryCache(entries=" + entries.size() + ", bytes=" + bytes +
+				", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+				", expirations=" + expirations + ", invalidations=" + invalidations + ")";
+	}
+
+	private void remove(Key key, Entry entry) {
+		entries.remove(key);
+		bytes -= entry.size;
+	}
+
+	private static String withTrailingSlash(Path path) {
+		String s = path.absolutize().toString();
+		return s.endsWith("/") ? s : s + "/";
+	}
+
+	private static final class Key {
+		final String service;
+		final String apiKey;
+		final String path;
+		final String query;
+		final int hash;
+
+		Key(URL service, String apiKey, Path path, String query) {
+			this.service = service.toString();
+			this.apiKey = apiKey;
+			this.path = withTrailingSlash(path);
+			this.query = query;
+			int hash = this.service.hashCode();
+			hash = 31 * hash + (apiKey == null ? 0 : apiKey.hashCode());
+			hash = 31 * hash + this.path.hashCode();
+			hash = 31 * hash + query.hashCode();
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return hash == that.hash && service.equals(that.service) &&
+					(apiKey == null ? that.apiKey == null : apiKey.equals(that.apiKey)) &&
+					path.equals(that.path) && query.equals(that.query);
+		}
+	}
+
+	private static final class Entry {
+		final QueryResult result;
+		final long size;
+		final long created;
+
+		Entry(QueryResult result, long size, long created) {
+			this.result = result;
+			this.size = size;
+			this.created = created;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.precog.client;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import com.precog.client.rest.Backoff;
+
+/**
+ * Waits for the results of many async queries at once. Each query given to
+ * {@link #poll(Query)} is polled with
+ * {@link AsyncPrecogClient#queryResults(Query)} until its results are ready,
+ * at which point the returned future completes with them.
+ * <p>
+ * The time between polls of a query grows according to a {@link Backoff},
+ * so long-running queries are polled less and less often. All queries share
+ * a single scheduler thread; the polls themselves are sent by the client's
+ * non-blocking HTTP engine, so a poll in flight holds no thread, and no more
+ * than {@code maxConcurrentPolls} are in flight at once. Polls that come due while the limit
+ * is reached wait their turn.
+ * <p>
+ * A future can be cancelled to stop polling its query, and is completed
+ * exceptionally with a {@link TimeoutException} if its query's results aren't
+ * ready within its timeout. If a poll fails, the future is completed
+ * exceptionally with the error, usually an
+ * {@link com.precog.client.rest.HttpException}.
+ * <p>
+ * {@link PrecogClient#getQueryPoller()} returns a poller shared by all users
+ * of a client.
+ */
+public class QueryPoller implements Closeable {
+
+	/** The default backoff: from 100ms, doubling up to 10s. */
+	public static final Backoff DEFAULT_BACKOFF =
+			Backoff.exponential(100L, 10000L, TimeUnit.MILLISECONDS);
+
+	/** The default limit on polls in flight at once. */
+	public static final int DEFAULT_MAX_CONCURRENT_POLLS = 8;
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final PrecogClient client;
+	private final Backoff backoff;
+	private final int maxConcurrentPolls;
+	private final ScheduledExecutorService scheduler;
+	private final Set<Job> jobs = ConcurrentHashMap.<Job>newKeySet();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue<Job> due = new ArrayDeque<Job>();
+	private int polling = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a poller for queries run by {@code client}.
+	 *
+	 * @param client the client used to poll for results
+	 * @param backoff the delays between polls of a query
+	 * @param maxConcurrentPolls the most polls in flight at once
+	 */
+	public QueryPoller(PrecogClient client, Backoff backoff, int maxConcurrentPolls) {
+		if (backoff == null) {
+			throw new IllegalArgumentException("backoff must not be null");
+		}
+		if (maxConcurrentPolls < 1) {
+			throw new IllegalArgumentException("maxConcurrentPolls must be positive");
+		}
+		this.client = client;
+		this.backoff = backoff;
+		this.maxConcurrentPolls = maxConcurrentPolls;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "precog-query-poller-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Creates a poller for queries run by {@code client} with the defaults. */
+	public QueryPoller(PrecogClient client) {
+		this(client, DEFAULT_BACKOFF, DEFAULT_MAX_CONCURRENT_POLLS);
+	}
+
+	public Backoff getBackoff() {
+		return backoff;
+	}
+
+	public int getMaxConcurrentPolls() {
+		return maxConcurrentPolls;
+	}
+
+	/** Returns the number of queries still being polled. */
+	public int getPending() {
+		return jobs.size();
+	}
+
+	/**
+	 * Polls for the results of {@code query} until they are ready. The first
+	 * poll is made straight away.
+	 *
+	 * @param query the query, as returned by {@link PrecogClient#queryAsync(String)}
+	 * @return a future completed with the query's results
+	 */
+	public CompletableFuture<QueryResult> poll(Query query) {
+		return poll(query, 0L, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Polls for the results of {@code query} until they are ready, or until
+	 * {@code timeout} has passed, in which case the returned future is
+	 * completed exceptionally with a {@link TimeoutException}.
+	 *
+	 * @param query the query, as returned by {@link PrecogClient#queryAsync(String)}
+	 * @param timeout how long to wait for the results, or 0 to wait forever
+	 * @param unit the unit of {@code timeout}
+	 * @return a future completed with the query's results
+	 */
+	public CompletableFuture<QueryResult> poll(final Query query, long timeout, TimeUnit unit) {
+		final Job job = new Job(query);
+		jobs.add(job);
+		job.future.whenComplete(new BiConsumer<QueryResult, Throwable>() {
+			public void accept(QueryResult result, Throwable error) {
+				jobs.remove(job);
+				job.cancelTimers();
+			}
+		});
+		if (closed) {
+			job.future.completeExceptionally(new IllegalStateException("QueryPoller has been closed."));
+			return job.future;
+		}
+		try {
+			if (timeout > 0) {
+				job.timeout = scheduler.schedule(new Runnable() {
+					public void run() {
+						job.future.completeExceptionally(new TimeoutException(
+								"Timed out waiting for results of query " + query.getJobId()));
+					}
+				}, timeout, unit);
+			}
+			scheduler.execute(job);
+		} catch (RejectedExecutionException ree) {
+			job.future.completeExceptionally(ree);
+		}
+		return job.future;
+	}
+
+	/**
+	 * Stops polling. Queries still being polled have their futures cancelled.
+	 */
+	public void close() {
+		closed = true;
+		for (Job job : jobs) {
+			job.future.cancel(false);
+		}
+		scheduler.shutdownNow();
+	}
+
+	// Runs task on the scheduler thread after delayNanos. This throws a
+	// RejectedExecutionException once the poller has been closed.
+	void schedule(Runnable task, long delayNanos) {
+		scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	// Sends job's poll now if there's room, or queues it until there is.
+	private void dispatch(Job job) {
+		lock.lock();
+		try {
+			if (polling >= maxConcurrentPolls) {
+				due.add(job);
+				return;
+			}
+			polling++;
+		} finally {
+			lock.unlock();
+		}
+		job.poll();
+	}
+
+	// Frees up the slot of a poll that has finished, and hands it on to the
+	// next job waiting for one.
+	private void finished() {
+		Job next;
+		lock.lock();
+		try {
+			polling--;
+			do {
+				next = due.poll();
+			} while (next != null && next.future.isDone());
+		} finally {
+			lock.unlock();
+		}
+		if (next != null) {
+			dispatch(next);
+		}
+	}
+
+	private final class Job implements Runnable {
+		final Query query;
+		final CompletableFuture<QueryResult> future = new CompletableFuture<QueryResult>();
+		int attempt = 0;
+		volatile ScheduledFuture<?> next;
+		volatile ScheduledFuture<?> timeout;
+
+		Job(Query query) {
+			this.query = query;
+		}
+
+		// Called on the scheduler thread when the next poll is due.
+		public void run() {
+			if (!future.isDone()) {
+				dispatch(this);
+			}
+		}
+
+		// Sends a poll, which holds a slot until it has been answered.
+		void poll() {
+			if (future.isDone()) {
+				finished();
+				return;
+			}
+			CompletableFuture<QueryResult> polled;
+			try {
+				polled = client.async().queryResults(query);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+				finished();
+				return;
+			}
+			polled.whenComplete(new BiConsumer<QueryResult, Throwable>() {
+				public void accept(QueryResult result, Throwable error) {
+					try {
+						polled(result, error);
+					} finally {
+						finished();
+					}
+				}
+			});
+		}
+
+		// Called on the client's executor once a poll has been answered.
+		private void polled(QueryResult result, Throwable error) {
+			try {
+				if (error != null) {
+					throw error instanceof CompletionException && error.getCause() != null
+							? error.getCause() : error;
+				} else if (result != null) {
+					future.complete(result);
+				} else if (!future.isDone() && !closed) {
+					next = scheduler.schedule(this, backoff.delayNanos(attempt++),
+							TimeUnit.NANOSECONDS);
+				}
+			} catch (RejectedExecutionException ree) {
+				future.completeExceptionally(closed ? new CancellationException() : ree);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}
+
+		void cancelTimers() {
+			ScheduledFuture<?> next = this.next;
+			if (next != null) {
+				next.cancel(false);
+			}
+			ScheduledFuture<?> timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+		}
+	}
+}
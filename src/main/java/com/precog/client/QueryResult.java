@@ -4,7 +4,6 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-import com.google.gson.Gson;
 import com.precog.client.text.TextTag;
 
 /**
@@ -19,17 +18,15 @@ import com.precog.client.text.TextTag;
  */
 public class QueryResult implements Iterable<String> {
 
-	private Gson gson;
-    private List<String> data;
+	private transient PojoMapper pojos;
+    private List<String> data = Collections.emptyList();
     private List<TextTag> errors = Collections.emptyList();
     private List<TextTag> warnings = Collections.emptyList();
     private List<String> serverErrors = Collections.emptyList();
     
-    QueryResult() {
-    }
-    
-	QueryResult(Gson gson, List<String> data, List<TextTag> errors,
+	QueryResult(PojoMapper pojos, List<String> data, List<TextTag> errors,
 			List<TextTag> warnings, List<String> serverErrors) {
+		this.pojos = pojos;
 		this.data = data;
 		this.errors = errors;
 		this.warnings = warnings;
@@ -53,10 +50,6 @@ public class QueryResult implements Iterable<String> {
     public boolean succeeded() {
       return !failed();
     }
-    
-    void setGson(Gson gson) {
-    	this.gson = gson;
-    }
 
     /**
      * Returns the list of errors found in the query. If there are no errors,
@@ -85,14 +78,15 @@ public class QueryResult implements Iterable<String> {
 	
 	/**
 	 * Returns the result in position {@code index}, deserializing it (using
-	 * reflection) to the class of {@code klass}.
+	 * reflection, or the codec generated for a
+	 * {@link com.precog.json.JsonCodec} class) to the class of {@code klass}.
 	 * 
 	 * @param index the index of the result in the set of results
 	 * @param klass the Class to deserialize the result to
 	 * @return an instance of {@code T}
 	 */
 	public <T> T get(int index, Class<T> klass) {
-		return gson.fromJson(get(index), klass);
+		return pojos.fromJson(get(index), klass);
 	}
 
 	/**
@@ -0,0 +1,229 @@
+package com.precog.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.precog.client.text.TextTag;
+import com.precog.json.FromJsonReader;
+import com.precog.json.JsonInput;
+import com.precog.json.JsonTextReader;
+
+/**
+ * The result of a query, read incrementally from the server's response.
+ * <p>
+ * Unlike {@link QueryResult}, which holds the entire result set in memory,
+ * a {@code QueryResultStream} parses one row at a time straight off the
+ * HTTP connection as it is iterated, so memory use doesn't depend on the
+ * size of the result. The flip side is that it can only be iterated once,
+ * and that it holds on to a connection until it has been read to the end or
+ * {@link #close() closed}.
+ * <p>
+ * Errors and warnings are read as they are found in the response. If the
+ * server sends them after the data, then they are only available once
+ * iteration has finished (or the stream has been closed), so
+ * {@link #failed()} should be checked after reading the rows.
+ * <p>
+ * Rows are decoded by a {@link FromJsonReader} straight from the response,
+ * so typed rows are read without first being turned into JSON strings.
+ *
+ * @param <T> the type of each row
+ * @see PrecogClient#queryStream(String, String)
+ * @see PrecogClient#queryStream(String, String, FromJsonReader)
+ */
+public class QueryResultStream<T> implements Iterator<T>, Iterable<T>, Closeable {
+	private static final Logger logger = Logger.getLogger(QueryResultStream.class.getName());
+
+	/** Reads each row as its JSON encoding. */
+	static final FromJsonReader<String> JSON_ROWS = new FromJsonReader<String>() {
+		public String read(JsonInput in) throws IOException {
+			return in.nextJson();
+		}
+	};
+
+	private final InputStream data;
+	private final JsonTextReader reader;
+	private final FromJsonReader<T> rows;
+
+	private List<TextTag> errors = Collections.emptyList();
+	private List<TextTag> warnings = Collections.emptyList();
+	private List<String> serverErrors = Collections.emptyList();
+
+	private boolean started = false;
+	private boolean inData = false;
+	private boolean closed = false;
+	private boolean iterated = false;
+
+	QueryResultStream(InputStream data, FromJsonReader<T> rows) throws IOException {
+		this.data = data;
+		this.reader = new JsonTextReader(new InputStreamReader(data, "UTF-8"));
+		this.rows = rows;
+	}
+
+	/**
+	 * Returns {@code true} if the query did not execute successfully, based on
+	 * the errors read so far.
+	 *
+	 * @see QueryResult#failed()
+	 */
+	public boolean failed() {
+		return errors.size() > 0 || serverErrors.size() > 0;
+	}
+
+	/** Returns {@code true} if no errors have been read so far. */
+	public boolean succeeded() {
+		return !failed();
+	}
+
+	/** Returns the errors found in the query so far. */
+	public List<TextTag> getErrors() {
+		return errors;
+	}
+
+	/** Returns the warnings for the query read so far. */
+	public List<TextTag> getWarnings() {
+		return warnings;
+	}
+
+	/** Returns the server errors read so far. */
+	public List<String> getServerErrors() {
+		return serverErrors;
+	}
+
+	/**
+	 * Returns this stream as an {@code Iterator}. As the rows are read from
+	 * the network, this may only be called once.
+	 */
+	public Iterator<T> iterator() {
+		if (iterated) {
+			throw new IllegalStateException("A QueryResultStream can only be iterated once.");
+		}
+		iterated = true;
+		return this;
+	}
+
+	/**
+	 * Returns the rows as a sequential {@code Stream}. Closing the returned
+	 * stream closes this result.
+	 */
+	public Stream<T> stream() {
+		Spliterator<T> split = Spliterators.spliteratorUnknownSize(iterator(),
+				Spliterator.ORDERED);
+		return StreamSupport.stream(split, false).onClose(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		try {
+			if (advance()) {
+				return true;
+			}
+			finish();
+			return false;
+		} catch (IOException ioe) {
+			close();
+			throw new UncheckedIOException(ioe);
+		} catch (RuntimeException re) {
+			close();
+			throw re;
+		}
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			return rows.read(reader);
+		} catch (IOException ioe) {
+			close();
+			throw new UncheckedIOException(ioe);
+		} catch (RuntimeException re) {
+			close();
+			throw re;
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops reading the result and releases the connection. Once the result
+	 * has been read to the end, this is done automatically.
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			try {
+				data.close();
+			} catch (IOException ioe) {
+				logger.warning("IOException thrown on close() from HTTP connection.");
+			}
+		}
+	}
+
+	// Moves the reader to the next row of data, reading any other fields that
+	// come first. Returns false if there are no more rows.
+	private boolean advance() throws IOException {
+		if (!started) {
+			started = true;
+			reader.beginObject();
+		}
+		if (inData) {
+			if (reader.hasNext()) {
+				return true;
+			}
+			reader.endArray();
+			inData = false;
+		}
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if (key.equals("data")) {
+				reader.beginArray();
+				inData = true;
+				if (reader.hasNext()) {
+					return true;
+				}
+				reader.endArray();
+				inData = false;
+			} else if (key.equals("errors")) {
+				errors = readList(Envelopes.TEXT_TAGS);
+			} else if (key.equals("warnings")) {
+				warnings = readList(Envelopes.TEXT_TAGS);
+			} else if (key.equals("serverErrors")) {
+				serverErrors = readList(Envelopes.STRINGS);
+			} else {
+				reader.skipValue();
+			}
+		}
+		return false;
+	}
+
+	// Reads the end of the response, then releases the connection.
+	private void finish() throws IOException {
+		reader.endObject();
+		close();
+	}
+
+	private <A> List<A> readList(FromJsonReader<List<A>> list) throws IOException {
+		return Collections.unmodifiableList(list.read(reader));
+	}
+}
@@ -0,0 +1,250 @@
+package com.precog.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.precog.client.rest.BufferPool;
+
+/**
+ * Copies the {@code data} array of a query result to a channel byte for
+ * byte, without parsing the rows in it. The result object is only scanned
+ * far enough to find where each value starts and ends: rows are neither
+ * decoded nor re-encoded, so numbers keep their exact text and a large
+ * download costs little more than the I/O.
+ * <p>
+ * Only the structure of the result is checked, not the syntax of the rows;
+ * a malformed row is copied as is.
+ */
+final class RawResultCopier {
+
+	private static final byte[] EMPTY_ARRAY = { '[', ']' };
+
+	private final InputStream in;
+	private final byte[] buf;
+	private int pos = 0;
+	private int limit = 0;
+
+	// While copying, the bytes from copyFrom up to pos still need writing.
+	private WritableByteChannel out = null;
+	private int copyFrom = 0;
+
+	private RawResultCopier(InputStream in, byte[] buf) {
+		this.in = in;
+		this.buf = buf;
+	}
+
+	/**
+	 * Copies the {@code data} array of the query result read from {@code in}
+	 * to {@code out}; if there is no {@code data}, an empty array is written.
+	 * Returns {@code false}, without reading any further, as soon as a
+	 * non-empty {@code errors} or {@code serverErrors} array is found.
+	 *
+	 * @param in the JSON encoded query result
+	 * @param out the channel to copy the data array to
+	 * @return {@code true} if the query succeeded
+	 * @throws IOException if reading or writing fails, or the result is not a
+	 *         JSON object
+	 */
+	static boolean copyData(InputStream in, WritableByteChannel out) throws IOException {
+		BufferPool pool = BufferPool.getDefault();
+		byte[] buf = pool.acquire();
+		try {
+			return new RawResultCopier(in, buf).copyData(out);
+		} finally {
+			pool.release(buf);
+		}
+	}
+
+	private boolean copyData(WritableByteChannel channel) throws IOException {
+		boolean copied = false;
+		expect(nextNonSpace(), '{');
+		int c = nextNonSpace();
+		while (c != '}') {
+			expect(c, '"');
+			String key = readKey();
+			expect(nextNonSpace(), ':');
+			c = nextNonSpace();
+			if (key.equals("data")) {
+				expect(c, '[');
+				out = channel;
+				copyFrom = pos - 1;
+				skipContainer();
+				flush(pos);
+				out = null;
+				copied = true;
+			} else if (key.equals("errors") || key.equals("serverErrors")) {
+				if (c == '[') {
+					if (nextNonSpace() != ']') {
+						return false;
+					}
+				} else {
+					skipValue(c);
+				}
+			} else {
+				skipValue(c);
+			}
+
+			c = nextNonSpace();
+			if (c == ',') {
+				c = nextNonSpace();
+			} else if (c != '}') {
+				throw syntaxError(c, "',' or '}'");
+			}
+		}
+		if (!copied) {
+			write(channel, EMPTY_ARRAY, 0, EMPTY_ARRAY.length);
+		}
+		return true;
+	}
+
+	// Reads the rest of a string whose opening quote has been read, and
+	// returns it with any escapes left as they are.
+	private String readKey() throws IOException {
+		ByteArrayOutputStream key = new ByteArrayOutputStream(16);
+		boolean escaped = false;
+		while (true) {
+			int c = next();
+			if (escaped) {
+				escaped = false;
+			} else if (c == '\\') {
+				escaped = true;
+			} else if (c == '"') {
+				return key.toString("UTF-8");
+			}
+			key.write(c);
+		}
+	}
+
+	// Skips the value starting with c, which has already been read.
+	private void skipValue(int c) throws IOException {
+		if (c == '{' || c == '[') {
+			skipContainer();
+		} else if (c == '"') {
+			skipString();
+		} else {
+			// A number, true, false or null: runs up to the next delimiter.
+			while (true) {
+				if (pos == limit && !fill()) {
+					return;
+				}
+				byte b = buf[pos];
+				if (b == ',' || b == '}' || b == ']' || isSpace(b)) {
+					return;
+				}
+				pos++;
+			}
+		}
+	}
+
+	private void skipString() throws IOException {
+		boolean escaped = false;
+		while (true) {
+			int c = next();
+			if (escaped) {
+				escaped = false;
+			} else if (c == '\\') {
+				escaped = true;
+			} else if (c == '"') {
+				return;
+			}
+		}
+	}
+
+	// Skips to the end of the array or object whose opening bracket has just
+	// been read. This is where a download spends its time, so it scans the
+	// buffer directly.
+	private void skipContainer() throws IOException {
+		int depth = 1;
+		boolean inString = false;
+		boolean escaped = false;
+		while (true) {
+			if (pos == limit && !fill()) {
+				throw new EOFException("Unexpected end of query result.");
+			}
+			byte[] buf = this.buf;
+			int end = limit;
+			for (int i = pos; i < end; i++) {
+				byte b = buf[i];
+				if (inString) {
+					if (escaped) {
+						escaped = false;
+					} else if (b == '\\') {
+						escaped = true;
+					} else if (b == '"') {
+						inString = false;
+					}
+				} else if (b == '"') {
+					inString = true;
+				} else if (b == '[' || b == '{') {
+					depth++;
+				} else if ((b == ']' || b == '}') && --depth == 0) {
+					pos = i + 1;
+					return;
+				}
+			}
+			pos = end;
+		}
+	}
+
+	private int nextNonSpace() throws IOException {
+		int c;
+		do {
+			c = next();
+		} while (isSpace(c));
+		return c;
+	}
+
+	private int next() throws IOException {
+		if (pos == limit && !fill()) {
+			throw new EOFException("Unexpected end of query result.");
+		}
+		return buf[pos++] & 0xFF;
+	}
+
+	// Refills the buffer, first writing out anything being copied. Returns
+	// false at the end of the input.
+	private boolean fill() throws IOException {
+		flush(limit);
+		int n;
+		do {
+			n = in.read(buf, 0, buf.length);
+		} while (n == 0);
+		pos = 0;
+		limit = Math.max(n, 0);
+		return n > 0;
+	}
+
+	private void flush(int end) throws IOException {
+		if (out != null && end > copyFrom) {
+			write(out, buf, copyFrom, end - copyFrom);
+		}
+		copyFrom = 0;
+	}
+
+	private static void write(WritableByteChannel out, byte[] bytes, int off, int len)
+			throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(bytes, off, len);
+		while (bb.hasRemaining()) {
+			out.write(bb);
+		}
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static void expect(int c, char expected) throws IOException {
+		if (c != expected) {
+			throw syntaxError(c, "'" + expected + "'");
+		}
+	}
+
+	private static IOException syntaxError(int c, String expected) {
+		return new IOException("Malformed query result: expected " + expected +
+				" but found '" + (char) c + "'.");
+	}
+}
@@ -0,0 +1,139 @@
+package com.precog.client;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import com.precog.client.rest.HttpException;
+
+/**
+ * Runs at most one call per key at a time: a caller that asks for a key
+ * while a call for it is already running waits for that call and gets its
+ * result (or error), rather than making a call of its own. Once a call has
+ * finished, the next caller for its key starts a new one.
+ */
+final class SingleFlight<K, V> {
+
+	/** A blocking call whose result can be shared. */
+	static interface Call<V> {
+		public V call() throws HttpException;
+	}
+
+	/** A non-blocking call whose result can be shared. */
+	static interface AsyncCall<V> {
+		public CompletableFuture<V> call();
+	}
+
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight =
+			new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+	/**
+	 * Returns the result of {@code call}, or of the call already running for
+	 * {@code key}, if there is one; in that case {@code shared} is run first.
+	 */
+	V execute(K key, Call<V> call, Runnable shared) throws HttpException {
+		CompletableFuture<V> mine = new CompletableFuture<V>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			shared.run();
+			return await(running);
+		}
+		try {
+			V result = call.call();
+			mine.complete(result);
+			return result;
+		} catch (HttpException ex) {
+			mine.completeExceptionally(ex);
+			throw ex;
+		} catch (RuntimeException ex) {
+			mine.completeExceptionally(ex);
+			throw ex;
+		} catch (Error err) {
+			mine.completeExceptionally(err);
+			throw err;
+		} finally {
+			inFlight.remove(key, mine);
+		}
+	}
+
+	/**
+	 * Returns a future completed with the result of {@code call}, or of the
+	 * call already running for {@code key}, if there is one; in that case
+	 * {@code shared} is run first. Calls started here are shared with callers
+	 * of {@link #execute(Object, Call, Runnable)}, and vice versa.
+	 */
+	CompletableFuture<V> submit(final K key, AsyncCall<V> call, Runnable shared) {
+		final CompletableFuture<V> mine = new CompletableFuture<V>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			shared.run();
+			return copy(running);
+		}
+		CompletableFuture<V> result;
+		try {
+			result = call.call();
+		} catch (RuntimeException ex) {
+			result = new CompletableFuture<V>();
+			result.completeExceptionally(ex);
+		}
+		result.whenComplete(new BiConsumer<V, Throwable>() {
+			public void accept(V value, Throwable error) {
+				inFlight.remove(key, mine);
+				if (error == null) {
+					mine.complete(value);
+				} else {
+					mine.completeExceptionally(error instanceof CompletionException
+							&& error.getCause() != null ? error.getCause() : error);
+				}
+			}
+		});
+		return copy(mine);
+	}
+
+	/** Returns the number of calls running. */
+	int size() {
+		return inFlight.size();
+	}
+
+	// Returns a future that completes with running, so a caller cancelling
+	// its own future doesn't cancel the call for everyone.
+	private static <V> CompletableFuture<V> copy(CompletableFuture<V> running) {
+		final CompletableFuture<V> copy = new CompletableFuture<V>();
+		running.whenComplete(new BiConsumer<V, Throwable>() {
+			public void accept(V value, Throwable error) {
+				if (error == null) {
+					copy.complete(value);
+				} else {
+					copy.completeExceptionally(error);
+				}
+			}
+		});
+		return copy;
+	}
+
+	// Waits for another thread's call. Its errors are wrapped, so each
+	// waiter gets its own stack trace.
+	private V await(CompletableFuture<V> running) throws HttpException {
+		try {
+			return running.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new HttpException(new InterruptedIOException(
+					"Interrupted while waiting for a shared request."));
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof HttpException) {
+				throw new HttpException(cause.getMessage(), cause);
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new HttpException(cause);
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import com.precog.client.rest.BufferPool;
+
+/**
+ * A {@code Writer} that encodes characters as UTF-8 directly into a buffer
+ * borrowed from a {@link BufferPool}, rather than going through a
+ * {@code CharsetEncoder} or {@code String.getBytes}.
+ * <p>
+ * The buffer is only handed to the underlying stream once it is completely
+ * full (or when this writer is flushed or closed), so a stream that
+ * special-cases writes of an entire buffer, like the chunked request body
+ * stream, can send it on without copying it. Unpaired surrogates are written
+ * as {@code '?'}, like {@code String.getBytes} does.
+ * <p>
+ * Closing this writer returns its buffer to the pool, but does not close the
+ * underlying stream.
+ */
+final class Utf8Writer extends Writer {
+	private final OutputStream out;
+	private final BufferPool pool;
+	private byte[] buffer;
+	private int count = 0;
+	private char highSurrogate = 0;
+
+	Utf8Writer(OutputStream out) {
+		this(out, BufferPool.getDefault());
+	}
+
+	Utf8Writer(OutputStream out, BufferPool pool) {
+		this.out = out;
+		this.pool = pool;
+		this.buffer = pool.acquire();
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		encode((char) c);
+	}
+
+	@Override
+	public void write(char[] chars, int off, int len) throws IOException {
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+			// Fast path for runs of ASCII.
+			if (highSurrogate == 0) {
+				byte[] buf = buffer;
+				int pos = count;
+				int stop = Math.min(end, i + buf.length - pos);
+				char c;
+				while (i < stop && (c = chars[i]) < 0x80) {
+					buf[pos++] = (byte) c;
+					i++;
+				}
+				count = pos;
+				if (pos == buf.length) {
+					flushBuffer();
+				}
+				if (i == end) {
+					break;
+				}
+			}
+			encode(chars[i++]);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+			if (highSurrogate == 0) {
+				byte[] buf = buffer;
+				int pos = count;
+				int stop = Math.min(end, i + buf.length - pos);
+				char c;
+				while (i < stop && (c = str.charAt(i)) < 0x80) {
+					buf[pos++] = (byte) c;
+					i++;
+				}
+				count = pos;
+				if (pos == buf.length) {
+					flushBuffer();
+				}
+				if (i == end) {
+					break;
+				}
+			}
+			encode(str.charAt(i++));
+		}
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if (csq == null) {
+			write("null");
+		} else if (csq instanceof String) {
+			write((String) csq);
+		} else {
+			for (int i = 0, len = csq.length(); i < len; i++) {
+				encode(csq.charAt(i));
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public Writer append(CharSequence csq, int start, int end) throws IOException {
+		return append(csq == null ? "null" : csq.subSequence(start, end));
+	}
+
+	@Override
+	public Writer append(char c) throws IOException {
+		encode(c);
+		return this;
+	}
+
+	/**
+	 * Writes out any buffered bytes and flushes the underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			flushBuffer();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes out any buffered bytes and returns the buffer to the pool. The
+	 * underlying stream is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			if (highSurrogate != 0) {
+				highSurrogate = 0;
+				put((byte) '?');
+			}
+			if (count > 0) {
+				flushBuffer();
+			}
+		} finally {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	private void encode(char c) throws IOException {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				put((byte) (0xF0 | (cp >> 18)));
+				put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				put((byte) (0x80 | (cp & 0x3F)));
+				return;
+			}
+			put((byte) '?');
+		}
+
+		if (c < 0x80) {
+			put((byte) c);
+		} else if (c < 0x800) {
+			put((byte) (0xC0 | (c >> 6)));
+			put((byte) (0x80 | (c & 0x3F)));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			put((byte) '?');
+		} else {
+			put((byte) (0xE0 | (c >> 12)));
+			put((byte) (0x80 | ((c >> 6) & 0x3F)));
+			put((byte) (0x80 | (c & 0x3F)));
+		}
+	}
+
+	private void put(byte b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = b;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, count);
+		count = 0;
+	}
+}
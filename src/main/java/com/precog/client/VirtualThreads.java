@@ -0,0 +1,66 @@
+package com.precog.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that run each task on a virtual thread of its own. The
+ * client is built for Java 8, so the Java 21 API is reached by reflection,
+ * and is only looked up the first time it's needed.
+ */
+final class VirtualThreads {
+	private static volatile Boolean supported;
+
+	private VirtualThreads() {
+	}
+
+	/** Returns true if this JVM has virtual threads (Java 21 or later). */
+	static boolean isSupported() {
+		Boolean supported = VirtualThreads.supported;
+		if (supported == null) {
+			try {
+				Thread.class.getMethod("ofVirtual");
+				supported = Boolean.TRUE;
+			} catch (NoSuchMethodException nsme) {
+				supported = Boolean.FALSE;
+			}
+			VirtualThreads.supported = supported;
+		}
+		return supported;
+	}
+
+	/**
+	 * Returns an executor that starts a new virtual thread, named
+	 * {@code prefix} followed by a counter, for every task.
+	 *
+	 * @throws UnsupportedOperationException if virtual threads aren't
+	 *         supported by this JVM
+	 */
+	static ExecutorService newExecutor(String prefix) {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException(
+					"Virtual threads require Java 21 or later, but this is Java " +
+					System.getProperty("java.version"));
+		}
+		try {
+			// Thread.ofVirtual().name(prefix, 1).factory(), looked up on the
+			// public interfaces, as the builder's own class isn't public.
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtual = ofVirtual.getMethod("name", String.class, long.class)
+					.invoke(virtual, prefix, 1L);
+			ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+			Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+			return (ExecutorService) perTask.invoke(null, factory);
+		} catch (InvocationTargetException ite) {
+			throw new IllegalStateException("Unable to create virtual threads", ite.getCause());
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException("Unable to create virtual threads", roe);
+		}
+	}
+}
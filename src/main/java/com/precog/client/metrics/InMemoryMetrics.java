@@ -0,0 +1,375 @@
+package com.precog.client.metrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsListener} that keeps running totals in memory: per service
+ * request counts, retries, status codes, bytes sent and received, and a
+ * latency histogram, as well as append, query poll and coalesced query totals.
+ * <p>
+ * Recording an event never takes a lock (bar the first time a service or
+ * status code is seen), so this is cheap enough to leave on in production.
+ * {@link #snapshot()} reads the current totals without stopping writers;
+ * as totals are read one at a time, a snapshot taken while requests are in
+ * flight may be off by the odd in-progress event.
+ * <p>
+ * Latencies are counted in power-of-two buckets of microseconds, so
+ * percentiles are approximate: they are reported as the upper bound of the
+ * bucket they fall in, which is within a factor of 2 of the real value.
+ */
+public class InMemoryMetrics implements MetricsListener {
+
+	// Bucket i holds latencies in [2^(i-1), 2^i) microseconds; bucket 0 holds
+	// latencies under 1us, the last everything from about 2 days on.
+	private static final int BUCKETS = 40;
+
+	private final ConcurrentMap<String, ServiceMetrics> services =
+			new ConcurrentHashMap<String, ServiceMetrics>();
+	private final LongAdder appends = new LongAdder();
+	private final LongAdder recordsIngested = new LongAdder();
+	private final LongAdder recordsFailed = new LongAdder();
+	private final LongAdder recordsSkipped = new LongAdder();
+	private final LongAdder queryPolls = new LongAdder();
+	private final LongAdder queryPollsReady = new LongAdder();
+	private final LongAdder queriesCoalesced = new LongAdder();
+
+	public void requestCompleted(String service, String method, int statusCode,
+			long latencyNanos, long bytesSent) {
+		ServiceMetrics metrics = service(service);
+		metrics.requests.increment();
+		metrics.bytesSent.add(bytesSent);
+		metrics.latency.record(latencyNanos);
+		LongAdder count = metrics.statusCodes.get(statusCode);
+		if (count == null) {
+			LongAdder added = new LongAdder();
+			count = metrics.statusCodes.putIfAbsent(statusCode, added);
+			if (count == null) {
+				count = added;
+			}
+		}
+		count.increment();
+	}
+
+	public void requestFailed(String service, String method, long latencyNanos,
+			IOException error) {
+		ServiceMetrics metrics = service(service);
+		metrics.failures.increment();
+		metrics.latency.record(latencyNanos);
+	}
+
+	public void responseRead(String service, long bytesReceived) {
+		service(service).bytesReceived.add(bytesReceived);
+	}
+
+	public void appendCompleted(String path, int ingested, int failed, int skipped) {
+		appends.increment();
+		recordsIngested.add(ingested);
+		recordsFailed.add(failed);
+		recordsSkipped.add(skipped);
+	}
+
+	public void queryPolled(String jobId, boolean ready) {
+		queryPolls.increment();
+		if (ready) {
+			queryPollsReady.increment();
+		}
+	}
+
+	public void queryCoalesced(String path, String query) {
+		queriesCoalesced.increment();
+	}
+
+	public void requestRetried(String service, String method, int attempt, int statusCode) {
+		service(service).retries.increment();
+	}
+
+	/** Returns a copy of the current totals. */
+	public Snapshot snapshot() {
+		Map<String, ServiceSnapshot> copy = new TreeMap<String, ServiceSnapshot>();
+		for (Map.Entry<String, ServiceMetrics> e : services.entrySet()) {
+			copy.put(e.getKey(), e.getValue().snapshot());
+		}
+		return new Snapshot(Collections.unmodifiableMap(copy), appends.sum(),
+				recordsIngested.sum(), recordsFailed.sum(), recordsSkipped.sum(),
+				queryPolls.sum(), queryPollsReady.sum(), queriesCoalesced.sum());
+	}
+
+	private ServiceMetrics service(String service) {
+		ServiceMetrics metrics = services.get(service);
+		if (metrics == null) {
+			ServiceMetrics added = new ServiceMetrics();
+			metrics = services.putIfAbsent(service, added);
+			if (metrics == null) {
+				metrics = added;
+			}
+		}
+		return metrics;
+	}
+
+	private static final class ServiceMetrics {
+		final LongAdder requests = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final LongAdder retries = new LongAdder();
+		final LongAdder bytesSent = new LongAdder();
+		final LongAdder bytesReceived = new LongAdder();
+		final ConcurrentMap<Integer, LongAdder> statusCodes =
+				new ConcurrentHashMap<Integer, LongAdder>();
+		final Histogram latency = new Histogram();
+
+		ServiceSnapshot snapshot() {
+			Map<Integer, Long> codes = new TreeMap<Integer, Long>();
+			for (Map.Entry<Integer, LongAdder> e : statusCodes.entrySet()) {
+				codes.put(e.getKey(), e.getValue().sum());
+			}
+			return new ServiceSnapshot(requests.sum(), failures.sum(), retries.sum(),
+					bytesSent.sum(),
+					bytesReceived.sum(), Collections.unmodifiableMap(codes),
+					latency.snapshot());
+		}
+	}
+
+	private static final class Histogram {
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+		Histogram() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			long micros = Math.max(nanos, 0L) / 1000;
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+			buckets[bucket].increment();
+			sum.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		LatencySnapshot snapshot() {
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+			}
+			return new LatencySnapshot(counts, sum.sum(), max.get());
+		}
+	}
+
+	/** The totals recorded by an {@link InMemoryMetrics} at some instant. */
+	public static final class Snapshot {
+		private final Map<String, ServiceSnapshot> services;
+		private final long appends;
+		private final long recordsIngested;
+		private final long recordsFailed;
+		private final long recordsSkipped;
+		private final long queryPolls;
+		private final long queryPollsReady;
+		private final long queriesCoalesced;
+
+		Snapshot(Map<String, ServiceSnapshot> services, long appends, long recordsIngested,
+				long recordsFailed, long recordsSkipped, long queryPolls, long queryPollsReady,
+				long queriesCoalesced) {
+			this.services = services;
+			this.appends = appends;
+			this.recordsIngested = recordsIngested;
+			this.recordsFailed = recordsFailed;
+			this.recordsSkipped = recordsSkipped;
+			this.queryPolls = queryPolls;
+			this.queryPollsReady = queryPollsReady;
+			this.queriesCoalesced = queriesCoalesced;
+		}
+
+		/** Returns the totals for each service requests were made to. */
+		public Map<String, ServiceSnapshot> getServices() {
+			return services;
+		}
+
+		/**
+		 * Returns the totals for {@code service}, or {@code null} if no
+		 * requests have been made to it.
+		 */
+		public ServiceSnapshot getService(String service) {
+			return services.get(service);
+		}
+
+		/** Returns the number of appends completed. */
+		public long getAppends() {
+			return appends;
+		}
+
+		/** Returns the number of records ingested by all appends. */
+		public long getRecordsIngested() {
+			return recordsIngested;
+		}
+
+		/** Returns the number of records that failed to be ingested. */
+		public long getRecordsFailed() {
+			return recordsFailed;
+		}
+
+		/** Returns the number of records that were skipped. */
+		public long getRecordsSkipped() {
+			return recordsSkipped;
+		}
+
+		/** Returns the number of times async query results were polled. */
+		public long getQueryPolls() {
+			return queryPolls;
+		}
+
+		/** Returns the number of polls that found the results were ready. */
+		public long getQueryPollsReady() {
+			return queryPollsReady;
+		}
+
+		/** Returns the number of queries that shared another's request. */
+		public long getQueriesCoalesced() {
+			return queriesCoalesced;
+		}
+
+		@Override
+		public String toString() {
+			return "Snapshot(services=" + services + ", appends=" + appends +
+					", ingested=" + recordsIngested + ", failed=" + recordsFailed +
+					", skipped=" + recordsSkipped + ", polls=" + queryPolls +
+					", ready=" + queryPollsReady + ", coalesced=" + queriesCoalesced + ")";
+		}
+	}
+
+	/** The totals for one service. */
+	public static final class ServiceSnapshot {
+		private final long requests;
+		private final long failures;
+		private final long retries;
+		private final long bytesSent;
+		private final long bytesReceived;
+		private final Map<Integer, Long> statusCodes;
+		private final LatencySnapshot latency;
+
+		ServiceSnapshot(long requests, long failures, long retries, long bytesSent,
+				long bytesReceived, Map<Integer, Long> statusCodes, LatencySnapshot latency) {
+			this.requests = requests;
+			this.failures = failures;
+			this.retries = retries;
+			this.bytesSent = bytesSent;
+			this.bytesReceived = bytesReceived;
+			this.statusCodes = statusCodes;
+			this.latency = latency;
+		}
+
+		/** Returns the number of requests that got a response. */
+		public long getRequests() {
+			return requests;
+		}
+
+		/** Returns the number of requests that failed without a response. */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Returns the number of retries. Each attempt is also counted as a
+		 * request or a failure.
+		 */
+		public long getRetries() {
+			return retries;
+		}
+
+		/** Returns the bytes sent, including request headers. */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		/** Returns the bytes received, including response headers. */
+		public long getBytesReceived() {
+			return bytesReceived;
+		}
+
+		/** Returns the number of responses with each status code. */
+		public Map<Integer, Long> getStatusCodes() {
+			return statusCodes;
+		}
+
+		/** Returns the latencies of all requests, successful or not. */
+		public LatencySnapshot getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return "(requests=" + requests + ", failures=" + failures +
+					", retries=" + retries + ", sent=" + bytesSent + ", received=" + bytesReceived +
+					", status=" + statusCodes + ", latency=" + latency + ")";
+		}
+	}
+
+	/** A histogram of request latencies. */
+	public static final class LatencySnapshot {
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		LatencySnapshot(long[] buckets, long sum, long max) {
+			long count = 0;
+			for (long n : buckets) {
+				count += n;
+			}
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/** Returns the number of latencies recorded. */
+		public long getCount() {
+			return count;
+		}
+
+		/** Returns the mean latency, in nanoseconds. */
+		public double getMeanNanos() {
+			return count == 0 ? 0.0 : (double) sum / count;
+		}
+
+		/** Returns the largest latency, in nanoseconds. */
+		public long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * Returns (an upper bound on) the latency, in nanoseconds, that
+		 * {@code percentile} percent of requests were at or below.
+		 *
+		 * @param percentile the percentile, from 0 to 100
+		 */
+		public long getPercentileNanos(double percentile) {
+			if (count == 0) {
+				return 0L;
+			}
+			long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min((1L << i) * 1000, max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("(count=%d, mean=%.1fms, p50=%.1fms, p99=%.1fms, max=%.1fms)",
+					count, getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+					getPercentileNanos(99) / 1e6, max / 1e6);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.precog.client.metrics;
+
+import java.io.IOException;
+
+/**
+ * A {@link MetricsListener} that ignores every event. Extend this to handle
+ * only the events you're interested in.
+ */
+public abstract class MetricsAdapter implements MetricsListener {
+
+	public void requestCompleted(String service, String method, int statusCode,
+			long latencyNanos, long bytesSent) {
+	}
+
+	public void requestFailed(String service, String method, long latencyNanos,
+			IOException error) {
+	}
+
+	public void responseRead(String service, long bytesReceived) {
+	}
+
+	public void appendCompleted(String path, int ingested, int failed, int skipped) {
+	}
+
+	public void queryPolled(String jobId, boolean ready) {
+	}
+
+	public void queryCoalesced(String path, String query) {
+	}
+
+	public void requestRetried(String service, String method, int attempt, int statusCode) {
+	}
+}
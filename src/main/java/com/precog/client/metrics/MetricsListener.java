@@ -0,0 +1,94 @@
+package com.precog.client.metrics;
+
+import java.io.IOException;
+
+/**
+ * Receives events about the requests a client makes. Listeners are called
+ * synchronously on the thread making the request, often from several threads
+ * at once, so implementations must be thread-safe and should return quickly.
+ * An exception thrown by a listener is passed on to the caller of the client
+ * method, so listeners shouldn't throw.
+ * <p>
+ * Requests are grouped by <i>service</i>: the first segment of the request's
+ * path, eg. {@code "analytics"}, {@code "ingest"} or {@code "accounts"}.
+ * <p>
+ * Extend {@link MetricsAdapter} to only handle some events.
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called once the status line and headers of a response have been read.
+	 *
+	 * @param service the service the request was made to
+	 * @param method the HTTP method of the request
+	 * @param statusCode the HTTP status code of the response
+	 * @param latencyNanos the time from starting the request (including any
+	 *        wait for a connection) to reading the response headers
+	 * @param bytesSent the bytes written for the request, including headers
+	 */
+	public void requestCompleted(String service, String method, int statusCode,
+			long latencyNanos, long bytesSent);
+
+	/**
+	 * Called if a request fails before a response has been read.
+	 *
+	 * @param service the service the request was made to
+	 * @param method the HTTP method of the request
+	 * @param latencyNanos the time from starting the request to the failure
+	 * @param error the reason the request failed
+	 */
+	public void requestFailed(String service, String method, long latencyNanos,
+			IOException error);
+
+	/**
+	 * Called once a response body has been read to its end, or closed.
+	 *
+	 * @param service the service the request was made to
+	 * @param bytesReceived the bytes read for the response, including headers
+	 */
+	public void responseRead(String service, long bytesReceived);
+
+	/**
+	 * Called once an append (of any kind) has completed.
+	 *
+	 * @param path the path the records were appended to
+	 * @param ingested the number of records ingested
+	 * @param failed the number of records that failed to be ingested
+	 * @param skipped the number of records that were skipped
+	 */
+	public void appendCompleted(String path, int ingested, int failed, int skipped);
+
+	/**
+	 * Called each time the results of an async query are polled.
+	 *
+	 * @param jobId the ID of the query's job
+	 * @param ready whether the results were ready
+	 */
+	public void queryPolled(String jobId, boolean ready);
+
+	/**
+	 * Called when a query is answered by sharing the result of an identical
+	 * query already in flight, instead of making a request of its own. Does
+	 * nothing by default.
+	 *
+	 * @param path the path the query was run at
+	 * @param query the text of the query
+	 */
+	public default void queryCoalesced(String path, String query) {
+	}
+
+	/**
+	 * Called before a request is retried. The failed attempt has already
+	 * been reported to {@link #requestCompleted} or {@link #requestFailed}.
+	 * Does nothing by default.
+	 *
+	 * @param service the service the request was made to
+	 * @param method the HTTP method of the request
+	 * @param attempt the number of the retry, from 1
+	 * @param statusCode the status of the failed attempt, or -1 if it failed
+	 *        with an error
+	 */
+	public default void requestRetried(String service, String method, int attempt,
+			int statusCode) {
+	}
+}
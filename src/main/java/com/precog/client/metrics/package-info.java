@@ -0,0 +1,11 @@
+/**
+ * Metrics about the Precog client's requests.
+ *
+ * A {@link com.precog.client.metrics.MetricsListener} given to
+ * {@link com.precog.client.PrecogClient#setMetricsListener} is told about
+ * every request the client makes, and every append and query poll it
+ * completes. {@link com.precog.client.metrics.InMemoryMetrics} is a
+ * listener that keeps running totals and latency histograms, which can be
+ * read while the client is in use.
+ */
+package com.precog.client.metrics;
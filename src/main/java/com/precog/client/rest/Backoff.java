@@ -0,0 +1,129 @@
+package com.precog.client.rest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long to wait between successive attempts at something, such as polling
+ * for query results: each delay is {@code multiplier} times the one before,
+ * starting from an initial delay and capped at a maximum.
+ * <p>
+ * To keep many clients that started at the same time from retrying in
+ * lock-step, each delay is shortened by a random amount of up to
+ * {@code jitter} times its length. With the default jitter of 0.5, a delay of
+ * 1s is somewhere between 0.5s and 1s.
+ * <p>
+ * Instances are immutable, eg:
+ * <pre>
+ * {@code
+ * Backoff.exponential(100, 10000, TimeUnit.MILLISECONDS).withJitter(0.2)
+ * }
+ * </pre>
+ */
+public final class Backoff {
+
+	/** The default factor each delay grows by. */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+
+	/** The default fraction of each delay that is randomized. */
+	public static final double DEFAULT_JITTER = 0.5;
+
+	private final long initialNanos;
+	private final long maxNanos;
+	private final double multiplier;
+	private final double jitter;
+
+	private Backoff(long initialNanos, long maxNanos, double multiplier, double jitter) {
+		this.initialNanos = initialNanos;
+		this.maxNanos = maxNanos;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Returns a backoff whose delays start at {@code initial} and double
+	 * after every attempt, up to {@code max}.
+	 */
+	public static Backoff exponential(long initial, long max, TimeUnit unit) {
+		if (initial < 0 || max < initial) {
+			throw new IllegalArgumentException("Invalid delays: " + initial + " to " + max);
+		}
+		return new Backoff(unit.toNanos(initial), unit.toNanos(max),
+				DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+	}
+
+	/**
+	 * Returns a backoff that always waits {@code delay} (less jitter).
+	 */
+	public static Backoff fixed(long delay, TimeUnit unit) {
+		return exponential(delay, delay, unit).withMultiplier(1.0);
+	}
+
+	/**
+	 * Returns a copy of this backoff whose delays grow by a factor of
+	 * {@code multiplier} (at least 1) after every attempt.
+	 */
+	public Backoff withMultiplier(double multiplier) {
+		if (!(multiplier >= 1.0)) {
+			throw new IllegalArgumentException("multiplier must be at least 1");
+		}
+		return new Backoff(initialNanos, maxNanos, multiplier, jitter);
+	}
+
+	/**
+	 * Returns a copy of this backoff that shortens each delay by a random
+	 * fraction of up to {@code jitter}, between 0 (no jitter) and 1.
+	 */
+	public Backoff withJitter(double jitter) {
+		if (!(jitter >= 0.0 && jitter <= 1.0)) {
+			throw new IllegalArgumentException("jitter must be between 0 and 1");
+		}
+		return new Backoff(initialNanos, maxNanos, multiplier, jitter);
+	}
+
+	/** Returns the delay before the first retry, in nanoseconds, without jitter. */
+	public long getInitialNanos() {
+		return initialNanos;
+	}
+
+	/** Returns the longest delay, in nanoseconds, without jitter. */
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Returns the delay, in nanoseconds, to wait after attempt number
+	 * {@code attempt} (starting from 0) before trying again.
+	 */
+	public long delayNanos(int attempt) {
+		double delay = initialNanos * Math.pow(multiplier, Math.max(attempt, 0));
+		long nanos = delay >= maxNanos ? maxNanos : (long) delay;
+		if (jitter > 0.0 && nanos > 0) {
+			nanos -= (long) (nanos * jitter * ThreadLocalRandom.current().nextDouble());
+		}
+		return nanos;
+	}
+
+	/**
+	 * Returns the delay, in milliseconds, to wait after attempt number
+	 * {@code attempt} (starting from 0) before trying again.
+	 */
+	public long delayMillis(int attempt) {
+		return TimeUnit.NANOSECONDS.toMillis(delayNanos(attempt));
+	}
+
+	@Override
+	public String toString() {
+		return "Backoff(initial=" + TimeUnit.NANOSECONDS.toMillis(initialNanos) +
+				"ms, max=" + TimeUnit.NANOSECONDS.toMillis(maxNanos) +
+				"ms, multiplier=" + multiplier + ", jitter=" + jitter + ")";
+	}
+}
@@ -0,0 +1,64 @@
+package com.precog.client.rest;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, lock-free pool of fixed size byte buffers, used to move request
+ * and response bodies without allocating a new buffer for every request.
+ * <p>
+ * Buffers are borrowed with {@link #acquire()} and <b>must</b> be handed back
+ * with {@link #release(byte[])} once the borrower is completely done with
+ * them. If the pool is empty, a new buffer is allocated; if it is full, a
+ * released buffer is simply left for the garbage collector.
+ */
+public final class BufferPool {
+	/** The size of every buffer in the default pool. */
+	public static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final BufferPool DEFAULT = new BufferPool(BUFFER_SIZE, 64);
+
+	private final int bufferSize;
+	private final AtomicReferenceArray<byte[]> slots;
+
+	/**
+	 * Creates a pool of buffers of {@code bufferSize} bytes, which holds on to
+	 * at most {@code maxPooled} free buffers.
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.slots = new AtomicReferenceArray<byte[]>(maxPooled);
+	}
+
+	/** Returns the pool shared by the client library. */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/** Returns the size of the buffers handed out by this pool. */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/** Borrows a buffer from the pool, allocating one if none are free. */
+	public byte[] acquire() {
+		for (int i = 0; i < slots.length(); i++) {
+			byte[] buffer = slots.get(i);
+			if (buffer != null && slots.compareAndSet(i, buffer, null)) {
+				return buffer;
+			}
+		}
+		return new byte[bufferSize];
+	}
+
+	/** Returns a buffer, previously borrowed from this pool, to the pool. */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+				return;
+			}
+		}
+	}
+}
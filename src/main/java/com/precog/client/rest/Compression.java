@@ -0,0 +1,191 @@
+package com.precog.client.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How a request body is compressed before it is sent. Compression is off
+ * unless a request (or {@code PrecogClient}) is given one of these.
+ * <p>
+ * Bodies shorter than {@link #getMinSize()} are sent as is, since compressing
+ * them costs more than it saves. Bodies of unknown length are always
+ * compressed. A compressed body is sent with a {@code Content-Encoding}
+ * header of either {@code gzip} or {@code deflate}.
+ * <p>
+ * Bodies of up to 4MB are compressed in memory and sent with a
+ * {@code Content-Length}, so they can be resent if a pooled connection turns
+ * out to be stale. Larger bodies, and bodies of unknown length, are
+ * compressed as they are written and sent using chunked transfer-encoding.
+ * <p>
+ * Instances are immutable, eg:
+ * <pre>
+ * {@code
+ * Compression.gzip().withLevel(6).withMinSize(4096)
+ * }
+ * </pre>
+ */
+public final class Compression {
+
+	/** The default minimum size of a body worth compressing, in bytes. */
+	public static final long DEFAULT_MIN_SIZE = 1024L;
+
+	// The largest body of known length compressed up front.
+	private static final long MAX_BUFFERED = 4L * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final boolean gzip;
+	private final int level;
+	private final long minSize;
+
+	private Compression(boolean gzip, int level, long minSize) {
+		this.gzip = gzip;
+		this.level = level;
+		this.minSize = minSize;
+	}
+
+	/** Returns gzip compression at the default level. */
+	public static Compression gzip() {
+		return new Compression(true, Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE);
+	}
+
+	/** Returns deflate (zlib) compression at the default level. */
+	public static Compression deflate() {
+		return new Compression(false, Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE);
+	}
+
+	/**
+	 * Returns a copy of this compression that uses the compression level
+	 * {@code level}, from 1 (fastest) to 9 (smallest), or -1 for the default.
+	 */
+	public Compression withLevel(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		return new Compression(gzip, level, minSize);
+	}
+
+	/**
+	 * Returns a copy of this compression that only compresses bodies of at
+	 * least {@code minSize} bytes.
+	 */
+	public Compression withMinSize(long minSize) {
+		if (minSize < 0) {
+			throw new IllegalArgumentException("minSize must not be negative");
+		}
+		return new Compression(gzip, level, minSize);
+	}
+
+	/** Returns the value of the {@code Content-Encoding} header. */
+	public String getContentEncoding() {
+		return gzip ? "gzip" : "deflate";
+	}
+
+	/** Returns the compression level, or -1 for the default. */
+	public int getLevel() {
+		return level;
+	}
+
+	/** Returns the minimum size of a body that is compressed, in bytes. */
+	public long getMinSize() {
+		return minSize;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (gzip ? 1231 : 1237);
+		result = prime * result + level;
+		result = prime * result + (int) (minSize ^ (minSize >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		Compression other = (Compression) obj;
+		return gzip == other.gzip && level == other.level && minSize == other.minSize;
+	}
+
+	/** Returns true if a body of {@code length} bytes should be compressed. */
+	boolean appliesTo(long length) {
+		return length < 0 || length >= minSize;
+	}
+
+	/**
+	 * Returns the compressed body of {@code request}, whose uncompressed body
+	 * is {@code length} bytes long.
+	 */
+	StreamingBody compress(final Request request, long length) throws IOException {
+		if (length < 0 || length > MAX_BUFFERED) {
+			return new StreamingBody() {
+				public long getContentLength() {
+					return -1L;
+				}
+
+				public void writeTo(OutputStream out) throws IOException {
+					writeCompressed(request, out);
+				}
+			};
+		}
+
+		final ByteArrayOutputStream bytes =
+				new ByteArrayOutputStream((int) Math.max(64, length / 4));
+		writeCompressed(request, bytes);
+		return new StreamingBody() {
+			public long getContentLength() {
+				return bytes.size();
+			}
+
+			public void writeTo(OutputStream out) throws IOException {
+				bytes.writeTo(out);
+			}
+		};
+	}
+
+	private void writeCompressed(Request request, OutputStream out) throws IOException {
+		DeflaterOutputStream z = gzip ? new Gzip(out, level) : new Deflate(out, level);
+		try {
+			request.writeBody(z);
+			z.finish();
+		} finally {
+			z.close();
+		}
+	}
+
+	// Closing these only releases their Deflater; the underlying stream is
+	// left open.
+
+	private static final class Gzip extends GZIPOutputStream {
+		Gzip(OutputStream out, int level) throws IOException {
+			super(out, BUFFER_SIZE);
+			def.setLevel(level);
+		}
+
+		@Override
+		public void close() {
+			def.end();
+		}
+	}
+
+	private static final class Deflate extends DeflaterOutputStream {
+		Deflate(OutputStream out, int level) {
+			super(out, new Deflater(level), BUFFER_SIZE);
+		}
+
+		@Override
+		public void close() {
+			def.end();
+		}
+	}
+}
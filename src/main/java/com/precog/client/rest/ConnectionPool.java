@@ -0,0 +1,608 @@
+package com.precog.client.rest;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of persistent (keep-alive) HTTP connections, kept per host.
+ * <p>
+ * Each {@link Rest} leases a connection from its pool for the duration of a
+ * single request/response exchange. Once the response body has been read or
+ * closed, the connection is returned to the pool and reused by the next
+ * request to the same host, saving a TCP connect and TLS handshake. Idle
+ * connections are closed after {@link #getIdleTimeout()} milliseconds, by a
+ * background daemon thread if the pool isn't used again.
+ * <p>
+ * At most {@link #getMaxConnectionsPerHost()} connections are open to any one
+ * host at a time; further requests block until a connection is released, or
+ * fail after {@link #getAcquireTimeout()} milliseconds. This means the
+ * {@link Response#getData()} stream of every response should be closed (or
+ * read to the end).
+ * <p>
+ * Requests made with {@link Rest#executeAsync(Request)} are sent by the
+ * pool's non-blocking engine, which keeps connections of its own, up to the
+ * same limit per host, and queues requests beyond it without blocking. Those
+ * connections count towards the hits, misses and evictions, but not the
+ * idle and leased connections.
+ */
+public class ConnectionPool {
+	/** The default maximum number of open connections per host. */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+	/** The default time (in milliseconds) a connection may sit idle. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000L;
+
+	/** The default time (in milliseconds) to wait for a free connection. */
+	public static final long DEFAULT_ACQUIRE_TIMEOUT = 60 * 1000L;
+
+	// Connections idle for longer than this are checked before reuse.
+	private static final long VALIDATE_AFTER_IDLE = 2 * 1000L;
+
+	// How often idle connections are checked for expiry in the background.
+	private static final long REAP_INTERVAL = 5 * 1000L;
+
+	private static final ScheduledThreadPoolExecutor REAPER = newReaper();
+
+	private static final ConnectionPool DEFAULT = new ConnectionPool();
+
+	// Guards everything below. A lock rather than the pool's monitor, so a
+	// virtual thread waiting for a connection doesn't pin its carrier thread.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final ScheduledFuture<?> reaper;
+	private final Map<Proxy, String> proxyAuthorizations = new ConcurrentHashMap<Proxy, String>();
+	// Started by the first non-blocking request, and again if it stops.
+	private NioEngine engine;
+
+	private int maxConnectionsPerHost;
+	private long idleTimeout;
+	private int connectTimeout = 0;
+	private int readTimeout = 0;
+	private long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+	private boolean closed = false;
+
+	/**
+	 * Creates a pool with at most {@code maxConnectionsPerHost} open
+	 * connections per host, which evicts connections that have been idle for
+	 * longer than {@code idleTimeout} milliseconds.
+	 */
+	public ConnectionPool(int maxConnectionsPerHost, long idleTimeout) {
+		setMaxConnectionsPerHost(maxConnectionsPerHost);
+		setIdleTimeout(idleTimeout);
+		this.reaper = Reaper.schedule(this);
+	}
+
+	public ConnectionPool() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Returns the pool shared by all {@link Rest} instances that weren't
+	 * given one explicitly.
+	 */
+	public static ConnectionPool getDefault() {
+		return DEFAULT;
+	}
+
+	/** Returns the maximum number of open connections to a single host. */
+	public int getMaxConnectionsPerHost() {
+		lock.lock();
+		try {
+			return maxConnectionsPerHost;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of open (leased or idle) connections to a single
+	 * host. Requests beyond this limit wait for a connection to be released.
+	 */
+	public void setMaxConnectionsPerHost(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerHost must be positive: " + max);
+		}
+		lock.lock();
+		try {
+			this.maxConnectionsPerHost = max;
+			signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the time, in milliseconds, a connection may remain idle. */
+	public long getIdleTimeout() {
+		lock.lock();
+		try {
+			return idleTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the time, in milliseconds, a connection may remain idle in the pool
+	 * before it is closed. A timeout of 0 disables keep-alive entirely.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("idleTimeout must be non-negative: " + idleTimeout);
+		}
+		lock.lock();
+		try {
+			this.idleTimeout = idleTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the TCP connect timeout in milliseconds (0 means no timeout). */
+	public int getConnectTimeout() {
+		lock.lock();
+		try {
+			return connectTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Sets the TCP connect timeout in milliseconds (0 means no timeout). */
+	public void setConnectTimeout(int connectTimeout) {
+		lock.lock();
+		try {
+			this.connectTimeout = connectTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the socket read timeout in milliseconds (0 means no timeout). */
+	public int getReadTimeout() {
+		lock.lock();
+		try {
+			return readTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Sets the socket read timeout in milliseconds (0 means no timeout). */
+	public void setReadTimeout(int readTimeout) {
+		lock.lock();
+		try {
+			this.readTimeout = readTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time, in milliseconds, a request waits for a free
+	 * connection before failing (0 means it waits indefinitely).
+	 */
+	public long getAcquireTimeout() {
+		lock.lock();
+		try {
+			return acquireTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the time, in milliseconds, a request waits for a free connection
+	 * when the host is at its connection limit, before failing with an
+	 * {@code IOException}. A timeout of 0 waits indefinitely.
+	 */
+	public void setAcquireTimeout(long acquireTimeout) {
+		if (acquireTimeout < 0) {
+			throw new IllegalArgumentException("acquireTimeout must be non-negative: " + acquireTimeout);
+		}
+		lock.lock();
+		try {
+			this.acquireTimeout = acquireTimeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The Proxy-Authorization header to send to proxy, or null.
+	String getProxyAuthorization(Proxy proxy) {
+		return proxyAuthorizations.get(proxy);
+	}
+
+	void setProxyAuthorization(Proxy proxy, String authorization) {
+		proxyAuthorizations.put(proxy, authorization);
+	}
+
+	void countHit() {
+		hits.incrementAndGet();
+	}
+
+	void countMiss() {
+		misses.incrementAndGet();
+	}
+
+	void countEviction() {
+		evictions.incrementAndGet();
+	}
+
+	/**
+	 * Sends {@code exchange} on the pool's non-blocking engine, and tells
+	 * {@code callback} the outcome. If the pool has been closed, the callback
+	 * is told so straight away.
+	 */
+	void execute(NioEngine.Exchange exchange, NioEngine.Callback callback) {
+		while (true) {
+			NioEngine engine;
+			try {
+				engine = engine();
+			} catch (IOException ioe) {
+				callback.failed(ioe);
+				return;
+			}
+			if (engine.send(exchange, callback)) {
+				return;
+			}
+			// The engine stopped for want of work just now; start another.
+		}
+	}
+
+	/**
+	 * Runs {@code task} on the pool's non-blocking engine after
+	 * {@code delayNanos}, or straight away if the pool has been closed.
+	 */
+	void schedule(Runnable task, long delayNanos) {
+		while (true) {
+			NioEngine engine;
+			try {
+				engine = engine();
+			} catch (IOException ioe) {
+				task.run();
+				return;
+			}
+			if (engine.schedule(task, delayNanos)) {
+				return;
+			}
+		}
+	}
+
+	// Returns the running engine, starting one if need be.
+	private NioEngine engine() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Connection pool has been closed");
+			}
+			if (engine == null || engine.isStopped()) {
+				engine = NioEngine.start(this);
+			}
+			return engine;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of requests that reused a pooled connection. */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Returns the number of requests that had to open a new connection. */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Returns the number of idle connections closed by the pool. */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Returns the number of connections currently sitting idle in the pool. */
+	public int getIdleConnections() {
+		lock.lock();
+		try {
+			int idle = 0;
+			for (Route route : routes.values()) {
+				idle += route.idle.size();
+			}
+			return idle;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns the number of connections currently leased to requests. */
+	public int getLeasedConnections() {
+		lock.lock();
+		try {
+			int leased = 0;
+			for (Route route : routes.values()) {
+				leased += route.leased;
+			}
+			return leased;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Leases a connection to {@code host}:{@code port}, reusing an idle one if
+	 * possible. This blocks while the host is at its connection limit, for at
+	 * most the acquire timeout.
+	 */
+	HttpConnection acquire(boolean secure, String host, int port) throws IOException {
+		String key = (secure ? "https://" : "http://") + host + ":" + port;
+		while (true) {
+			HttpConnection conn = null;
+			List<HttpConnection> expired = new ArrayList<HttpConnection>();
+			int connectTimeout, readTimeout;
+			lock.lock();
+			try {
+				if (closed) {
+					throw new IOException("Connection pool has been closed");
+				}
+				Route route = route(key);
+				expired.addAll(removeExpired(route, System.currentTimeMillis()));
+				long timeout = acquireTimeout;
+				long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+				while (route.idle.isEmpty() && route.leased >= maxConnectionsPerHost) {
+					if (timeout > 0 && remaining <= 0) {
+						throw new IOException("Timed out after " + timeout + " ms waiting for one of " +
+								maxConnectionsPerHost + " connections to " + host +
+								"; are all responses being closed?");
+					}
+					try {
+						if (timeout > 0) {
+							remaining = route.available.awaitNanos(remaining);
+						} else {
+							route.available.await();
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted waiting for a connection to " + host);
+					}
+					if (closed) {
+						throw new IOException("Connection pool has been closed");
+					}
+					expired.addAll(removeExpired(route, System.currentTimeMillis()));
+				}
+				route.leased += 1;
+				conn = route.idle.pollFirst();
+				connectTimeout = this.connectTimeout;
+				readTimeout = this.readTimeout;
+			} finally {
+				lock.unlock();
+				closeAll(expired);
+			}
+
+			if (conn == null) {
+				try {
+					conn = HttpConnection.open(this, key, secure, host, port, connectTimeout, readTimeout);
+				} catch (IOException ioe) {
+					discard(key);
+					throw ioe;
+				} catch (RuntimeException re) {
+					discard(key);
+					throw re;
+				}
+				misses.incrementAndGet();
+				conn.setReused(false);
+				return conn;
+			}
+
+			if (System.currentTimeMillis() - conn.getLastUsed() > VALIDATE_AFTER_IDLE && conn.isStale()) {
+				evictions.incrementAndGet();
+				conn.close();
+				discard(key);
+				continue;
+			}
+			hits.incrementAndGet();
+			conn.setReused(true);
+			return conn;
+		}
+	}
+
+	/**
+	 * Returns a leased connection to the pool. If {@code reusable} is false,
+	 * then the connection is closed instead.
+	 */
+	void release(HttpConnection conn, boolean reusable) {
+		boolean keep;
+		lock.lock();
+		try {
+			Route route = route(conn.getRoute());
+			route.leased -= 1;
+			keep = reusable && !closed && idleTimeout > 0;
+			if (keep) {
+				route.idle.addFirst(conn);
+			}
+			// One connection or slot has been freed, so only one waiter can
+			// use it. Waking them all would have thousands of threads
+			// contend for the lock on every release.
+			route.available.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (!keep) {
+			conn.close();
+		}
+	}
+
+	/** Closes all connections that have been idle longer than the timeout. */
+	public void closeExpired() {
+		List<HttpConnection> expired = new ArrayList<HttpConnection>();
+		lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			for (Route route : routes.values()) {
+				expired.addAll(removeExpired(route, now));
+			}
+		} finally {
+			lock.unlock();
+		}
+		closeAll(expired);
+	}
+
+	/** Closes all idle connections in the pool. */
+	public void closeIdle() {
+		List<HttpConnection> idle = new ArrayList<HttpConnection>();
+		lock.lock();
+		try {
+			for (Route route : routes.values()) {
+				idle.addAll(route.idle);
+				route.idle.clear();
+			}
+			signalAll();
+		} finally {
+			lock.unlock();
+		}
+		closeAll(idle);
+	}
+
+	/**
+	 * Closes all idle connections and stops pooling new ones. Connections
+	 * currently leased are closed when they are released. Non-blocking
+	 * requests still waiting or in flight fail.
+	 */
+	public void close() {
+		NioEngine engine;
+		lock.lock();
+		try {
+			closed = true;
+			engine = this.engine;
+		} finally {
+			lock.unlock();
+		}
+		reaper.cancel(false);
+		closeIdle();
+		if (engine != null) {
+			engine.close();
+		}
+	}
+
+	// Gives back a connection slot that never resulted in a usable connection.
+	private void discard(String key) {
+		lock.lock();
+		try {
+			Route route = route(key);
+			route.leased -= 1;
+			route.available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Route route(String key) {
+		Route route = routes.get(key);
+		if (route == null) {
+			route = new Route(lock.newCondition());
+			routes.put(key, route);
+		}
+		return route;
+	}
+
+	// Wakes every thread waiting for a connection, to recheck the limit or
+	// whether the pool has been closed. Must be called while holding the lock.
+	private void signalAll() {
+		for (Route route : routes.values()) {
+			route.available.signalAll();
+		}
+	}
+
+	// Must be called while holding the lock. The removed connections should
+	// be closed after the lock is released, since closing a TLS socket may block.
+	private List<HttpConnection> removeExpired(Route route, long now) {
+		List<HttpConnection> expired = new ArrayList<HttpConnection>();
+		Iterator<HttpConnection> it = route.idle.iterator();
+		while (it.hasNext()) {
+			HttpConnection conn = it.next();
+			if (now - conn.getLastUsed() >= idleTimeout) {
+				it.remove();
+				expired.add(conn);
+			}
+		}
+		return expired;
+	}
+
+	private void closeAll(List<HttpConnection> conns) {
+		for (HttpConnection conn : conns) {
+			evictions.incrementAndGet();
+			conn.close();
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor newReaper() {
+		ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "precog-connection-reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reaper.setRemoveOnCancelPolicy(true);
+		return reaper;
+	}
+
+	/**
+	 * Periodically closes a pool's expired connections, so that a pool that
+	 * is no longer used, but was never closed, doesn't keep its sockets open.
+	 * The pool is only weakly held, so it can still be garbage collected.
+	 */
+	private static class Reaper implements Runnable {
+		private final WeakReference<ConnectionPool> pool;
+		private volatile ScheduledFuture<?> future;
+
+		private Reaper(ConnectionPool pool) {
+			this.pool = new WeakReference<ConnectionPool>(pool);
+		}
+
+		static ScheduledFuture<?> schedule(ConnectionPool pool) {
+			Reaper reaper = new Reaper(pool);
+			reaper.future = REAPER.scheduleWithFixedDelay(reaper, REAP_INTERVAL, REAP_INTERVAL,
+					TimeUnit.MILLISECONDS);
+			return reaper.future;
+		}
+
+		public void run() {
+			ConnectionPool pool = this.pool.get();
+			if (pool == null) {
+				future.cancel(false);
+			} else {
+				pool.closeExpired();
+			}
+		}
+	}
+
+	private static class Route {
+		// Most recently used first, so the freshest connections get reused.
+		final Deque<HttpConnection> idle = new ArrayDeque<HttpConnection>();
+		// Signalled when a connection to this route is released.
+		final Condition available;
+		int leased = 0;
+
+		Route(Condition available) {
+			this.available = available;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.precog.client.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies a region of a file to an {@code OutputStream} with as little
+ * copying as the stream allows.
+ * <p>
+ * If the stream writes to a channel, as the stream a request body is written
+ * to over a plain (non-TLS) connection does, then
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} is used,
+ * which lets the operating system move the bytes from the page cache into
+ * the socket (eg. with {@code sendfile}) without them ever entering the
+ * JVM's heap. Otherwise, the file is read through a single pooled buffer.
+ */
+public final class FileTransfer {
+	private FileTransfer() { }
+
+	/**
+	 * A stream that is a thin wrapper around a channel, and can hand file
+	 * regions straight to it. {@code transferTo} only avoids copying when
+	 * given the JDK's own socket or file channels, not a wrapper.
+	 */
+	static interface Target {
+		public long transferFrom(FileChannel file, long position, long count)
+				throws IOException;
+	}
+
+	/**
+	 * Writes {@code count} bytes of {@code file}, starting at
+	 * {@code position}, to {@code out}. This doesn't change the channel's
+	 * position, nor close either {@code file} or {@code out}.
+	 *
+	 * @param file the file to copy from
+	 * @param position the offset in the file to start copying at
+	 * @param count the number of bytes to copy
+	 * @param out the stream to copy the bytes to
+	 * @return the number of bytes copied
+	 * @throws IOException if the file ends before {@code count} bytes were
+	 *         copied, or if either the file or {@code out} fails
+	 */
+	public static long transfer(FileChannel file, long position, long count,
+			OutputStream out) throws IOException {
+		if (out instanceof Target) {
+			return ((Target) out).transferFrom(file, position, count);
+		} else if (out instanceof WritableByteChannel) {
+			return transfer(file, position, count, (WritableByteChannel) out);
+		}
+
+		BufferPool pool = BufferPool.getDefault();
+		byte[] chunk = pool.acquire();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			long done = 0;
+			while (done < count) {
+				buffer.clear();
+				buffer.limit((int) Math.min(chunk.length, count - done));
+				int n = file.read(buffer, position + done);
+				if (n < 0) {
+					throw new IOException("File ended " + (count - done) + " bytes early");
+				}
+				out.write(chunk, 0, n);
+				done += n;
+			}
+			return done;
+		} finally {
+			pool.release(chunk);
+		}
+	}
+
+	/**
+	 * Writes {@code count} bytes of {@code file}, starting at
+	 * {@code position}, to the blocking channel {@code out} using
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 *
+	 * @see #transfer(FileChannel, long, long, OutputStream)
+	 */
+	public static long transfer(FileChannel file, long position, long count,
+			WritableByteChannel out) throws IOException {
+		long done = 0;
+		while (done < count) {
+			long n = file.transferTo(position + done, count - done, out);
+			if (n <= 0) {
+				// transferTo doesn't distinguish end of file from a full
+				// channel, but out is blocking, so this must be the former.
+				if (position + done >= file.size()) {
+					throw new IOException("File ended " + (count - done) + " bytes early");
+				}
+				continue;
+			}
+			done += n;
+		}
+		return done;
+	}
+}
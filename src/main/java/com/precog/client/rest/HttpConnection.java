@@ -0,0 +1,929 @@
+package com.precog.client.rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.precog.client.metrics.MetricsListener;
+
+/**
+ * A single, persistent HTTP/1.1 connection to a host. Connections are leased
+ * from a {@link ConnectionPool}, used for exactly one request/response
+ * exchange at a time, and handed back to the pool once the response body has
+ * been fully read (or closed).
+ * <p>
+ * Connections go through the proxy chosen by the default {@link ProxySelector}
+ * (eg. from the {@code http.proxyHost} and {@code https.proxyHost} system
+ * properties). HTTPS is tunnelled through an HTTP proxy with {@code CONNECT}.
+ * If the proxy asks for Basic credentials, they are requested from the
+ * default {@link Authenticator}.
+ */
+class HttpConnection {
+	private static final int BUFFER_SIZE = 16 * 1024;
+	static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	// The most we'll read from an abandoned response body in order to reuse
+	// the connection. Anything larger is cheaper to throw away.
+	private static final long MAX_DRAIN = 256 * 1024;
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private final ConnectionPool pool;
+	private final String route;
+	private final Socket socket;
+	private final SocketChannel channel; // null for TLS connections
+	private final InputStream in;
+	private final OutputStream out;
+	// The HTTP proxy plain requests are sent through, or null.
+	private final Proxy proxy;
+	private final String origin;
+
+	private boolean reused = false;
+	private boolean responseStarted = false;
+	private long lastUsed;
+
+	// Bytes moved over the socket, for metrics.
+	private long bytesRead = 0;
+	private long bytesWritten = 0;
+	private long readMark = 0;
+	private long writeMark = 0;
+	private MetricsListener metrics;
+	private String service;
+
+	private HttpConnection(ConnectionPool pool, String route, Socket socket, Proxy proxy,
+			String origin) throws IOException {
+		this.pool = pool;
+		this.route = route;
+		this.socket = socket;
+		this.proxy = proxy;
+		this.origin = origin;
+		this.channel = socket.getChannel();
+		this.in = new BufferedInputStream(new SocketInputStream(socket.getInputStream()), BUFFER_SIZE);
+		this.out = new BufferedOutputStream(new SocketOutputStream(socket.getOutputStream()), BUFFER_SIZE);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Opens a new connection to {@code host}:{@code port}, negotiating TLS if
+	 * {@code secure} is true. Plain connections are backed by a blocking
+	 * {@code SocketChannel}, so that file bodies can be sent with
+	 * {@link FileTransfer}. If the proxies chosen for the host can't be
+	 * reached, each is tried in turn.
+	 */
+	static HttpConnection open(ConnectionPool pool, String route, boolean secure,
+			String host, int port, int connectTimeout, int readTimeout) throws IOException {
+		URI uri;
+		try {
+			uri = new URI(secure ? "https" : "http", null, host, port, "/", null, null);
+		} catch (URISyntaxException use) {
+			throw new IOException("Invalid host: " + host, use);
+		}
+		ProxySelector selector = ProxySelector.getDefault();
+		List<Proxy> proxies = selector == null ? null : selector.select(uri);
+		if (proxies == null || proxies.isEmpty()) {
+			proxies = Collections.singletonList(Proxy.NO_PROXY);
+		}
+
+		IOException failure = null;
+		for (Proxy proxy : proxies) {
+			Socket socket;
+			try {
+				socket = connect(proxy, secure, host, port, connectTimeout);
+			} catch (IOException ioe) {
+				if (proxy.type() != Proxy.Type.DIRECT) {
+					selector.connectFailed(uri, proxy.address(), ioe);
+				}
+				failure = ioe;
+				continue;
+			}
+			return open(pool, route, socket, proxy, secure, host, port, connectTimeout, readTimeout);
+		}
+		throw failure;
+	}
+
+	// Sets up a connection on a socket connected to host:port, or to proxy.
+	private static HttpConnection open(ConnectionPool pool, String route, Socket socket,
+			Proxy proxy, boolean secure, String host, int port, int connectTimeout,
+			int readTimeout) throws IOException {
+		try {
+			socket.setSoTimeout(readTimeout);
+			if (proxy.type() != Proxy.Type.HTTP) {
+				proxy = null;
+			} else if (secure) {
+				socket = tunnel(pool, socket, proxy, host, port, connectTimeout, readTimeout);
+				proxy = null;
+			}
+			if (secure) {
+				SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+				SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, true);
+				SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+				ssl.startHandshake();
+				socket = ssl;
+			}
+			return new HttpConnection(pool, route, socket, proxy, "http://" + host + ":" + port);
+		} catch (IOException ioe) {
+			closeQuietly(socket);
+			throw ioe;
+		}
+	}
+
+	// Connects a socket to host:port, or to the proxy that reaches it.
+	private static Socket connect(Proxy proxy, boolean secure, String host, int port,
+			int connectTimeout) throws IOException {
+		Socket socket;
+		InetSocketAddress address;
+		if (proxy.type() == Proxy.Type.SOCKS) {
+			// The SOCKS proxy looks the host up, so no channel is available.
+			socket = new Socket(proxy);
+			address = InetSocketAddress.createUnresolved(host, port);
+		} else {
+			socket = secure ? new Socket() : SocketChannel.open().socket();
+			address = proxy.type() == Proxy.Type.HTTP
+					? resolve((InetSocketAddress) proxy.address())
+					: new InetSocketAddress(host, port);
+		}
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(address, connectTimeout);
+			return socket;
+		} catch (IOException ioe) {
+			closeQuietly(socket);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Asks the HTTP proxy {@code socket} is connected to for a tunnel to
+	 * {@code host}:{@code port}, returning the socket to use once it's open.
+	 * If the proxy asks for credentials, the tunnel is asked for once more,
+	 * on a new connection, with those of the default {@code Authenticator}.
+	 */
+	private static Socket tunnel(ConnectionPool pool, Socket socket, Proxy proxy, String host,
+			int port, int connectTimeout, int readTimeout) throws IOException {
+		boolean authenticated = false;
+		while (true) {
+			try {
+				StringBuilder connect = new StringBuilder(128);
+				connect.append("CONNECT ").append(host).append(':').append(port).append(" HTTP/1.1\r\n");
+				connect.append("Host: ").append(host).append(':').append(port).append("\r\n");
+				String authorization = pool.getProxyAuthorization(proxy);
+				if (authorization != null) {
+					connect.append("Proxy-Authorization: ").append(authorization).append("\r\n");
+				}
+				connect.append("\r\n");
+				OutputStream out = socket.getOutputStream();
+				out.write(connect.toString().getBytes("ISO-8859-1"));
+				out.flush();
+
+				// Read without buffering, so none of the TLS handshake is lost.
+				InputStream in = socket.getInputStream();
+				String statusLine = readLine(in);
+				if (statusLine == null) {
+					throw new EOFException("Connection closed by proxy before response to CONNECT");
+				}
+				int status = parseStatus(statusLine);
+				Map<String, String> headers = readHeaders(in);
+				if (status / 100 == 2) {
+					return socket;
+				}
+				if (status != 407 || authenticated ||
+						!authenticateProxy(pool, proxy, headers.get("Proxy-Authenticate"),
+								new URL("https", host, port, "/"))) {
+					throw new IOException("Proxy refused to open a tunnel to " + host + ":" + port +
+							": " + statusLine);
+				}
+			} catch (IOException ioe) {
+				closeQuietly(socket);
+				throw ioe;
+			}
+			closeQuietly(socket);
+			authenticated = true;
+			socket = connect(proxy, true, host, port, connectTimeout);
+			socket.setSoTimeout(readTimeout);
+		}
+	}
+
+	/**
+	 * Asks the default {@code Authenticator} for Basic credentials for
+	 * {@code proxy}, which sent {@code challenge} for a request to
+	 * {@code url}, and keeps them in {@code pool} for later requests. Returns
+	 * false if there are none.
+	 */
+	static boolean authenticateProxy(ConnectionPool pool, Proxy proxy, String challenge,
+			URL url) {
+		int basic = challenge == null ? -1 : challenge.toLowerCase().indexOf("basic");
+		if (basic < 0) {
+			return false;
+		}
+		String realm = "";
+		int start = challenge.indexOf("realm=\"", basic);
+		if (start >= 0) {
+			start += 7;
+			int end = challenge.indexOf('"', start);
+			realm = end < 0 ? challenge.substring(start) : challenge.substring(start, end);
+		}
+		InetSocketAddress address = (InetSocketAddress) proxy.address();
+		PasswordAuthentication credentials = Authenticator.requestPasswordAuthentication(
+				address.getHostString(), address.getAddress(), address.getPort(), "http", realm,
+				"basic", url, Authenticator.RequestorType.PROXY);
+		if (credentials == null) {
+			return false;
+		}
+		String userPass = credentials.getUserName() + ":" + new String(credentials.getPassword());
+		try {
+			pool.setProxyAuthorization(proxy,
+					"Basic " + Base64.getEncoder().encodeToString(userPass.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+		return true;
+	}
+
+	private static InetSocketAddress resolve(InetSocketAddress address) {
+		return address.isUnresolved()
+				? new InetSocketAddress(address.getHostString(), address.getPort())
+				: address;
+	}
+
+	String getRoute() {
+		return route;
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/** Returns true if this connection was taken from the pool's idle set. */
+	boolean isReused() {
+		return reused;
+	}
+
+	void setReused(boolean reused) {
+		this.reused = reused;
+	}
+
+	/**
+	 * Asks for credentials for the HTTP proxy this plain connection goes
+	 * through, which answered with a {@code 407} and {@code challenge}.
+	 * Returns true if there are some, in which case the request should be
+	 * sent again.
+	 */
+	boolean authenticateProxy(String challenge) {
+		if (proxy == null) {
+			return false;
+		}
+		try {
+			return authenticateProxy(pool, proxy, challenge, new URL(origin + "/"));
+		} catch (MalformedURLException mue) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true once any part of a response has been read from the server.
+	 * A failure before this point on a reused connection almost always means
+	 * the server closed the idle connection under us.
+	 */
+	boolean isResponseStarted() {
+		return responseStarted;
+	}
+
+	/**
+	 * Returns true if the server appears to have closed this idle connection.
+	 * This costs a (very short) blocking read, so should only be used on
+	 * connections that have sat idle for a while.
+	 */
+	boolean isStale() {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return true;
+		}
+		try {
+			int timeout = socket.getSoTimeout();
+			try {
+				socket.setSoTimeout(1);
+				// Either EOF or unsolicited data; neither is a usable connection.
+				in.read();
+				return true;
+			} catch (SocketTimeoutException ste) {
+				return false;
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} catch (IOException ioe) {
+			return true;
+		}
+	}
+
+	/**
+	 * Starts counting the bytes sent and received for a new request. Once the
+	 * response body has been read, the bytes received are reported to
+	 * {@code metrics} (if not null) under {@code service}.
+	 */
+	void beginExchange(MetricsListener metrics, String service) {
+		this.metrics = metrics;
+		this.service = service;
+		this.readMark = bytesRead;
+		this.writeMark = bytesWritten;
+	}
+
+	/** Returns the bytes written since {@link #beginExchange}. */
+	long getBytesSent() {
+		return bytesWritten - writeMark;
+	}
+
+	/**
+	 * Writes the request line, headers, and body (if {@code length != 0}) of a
+	 * request to the server. A negative {@code length} means the body is sent
+	 * using chunked transfer-encoding.
+	 */
+	void writeRequest(String method, String target, Map<String, String> headers,
+			StreamingBody body, long length) throws IOException {
+		responseStarted = false;
+
+		StringBuilder head = new StringBuilder(256);
+		head.append(method).append(' ');
+		if (proxy != null) {
+			// A proxy needs the absolute URL.
+			head.append(origin);
+		}
+		head.append(target).append(" HTTP/1.1\r\n");
+		for (Map.Entry<String, String> e : headers.entrySet()) {
+			head.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+		}
+		String authorization = proxy == null ? null : pool.getProxyAuthorization(proxy);
+		if (authorization != null) {
+			head.append("Proxy-Authorization: ").append(authorization).append("\r\n");
+		}
+		if (length < 0) {
+			head.append("Transfer-Encoding: chunked\r\n");
+		} else if (length > 0 || !method.equals("GET")) {
+			head.append("Content-Length: ").append(length).append("\r\n");
+		}
+		head.append("\r\n");
+		out.write(head.toString().getBytes("ISO-8859-1"));
+
+		if (length < 0) {
+			ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+			try {
+				body.writeTo(chunked);
+				chunked.close();
+			} finally {
+				chunked.release();
+			}
+		} else if (length > 0) {
+			CountingOutputStream counted = channel == null
+					? new CountingOutputStream(out)
+					: new ChannelOutputStream(out, channel);
+			body.writeTo(counted);
+			if (counted.count != length) {
+				throw new IOException("Request body was " + counted.count +
+						" bytes, but Content-Length was " + length);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads the status and headers of the response to the request just
+	 * written, returning a {@link Response} whose body stream hands this
+	 * connection back to the pool once it has been consumed or closed. If
+	 * {@code decode} is true, a compressed body is decompressed as it is read.
+	 */
+	Response readResponse(boolean decode) throws IOException {
+		String statusLine;
+		int status;
+		Map<String, String> headers;
+		do {
+			statusLine = readLine(in);
+			if (statusLine == null) {
+				throw new EOFException("Connection closed by server before response");
+			}
+			responseStarted = true;
+			status = parseStatus(statusLine);
+			headers = readHeaders(in);
+		} while (status / 100 == 1);
+
+		String message = "";
+		int sp = statusLine.indexOf(' ', statusLine.indexOf(' ') + 1);
+		if (sp > 0) {
+			message = statusLine.substring(sp + 1);
+		}
+
+		boolean keepAlive = isKeepAlive(statusLine, headers);
+		InputStream body;
+		String transferEncoding = headers.get("Transfer-Encoding");
+		String contentLength = headers.get("Content-Length");
+		if (hasEmptyBody(status, transferEncoding, contentLength)) {
+			body = new FixedLengthInputStream(0, keepAlive);
+		} else if (isChunked(transferEncoding)) {
+			body = new ChunkedInputStream(keepAlive);
+		} else if (contentLength != null) {
+			body = new FixedLengthInputStream(Long.parseLong(contentLength.trim()), keepAlive);
+		} else {
+			// The body is delimited by the server closing the connection.
+			body = new FixedLengthInputStream(Long.MAX_VALUE, false);
+		}
+
+		return new Response(status, message, headers, body, decode);
+	}
+
+	/**
+	 * Returns true if a response with these headers has no body. Its
+	 * connection isn't handed back until its (empty) body is closed, so the
+	 * caller can still report on the exchange first.
+	 */
+	static boolean hasEmptyBody(int status, String transferEncoding, String contentLength) {
+		return status == 204 || status == 304 ||
+				(!isChunked(transferEncoding) && contentLength != null &&
+						contentLength.trim().equals("0"));
+	}
+
+	private static boolean isChunked(String transferEncoding) {
+		return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+	}
+
+	/** Closes the underlying socket. */
+	void close() {
+		closeQuietly(socket);
+	}
+
+	private void release(boolean reusable) {
+		lastUsed = System.currentTimeMillis();
+		MetricsListener metrics = this.metrics;
+		this.metrics = null;
+		try {
+			if (metrics != null) {
+				metrics.responseRead(service, bytesRead - readMark);
+			}
+		} finally {
+			// Whatever the listener does, the pool must get its slot back.
+			pool.release(this, reusable);
+		}
+	}
+
+	static boolean isKeepAlive(String statusLine, Map<String, String> headers) {
+		String connection = headers.get("Connection");
+		if (connection != null) {
+			String value = connection.toLowerCase();
+			if (value.contains("close")) {
+				return false;
+			} else if (value.contains("keep-alive")) {
+				return true;
+			}
+		}
+		return !statusLine.startsWith("HTTP/1.0");
+	}
+
+	static int parseStatus(String statusLine) throws IOException {
+		int start = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+			throw new IOException("Malformed HTTP status line: " + statusLine);
+		}
+		try {
+			return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+		} catch (NumberFormatException nfe) {
+			throw new IOException("Malformed HTTP status line: " + statusLine);
+		}
+	}
+
+	private static Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon <= 0) {
+				throw new IOException("Malformed HTTP header: " + line);
+			}
+			String key = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			String prev = headers.get(key);
+			headers.put(key, prev == null ? value : prev + ", " + value);
+		}
+		if (line == null) {
+			throw new EOFException("Connection closed while reading HTTP headers");
+		}
+		return headers;
+	}
+
+	// Reads a CRLF (or LF) terminated line. Returns null on EOF at the start
+	// of the line.
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder(64);
+		int b;
+		while ((b = in.read()) >= 0) {
+			if (b == '\n') {
+				int len = sb.length();
+				if (len > 0 && sb.charAt(len - 1) == '\r') {
+					sb.setLength(len - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("HTTP line exceeds " + MAX_LINE_LENGTH + " characters");
+			}
+			sb.append((char) b);
+		}
+		if (sb.length() == 0) {
+			return null;
+		}
+		throw new EOFException("Connection closed in the middle of a line");
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			// Nothing more we can do.
+		}
+	}
+
+	/**
+	 * Writes a request body using chunked transfer-encoding. Closing this
+	 * stream writes the terminating chunk, but leaves the connection open.
+	 * <p>
+	 * Writes of at least a full buffer are sent as a chunk of their own,
+	 * without being copied, so a body writer using pooled buffers of the same
+	 * size is passed straight through to the socket.
+	 */
+	private static class ChunkedOutputStream extends OutputStream {
+		private final OutputStream out;
+		private byte[] buffer = BufferPool.getDefault().acquire();
+		private int count = 0;
+		private boolean closed = false;
+
+		ChunkedOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		// Returns the buffer to the pool. Nothing more may be written.
+		void release() {
+			if (buffer != null) {
+				BufferPool.getDefault().release(buffer);
+				buffer = null;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flushChunk();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int off, int len) throws IOException {
+			if (len >= buffer.length) {
+				flushChunk();
+				writeChunk(bytes, off, len);
+			} else {
+				if (len > buffer.length - count) {
+					flushChunk();
+				}
+				System.arraycopy(bytes, off, buffer, count, len);
+				count += len;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				flushChunk();
+				out.write('0');
+				out.write(CRLF);
+				out.write(CRLF);
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (count > 0) {
+				writeChunk(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		private void writeChunk(byte[] bytes, int off, int len) throws IOException {
+			out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+			out.write(CRLF);
+			out.write(bytes, off, len);
+			out.write(CRLF);
+		}
+	}
+
+	// Counts the bytes of a fixed-length body as they're written.
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream out;
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count += 1;
+		}
+
+		@Override
+		public void write(byte[] bytes, int off, int len) throws IOException {
+			out.write(bytes, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * A fixed-length body stream that lets file bodies be sent straight to the
+	 * socket's channel, once anything already buffered has been flushed.
+	 */
+	private class ChannelOutputStream extends CountingOutputStream
+			implements FileTransfer.Target {
+		private final OutputStream out;
+		private final SocketChannel channel;
+
+		ChannelOutputStream(OutputStream out, SocketChannel channel) {
+			super(out);
+			this.out = out;
+			this.channel = channel;
+		}
+
+		public long transferFrom(FileChannel file, long position, long count)
+				throws IOException {
+			out.flush();
+			long n = FileTransfer.transfer(file, position, count, channel);
+			this.count += n;
+			bytesWritten += n;
+			return n;
+		}
+	}
+
+	// The socket's streams, counting the bytes that pass through them.
+
+	private class SocketInputStream extends InputStream {
+		private final InputStream in;
+
+		SocketInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				bytesRead += 1;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			int n = in.read(bytes, off, len);
+			if (n > 0) {
+				bytesRead += n;
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private class SocketOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		SocketOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesWritten += 1;
+		}
+
+		@Override
+		public void write(byte[] bytes, int off, int len) throws IOException {
+			out.write(bytes, off, len);
+			bytesWritten += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Base class for response bodies. Reaching the end of the body returns the
+	 * connection to the pool; closing the body early drains what's left (if
+	 * it's small) so that the connection can still be reused.
+	 */
+	private abstract class BodyInputStream extends InputStream {
+		private final boolean keepAlive;
+		private final byte[] single = new byte[1];
+		private boolean released = false;
+
+		BodyInputStream(boolean keepAlive) {
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int n = read(single, 0, 1);
+			return n < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (released) {
+				return;
+			}
+			boolean reusable = keepAlive;
+			try {
+				long drained = 0;
+				byte[] skip = new byte[4096];
+				int n;
+				while (reusable && (n = read(skip, 0, skip.length)) >= 0) {
+					drained += n;
+					if (drained > MAX_DRAIN) {
+						reusable = false;
+					}
+				}
+			} catch (IOException ioe) {
+				reusable = false;
+			}
+			finish(reusable);
+		}
+
+		// Called once the body has been completely read (or abandoned).
+		protected void finish(boolean reusable) {
+			if (!released) {
+				released = true;
+				release(reusable && keepAlive);
+			}
+		}
+
+		protected void failed() {
+			finish(false);
+		}
+
+		protected boolean isReleased() {
+			return released;
+		}
+	}
+
+	private class FixedLengthInputStream extends BodyInputStream {
+		private long remaining;
+
+		FixedLengthInputStream(long length, boolean keepAlive) {
+			super(keepAlive);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (remaining <= 0 || isReleased()) {
+				finish(true);
+				return -1;
+			} else if (len == 0) {
+				return 0;
+			}
+			int n;
+			try {
+				n = in.read(bytes, off, (int) Math.min(len, remaining));
+			} catch (IOException ioe) {
+				failed();
+				throw ioe;
+			}
+			if (n < 0) {
+				if (remaining != Long.MAX_VALUE) {
+					failed();
+					throw new EOFException("Connection closed before end of response body");
+				}
+				finish(false);
+				return -1;
+			}
+			remaining -= n;
+			if (remaining == 0) {
+				finish(true);
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return isReleased() ? 0 : (int) Math.min(in.available(), remaining);
+		}
+	}
+
+	private class ChunkedInputStream extends BodyInputStream {
+		private long chunkRemaining = 0;
+		private boolean eof = false;
+
+		ChunkedInputStream(boolean keepAlive) {
+			super(keepAlive);
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (eof || isReleased()) {
+				return -1;
+			} else if (len == 0) {
+				return 0;
+			}
+			try {
+				if (chunkRemaining == 0 && !nextChunk()) {
+					return -1;
+				}
+				int n = in.read(bytes, off, (int) Math.min(len, chunkRemaining));
+				if (n < 0) {
+					throw new EOFException("Connection closed before end of chunked response body");
+				}
+				chunkRemaining -= n;
+				if (chunkRemaining == 0) {
+					expectCrlf();
+				}
+				return n;
+			} catch (IOException ioe) {
+				failed();
+				throw ioe;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return isReleased() ? 0 : (int) Math.min(in.available(), chunkRemaining);
+		}
+
+		// Reads the next chunk header, returning false on the last chunk.
+		private boolean nextChunk() throws IOException {
+			String line = readLine(in);
+			if (line == null) {
+				throw new EOFException("Connection closed before end of chunked response body");
+			}
+			int ext = line.indexOf(';');
+			String size = (ext >= 0 ? line.substring(0, ext) : line).trim();
+			try {
+				chunkRemaining = Long.parseLong(size, 16);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Malformed chunk size: " + line);
+			}
+			if (chunkRemaining == 0) {
+				readHeaders(in); // Trailers.
+				eof = true;
+				finish(true);
+				return false;
+			}
+			return true;
+		}
+
+		private void expectCrlf() throws IOException {
+			String line = readLine(in);
+			if (line == null || line.length() != 0) {
+				throw new IOException("Malformed chunked response body");
+			}
+		}
+	}
+}
@@ -2,6 +2,9 @@ package com.precog.client.rest;
 
 public class HttpException extends Exception {
 	private static final long serialVersionUID = 2676948062081356496L;
+	
+	private String responseBody;
+	private int statusCode;
 
 	public HttpException() {
 		super();
@@ -19,8 +22,33 @@ public class HttpException extends Exception {
 		super(cause);
 	}
 	
+	/**
+	 * Returns the start of the body of the unexpected response that caused
+	 * this exception, or {@code null} if there wasn't one.
+	 */
+	public String getResponseBody() {
+		return responseBody;
+	}
+	
+	/**
+	 * Returns the status of the unexpected response that caused this
+	 * exception, or 0 if there wasn't one.
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/**
+	 * Returns an exception reporting the status of {@code response} and the
+	 * start of its body, which is read. The caller must still close the body.
+	 */
 	public static HttpException unexpectedResponse(Response response) {
-		return new HttpException("Unexpected response from server: " +
-				response.getStatusCode() + " " + response.getMessage());
+		String body = response.readErrorBody();
+		HttpException e = new HttpException("Unexpected response from server: " +
+				response.getStatusCode() + " " + response.getMessage() +
+				(body == null ? "" : ": " + body));
+		e.responseBody = body;
+		e.statusCode = response.getStatusCode();
+		return e;
 	}
 }
@@ -0,0 +1,1513 @@
+package com.precog.client.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A non-blocking HTTP/1.1 engine, which sends the requests of
+ * {@link Rest#executeAsync(Request)}. A single selector thread writes
+ * requests and reads responses on all of its connections at once, so any
+ * number of requests can be in flight without a thread each. Requests beyond
+ * a host's connection limit wait in a queue, rather than on a thread.
+ * <p>
+ * Each {@link ConnectionPool} has an engine of its own, which keeps its own
+ * persistent connections, up to the pool's limit per host, and follows the
+ * pool's timeouts. Its thread is started by the first request, and stops
+ * once it has had nothing to do for a minute.
+ * <p>
+ * Request bodies are sent from memory, and response bodies are read into
+ * memory before the response is handed over. Connections go through the
+ * proxy chosen by the default {@link ProxySelector}, as
+ * {@link HttpConnection}'s do, except that SOCKS proxies aren't supported.
+ * Host names are looked up on a separate thread, since that can't be done
+ * without blocking.
+ */
+final class NioEngine implements Runnable {
+	private static final Logger logger = Logger.getLogger(NioEngine.class.getName());
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	// The most a response body is presized to from its Content-Length.
+	private static final int MAX_PRESIZE = 1024 * 1024;
+
+	// How long the thread waits for work before stopping.
+	private static final long IDLE_EXIT = TimeUnit.MINUTES.toNanos(1);
+
+	private static final ByteBuffer[] NOTHING = new ByteBuffer[] { ByteBuffer.allocate(0) };
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private static final ExecutorService RESOLVER = newResolver();
+
+	// The states of a connection.
+	private static final int RESOLVING = 0;
+	private static final int CONNECTING = 1;
+	private static final int TUNNELLING = 2;
+	private static final int HANDSHAKING = 3;
+	private static final int EXCHANGING = 4;
+	private static final int IDLE = 5;
+	private static final int CLOSED = 6;
+
+	private final ConnectionPool pool;
+	private final Selector selector;
+
+	// Guards the tasks handed to the thread, and whether it has stopped.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean stopped = false;
+	private volatile boolean closed = false;
+
+	// Only used on the engine's thread.
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+	private final Set<Connection> connections = new HashSet<Connection>();
+	private long timerSequence = 0;
+
+	private NioEngine(ConnectionPool pool, Selector selector) {
+		this.pool = pool;
+		this.selector = selector;
+	}
+
+	/** Starts an engine for the connections of {@code pool}. */
+	static NioEngine start(ConnectionPool pool) throws IOException {
+		NioEngine engine = new NioEngine(pool, Selector.open());
+		Thread thread = new Thread(engine, "precog-nio-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+		return engine;
+	}
+
+	/**
+	 * Sends {@code exchange}, and tells {@code callback} the outcome on the
+	 * engine's thread. Returns false, without calling {@code callback}, if
+	 * the engine has stopped.
+	 */
+	boolean send(Exchange exchange, Callback callback) {
+		final Call call = new Call(exchange, callback);
+		return post(new Runnable() {
+			public void run() {
+				dispatch(call, false);
+			}
+		});
+	}
+
+	/**
+	 * Runs {@code task} on the engine's thread once {@code delayNanos} have
+	 * passed. Returns false if the engine has stopped. Tasks still waiting
+	 * when the engine is closed are run straight away.
+	 */
+	boolean schedule(final Runnable task, final long delayNanos) {
+		return post(new Runnable() {
+			public void run() {
+				addTimer(delayNanos, task);
+			}
+		});
+	}
+
+	/** Returns true once the engine's thread has stopped, or is stopping. */
+	boolean isStopped() {
+		lock.lock();
+		try {
+			return stopped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fails every request waiting or in flight, closes every connection and
+	 * stops the engine's thread.
+	 */
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			long idleSince = System.nanoTime();
+			while (!closed) {
+				long now = System.nanoTime();
+				long wait = runTimers(now);
+				if (!connections.isEmpty() || !timers.isEmpty()) {
+					idleSince = now;
+				} else if (now - idleSince >= IDLE_EXIT) {
+					if (stopIfIdle()) {
+						return;
+					}
+				} else {
+					wait = Math.min(wait, IDLE_EXIT - (now - idleSince));
+				}
+				if (wait == Long.MAX_VALUE) {
+					selector.select();
+				} else {
+					selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(wait + 999999L)));
+				}
+				runTasks();
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					Connection conn = (Connection) key.attachment();
+					try {
+						conn.ready();
+					} catch (RuntimeException re) {
+						logger.log(Level.WARNING, "Unexpected error on HTTP connection.", re);
+						conn.failed(new IOException(re));
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			logger.log(Level.SEVERE, "HTTP engine selector failed; stopping.", ioe);
+		} finally {
+			shutdown();
+		}
+	}
+
+	// Marks the engine as stopped, unless a task has just been handed to it.
+	private boolean stopIfIdle() {
+		lock.lock();
+		try {
+			if (!tasks.isEmpty()) {
+				return false;
+			}
+			stopped = true;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Fails whatever is left, once the engine has been closed.
+	private void shutdown() {
+		closed = true;
+		lock.lock();
+		try {
+			stopped = true;
+		} finally {
+			lock.unlock();
+		}
+		runTasks();
+		IOException ioe = new IOException("Connection pool has been closed");
+		for (Connection conn : new ArrayList<Connection>(connections)) {
+			conn.abort(ioe);
+		}
+		for (Route route : routes.values()) {
+			Call call;
+			while ((call = route.waiting.poll()) != null) {
+				call.failed(ioe);
+			}
+		}
+		// Delayed tasks, such as retries, find the engine stopped and fail.
+		Timer timer;
+		while ((timer = timers.poll()) != null) {
+			if (!timer.cancelled) {
+				run(timer.task);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Nothing more to do.
+		}
+	}
+
+	// Hands a task to the engine's thread.
+	private boolean post(Runnable task) {
+		lock.lock();
+		try {
+			if (stopped) {
+				return false;
+			}
+			tasks.add(task);
+		} finally {
+			lock.unlock();
+		}
+		selector.wakeup();
+		return true;
+	}
+
+	private void runTasks() {
+		while (true) {
+			Runnable task;
+			lock.lock();
+			try {
+				task = tasks.poll();
+			} finally {
+				lock.unlock();
+			}
+			if (task == null) {
+				return;
+			}
+			run(task);
+		}
+	}
+
+	// Runs the timers that are due, and returns the nanoseconds until the
+	// next one is, or Long.MAX_VALUE if there are none.
+	private long runTimers(long now) {
+		Timer timer;
+		while ((timer = timers.peek()) != null) {
+			if (!timer.cancelled && timer.deadline - now > 0) {
+				return timer.deadline - now;
+			}
+			timers.poll();
+			if (!timer.cancelled) {
+				run(timer.task);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException re) {
+			logger.log(Level.WARNING, "Unexpected error in HTTP engine task.", re);
+		}
+	}
+
+	private Timer addTimer(long delayNanos, Runnable task) {
+		Timer timer = new Timer(System.nanoTime() + delayNanos, timerSequence++, task);
+		timers.add(timer);
+		return timer;
+	}
+
+	// Sends call on an idle connection, or a new one if the host is below
+	// its limit, or else queues it until a connection is free.
+	private void dispatch(final Call call, boolean first) {
+		if (call.callback.isCancelled()) {
+			return;
+		}
+		if (closed) {
+			call.failed(new IOException("Connection pool has been closed"));
+			return;
+		}
+		final Route route = route(call.exchange);
+		Connection idle = route.idle.pollFirst();
+		if (idle != null) {
+			pool.countHit();
+			idle.start(call);
+			return;
+		}
+		final int max = pool.getMaxConnectionsPerHost();
+		if (route.open < max) {
+			open(route, call);
+			return;
+		}
+		if (first) {
+			route.waiting.addFirst(call);
+		} else {
+			route.waiting.addLast(call);
+		}
+		final long timeout = pool.getAcquireTimeout();
+		if (timeout > 0) {
+			call.timer = addTimer(TimeUnit.MILLISECONDS.toNanos(timeout), new Runnable() {
+				public void run() {
+					if (route.waiting.remove(call)) {
+						call.failed(new IOException("Timed out after " + timeout +
+								" ms waiting for one of " + max + " connections to " +
+								route.host + "; is the server keeping up?"));
+					}
+				}
+			});
+		}
+	}
+
+	// Opens new connections for queued calls, while the host has room.
+	private void slotFreed(Route route) {
+		int max = pool.getMaxConnectionsPerHost();
+		Call next;
+		while (route.open < max && (next = route.nextWaiting()) != null) {
+			open(route, next);
+		}
+	}
+
+	private void open(Route route, Call call) {
+		route.open += 1;
+		pool.countMiss();
+		URI uri;
+		List<Proxy> proxies;
+		try {
+			uri = new URI(route.secure ? "https" : "http", null, route.host, route.port, "/",
+					null, null);
+			ProxySelector selector = ProxySelector.getDefault();
+			proxies = selector == null ? null : selector.select(uri);
+		} catch (URISyntaxException use) {
+			route.open -= 1;
+			call.failed(new IOException("Invalid host: " + route.host, use));
+			return;
+		} catch (RuntimeException re) {
+			route.open -= 1;
+			call.failed(new IOException("Couldn't choose a proxy for " + route.host, re));
+			return;
+		}
+		if (proxies == null || proxies.isEmpty()) {
+			proxies = Collections.singletonList(Proxy.NO_PROXY);
+		}
+		Connection conn = new Connection(route, uri, proxies.iterator(), call);
+		connections.add(conn);
+		conn.connectNext();
+	}
+
+	private Route route(Exchange exchange) {
+		String key = (exchange.secure ? "https://" : "http://") + exchange.host + ":" + exchange.port;
+		Route route = routes.get(key);
+		if (route == null) {
+			route = new Route(exchange.secure, exchange.host, exchange.port);
+			routes.put(key, route);
+		}
+		return route;
+	}
+
+	private static ExecutorService newResolver() {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor resolver = new ThreadPoolExecutor(4, 4, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "precog-resolver-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		resolver.allowCoreThreadTimeOut(true);
+		return resolver;
+	}
+
+	/** A request to send, worked out down to its headers and body. */
+	static final class Exchange {
+		final boolean secure;
+		final String host;
+		final int port;
+		final String method;
+		final String target;
+		final Map<String, String> headers;
+		final ByteBuffer body;
+		final boolean decode;
+
+		/**
+		 * Creates an exchange that sends {@code body} (which isn't modified),
+		 * and decompresses the response body if {@code decode} is true.
+		 */
+		Exchange(boolean secure, String host, int port, String method, String target,
+				Map<String, String> headers, ByteBuffer body, boolean decode) {
+			this.secure = secure;
+			this.host = host;
+			this.port = port;
+			this.method = method;
+			this.target = target;
+			this.headers = headers;
+			this.body = body;
+			this.decode = decode;
+		}
+	}
+
+	/** Told the outcome of an exchange, on the engine's thread. */
+	static interface Callback {
+
+		/**
+		 * Called with the response once its body has been read, and the
+		 * bytes sent and received for it, including the heads.
+		 */
+		public void completed(Response response, long bytesSent, long bytesReceived);
+
+		/** Called if the exchange couldn't be completed. */
+		public void failed(IOException ioe);
+
+		/** Returns true if the outcome is no longer wanted. */
+		public boolean isCancelled();
+	}
+
+	// An exchange on its way, and what has happened to it.
+	private static final class Call {
+		final Exchange exchange;
+		final Callback callback;
+		Timer timer;
+		boolean retried = false;
+		boolean authenticated = false;
+		private boolean done = false;
+
+		Call(Exchange exchange, Callback callback) {
+			this.exchange = exchange;
+			this.callback = callback;
+		}
+
+		void completed(Response response, long bytesSent, long bytesReceived) {
+			if (!done) {
+				done = true;
+				callback.completed(response, bytesSent, bytesReceived);
+			}
+		}
+
+		void failed(IOException ioe) {
+			if (!done) {
+				done = true;
+				if (timer != null) {
+					timer.cancelled = true;
+				}
+				callback.failed(ioe);
+			}
+		}
+	}
+
+	private static final class Route {
+		final boolean secure;
+		final String host;
+		final int port;
+		// Most recently used first, so the freshest connections get reused.
+		final Deque<Connection> idle = new ArrayDeque<Connection>();
+		final Deque<Call> waiting = new ArrayDeque<Call>();
+		int open = 0;
+
+		Route(boolean secure, String host, int port) {
+			this.secure = secure;
+			this.host = host;
+			this.port = port;
+		}
+
+		// Takes the next queued call that's still wanted, or null.
+		Call nextWaiting() {
+			Call call;
+			while ((call = waiting.poll()) != null) {
+				if (call.timer != null) {
+					call.timer.cancelled = true;
+				}
+				if (!call.callback.isCancelled()) {
+					return call;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Timer implements Comparable<Timer> {
+		final long deadline;
+		final long sequence;
+		final Runnable task;
+		boolean cancelled = false;
+
+		Timer(long deadline, long sequence, Runnable task) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		public int compareTo(Timer that) {
+			long diff = deadline - that.deadline;
+			if (diff != 0) {
+				return diff < 0 ? -1 : 1;
+			}
+			return sequence < that.sequence ? -1 : (sequence == that.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A connection to a host, which carries one exchange at a time. It is
+	 * driven by the selector: each time its socket is ready, it moves what
+	 * bytes it can each way, and moves on to the next step once one is done.
+	 */
+	private final class Connection {
+		private final Route route;
+		private final URI uri;
+		private final Iterator<Proxy> proxies;
+		// Why the last proxy tried couldn't be used.
+		private IOException failure;
+		private Proxy proxy = Proxy.NO_PROXY;
+		private InetSocketAddress address;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private Transport transport;
+		private int state = RESOLVING;
+		private boolean tunnelAuthenticated = false;
+		private boolean pumping = false;
+
+		private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		// What's left to send, or null.
+		private ByteBuffer[] out;
+		private Parser parser;
+		private Call call;
+		private boolean reused = false;
+		private boolean responseStarted = false;
+		private long bytesSent;
+		private long bytesReceived;
+		private long lastActivity;
+		private Timer connectTimer;
+
+		Connection(Route route, URI uri, Iterator<Proxy> proxies, Call call) {
+			this.route = route;
+			this.uri = uri;
+			this.proxies = proxies;
+			this.call = call;
+		}
+
+		// Connects through the next proxy, or fails once there are none left.
+		void connectNext() {
+			if (!proxies.hasNext()) {
+				Call call = this.call;
+				this.call = null;
+				close();
+				if (call != null) {
+					call.failed(failure);
+				}
+				slotFreed(route);
+				return;
+			}
+			final Proxy proxy = proxies.next();
+			if (proxy.type() == Proxy.Type.SOCKS) {
+				failure = new IOException("SOCKS proxies aren't supported by non-blocking requests: " +
+						proxy);
+				connectNext();
+				return;
+			}
+			final InetSocketAddress target = proxy.type() == Proxy.Type.HTTP
+					? (InetSocketAddress) proxy.address()
+					: InetSocketAddress.createUnresolved(route.host, route.port);
+			if (!target.isUnresolved()) {
+				connect(proxy, target);
+				return;
+			}
+			state = RESOLVING;
+			RESOLVER.execute(new Runnable() {
+				public void run() {
+					final InetSocketAddress resolved =
+							new InetSocketAddress(target.getHostString(), target.getPort());
+					// If the engine has stopped, this connection has been aborted.
+					post(new Runnable() {
+						public void run() {
+							connect(proxy, resolved);
+						}
+					});
+				}
+			});
+		}
+
+		private void connect(Proxy proxy, InetSocketAddress address) {
+			if (state == CLOSED) {
+				return;
+			}
+			this.proxy = proxy;
+			this.address = address;
+			if (address.isUnresolved()) {
+				connectFailed(new UnknownHostException(address.getHostString()));
+				return;
+			}
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				state = CONNECTING;
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+				if (channel.connect(address)) {
+					connected();
+					return;
+				}
+			} catch (IOException ioe) {
+				connectFailed(ioe);
+				return;
+			}
+			int connectTimeout = pool.getConnectTimeout();
+			if (connectTimeout > 0) {
+				connectTimer = addTimer(TimeUnit.MILLISECONDS.toNanos(connectTimeout), new Runnable() {
+					public void run() {
+						if (state == CONNECTING) {
+							connectFailed(new SocketTimeoutException("connect timed out"));
+						}
+					}
+				});
+			}
+		}
+
+		private void connectFailed(IOException ioe) {
+			closeChannel();
+			if (proxy.type() != Proxy.Type.DIRECT) {
+				ProxySelector selector = ProxySelector.getDefault();
+				if (selector != null) {
+					selector.connectFailed(uri, proxy.address(), ioe);
+				}
+			}
+			failure = ioe;
+			connectNext();
+		}
+
+		// Called once the socket is connected, to the host or its proxy.
+		private void connected() {
+			if (connectTimer != null) {
+				connectTimer.cancelled = true;
+			}
+			lastActivity = System.nanoTime();
+			watch();
+			transport = new PlainTransport(channel);
+			try {
+				if (route.secure && proxy.type() == Proxy.Type.HTTP) {
+					state = TUNNELLING;
+					parser = new Parser(true);
+					out = new ByteBuffer[] { ByteBuffer.wrap(tunnelRequest()) };
+				} else if (route.secure) {
+					startTls();
+				} else {
+					begin(call);
+				}
+			} catch (IOException ioe) {
+				failed(ioe);
+				return;
+			}
+			pump();
+		}
+
+		private byte[] tunnelRequest() throws IOException {
+			StringBuilder connect = new StringBuilder(128);
+			String hostPort = route.host + ":" + route.port;
+			connect.append("CONNECT ").append(hostPort).append(" HTTP/1.1\r\n");
+			connect.append("Host: ").append(hostPort).append("\r\n");
+			String authorization = pool.getProxyAuthorization(proxy);
+			if (authorization != null) {
+				connect.append("Proxy-Authorization: ").append(authorization).append("\r\n");
+			}
+			connect.append("\r\n");
+			return connect.toString().getBytes("ISO-8859-1");
+		}
+
+		private void startTls() throws IOException {
+			SSLEngine engine;
+			try {
+				engine = SSLContext.getDefault().createSSLEngine(route.host, route.port);
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new SSLException("No default TLS context", nsae);
+			}
+			engine.setUseClientMode(true);
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+			engine.beginHandshake();
+			transport = new TlsTransport(channel, engine);
+			state = HANDSHAKING;
+		}
+
+		// Starts call on this connection, once it has been taken from idle.
+		void start(Call call) {
+			reused = true;
+			begin(call);
+			pump();
+		}
+
+		// Queues the request of call to be written.
+		private void begin(Call call) {
+			this.call = call;
+			Exchange exchange = call.exchange;
+			responseStarted = false;
+			bytesSent = 0;
+			bytesReceived = 0;
+			lastActivity = System.nanoTime();
+
+			boolean proxied = !route.secure && proxy.type() == Proxy.Type.HTTP;
+			ByteBuffer body = exchange.body.duplicate();
+			StringBuilder head = new StringBuilder(256);
+			head.append(exchange.method).append(' ');
+			if (proxied) {
+				// A proxy needs the absolute URL.
+				head.append("http://").append(route.host).append(':').append(route.port);
+			}
+			head.append(exchange.target).append(" HTTP/1.1\r\n");
+			for (Map.Entry<String, String> e : exchange.headers.entrySet()) {
+				head.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+			}
+			String authorization = proxied ? pool.getProxyAuthorization(proxy) : null;
+			if (authorization != null) {
+				head.append("Proxy-Authorization: ").append(authorization).append("\r\n");
+			}
+			if (body.hasRemaining() || !exchange.method.equals("GET")) {
+				head.append("Content-Length: ").append(body.remaining()).append("\r\n");
+			}
+			head.append("\r\n");
+			byte[] bytes;
+			try {
+				bytes = head.toString().getBytes("ISO-8859-1");
+			} catch (UnsupportedEncodingException uee) {
+				throw new IllegalStateException("ISO-8859-1 is not supported", uee);
+			}
+			out = new ByteBuffer[] { ByteBuffer.wrap(bytes), body };
+			parser = new Parser(false);
+			state = EXCHANGING;
+		}
+
+		// Called by the selector when the socket is ready.
+		void ready() {
+			if (state == CONNECTING) {
+				try {
+					if (!channel.finishConnect()) {
+						return;
+					}
+				} catch (IOException ioe) {
+					connectFailed(ioe);
+					return;
+				}
+				connected();
+				return;
+			}
+			pump();
+		}
+
+		// Moves what bytes it can, then waits for the socket to be ready.
+		private void pump() {
+			if (pumping) {
+				// Called back from transfer(), which carries on by itself.
+				return;
+			}
+			pumping = true;
+			try {
+				transfer();
+			} catch (IOException ioe) {
+				failed(ioe);
+			} finally {
+				pumping = false;
+			}
+			if (state != CLOSED && state != CONNECTING && state != RESOLVING) {
+				int ops = SelectionKey.OP_READ;
+				if (out != null || transport.hasPendingOutput()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				key.interestOps(ops);
+			}
+		}
+
+		private void transfer() throws IOException {
+			while (state != CLOSED && state != CONNECTING && state != RESOLVING) {
+				if (!transport.flush()) {
+					return;
+				}
+				if (state == HANDSHAKING) {
+					if (!transport.handshake()) {
+						return;
+					}
+					begin(call);
+				}
+				if (out != null) {
+					long n = transport.write(out);
+					if (n > 0) {
+						bytesSent += n;
+						lastActivity = System.nanoTime();
+					}
+					if (!hasRemaining(out)) {
+						out = null;
+					}
+				}
+				int n = transport.read(in);
+				if (n == 0) {
+					return;
+				}
+				lastActivity = System.nanoTime();
+				if (n < 0) {
+					closedByPeer();
+					return;
+				}
+				bytesReceived += n;
+				received();
+			}
+		}
+
+		// Handles what has just been read into the buffer.
+		private void received() throws IOException {
+			if (state == IDLE) {
+				// Either the server closing up, or unsolicited data; neither
+				// is a usable connection.
+				route.idle.remove(this);
+				pool.countEviction();
+				close();
+				slotFreed(route);
+				return;
+			}
+			if (state == EXCHANGING) {
+				responseStarted = true;
+			}
+			in.flip();
+			try {
+				parser.parse(in);
+			} finally {
+				in.compact();
+			}
+			if (!parser.isDone()) {
+				return;
+			}
+			if (state == TUNNELLING) {
+				tunnelled();
+			} else {
+				responded();
+			}
+		}
+
+		// Called once the proxy has answered a CONNECT.
+		private void tunnelled() throws IOException {
+			out = null;
+			int status = parser.status;
+			if (status / 100 == 2) {
+				in.clear();
+				startTls();
+				return;
+			}
+			if (status == 407 && !tunnelAuthenticated && HttpConnection.authenticateProxy(pool,
+					proxy, parser.headers.get("Proxy-Authenticate"),
+					new URL("https", route.host, route.port, "/"))) {
+				// Ask again on a new connection, with the credentials.
+				tunnelAuthenticated = true;
+				closeChannel();
+				in.clear();
+				connect(proxy, address);
+				return;
+			}
+			throw new IOException("Proxy refused to open a tunnel to " + route.host + ":" +
+					route.port + ": " + parser.statusLine);
+		}
+
+		// Called once the response to call has been read.
+		private void responded() {
+			Call call = this.call;
+			this.call = null;
+			boolean reusable = parser.keepAlive && out == null && in.position() == 0;
+			out = null;
+			in.clear();
+			// A proxy that wants credentials gets the request again, once
+			// the default Authenticator has given some.
+			if (parser.status == 407 && proxy.type() == Proxy.Type.HTTP && !route.secure &&
+					!call.authenticated && authenticateProxy()) {
+				call.authenticated = true;
+				release(reusable);
+				dispatch(call, true);
+				return;
+			}
+			Response response = parser.toResponse(call.exchange.decode);
+			long sent = bytesSent;
+			long received = bytesReceived;
+			release(reusable);
+			call.completed(response, sent, received);
+		}
+
+		private boolean authenticateProxy() {
+			try {
+				return HttpConnection.authenticateProxy(pool, proxy,
+						parser.headers.get("Proxy-Authenticate"),
+						new URL("http", route.host, route.port, "/"));
+			} catch (MalformedURLException mue) {
+				return false;
+			}
+		}
+
+		// Hands the connection to the next queued call, keeps it idle, or
+		// closes it.
+		private void release(boolean reusable) {
+			if (!reusable || closed) {
+				close();
+				slotFreed(route);
+				return;
+			}
+			Call next = route.nextWaiting();
+			if (next != null) {
+				pool.countHit();
+				reused = true;
+				begin(next);
+				pump();
+				return;
+			}
+			long idleTimeout = pool.getIdleTimeout();
+			if (idleTimeout <= 0) {
+				close();
+				return;
+			}
+			state = IDLE;
+			final long used = System.nanoTime();
+			lastActivity = used;
+			route.idle.addFirst(this);
+			addTimer(TimeUnit.MILLISECONDS.toNanos(idleTimeout), new Runnable() {
+				public void run() {
+					if (state == IDLE && lastActivity == used) {
+						route.idle.remove(Connection.this);
+						pool.countEviction();
+						close();
+					}
+				}
+			});
+		}
+
+		// Called when the other end has closed the connection.
+		private void closedByPeer() throws IOException {
+			switch (state) {
+			case IDLE:
+				received();
+				return;
+			case TUNNELLING:
+				throw new EOFException("Connection closed by proxy before response to CONNECT");
+			case HANDSHAKING:
+				throw new EOFException("Connection closed during TLS handshake");
+			default:
+				if (parser.finishOnEof()) {
+					responded();
+				} else if (responseStarted) {
+					throw new EOFException("Connection closed before end of response body");
+				} else {
+					throw new EOFException("Connection closed by server before response");
+				}
+			}
+		}
+
+		// Fails the exchange on this connection, which is closed. A request
+		// sent on a reused connection that the server had closed while it
+		// sat idle is sent once more, on another connection.
+		void failed(IOException ioe) {
+			if (state == CLOSED) {
+				return;
+			}
+			if (state == IDLE) {
+				route.idle.remove(this);
+			}
+			Call call = this.call;
+			this.call = null;
+			close();
+			if (call != null) {
+				if (reused && !responseStarted && !call.retried && !closed) {
+					call.retried = true;
+					dispatch(call, true);
+				} else {
+					call.failed(ioe);
+				}
+			}
+			slotFreed(route);
+		}
+
+		// Closes the connection as the engine stops.
+		void abort(IOException ioe) {
+			if (state == IDLE) {
+				route.idle.remove(this);
+			}
+			Call call = this.call;
+			this.call = null;
+			close();
+			if (call != null) {
+				call.failed(ioe);
+			}
+		}
+
+		// Checks every read timeout that the server has been heard from.
+		private void watch() {
+			final long timeout = TimeUnit.MILLISECONDS.toNanos(pool.getReadTimeout());
+			if (timeout <= 0) {
+				return;
+			}
+			addTimer(timeout, new Runnable() {
+				public void run() {
+					if (state == CLOSED) {
+						return;
+					}
+					long quiet = System.nanoTime() - lastActivity;
+					if (state == IDLE || quiet < timeout) {
+						addTimer(state == IDLE ? timeout : timeout - quiet, this);
+					} else {
+						failed(new SocketTimeoutException("Read timed out"));
+					}
+				}
+			});
+		}
+
+		private void close() {
+			if (state == CLOSED) {
+				return;
+			}
+			state = CLOSED;
+			if (connectTimer != null) {
+				connectTimer.cancelled = true;
+			}
+			closeChannel();
+			connections.remove(this);
+			route.open -= 1;
+		}
+
+		private void closeChannel() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+					// Nothing more we can do.
+				}
+				channel = null;
+				key = null;
+			}
+		}
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a response as it arrives, in whatever pieces it arrives in,
+	 * keeping its body in memory.
+	 */
+	private static final class Parser {
+		private static final int STATUS = 0;
+		private static final int HEADERS = 1;
+		private static final int BODY = 2;
+		private static final int CHUNK_SIZE = 3;
+		private static final int CHUNK = 4;
+		private static final int CHUNK_END = 5;
+		private static final int TRAILERS = 6;
+		private static final int DONE = 7;
+
+		// Stop after the head, eg. of the response to a CONNECT.
+		private final boolean headOnly;
+		private final StringBuilder line = new StringBuilder(64);
+		private int state = STATUS;
+		private long remaining;
+		private boolean untilEof = false;
+		private BodyBuffer body;
+
+		String statusLine;
+		int status;
+		Map<String, String> headers;
+		boolean keepAlive;
+
+		Parser(boolean headOnly) {
+			this.headOnly = headOnly;
+		}
+
+		boolean isDone() {
+			return state == DONE;
+		}
+
+		// Ends a body delimited by the server closing the connection.
+		// Returns false if the response was cut short instead.
+		boolean finishOnEof() {
+			if (state == BODY && untilEof) {
+				state = DONE;
+				return true;
+			}
+			return false;
+		}
+
+		void parse(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining() && state != DONE) {
+				if (state == BODY || state == CHUNK) {
+					int n = (int) Math.min(remaining, buf.remaining());
+					body.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+					buf.position(buf.position() + n);
+					remaining -= n;
+					if (remaining == 0) {
+						state = state == BODY ? DONE : CHUNK_END;
+					}
+				} else {
+					String l = readLine(buf);
+					if (l == null) {
+						return;
+					}
+					lineRead(l);
+				}
+			}
+		}
+
+		Response toResponse(boolean decode) {
+			String message = "";
+			int sp = statusLine.indexOf(' ', statusLine.indexOf(' ') + 1);
+			if (sp > 0) {
+				message = statusLine.substring(sp + 1);
+			}
+			InputStream data = body == null
+					? new ByteArrayInputStream(new byte[0])
+					: body.toInputStream();
+			return new Response(status, message, headers, data, decode);
+		}
+
+		private void lineRead(String l) throws IOException {
+			switch (state) {
+			case STATUS:
+				statusLine = l;
+				status = HttpConnection.parseStatus(l);
+				headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+				state = HEADERS;
+				break;
+			case HEADERS:
+				if (l.length() == 0) {
+					headersRead();
+				} else {
+					int colon = l.indexOf(':');
+					if (colon <= 0) {
+						throw new IOException("Malformed HTTP header: " + l);
+					}
+					String name = l.substring(0, colon).trim();
+					String value = l.substring(colon + 1).trim();
+					String prev = headers.get(name);
+					headers.put(name, prev == null ? value : prev + ", " + value);
+				}
+				break;
+			case CHUNK_SIZE:
+				int ext = l.indexOf(';');
+				String size = (ext >= 0 ? l.substring(0, ext) : l).trim();
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException nfe) {
+					throw new IOException("Malformed chunk size: " + l);
+				}
+				state = remaining == 0 ? TRAILERS : CHUNK;
+				break;
+			case CHUNK_END:
+				if (l.length() != 0) {
+					throw new IOException("Malformed chunked response body");
+				}
+				state = CHUNK_SIZE;
+				break;
+			case TRAILERS:
+				if (l.length() == 0) {
+					state = DONE;
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unexpected line in state " + state);
+			}
+		}
+
+		private void headersRead() throws IOException {
+			if (status / 100 == 1) {
+				state = STATUS;
+				return;
+			}
+			keepAlive = HttpConnection.isKeepAlive(statusLine, headers);
+			String transferEncoding = headers.get("Transfer-Encoding");
+			String contentLength = headers.get("Content-Length");
+			if (headOnly || status == 204 || status == 304) {
+				state = DONE;
+			} else if (transferEncoding != null &&
+					transferEncoding.toLowerCase().contains("chunked")) {
+				body = new BodyBuffer(BUFFER_SIZE);
+				state = CHUNK_SIZE;
+			} else if (contentLength != null) {
+				try {
+					remaining = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException nfe) {
+					throw new IOException("Malformed Content-Length: " + contentLength);
+				}
+				body = new BodyBuffer((int) Math.min(remaining, MAX_PRESIZE));
+				state = remaining == 0 ? DONE : BODY;
+			} else {
+				// The body is delimited by the server closing the connection.
+				body = new BodyBuffer(BUFFER_SIZE);
+				remaining = Long.MAX_VALUE;
+				untilEof = true;
+				keepAlive = false;
+				state = BODY;
+			}
+		}
+
+		// Reads a CRLF (or LF) terminated line, or returns null if the end
+		// of the line hasn't arrived yet.
+		private String readLine(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				int b = buf.get() & 0xFF;
+				if (b == '\n') {
+					int len = line.length();
+					if (len > 0 && line.charAt(len - 1) == '\r') {
+						line.setLength(len - 1);
+					}
+					String l = line.toString();
+					line.setLength(0);
+					return l;
+				}
+				if (line.length() >= HttpConnection.MAX_LINE_LENGTH) {
+					throw new IOException("HTTP line exceeds " + HttpConnection.MAX_LINE_LENGTH +
+							" characters");
+				}
+				line.append((char) b);
+			}
+			return null;
+		}
+	}
+
+	// A response body, read without copying it again.
+	private static final class BodyBuffer extends ByteArrayOutputStream {
+		BodyBuffer(int size) {
+			super(size);
+		}
+
+		InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	/** Moves bytes between a connection and its socket. */
+	private static abstract class Transport {
+
+		/** Reads what it can into {@code dst}; returns -1 at the end of the stream. */
+		abstract int read(ByteBuffer dst) throws IOException;
+
+		/** Writes what it can of {@code srcs}, returning the bytes taken from them. */
+		abstract long write(ByteBuffer[] srcs) throws IOException;
+
+		/** Returns true once the handshake, if there is one, is done. */
+		boolean handshake() throws IOException {
+			return true;
+		}
+
+		/** Sends what's been held back; returns true if there's none left. */
+		boolean flush() throws IOException {
+			return true;
+		}
+
+		/** Returns true if bytes are waiting for the socket to take them. */
+		boolean hasPendingOutput() {
+			return false;
+		}
+	}
+
+	private static final class PlainTransport extends Transport {
+		private final SocketChannel channel;
+
+		PlainTransport(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		long write(ByteBuffer[] srcs) throws IOException {
+			return channel.write(srcs);
+		}
+	}
+
+	/**
+	 * Encrypts and decrypts with an {@code SSLEngine}. The engine's delegated
+	 * tasks (certificate checks, mostly) are run inline.
+	 */
+	private static final class TlsTransport extends Transport {
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		// Read from the socket, not yet decrypted (ready to be filled).
+		private ByteBuffer netIn;
+		// Encrypted, not yet written (ready to be drained).
+		private ByteBuffer netOut;
+		// Decrypted, not yet handed out (ready to be drained).
+		private ByteBuffer appIn;
+		private boolean eof = false;
+
+		TlsTransport(SocketChannel channel, SSLEngine engine) {
+			this.channel = channel;
+			this.engine = engine;
+			int packet = engine.getSession().getPacketBufferSize();
+			this.netIn = ByteBuffer.allocate(packet);
+			this.netOut = ByteBuffer.allocate(packet);
+			this.netOut.flip();
+			this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+			this.appIn.flip();
+		}
+
+		@Override
+		boolean handshake() throws IOException {
+			while (true) {
+				if (!flush()) {
+					return false;
+				}
+				switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+					runDelegatedTasks();
+					break;
+				case NEED_WRAP:
+					wrap(NOTHING);
+					break;
+				case NEED_UNWRAP:
+					if (!unwrap()) {
+						if (eof) {
+							throw new EOFException("Connection closed during TLS handshake");
+						}
+						return false;
+					}
+					break;
+				default:
+					return true;
+				}
+			}
+		}
+
+		int read(ByteBuffer dst) throws IOException {
+			while (!appIn.hasRemaining()) {
+				if (eof || !unwrap()) {
+					return eof ? -1 : 0;
+				}
+				switch (engine.getHandshakeStatus()) {
+				case NEED_TASK:
+				case NEED_WRAP:
+					// Eg. a key update from the server.
+					handshake();
+					break;
+				default:
+					break;
+				}
+			}
+			int n = Math.min(appIn.remaining(), dst.remaining());
+			ByteBuffer slice = appIn.duplicate();
+			slice.limit(slice.position() + n);
+			dst.put(slice);
+			appIn.position(appIn.position() + n);
+			return n;
+		}
+
+		long write(ByteBuffer[] srcs) throws IOException {
+			long total = 0;
+			while (flush() && hasRemaining(srcs)) {
+				SSLEngineResult result = wrap(srcs);
+				total += result.bytesConsumed();
+				if (result.bytesProduced() == 0 && result.bytesConsumed() == 0) {
+					break;
+				}
+			}
+			flush();
+			return total;
+		}
+
+		@Override
+		boolean flush() throws IOException {
+			while (netOut.hasRemaining()) {
+				if (channel.write(netOut) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		boolean hasPendingOutput() {
+			return netOut.hasRemaining();
+		}
+
+		private SSLEngineResult wrap(ByteBuffer[] srcs) throws IOException {
+			while (true) {
+				netOut.compact();
+				SSLEngineResult result;
+				try {
+					result = engine.wrap(srcs, netOut);
+				} finally {
+					netOut.flip();
+				}
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+					continue;
+				case CLOSED:
+					throw new SSLException("TLS connection has been closed");
+				default:
+					if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+						runDelegatedTasks();
+					}
+					return result;
+				}
+			}
+		}
+
+		// Decrypts what has been read into appIn, reading more from the
+		// socket as needed. Returns false if no more can be read for now.
+		private boolean unwrap() throws IOException {
+			while (true) {
+				netIn.flip();
+				appIn.compact();
+				SSLEngineResult result;
+				try {
+					result = engine.unwrap(netIn, appIn);
+				} finally {
+					netIn.compact();
+					appIn.flip();
+				}
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW:
+					int packet = engine.getSession().getPacketBufferSize();
+					if (netIn.capacity() < packet) {
+						netIn.flip();
+						netIn = grow(netIn, packet);
+						netIn.compact();
+					}
+					int n = channel.read(netIn);
+					if (n < 0) {
+						eof = true;
+						return false;
+					} else if (n == 0) {
+						return false;
+					}
+					continue;
+				case CLOSED:
+					eof = true;
+					return false;
+				default:
+					if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+						runDelegatedTasks();
+					}
+					return true;
+				}
+			}
+		}
+
+		private void runDelegatedTasks() {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+		}
+
+		// Returns a buffer (ready to be drained) with what's left of buffer,
+		// and room for at least size bytes more.
+		private static ByteBuffer grow(ByteBuffer buffer, int size) {
+			ByteBuffer bigger = ByteBuffer.allocate(buffer.remaining() + size);
+			bigger.put(buffer);
+			bigger.flip();
+			return bigger;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.precog.client.rest;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 
 
@@ -38,9 +39,67 @@ public interface Request {
     /** Returns an input stream to send for a PUT or POST request. */
     public InputStream getBody() throws IOException;
     
+    /**
+     * Writes the body to send for a PUT or POST request directly to
+     * {@code out}. This is how {@link Rest} sends the body; it avoids copying
+     * the body through an intermediate stream. This does not close
+     * {@code out}.
+     * <p>
+     * The default implementation copies {@link #getBody()} to {@code out}
+     * and then closes the stream it returned.
+     * 
+     * @param out the stream to write the body to
+     * @throws IOException if the body cannot be written
+     */
+    public default void writeBody(OutputStream out) throws IOException {
+    	InputStream body = getBody();
+    	if (body == null) {
+    		return;
+    	}
+    	BufferPool pool = BufferPool.getDefault();
+    	byte[] chunk = pool.acquire();
+    	try {
+    		int n;
+    		while ((n = body.read(chunk)) >= 0) {
+    			out.write(chunk, 0, n);
+    		}
+    	} finally {
+    		pool.release(chunk);
+    		body.close();
+    	}
+    }
+    
+    /**
+     * Returns how the body should be compressed when it is sent, or
+     * {@code null} if it should be sent as is. By default, bodies aren't
+     * compressed.
+     */
+    public default Compression getCompression() {
+    	return null;
+    }
+    
     /** The sub-path of the REST request. */
     public Path getPath();
     
+    /**
+     * Returns the absolute path and URL encoded query string of the request,
+     * or {@code null} to have {@link Rest} encode them from
+     * {@link #getPath()} and {@link #getParams()}. Requests made from a
+     * {@link RequestTemplate} return the encoding it made once.
+     */
+    public default String getTarget() {
+    	return null;
+    }
+    
     /** Returns true if HTTPS is required for the request to be executed. */
     public boolean isHttpsRequired();
+    
+    /**
+     * Returns true if the body can be sent more than once, so the request
+     * can be retried. Bodies read from a one-shot {@code InputStream} can't.
+     * By default, requests are only sent once.
+     */
+    public default boolean isReplayable() {
+    	return false;
+    }
 }
@@ -3,11 +3,15 @@ package com.precog.client.rest;
 import static javax.xml.bind.DatatypeConverter.printBase64Binary;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,12 +23,15 @@ import java.util.Map;
  * @author Tom Switzer <switzer@precog.com>
  */
 public class RequestBuilder {
-	private static interface Body {
+	// A request body; shared with RequestTemplate.
+	static interface Body {
 		public InputStream asInputStream() throws IOException;
 		public long getContentLength() throws IOException;
+		public void writeTo(OutputStream out) throws IOException;
+		public boolean isReplayable();
 	}
 	
-	private static Body EMPTY_BODY = new ByteArrayBody(new byte[0]);
+	static final Body EMPTY_BODY = new ByteArrayBody(new byte[0], 0, 0);
 	
 	
 	private Method method = Method.GET;
@@ -34,6 +41,7 @@ public class RequestBuilder {
     private ContentType contentType = ContentType.JSON;
     private Path path = new Path("");
     private boolean httpsRequired = false;
+    private Compression compression = null;
     
     public RequestBuilder(Request request) {
     	this.method = request.getMethod();
@@ -43,6 +51,7 @@ public class RequestBuilder {
     	this.path = request.getPath();
     	this.body = new RequestBody(request);
     	this.httpsRequired = request.isHttpsRequired();
+    	this.compression = request.getCompression();
     }
     
     public RequestBuilder(Method method, Path path) {
@@ -144,23 +153,61 @@ public class RequestBuilder {
      * @return this request builder
      */
     public RequestBuilder setBody(byte[] bytes) {
-    	this.body = new ByteArrayBody(bytes);
+    	this.body = new ByteArrayBody(bytes, 0, bytes.length);
     	return this;
     }
     
     /**
-     * Set the body of the request to use the contents of {@code file}.
+     * Set the body of the request to {@code length} bytes of {@code bytes},
+     * starting at {@code offset}. The array is not copied.
+     * 
+     * @param bytes the array holding the request body
+     * @param offset the offset of the body in {@code bytes}
+     * @param length the length of the body
+     * @return this request builder
+     */
+    public RequestBuilder setBody(byte[] bytes, int offset, int length) {
+    	if (offset < 0 || length < 0 || offset + length > bytes.length) {
+    		throw new IndexOutOfBoundsException();
+    	}
+    	this.body = new ByteArrayBody(bytes, offset, length);
+    	return this;
+    }
+    
+    /**
+     * Set the body of the request to use the contents of {@code file}. Over
+     * plain HTTP, the file is sent using {@link FileTransfer}, so its bytes
+     * are moved straight from the file system to the socket.
      * 
      * @param file the file to use as the body of the request
      * @return this request builder
      */
     public RequestBuilder setBody(File file) {
-    	this.body = new FileBody(file);
+    	this.body = new FileBody(file, 0L, -1L);
+    	return this;
+    }
+    
+    /**
+     * Set the body of the request to {@code count} bytes of {@code file},
+     * starting at {@code position}.
+     * 
+     * @param file the file holding the body of the request
+     * @param position the offset of the body in {@code file}
+     * @param count the length of the body
+     * @return this request builder
+     * @see #setBody(File)
+     */
+    public RequestBuilder setBody(File file, long position, long count) {
+    	if (position < 0 || count < 0) {
+    		throw new IndexOutOfBoundsException();
+    	}
+    	this.body = new FileBody(file, position, count);
     	return this;
     }
 
     /**
-     * Set the body of the request to use the contents of {@code file}.
+     * Set the body of the request to use the contents of {@code body}. The
+     * stream can only be sent once, so the request won't be retried.
      * 
      * @param body the InputStream to use as the body of the request
      * @return this request builder
@@ -170,6 +217,30 @@ public class RequestBuilder {
     	return this;
     }
     
+    /**
+     * Set the body of the request to a body that writes itself directly to
+     * the connection.
+     * 
+     * @param body the body of the request
+     * @return this request builder
+     */
+    public RequestBuilder setBody(StreamingBody body) {
+    	this.body = new StreamingBodyAdapter(body);
+    	return this;
+    }
+    
+    /**
+     * Compress the body of the request with {@code compression} when it is
+     * sent. A {@code null} compression sends the body as is (the default).
+     * 
+     * @param compression how to compress the body, or {@code null}
+     * @return this request builder
+     */
+    public RequestBuilder setCompression(Compression compression) {
+    	this.compression = compression;
+    	return this;
+    }
+    
     /**
      * Set the HTTP method to use for the request.
      * 
@@ -206,6 +277,18 @@ public class RequestBuilder {
     	return this;
     }
     
+    /**
+     * Builds a template of the request as it stands, less its body. The
+     * path and parameters are encoded once, by the template, so requests
+     * made from it cost little more than their bodies.
+     * 
+     * @return a template of the request
+     */
+    public RequestTemplate buildTemplate() {
+    	return new RequestTemplate(method, path, params, header, contentType, httpsRequired,
+    			compression);
+    }
+    
     public Request build() {
     	return new Request() {
     		private Method method = RequestBuilder.this.method;
@@ -217,6 +300,7 @@ public class RequestBuilder {
     	    private ContentType contentType = RequestBuilder.this.contentType;
     	    private Path path = RequestBuilder.this.path;
     	    private boolean httpRequired = RequestBuilder.this.httpsRequired;
+    	    private Compression compression = RequestBuilder.this.compression;
 
 			public Method getMethod() {
 				return method;
@@ -242,6 +326,14 @@ public class RequestBuilder {
 				return body.asInputStream();
 			}
 
+			public void writeBody(OutputStream out) throws IOException {
+				body.writeTo(out);
+			}
+
+			public Compression getCompression() {
+				return compression;
+			}
+
 			public Path getPath() {
 				return path;
 			}
@@ -249,22 +341,100 @@ public class RequestBuilder {
 			public boolean isHttpsRequired() {
 				return httpRequired;
 			}
+
+			public boolean isReplayable() {
+				return body.isReplayable();
+			}
     	};
     }
 
-	private static class FileBody implements Body {
+	static class FileBody implements Body {
 		private File file;
+		private long position;
+		private long count; // -1 means to the end of the file.
 		
-		FileBody(File file) {
+		FileBody(File file, long position, long count) {
 			this.file = file;
+			this.position = position;
+			this.count = count;
 		}
 
 		public InputStream asInputStream() throws IOException {
-			return new FileInputStream(file);
+			FileInputStream in = new FileInputStream(file);
+			if (position == 0L && count < 0) {
+				return in;
+			}
+			in.getChannel().position(position);
+			return new LimitedInputStream(in, getContentLength());
 		}
 
 		public long getContentLength() throws IOException {
-			return file.length();
+			return count < 0 ? Math.max(file.length() - position, 0L) : count;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				FileTransfer.transfer(channel, position, getContentLength(), out);
+			} finally {
+				in.close();
+			}
+		}
+
+		public boolean isReplayable() {
+			return true;
+		}
+	}
+	
+	// Reads at most limit bytes from in.
+	private static class LimitedInputStream extends FilterInputStream {
+		private long remaining;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b >= 0) {
+				remaining -= 1;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(bytes, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
 		}
 	}
 	
@@ -282,25 +452,45 @@ public class RequestBuilder {
 		public long getContentLength() throws IOException {
 			return req.getContentLength();
 		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			req.writeBody(out);
+		}
+
+		public boolean isReplayable() {
+			return req.isReplayable();
+		}
 	}
 	
-	private static class ByteArrayBody implements Body {
+	static class ByteArrayBody implements Body {
 		private byte[] bytes;
+		private int offset;
+		private int length;
 		
-		ByteArrayBody(byte[] bytes) {
+		ByteArrayBody(byte[] bytes, int offset, int length) {
 			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
 		}
 
 		public InputStream asInputStream() throws IOException {
-			return new ByteArrayInputStream(bytes);
+			return new ByteArrayInputStream(bytes, offset, length);
 		}
 		
 		public long getContentLength() throws IOException {
-			return bytes.length;
+			return length;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(bytes, offset, length);
+		}
+
+		public boolean isReplayable() {
+			return true;
 		}
 	}
 	
-	private static class StringBody implements Body {
+	static class StringBody implements Body {
 		private String body;
 		private byte[] bytes;
 		
@@ -309,20 +499,30 @@ public class RequestBuilder {
 		}
 		
 		public InputStream asInputStream() throws IOException {
-			if (bytes == null) {
-				bytes = body.getBytes("UTF-8");
-			}
-			return new ByteArrayInputStream(bytes);
+			return new ByteArrayInputStream(getBytes());
 		}
 		
 		public long getContentLength() throws IOException {
-			if (bytes == null)
-				asInputStream();
-			return bytes.length;
+			return getBytes().length;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(getBytes());
+		}
+
+		public boolean isReplayable() {
+			return true;
+		}
+
+		private byte[] getBytes() throws IOException {
+			if (bytes == null) {
+				bytes = body.getBytes("UTF-8");
+			}
+			return bytes;
 		}
 	}
 	
-	private static class InputStreamBody implements Body {
+	static class InputStreamBody implements Body {
 		private InputStream body;
 		
 		InputStreamBody(InputStream body) {
@@ -336,5 +536,57 @@ public class RequestBuilder {
 		public long getContentLength() throws IOException {
 			return -1L;
 		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			copy(body, out);
+		}
+
+		// The stream has been used up once it has been sent.
+		public boolean isReplayable() {
+			return false;
+		}
+	}
+
+	static class StreamingBodyAdapter implements Body {
+		private StreamingBody body;
+
+		StreamingBodyAdapter(StreamingBody body) {
+			this.body = body;
+		}
+
+		// Only used by code that reads a request's body rather than sending
+		// it, so the whole body is buffered in memory.
+		public InputStream asInputStream() throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			body.writeTo(out);
+			return new ByteArrayInputStream(out.toByteArray());
+		}
+
+		public long getContentLength() throws IOException {
+			return body.getContentLength();
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			body.writeTo(out);
+		}
+
+		public boolean isReplayable() {
+			return body.isReplayable();
+		}
+	}
+
+	// Copies in to out through a pooled buffer, then closes in.
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		BufferPool pool = BufferPool.getDefault();
+		byte[] chunk = pool.acquire();
+		try {
+			int n;
+			while ((n = in.read(chunk)) >= 0) {
+				out.write(chunk, 0, n);
+			}
+		} finally {
+			pool.release(chunk);
+			in.close();
+		}
 	}
 }
@@ -0,0 +1,215 @@
+package com.precog.client.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fixed part of a request that is made over and over, eg. every append
+ * to one path: its method, path, headers and the parameters that don't
+ * change. The path and query string are encoded once, when the template is
+ * built, so each request made from it only adds its body, or a parameter
+ * that varies.
+ * <pre>
+ * {@code
+ * RequestTemplate ingest = new RequestBuilder(Method.POST, path)
+ *     .addParam("apiKey", apiKey)
+ *     .buildTemplate();
+ * rest.execute(ingest.withBody(json));
+ * }
+ * </pre>
+ * Templates are immutable, and may be shared between threads.
+ */
+public final class RequestTemplate {
+	private final Method method;
+	private final Path path;
+	private final Map<String, String> params;
+	private final Map<String, String> headers;
+	private final ContentType contentType;
+	private final boolean httpsRequired;
+	private final Compression compression;
+	private final String target;
+
+	RequestTemplate(Method method, Path path, Map<String, String> params,
+			Map<String, String> headers, ContentType contentType, boolean httpsRequired,
+			Compression compression) {
+		this.method = method;
+		this.path = path;
+		this.params = Collections.unmodifiableMap(new HashMap<String, String>(params));
+		this.headers = Collections.unmodifiableMap(new HashMap<String, String>(headers));
+		this.contentType = contentType;
+		this.httpsRequired = httpsRequired;
+		this.compression = compression;
+		this.target = encodeTarget(path, this.params);
+	}
+
+	/** Returns the encoded path and query string of requests made from this. */
+	public String getTarget() {
+		return target;
+	}
+
+	/** Returns a request without a body. */
+	public Request build() {
+		return new TemplateRequest(RequestBuilder.EMPTY_BODY, null, null);
+	}
+
+	/**
+	 * Returns a request without a body, with the parameter {@code key} added
+	 * to the template's.
+	 */
+	public Request withParam(String key, String value) {
+		return new TemplateRequest(RequestBuilder.EMPTY_BODY, key, value);
+	}
+
+	/**
+	 * Returns a request whose body is the UTF-8 encoding of {@code body}.
+	 *
+	 * @see RequestBuilder#setBody(String)
+	 */
+	public Request withBody(String body) {
+		return new TemplateRequest(new RequestBuilder.StringBody(body), null, null);
+	}
+
+	/**
+	 * Returns a request whose body is {@code length} bytes of {@code bytes},
+	 * starting at {@code offset}. The array is not copied.
+	 *
+	 * @see RequestBuilder#setBody(byte[], int, int)
+	 */
+	public Request withBody(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new TemplateRequest(new RequestBuilder.ByteArrayBody(bytes, offset, length),
+				null, null);
+	}
+
+	/**
+	 * Returns a request whose body is the contents of {@code file}.
+	 *
+	 * @see RequestBuilder#setBody(File)
+	 */
+	public Request withBody(File file) {
+		return new TemplateRequest(new RequestBuilder.FileBody(file, 0L, -1L), null, null);
+	}
+
+	/**
+	 * Returns a request whose body is read from {@code body}. The stream can
+	 * only be sent once, so the request won't be retried.
+	 *
+	 * @see RequestBuilder#setBody(InputStream)
+	 */
+	public Request withBody(InputStream body) {
+		return new TemplateRequest(new RequestBuilder.InputStreamBody(body), null, null);
+	}
+
+	/**
+	 * Returns a request whose body writes itself directly to the connection.
+	 *
+	 * @see RequestBuilder#setBody(StreamingBody)
+	 */
+	public Request withBody(StreamingBody body) {
+		return new TemplateRequest(new RequestBuilder.StreamingBodyAdapter(body), null, null);
+	}
+
+	/**
+	 * Returns the absolute {@code path}, followed by {@code params} as a
+	 * UTF-8, URL encoded query string.
+	 */
+	static String encodeTarget(Path path, Map<String, String> params) {
+		StringBuilder target = new StringBuilder(path.absolutize().toString());
+		char join = '?';
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			appendParam(target.append(join), param.getKey(), param.getValue());
+			join = '&';
+		}
+		return target.toString();
+	}
+
+	private static void appendParam(StringBuilder target, String key, String value) {
+		try {
+			target.append(key).append('=').append(URLEncoder.encode(value, "UTF-8"));
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported", uee);
+		}
+	}
+
+	private final class TemplateRequest implements Request {
+		private final RequestBuilder.Body body;
+		private final String key;
+		private final String value;
+
+		TemplateRequest(RequestBuilder.Body body, String key, String value) {
+			this.body = body;
+			this.key = key;
+			this.value = value;
+		}
+
+		public Method getMethod() {
+			return method;
+		}
+
+		// Rest sends the encoded target instead, so the map with the extra
+		// parameter is only built for other callers.
+		public Map<String, String> getParams() {
+			if (key == null) {
+				return params;
+			}
+			Map<String, String> all = new HashMap<String, String>(params);
+			all.put(key, value);
+			return Collections.unmodifiableMap(all);
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public ContentType getContentType() {
+			return contentType;
+		}
+
+		public long getContentLength() throws IOException {
+			return body.getContentLength();
+		}
+
+		public InputStream getBody() throws IOException {
+			return body.asInputStream();
+		}
+
+		public void writeBody(OutputStream out) throws IOException {
+			body.writeTo(out);
+		}
+
+		public Compression getCompression() {
+			return compression;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public String getTarget() {
+			if (key == null) {
+				return target;
+			}
+			StringBuilder sb = new StringBuilder(target.length() + key.length() +
+					value.length() + 16);
+			appendParam(sb.append(target).append(params.isEmpty() ? '?' : '&'), key, value);
+			return sb.toString();
+		}
+
+		public boolean isHttpsRequired() {
+			return httpsRequired;
+		}
+
+		public boolean isReplayable() {
+			return body.isReplayable();
+		}
+	}
+}
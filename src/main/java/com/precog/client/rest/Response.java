@@ -1,23 +1,74 @@
 package com.precog.client.rest;
 
-import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+/**
+ * The response to a REST {@link Request}.
+ * <p>
+ * If the server compressed the body ({@code Content-Encoding} of
+ * {@code gzip} or {@code deflate}) in reply to the {@code Accept-Encoding}
+ * header sent by {@link Rest}, then {@link #getData()} decompresses it as it
+ * is read. The headers are left as the server sent them.
+ * {@link #getEncodedBytes()} and {@link #getDecodedBytes()} count the bytes
+ * read so far before and after decompression.
+ */
 public class Response {
 	private static final Logger logger = Logger.getLogger(Response.class.getName());
 	
+	private static final int INFLATE_BUFFER_SIZE = 8 * 1024;
+	
+	// Bounds on the initial size of the text read by asString().
+	private static final int DEFAULT_PRESIZE = 256;
+	private static final int MAX_PRESIZE = 8 * 1024 * 1024;
+	
+	// How much of an error response's body is kept for its HttpException.
+	private static final int MAX_ERROR_BODY = 4 * 1024;
+	
 	private int statusCode;
 	private String message;
+	private Map<String, String> headers;
 	private InputStream data;
+	private CountingInputStream encoded;
+	private CountingInputStream decoded;
 	
-	public Response(int statusCode, String message, InputStream data) {
+	public Response(int statusCode, String message, Map<String, String> headers, InputStream data) {
+		this(statusCode, message, headers, data, false);
+	}
+	
+	/**
+	 * Creates a response whose body is decompressed, according to its
+	 * {@code Content-Encoding}, if {@code decode} is true.
+	 */
+	Response(int statusCode, String message, Map<String, String> headers, InputStream data,
+			boolean decode) {
 		this.statusCode = statusCode;
 		this.message = message;
-		this.data = data;
+		this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		this.headers.putAll(headers);
+		this.encoded = new CountingInputStream(data);
+		String encoding = this.headers.get("Content-Encoding");
+		if (decode && encoding != null && !encoding.trim().equalsIgnoreCase("identity")) {
+			this.decoded = new CountingInputStream(
+					new DecodingInputStream(encoded, encoding.trim().toLowerCase()));
+		} else {
+			this.decoded = encoded;
+		}
+		this.data = decoded;
+	}
+	
+	public Response(int statusCode, String message, InputStream data) {
+		this(statusCode, message, Collections.<String, String>emptyMap(), data);
 	}
 	
 	public Response(HttpURLConnection conn) throws IOException {
@@ -32,24 +83,53 @@ public class Response {
 		return message;
 	}
 
+	/**
+	 * Returns the value of the response header {@code name}, or {@code null}
+	 * if the server didn't send it. Header names are case-insensitive.
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * Returns the response body. This stream <b>must</b> be closed once you
+	 * are done with it, so the underlying connection can be reused.
+	 */
 	public InputStream getData() {
 		return data;
 	}
 	
+	/**
+	 * Returns the number of bytes of the body read from the connection so
+	 * far. If the body was compressed, this is its compressed size.
+	 */
+	public long getEncodedBytes() {
+		return encoded.count;
+	}
+	
+	/**
+	 * Returns the number of bytes of the body read from {@link #getData()}
+	 * so far. If the body wasn't compressed, this is the same as
+	 * {@link #getEncodedBytes()}.
+	 */
+	public long getDecodedBytes() {
+		return decoded.count;
+	}
+	
+	/**
+	 * Reads the whole body as UTF-8 text, and closes it.
+	 *
+	 * @throws HttpException if the status code isn't 2xx, or the body can't
+	 *         be read
+	 */
 	public String asString() throws HttpException {
 		try {
 			if (statusCode / 100 != 2) {
 				throw HttpException.unexpectedResponse(this);
 			}
-			
-	        StringBuilder sb = new StringBuilder();
-	    	BufferedReader buff = new BufferedReader(new InputStreamReader(data, "UTF-8"));
-	    	String inputLine;
-	        while ((inputLine = buff.readLine()) != null) {
-	            sb.append(inputLine);
-	        }
-	        
-	        return sb.toString();
+			StringBuilder sb = new StringBuilder(expectedLength());
+			Utf8Decoder.decode(data, sb, Long.MAX_VALUE);
+			return sb.toString();
 		} catch (IOException ioe) {
 			throw new HttpException(ioe);
 		} finally {
@@ -60,4 +140,173 @@ public class Response {
 			}
 		}
 	}
+	
+	/**
+	 * Reads the start of an error response's body, to report along with its
+	 * status. Returns {@code null} if it is empty or can't be read. The rest
+	 * of the body is left to be drained when it is closed.
+	 */
+	String readErrorBody() {
+		try {
+			StringBuilder sb = new StringBuilder();
+			boolean complete = Utf8Decoder.decode(data, sb, MAX_ERROR_BODY);
+			String body = sb.toString().trim();
+			if (body.length() == 0) {
+				return null;
+			}
+			return complete ? body : body + "...";
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+	
+	// The number of chars to expect in the body. A UTF-8 body has no more
+	// chars than its Content-Length, unless it's compressed.
+	private int expectedLength() {
+		String length = headers.get("Content-Length");
+		if (length != null && decoded == encoded) {
+			try {
+				return (int) Math.max(0L, Math.min(Long.parseLong(length.trim()), MAX_PRESIZE));
+			} catch (NumberFormatException nfe) {
+				// Fall through.
+			}
+		}
+		return DEFAULT_PRESIZE;
+	}
+	
+	// Counts the bytes read through it.
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				count += 1;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			int n = in.read(bytes, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Decompresses a body as it is read. The decompressor is only created on
+	 * the first read, as an empty body (eg. to a HEAD request) may still have
+	 * a {@code Content-Encoding}.
+	 */
+	private static class DecodingInputStream extends InputStream {
+		private final InputStream raw;
+		private final String encoding;
+		private InputStream inflated;
+		private Inflater inflater;
+		private boolean eof = false;
+		private final byte[] single = new byte[1];
+		
+		DecodingInputStream(InputStream raw, String encoding) {
+			this.raw = raw;
+			this.encoding = encoding;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int n = read(single, 0, 1);
+			return n < 0 ? -1 : single[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if (eof) {
+				return -1;
+			} else if (inflated == null && !open()) {
+				eof = true;
+				return -1;
+			}
+			int n = inflated.read(bytes, off, len);
+			if (n < 0) {
+				eof = true;
+				// The decompressor stops at the end of the compressed data;
+				// reading the body to its end lets the connection be reused.
+				while (raw.read() >= 0) {
+					// Skip.
+				}
+			}
+			return n;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return inflated == null || eof ? 0 : inflated.available();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				if (inflated != null) {
+					inflated.close();
+				} else {
+					raw.close();
+				}
+			} finally {
+				if (inflater != null) {
+					inflater.end();
+				}
+			}
+		}
+		
+		// Creates the decompressor, returning false if the body is empty.
+		private boolean open() throws IOException {
+			PushbackInputStream in = new PushbackInputStream(raw, 2);
+			byte[] head = new byte[2];
+			int n = 0;
+			while (n < 2) {
+				int m = in.read(head, n, 2 - n);
+				if (m < 0) {
+					break;
+				}
+				n += m;
+			}
+			if (n == 0) {
+				return false;
+			}
+			in.unread(head, 0, n);
+			
+			if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+				inflated = new GZIPInputStream(in, INFLATE_BUFFER_SIZE);
+			} else if (encoding.equals("deflate")) {
+				// Some servers send a raw deflate stream, rather than the zlib
+				// stream the spec calls for. A zlib header is a multiple of 31.
+				boolean zlib = n == 2 && (head[0] & 0x0F) == 8 &&
+						(((head[0] & 0xFF) << 8) | (head[1] & 0xFF)) % 31 == 0;
+				inflater = new Inflater(!zlib);
+				inflated = new InflaterInputStream(in, inflater, INFLATE_BUFFER_SIZE);
+			} else {
+				throw new IOException("Unsupported Content-Encoding: " + encoding);
+			}
+			return true;
+		}
+	}
 }
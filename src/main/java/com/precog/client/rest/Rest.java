@@ -1,11 +1,14 @@
 package com.precog.client.rest;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-import static java.net.URLEncoder.encode;
+import com.precog.client.metrics.MetricsListener;
 
 
 /**
@@ -16,39 +19,91 @@ import static java.net.URLEncoder.encode;
  * @author Tom Switzer <switzer@precog.com>
  */
 public class Rest {
-	private static final int CHUNK_SIZE = 16 * 1024;
-	
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
 
     private final URL service;
+    private final ConnectionPool pool;
+    private final boolean secure;
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private volatile MetricsListener metrics;
+    private volatile RetryPolicy.Budget retries;
 
     /**
      * Creates a Rest instance that uses {@code service} as its end-point for
-     * all requests.
+     * all requests, and leases connections from {@code pool}.
      *
      * @param service the end-point to use for requests
+     * @param pool the pool of persistent connections to use
      */
-    public Rest(URL service) {
+    public Rest(URL service, ConnectionPool pool) {
       this.service = service;
+      this.pool = pool;
+      this.secure = service.getProtocol().equalsIgnoreCase("https");
+      this.host = service.getHost();
+      this.port = service.getPort() < 0 ? service.getDefaultPort() : service.getPort();
+      this.hostHeader = service.getPort() < 0 || service.getPort() == service.getDefaultPort()
+    		  ? host : host + ":" + port;
     }
-    
-    // Returns true if this wraps an HTTPS end-point.
-    private boolean isSecure() {
-    	return service.getProtocol().toLowerCase() == "https";
+
+    /**
+     * Creates a Rest instance that uses {@code service} as its end-point for
+     * all requests. Connections are leased from the
+     * {@link ConnectionPool#getDefault() default pool}.
+     *
+     * @param service the end-point to use for requests
+     */
+    public Rest(URL service) {
+      this(service, ConnectionPool.getDefault());
+    }
+
+    /** Returns the end-point requests are executed against. */
+    public URL getService() {
+    	return service;
+    }
+
+    /** Returns the pool connections are leased from. */
+    public ConnectionPool getConnectionPool() {
+    	return pool;
+    }
+
+    /** Returns the listener told about each request, or {@code null}. */
+    public MetricsListener getMetricsListener() {
+    	return metrics;
+    }
+
+    /**
+     * Sets the listener told about each request executed, or {@code null}
+     * for none.
+     *
+     * @param metrics the listener to report requests to
+     */
+    public void setMetricsListener(MetricsListener metrics) {
+    	this.metrics = metrics;
+    }
+
+    /** Returns the policy failed requests are retried by, or {@code null}. */
+    public RetryPolicy getRetryPolicy() {
+    	RetryPolicy.Budget retries = this.retries;
+    	return retries == null ? null : retries.getPolicy();
     }
 
     /**
-     * Creates a parameter string for use in url, in the form $key=$value UTF-8
-     * encoded.
+     * Sets the policy failed requests are retried by, or {@code null} to
+     * never retry them. Setting a policy starts a new retry budget.
      *
-     * @param key
-     * @param value
-     * @return a single parameter string
-     * @throws UnsupportedEncodingException
+     * @param policy the policy to retry requests by
      */
-    private static String encodeParam(String key, String value) throws UnsupportedEncodingException {
-        return key + "=" + encode(value, "UTF-8");
+    public void setRetryPolicy(RetryPolicy policy) {
+    	this.retries = policy == null ? null : policy.newBudget();
     }
-    
+
+    // Returns true if this wraps an HTTPS end-point.
+    private boolean isSecure() {
+    	return secure;
+    }
+
     public static Response execute(URL service, Request request) throws HttpException {
     	return new Rest(service).execute(request);
     }
@@ -56,6 +111,20 @@ public class Rest {
     /**
      * Executes a REST {@link Request} against this HTTP end-point and returns
      * the {@link Response}.
+     * <p>
+     * The response holds on to a pooled connection until its body has been
+     * read to the end or closed. Responses that are never closed use up the
+     * pool's connections, after which requests fail once they have waited
+     * for the pool's {@link ConnectionPool#getAcquireTimeout() acquire timeout}.
+     * <p>
+     * Requests go through the proxy chosen by the default
+     * {@code ProxySelector}. Redirects aren't followed, so a {@code 3xx}
+     * response is returned as is.
+     * <p>
+     * If a {@link RetryPolicy} has been set, requests that fail with an
+     * {@code IOException} or a retryable status are retried as it allows.
+     * Once it allows no more, the last error is thrown, or the last response
+     * returned.
      *
      * @param request the REST request
      * @return the server's response
@@ -68,55 +137,399 @@ public class Rest {
     				"Request required HTTPS connection for HTTP end-point.");
     	}
     	
+    	MetricsListener metrics = this.metrics;
+    	RetryPolicy.Budget retries = this.retries;
+    	RetryPolicy policy = retries == null ? null : retries.getPolicy();
+    	boolean retryable = policy != null && policy.canRetry(request);
+    	if (retries != null) {
+    		retries.deposit();
+    	}
+    	
+    	String method = request.getMethod().getValue();
+    	String target = targetOf(request);
+    	String service = metrics == null ? null : serviceOf(target);
+    	long start = metrics == null ? 0L : System.nanoTime();
+    	Prepared prepared;
+    	try {
+    		prepared = new Prepared(request);
+    	} catch (IOException ioe) {
+    		if (metrics != null) {
+    			metrics.requestFailed(service, method, System.nanoTime() - start, ioe);
+    		}
+    		throw new HttpException(ioe);
+    	}
+    	Map<String, String> headers = prepared.headers;
+    	boolean decode = prepared.decode;
+    	StreamingBody body = prepared.body;
+    	long length = prepared.length;
+    	
+    	for (int attempt = 0; ; attempt++) {
+    		boolean more = retryable && attempt + 1 < policy.getMaxAttempts();
+    		Response response;
+    		try {
+    			response = send(request, metrics, service, start, method, target, headers,
+    					decode, body, length);
+    		} catch (IOException ioe) {
+    			if (metrics != null) {
+    				metrics.requestFailed(service, method, System.nanoTime() - start, ioe);
+    			}
+    			if (!more || !retries.withdraw()) {
+    				throw new HttpException(ioe);
+    			}
+    			retry(metrics, service, method, attempt, -1, policy.delayNanos(attempt, null));
+    			start = metrics == null ? 0L : System.nanoTime();
+    			continue;
+    		}
+    		
+    		int status = response.getStatusCode();
+    		if (!more || !policy.retriesStatus(status) || !retries.withdraw()) {
+    			return response;
+    		}
+    		String retryAfter = response.getHeader("Retry-After");
+    		closeQuietly(response);
+    		retry(metrics, service, method, attempt, status, policy.delayNanos(attempt, retryAfter));
+    		start = metrics == null ? 0L : System.nanoTime();
+    	}
+    }
+
+    /**
+     * Executes a REST {@link Request} without blocking, and returns a future
+     * that is completed with the {@link Response} once it has been read.
+     * <p>
+     * Requests are sent by the pool's non-blocking engine: a single thread
+     * that reads and writes every request in flight, over connections of its
+     * own, so no thread waits on the server. At most the pool's
+     * {@link ConnectionPool#getMaxConnectionsPerHost() limit} are in flight
+     * to a host at once; the rest are queued, and fail if they wait longer
+     * than its acquire timeout.
+     * <p>
+     * The request body is read into memory before this returns, and the
+     * response body is read into memory before the future is completed, so
+     * the response needn't be closed. Use {@link #execute(Request)} to stream
+     * large bodies instead.
+     * <p>
+     * The future is completed on the engine's thread, so stages chained to
+     * it with the non-{@code Async} methods of {@code CompletableFuture} must
+     * not block. Proxies, proxy credentials and the {@link RetryPolicy} are
+     * handled as by {@link #execute(Request)}, except that SOCKS proxies
+     * aren't supported. If the request fails, the future is completed
+     * exceptionally with an {@link HttpException}.
+     *
+     * @param request the REST request
+     * @return a future completed with the server's response
+     * @throws IllegalArgumentException if HTTPS is required, but the end-point is HTTP.
+     */
+    public CompletableFuture<Response> executeAsync(Request request) {
+    	if (request.isHttpsRequired() && !isSecure()) {
+    		throw new IllegalArgumentException(
+    				"Request required HTTPS connection for HTTP end-point.");
+    	}
+    	
+    	AsyncCall call = new AsyncCall(request);
+    	if (call.retries != null) {
+    		call.retries.deposit();
+    	}
+    	long start = call.metrics == null ? 0L : System.nanoTime();
+    	ByteBuffer body;
+    	Prepared prepared;
     	try {
-	    	StringBuilder params = new StringBuilder();
-	        char join = '?';
-	        for (Map.Entry<String, String> param : request.getParams().entrySet()) {
-	        	params.append(join).append(encodeParam(param.getKey(), param.getValue()));
-	        	join = '&';
-	        }
-	        
-	        String path = request.getPath().absolutize().toString();
-	        URL serviceURL = new URL(service, path + params.toString());
-	        HttpURLConnection conn = (HttpURLConnection) serviceURL.openConnection();
-	
-	        conn.setRequestMethod(request.getMethod().getValue());
-	
+    		prepared = new Prepared(request);
+    		BodyBuffer buffer = new BodyBuffer(prepared.length);
+    		if (prepared.length != 0) {
+    			prepared.body.writeTo(buffer);
+    		}
+    		if (prepared.length > 0 && buffer.size() != prepared.length) {
+    			throw new IOException("Request body was " + buffer.size() +
+    					" bytes, but Content-Length was " + prepared.length);
+    		}
+    		body = buffer.toByteBuffer();
+    	} catch (IOException ioe) {
+    		if (call.metrics != null) {
+    			call.metrics.requestFailed(call.service, call.method, System.nanoTime() - start, ioe);
+    		}
+    		call.future.completeExceptionally(new HttpException(ioe));
+    		return call.future;
+    	}
+    	
+    	call.exchange = new NioEngine.Exchange(secure, host, port, call.method, call.target,
+    			prepared.headers, body, prepared.decode);
+    	call.send();
+    	return call.future;
+    }
+
+    // Sends a request once, on a pooled connection.
+    private Response send(Request request, MetricsListener metrics, String service, long start,
+    		String method, String target, Map<String, String> headers, boolean decode,
+    		StreamingBody body, long length) throws IOException {
+    	// A pooled connection may have been closed by the server while it
+    	// sat idle. If so, we retry once on a fresh connection, as long as
+    	// the body can be sent again (ie. it isn't a one-shot stream).
+    	boolean retry = request.isReplayable();
+    	boolean authenticate = request.isReplayable();
+    	while (true) {
+    		HttpConnection conn = pool.acquire(secure, host, port);
+    		Response response = null;
+    		try {
+    			conn.beginExchange(metrics, service);
+    			conn.writeRequest(method, target, headers, body, length);
+    			// Once its body has been read, the connection goes back to the
+    			// pool, and may be in use by another request.
+    			long sent = conn.getBytesSent();
+    			response = conn.readResponse(decode);
+    			// A proxy that wants credentials gets the request again, once
+    			// the default Authenticator has given some.
+    			if (response.getStatusCode() == 407 && authenticate &&
+    					conn.authenticateProxy(response.getHeader("Proxy-Authenticate"))) {
+    				authenticate = false;
+    				closeQuietly(response);
+    				continue;
+    			}
+    			if (metrics != null) {
+    				metrics.requestCompleted(service, method, response.getStatusCode(),
+    						System.nanoTime() - start, sent);
+    			}
+    			// A response without a body frees its connection straight
+    			// away, reporting the bytes received after the request.
+    			if (HttpConnection.hasEmptyBody(response.getStatusCode(),
+    					response.getHeader("Transfer-Encoding"), response.getHeader("Content-Length"))) {
+    				closeQuietly(response);
+    			}
+    			return response;
+    		} catch (IOException ioe) {
+    			if (response != null) {
+    				abandon(response);
+    				throw ioe;
+    			}
+    			pool.release(conn, false);
+    			if (retry && conn.isReused() && !conn.isResponseStarted()) {
+    				retry = false;
+    				continue;
+    			}
+    			throw ioe;
+    		} catch (RuntimeException re) {
+    			// Eg. thrown by the metrics listener or the body. The caller
+    			// never sees the response, so its connection is freed here.
+    			if (response == null) {
+    				pool.release(conn, false);
+    			} else {
+    				abandon(response);
+    			}
+    			throw re;
+    		}
+    	}
+    }
+
+    // Reports a retry, then waits out its delay.
+    private static void retry(MetricsListener metrics, String service, String method,
+    		int attempt, int status, long delayNanos) throws HttpException {
+    	if (metrics != null) {
+    		metrics.requestRetried(service, method, attempt + 1, status);
+    	}
+    	try {
+    		TimeUnit.NANOSECONDS.sleep(delayNanos);
+    	} catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		throw new HttpException(new InterruptedIOException(
+    				"Interrupted while waiting to retry a request."));
+    	}
+    }
+
+    // Discards the body of a response that won't be used, which returns its
+    // connection to the pool if the body is small.
+    private static void closeQuietly(Response response) {
+    	try {
+    		response.getData().close();
+    	} catch (IOException ioe) {
+    		// The connection has been dropped; nothing more to do.
+    	}
+    }
+
+    // Frees the connection of a response that won't be returned, without
+    // hiding the exception that caused it to be abandoned.
+    private static void abandon(Response response) {
+    	try {
+    		response.getData().close();
+    	} catch (IOException ioe) {
+    		// The connection has been dropped; nothing more to do.
+    	} catch (RuntimeException re) {
+    		// The connection has still been released; see HttpConnection.
+    	}
+    }
+
+    // The service a request is made to is the first segment of its path, eg.
+    // "ingest" for /ingest/v1/fs/foo?apiKey=...
+    private static String serviceOf(String target) {
+    	int start = target.startsWith("/") ? 1 : 0;
+    	int end = start;
+    	while (end < target.length() && target.charAt(end) != '/' && target.charAt(end) != '?') {
+    		end++;
+    	}
+    	return target.substring(start, end);
+    }
+
+    // The encoded target of a request: its absolute path and query string.
+    private static String targetOf(Request request) {
+    	String target = request.getTarget();
+    	if (target == null) {
+    		target = RequestTemplate.encodeTarget(request.getPath(), request.getParams());
+    	}
+    	return target;
+    }
+
+    // The headers and (possibly compressed) body a request is sent with.
+    private final class Prepared {
+    	final Map<String, String> headers = new LinkedHashMap<String, String>();
+    	final boolean decode;
+    	final StreamingBody body;
+    	final long length;
+    	
+    	Prepared(Request request) throws IOException {
+	        // Ask for a compressed response, unless the caller has asked for a
+	        // particular encoding, in which case they get the body as is.
+	        boolean decode = true;
+	        headers.put("Host", hostHeader);
 	        for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
-	            conn.setRequestProperty(e.getKey(), e.getValue());
-	        }
-	        conn.setRequestProperty("Content-Type", request.getContentType().getType());
-	
-	        if (request.getContentLength() != 0) {
-	        	InputStream in = request.getBody();
-	        	try {
-	        		long length = request.getContentLength();
-	        		if (length < 0) {
-	        			conn.setChunkedStreamingMode(CHUNK_SIZE);
-	        		} else {
-	        			conn.setRequestProperty("Content-Length", "" + length);
-	        			conn.setFixedLengthStreamingMode(length);
-	        		}
-		        	
-		            conn.setDoOutput(true);
-		            OutputStream out = conn.getOutputStream();
-		            try {
-		            	byte[] chunk = new byte[CHUNK_SIZE];
-		            	int chunkSize = 0;
-		            	while ((chunkSize = in.read(chunk)) >= 0) {
-		            		out.write(chunk, 0, chunkSize);
-		            	}
-		            } finally {
-		            	out.close();
-		            }
-	        	} finally {
-	        		in.close();
+	        	headers.put(e.getKey(), e.getValue());
+	        	if (e.getKey().equalsIgnoreCase("Accept-Encoding")) {
+	        		decode = false;
 	        	}
 	        }
+	        if (decode) {
+	        	headers.put("Accept-Encoding", ACCEPT_ENCODING);
+	        }
+	        headers.put("Content-Type", request.getContentType().getType());
+	        this.decode = decode;
 	        
-	        return new Response(conn);
-    	} catch (IOException ioe) {
-    		throw new HttpException(ioe);
+	        StreamingBody body = new RequestBody(request);
+	        long length = request.getContentLength();
+	        Compression compression = request.getCompression();
+	        if (length != 0 && compression != null && compression.appliesTo(length)) {
+	        	headers.put("Content-Encoding", compression.getContentEncoding());
+	        	body = compression.compress(request, length);
+	        	length = body.getContentLength();
+	        }
+	        this.body = body;
+	        this.length = length;
     	}
     }
+
+    /**
+     * Sends a request through the pool's engine, retrying it as the retry
+     * policy allows, and completes its future with the outcome of the last
+     * attempt. Called back on the engine's thread.
+     */
+    private class AsyncCall implements NioEngine.Callback {
+    	final CompletableFuture<Response> future = new CompletableFuture<Response>();
+    	final MetricsListener metrics = Rest.this.metrics;
+    	final RetryPolicy.Budget retries = Rest.this.retries;
+    	final String method;
+    	final String target;
+    	final String service;
+    	private final RetryPolicy policy;
+    	private final boolean retryable;
+    	NioEngine.Exchange exchange;
+    	private int attempt = 0;
+    	private long start;
+    	
+    	AsyncCall(Request request) {
+    		this.policy = retries == null ? null : retries.getPolicy();
+    		this.retryable = policy != null && policy.canRetry(request);
+    		this.method = request.getMethod().getValue();
+    		this.target = targetOf(request);
+    		this.service = metrics == null ? null : serviceOf(target);
+    	}
+    	
+    	void send() {
+    		start = metrics == null ? 0L : System.nanoTime();
+    		pool.execute(exchange, this);
+    	}
+    	
+    	public void completed(Response response, long bytesSent, long bytesReceived) {
+    		int status = response.getStatusCode();
+    		try {
+    			if (metrics != null) {
+    				metrics.requestCompleted(service, method, status, System.nanoTime() - start,
+    						bytesSent);
+    				metrics.responseRead(service, bytesReceived);
+    			}
+    		} catch (RuntimeException re) {
+    			future.completeExceptionally(re);
+    			return;
+    		}
+    		if (!hasMoreAttempts() || !policy.retriesStatus(status) || !retries.withdraw()) {
+    			future.complete(response);
+    			return;
+    		}
+    		retry(status, policy.delayNanos(attempt, response.getHeader("Retry-After")));
+    	}
+    	
+    	public void failed(IOException ioe) {
+    		try {
+    			if (metrics != null) {
+    				metrics.requestFailed(service, method, System.nanoTime() - start, ioe);
+    			}
+    		} catch (RuntimeException re) {
+    			future.completeExceptionally(re);
+    			return;
+    		}
+    		if (!hasMoreAttempts() || !retries.withdraw()) {
+    			future.completeExceptionally(new HttpException(ioe));
+    			return;
+    		}
+    		retry(-1, policy.delayNanos(attempt, null));
+    	}
+    	
+    	public boolean isCancelled() {
+    		return future.isDone();
+    	}
+    	
+    	private boolean hasMoreAttempts() {
+    		return retryable && attempt + 1 < policy.getMaxAttempts();
+    	}
+    	
+    	private void retry(int status, long delayNanos) {
+    		try {
+    			if (metrics != null) {
+    				metrics.requestRetried(service, method, attempt + 1, status);
+    			}
+    		} catch (RuntimeException re) {
+    			future.completeExceptionally(re);
+    			return;
+    		}
+    		attempt++;
+    		pool.schedule(new Runnable() {
+    			public void run() {
+    				send();
+    			}
+    		}, delayNanos);
+    	}
+    }
+
+    // A request body read into memory, which is sent without copying it again.
+    private static class BodyBuffer extends ByteArrayOutputStream {
+    	BodyBuffer(long length) {
+    		super(length > 0 ? (int) Math.min(length, Integer.MAX_VALUE - 8) : 256);
+    	}
+    	
+    	ByteBuffer toByteBuffer() {
+    		return ByteBuffer.wrap(buf, 0, count);
+    	}
+    }
+
+    // Sends the body of a request as is.
+    private static class RequestBody implements StreamingBody {
+    	private final Request request;
+
+    	RequestBody(Request request) {
+    		this.request = request;
+    	}
+
+		public long getContentLength() throws IOException {
+			return request.getContentLength();
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			request.writeBody(out);
+		}
+    }
 }
@@ -0,0 +1,228 @@
+package com.precog.client.rest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When and how often {@link Rest} retries a request that failed in a way
+ * that is likely to be transient: an {@code IOException} (eg. a connection
+ * reset), or one of the statuses {@code 502}, {@code 503} or {@code 504}.
+ * Retries are off unless a {@code Rest} (or {@code PrecogClient}) is given
+ * one of these.
+ * <p>
+ * Only requests whose body can be sent again are retried: requests without
+ * a body, such as queries and deletes, and requests whose body is a string,
+ * byte array, file or a {@link StreamingBody} that is
+ * {@link StreamingBody#isReplayable() replayable}. Requests whose body is an
+ * {@code InputStream} are sent once. Note that retrying an append whose
+ * response was lost may ingest its records twice.
+ * <p>
+ * Attempts are spaced out by a {@link Backoff}. If the server sends a
+ * {@code Retry-After} header (in seconds), the wait is at least that long,
+ * up to the backoff's maximum delay.
+ * <p>
+ * Retries are also limited by a budget shared by all the requests made
+ * through a {@code Rest}, so that a server that is down isn't hit with
+ * several times the usual load: each request adds {@code budgetRatio}
+ * retries to the budget, up to {@code maxBudget}, and each retry uses one.
+ * With the defaults, retries can add at most 20% to the requests made, plus
+ * a burst of 10.
+ * <p>
+ * Instances are immutable, eg:
+ * <pre>
+ * {@code
+ * RetryPolicy.defaults().withMaxAttempts(5).withBackoff(backoff)
+ * }
+ * </pre>
+ */
+public final class RetryPolicy {
+
+	/** The default number of attempts made at a request, including the first. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/** The default backoff: from 100ms, doubling up to 5s. */
+	public static final Backoff DEFAULT_BACKOFF =
+			Backoff.exponential(100L, 5000L, TimeUnit.MILLISECONDS);
+
+	/** The default number of retries each request adds to the budget. */
+	public static final double DEFAULT_BUDGET_RATIO = 0.2;
+
+	/** The default largest number of retries the budget can hold. */
+	public static final int DEFAULT_MAX_BUDGET = 10;
+
+	private static final int[] RETRY_STATUSES = { 502, 503, 504 };
+
+	private final int maxAttempts;
+	private final Backoff backoff;
+	private final double budgetRatio;
+	private final int maxBudget;
+	private final int[] statuses;
+
+	private RetryPolicy(int maxAttempts, Backoff backoff, double budgetRatio, int maxBudget,
+			int[] statuses) {
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+		this.budgetRatio = budgetRatio;
+		this.maxBudget = maxBudget;
+		this.statuses = statuses;
+	}
+
+	/** Returns a policy with the default attempts, backoff and budget. */
+	public static RetryPolicy defaults() {
+		return new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF, DEFAULT_BUDGET_RATIO,
+				DEFAULT_MAX_BUDGET, RETRY_STATUSES);
+	}
+
+	/**
+	 * Returns a copy of this policy that makes at most {@code maxAttempts}
+	 * attempts at a request, including the first.
+	 */
+	public RetryPolicy withMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive");
+		}
+		return new RetryPolicy(maxAttempts, backoff, budgetRatio, maxBudget, statuses);
+	}
+
+	/** Returns a copy of this policy that waits between attempts per {@code backoff}. */
+	public RetryPolicy withBackoff(Backoff backoff) {
+		if (backoff == null) {
+			throw new IllegalArgumentException("backoff must not be null");
+		}
+		return new RetryPolicy(maxAttempts, backoff, budgetRatio, maxBudget, statuses);
+	}
+
+	/**
+	 * Returns a copy of this policy whose budget gains {@code ratio} retries
+	 * per request, and holds at most {@code max} retries.
+	 */
+	public RetryPolicy withBudget(double ratio, int max) {
+		if (!(ratio >= 0.0) || max < 0) {
+			throw new IllegalArgumentException("Invalid retry budget.");
+		}
+		return new RetryPolicy(maxAttempts, backoff, ratio, max, statuses);
+	}
+
+	/**
+	 * Returns a copy of this policy that retries responses with any of the
+	 * HTTP statuses {@code statuses}, instead of 502, 503 and 504.
+	 */
+	public RetryPolicy withRetryStatuses(int... statuses) {
+		int[] copy = statuses.clone();
+		Arrays.sort(copy);
+		return new RetryPolicy(maxAttempts, backoff, budgetRatio, maxBudget, copy);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public Backoff getBackoff() {
+		return backoff;
+	}
+
+	public double getBudgetRatio() {
+		return budgetRatio;
+	}
+
+	public int getMaxBudget() {
+		return maxBudget;
+	}
+
+	/** Returns true if {@code request} may be retried at all. */
+	public boolean canRetry(Request request) {
+		return maxAttempts > 1 && request.isReplayable();
+	}
+
+	/** Returns true if a response with the HTTP status {@code status} is retried. */
+	public boolean retriesStatus(int status) {
+		for (int s : statuses) {
+			if (s == status) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns how long to wait, in nanoseconds, after attempt number
+	 * {@code attempt} (from 0) failed. {@code retryAfter} is the value of
+	 * the response's {@code Retry-After} header, or {@code null}.
+	 */
+	long delayNanos(int attempt, String retryAfter) {
+		long delay = backoff.delayNanos(attempt);
+		if (retryAfter != null) {
+			try {
+				long seconds = Long.parseLong(retryAfter.trim());
+				delay = Math.max(delay, Math.min(TimeUnit.SECONDS.toNanos(seconds),
+						backoff.getMaxNanos()));
+			} catch (NumberFormatException nfe) {
+				// An HTTP date; not worth parsing.
+			}
+		}
+		return delay;
+	}
+
+	/** Creates a new, full budget for this policy. */
+	Budget newBudget() {
+		return new Budget(this);
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy(maxAttempts=" + maxAttempts + ", backoff=" + backoff +
+				", budget=" + budgetRatio + "/" + maxBudget +
+				", statuses=" + Arrays.toString(statuses) + ")";
+	}
+
+	/**
+	 * The retries available to requests. Counts thousandths of a retry, so a
+	 * fractional ratio can be added atomically.
+	 */
+	static final class Budget {
+		private static final long RETRY = 1000L;
+
+		private final RetryPolicy policy;
+		private final long deposit;
+		private final long max;
+		private final AtomicLong balance;
+
+		Budget(RetryPolicy policy) {
+			this.policy = policy;
+			this.deposit = (long) (policy.budgetRatio * RETRY);
+			this.max = policy.maxBudget * RETRY;
+			this.balance = new AtomicLong(this.max);
+		}
+
+		RetryPolicy getPolicy() {
+			return policy;
+		}
+
+		/** Called once per request. */
+		void deposit() {
+			if (deposit == 0L) {
+				return;
+			}
+			long current;
+			do {
+				current = balance.get();
+				if (current >= max) {
+					return;
+				}
+			} while (!balance.compareAndSet(current, Math.min(current + deposit, max)));
+		}
+
+		/** Returns true, and uses up a retry, if there's one to spare. */
+		boolean withdraw() {
+			long current;
+			do {
+				current = balance.get();
+				if (current < RETRY) {
+					return false;
+				}
+			} while (!balance.compareAndSet(current, current - RETRY));
+			return true;
+		}
+	}
+}
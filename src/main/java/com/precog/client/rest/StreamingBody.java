@@ -0,0 +1,42 @@
+package com.precog.client.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body that writes itself directly to the connection, rather than
+ * being read from an {@code InputStream}. This lets a body be generated on
+ * the fly (eg. serialized records) without first being buffered or copied.
+ * <p>
+ * A body is sent once unless {@link #isReplayable()} says otherwise, in which
+ * case {@link #writeTo(OutputStream)} may be called again, if the request has
+ * to be resent, and must write the same body each time.
+ *
+ * @see RequestBuilder#setBody(StreamingBody)
+ */
+public interface StreamingBody {
+
+	/**
+	 * Returns the length of the body in bytes, or a value less than 0 if it
+	 * isn't known in advance, in which case chunked encoding is used.
+	 */
+	public long getContentLength() throws IOException;
+
+	/**
+	 * Writes the entire body to {@code out}. This must not close {@code out}.
+	 *
+	 * @param out the stream to write the body to
+	 * @throws IOException if the body cannot be written
+	 */
+	public void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * Returns true if {@link #writeTo(OutputStream)} writes the same body
+	 * every time it is called, so the request can be retried. This is false
+	 * by default, as a body generated from, say, an iterator can only be
+	 * written once.
+	 */
+	public default boolean isReplayable() {
+		return false;
+	}
+}
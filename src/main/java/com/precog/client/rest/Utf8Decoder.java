@@ -0,0 +1,122 @@
+package com.precog.client.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a UTF-8 stream straight into a {@code StringBuilder}, through a
+ * buffer borrowed from a {@link BufferPool}, rather than going through an
+ * {@code InputStreamReader} and its own byte and char buffers.
+ * <p>
+ * Each malformed sequence is decoded as U+FFFD, as {@code new String(bytes,
+ * "UTF-8")} does. A sequence split between two reads is decoded once the
+ * rest of it has been read.
+ */
+final class Utf8Decoder {
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private Utf8Decoder() {
+	}
+
+	/**
+	 * Appends at most {@code maxBytes} bytes of {@code in}, decoded, to
+	 * {@code out}. Returns false if the stream held more than
+	 * {@code maxBytes} bytes, and so was cut short; finding out reads (and
+	 * drops) one more byte.
+	 */
+	static boolean decode(InputStream in, StringBuilder out, long maxBytes) throws IOException {
+		BufferPool pool = BufferPool.getDefault();
+		byte[] buffer = pool.acquire();
+		try {
+			long remaining = maxBytes;
+			int count = 0;
+			boolean eof = false;
+			while (!eof) {
+				int n = remaining <= 0 ? -1 :
+						in.read(buffer, count, (int) Math.min(buffer.length - count, remaining));
+				if (n < 0) {
+					eof = true;
+				} else {
+					count += n;
+					remaining -= n;
+				}
+				int used = decode(buffer, count, out, eof);
+				// Move the start of a split sequence to the front.
+				count -= used;
+				System.arraycopy(buffer, used, buffer, 0, count);
+			}
+			return remaining > 0 || in.read() < 0;
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	// Decodes bytes[0, len), returning the number of bytes used. Unless at
+	// the end of the input, a sequence that runs past len is left for later.
+	private static int decode(byte[] bytes, int len, StringBuilder out, boolean eof) {
+		int i = 0;
+		while (i < len) {
+			int b = bytes[i];
+			if (b >= 0) {
+				out.append((char) b);
+				i++;
+				continue;
+			}
+			// The length of the sequence, and the range of its second byte,
+			// which rules out overlong forms and code points past U+10FFFF.
+			int lead = b & 0xFF;
+			int need;
+			int lo = 0x80;
+			int hi = 0xBF;
+			if (lead >= 0xC2 && lead <= 0xDF) {
+				need = 2;
+			} else if (lead >= 0xE0 && lead <= 0xEF) {
+				need = 3;
+				if (lead == 0xE0) {
+					lo = 0xA0;
+				}
+			} else if (lead >= 0xF0 && lead <= 0xF4) {
+				need = 4;
+				if (lead == 0xF0) {
+					lo = 0x90;
+				} else if (lead == 0xF4) {
+					hi = 0x8F;
+				}
+			} else {
+				out.append(REPLACEMENT);
+				i++;
+				continue;
+			}
+			if (i + need > len && !eof) {
+				break;
+			}
+			int c = lead & (0x3F >> (need - 1));
+			int j = 1;
+			for (; j < need && i + j < len; j++) {
+				int cont = bytes[i + j] & 0xFF;
+				if (cont < lo || cont > hi) {
+					break;
+				}
+				c = (c << 6) | (cont & 0x3F);
+				lo = 0x80;
+				hi = 0xBF;
+			}
+			if (j < need) {
+				// The valid start of a sequence is replaced as a whole.
+				out.append(REPLACEMENT);
+				i += j;
+			} else if (need == 3 && Character.isSurrogate((char) c)) {
+				// The JDK replaces an encoded surrogate as a whole, too.
+				out.append(REPLACEMENT);
+				i += 3;
+			} else if (need == 4) {
+				out.append(Character.highSurrogate(c)).append(Character.lowSurrogate(c));
+				i += 4;
+			} else {
+				out.append((char) c);
+				i += need;
+			}
+		}
+		return i;
+	}
+}
@@ -1,11 +1,18 @@
 package com.precog.json;
 
+import java.io.IOException;
+
 /**
  * A simple strategy interface that can be implemented to provide deserialization
  * from a JSON string to an arbitrary value type.
  *
  * @author Kris Nuttycombe
  */
-public interface FromJson<T> {
+public interface FromJson<T> extends FromJsonReader<T> {
 	public T deserialize(String json);	
+
+	/** Deserializes the JSON encoding of the next value in {@code in}. */
+	public default T read(JsonInput in) throws IOException {
+		return deserialize(in.nextJson());
+	}
 }
@@ -0,0 +1,24 @@
+package com.precog.json;
+
+import java.io.IOException;
+
+/**
+ * A strategy interface for deserializing values of arbitrary types by
+ * reading them straight from a {@link JsonInput}, such as the response to a
+ * query, rather than from a {@code String} per value.
+ * <p>
+ * Every {@link FromJson} is also a {@code FromJsonReader}, which reads the
+ * value as a string and deserializes that.
+ */
+public interface FromJsonReader<T> {
+
+	/**
+	 * Reads a single value from {@code in}, which is positioned at its start,
+	 * and consumes all of it.
+	 *
+	 * @param in the JSON to read from
+	 * @return the value read
+	 * @throws IOException if {@code in} does, or the value is malformed
+	 */
+	public T read(JsonInput in) throws IOException;
+}
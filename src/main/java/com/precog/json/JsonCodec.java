@@ -0,0 +1,36 @@
+package com.precog.json;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose JSON codec should be generated at compile time, so it
+ * can be serialized and deserialized without reflection.
+ * <p>
+ * With the {@code precog-java-client-codegen} annotation processor on the
+ * compiler's class path, a class {@code Foo} annotated with
+ * {@code @JsonCodec} gets a generated class {@code Foo$JsonCodec}, in the
+ * same package, that implements both {@link ToJson ToJson&lt;Foo&gt;} and
+ * {@link FromJson FromJson&lt;Foo&gt;}. {@link com.precog.client.PrecogClient}
+ * finds and uses these codecs automatically wherever it would otherwise use
+ * Gson's reflection: appending objects, {@code QueryResult.get(int, Class)}
+ * and {@code queryStream(String, String, Class)}.
+ * <p>
+ * The generated codecs read and write the same JSON as Gson does by default:
+ * every non-static, non-transient field, including inherited fields, named
+ * as declared (or by Gson's {@code @SerializedName}), with {@code null}
+ * fields left out. Fields may be primitives or their wrappers, strings,
+ * enums, {@code BigDecimal}s, {@code BigInteger}s, other {@code @JsonCodec}
+ * classes, arrays, collections and {@code String}-keyed maps of these.
+ * Private fields are accessed through their bean getters and setters. The
+ * class needs a constructor without arguments that isn't private, and can't
+ * be generic.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JsonCodec {
+}
@@ -0,0 +1,80 @@
+package com.precog.json;
+
+import java.io.IOException;
+
+/**
+ * A pull parser over a stream of JSON, such as the response to a query,
+ * from which a {@link FromJsonReader} reads a value token by token.
+ * <p>
+ * The methods mirror the tokens of JSON: {@link #peek()} returns the type of
+ * the next token, and each {@code next}, {@code begin} or {@code end} method
+ * consumes a token of its type, throwing an {@code IOException} (or an
+ * {@code IllegalStateException}) if the next token is of another type.
+ */
+public interface JsonInput {
+
+	/** The types of token in a JSON stream. */
+	public static enum Token {
+		BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER,
+		BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	/** Returns the type of the next token, without consuming it. */
+	public Token peek() throws IOException;
+
+	/** Consumes the {@code [} that begins an array. */
+	public void beginArray() throws IOException;
+
+	/** Consumes the {@code ]} that ends an array. */
+	public void endArray() throws IOException;
+
+	/** Consumes the <code>{</code> that begins an object. */
+	public void beginObject() throws IOException;
+
+	/** Consumes the <code>}</code> that ends an object. */
+	public void endObject() throws IOException;
+
+	/**
+	 * Returns {@code true} if the array or object being read has another
+	 * element or member.
+	 */
+	public boolean hasNext() throws IOException;
+
+	/** Consumes the name of the next member of an object, and returns it. */
+	public String nextName() throws IOException;
+
+	/**
+	 * Consumes a string and returns it. A number is returned as its text.
+	 */
+	public String nextString() throws IOException;
+
+	/** Consumes a boolean and returns it. */
+	public boolean nextBoolean() throws IOException;
+
+	/** Consumes a {@code null}. */
+	public void nextNull() throws IOException;
+
+	/** Consumes a number and returns it as a {@code double}. */
+	public double nextDouble() throws IOException;
+
+	/**
+	 * Consumes a number and returns it as a {@code long}, throwing a
+	 * {@code NumberFormatException} if it isn't one.
+	 */
+	public long nextLong() throws IOException;
+
+	/**
+	 * Consumes a number and returns it as an {@code int}, throwing a
+	 * {@code NumberFormatException} if it isn't one.
+	 */
+	public int nextInt() throws IOException;
+
+	/**
+	 * Consumes the next value, whatever its type, and returns its JSON
+	 * encoding. This is how a {@link FromJson} is given a value to decode.
+	 */
+	public String nextJson() throws IOException;
+
+	/** Consumes the next value, whatever its type, and discards it. */
+	public void skipValue() throws IOException;
+}
@@ -0,0 +1,119 @@
+package com.precog.json;
+
+import java.io.IOException;
+
+/**
+ * Helpers for writing JSON text by hand, eg. from a {@link ToJsonWriter}.
+ * These are also used by the codecs generated for {@link JsonCodec} classes.
+ */
+public final class JsonText {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private JsonText() {
+	}
+
+	/**
+	 * Writes {@code s} to {@code out} as a quoted JSON string, escaping
+	 * quotes, backslashes and control characters. A {@code null} is written
+	 * as {@code null}.
+	 *
+	 * @param s the string to write
+	 * @param out where to write it
+	 * @throws IOException if {@code out} throws one
+	 */
+	public static void writeString(CharSequence s, Appendable out) throws IOException {
+		if (s == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		int len = s.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') {
+				continue;
+			}
+			// Write the run of plain characters before c in one go.
+			if (i > start) {
+				out.append(s, start, i);
+			}
+			start = i + 1;
+			switch (c) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			case '\b': out.append("\\b"); break;
+			case '\f': out.append("\\f"); break;
+			default:
+				out.append("\\u")
+					.append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+					.append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+			}
+		}
+		if (len > start) {
+			out.append(s, start, len);
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Writes {@code n} to {@code out} as a JSON number, without creating a
+	 * {@code String}.
+	 *
+	 * @param n the number to write
+	 * @param out where to write it
+	 * @throws IOException if {@code out} throws one
+	 */
+	public static void writeNumber(long n, Appendable out) throws IOException {
+		if (n == Long.MIN_VALUE) {
+			out.append("-9223372036854775808");
+			return;
+		}
+		if (n < 0) {
+			out.append('-');
+			n = -n;
+		}
+		long div = 1;
+		while (n / div >= 10) {
+			div *= 10;
+		}
+		for (; div > 0; div /= 10) {
+			out.append((char) ('0' + n / div % 10));
+		}
+	}
+
+	/**
+	 * Writes {@code n} to {@code out} as a JSON number, as Gson does.
+	 *
+	 * @param n the number to write
+	 * @param out where to write it
+	 * @throws IOException if {@code out} throws one
+	 * @throws IllegalArgumentException if {@code n} is NaN or infinite,
+	 *         which JSON can't represent
+	 */
+	public static void writeNumber(double n, Appendable out) throws IOException {
+		if (Double.isNaN(n) || Double.isInfinite(n)) {
+			throw new IllegalArgumentException("Numeric values must be finite, but was " + n);
+		}
+		out.append(Double.toString(n));
+	}
+
+	/**
+	 * Writes {@code n} to {@code out} as a JSON number, as Gson does.
+	 *
+	 * @param n the number to write
+	 * @param out where to write it
+	 * @throws IOException if {@code out} throws one
+	 * @throws IllegalArgumentException if {@code n} is NaN or infinite,
+	 *         which JSON can't represent
+	 */
+	public static void writeNumber(float n, Appendable out) throws IOException {
+		if (Float.isNaN(n) || Float.isInfinite(n)) {
+			throw new IllegalArgumentException("Numeric values must be finite, but was " + n);
+		}
+		out.append(Float.toString(n));
+	}
+}
@@ -0,0 +1,623 @@
+package com.precog.json;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * A small, strict {@link JsonInput} that reads JSON text from a
+ * {@code Reader}. It is what the client uses to read the bodies of the
+ * service's responses, so that it doesn't need Gson (or reflection) for
+ * anything but mapping the application's own objects.
+ * <p>
+ * Strings without escapes are created straight from the read buffer, and
+ * integers are parsed without creating a {@code String} at all. A number
+ * read with {@link #nextString()} keeps its exact text. Like Gson, the
+ * number methods also accept a string holding a number.
+ * <p>
+ * A document that is empty, or that holds several values separated by
+ * whitespace, is read without complaint; {@link #peek()} returns
+ * {@link JsonInput.Token#END_DOCUMENT END_DOCUMENT} after the last value.
+ * Syntax errors are thrown as {@code IOException}s, and calls for the wrong
+ * type of token as {@code IllegalStateException}s.
+ */
+public final class JsonTextReader implements JsonInput, Closeable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	// What the reader is in the middle of.
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private final Reader in;
+	private final char[] buf;
+	private int pos = 0;
+	private int limit = 0;
+	// The number of chars read before the start of buf.
+	private long offset = 0L;
+
+	private int[] stack = new int[16];
+	private int depth = 1;
+
+	// The next token, if it has been peeked. Its first char (eg. the opening
+	// quote of a string) has been consumed, except for numbers.
+	private Token peeked = null;
+	private boolean peekedBoolean;
+
+	private StringBuilder text;
+
+	/** Creates a reader of the JSON text read from {@code in}. */
+	public JsonTextReader(Reader in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Creates a reader of the JSON text {@code json}. */
+	public JsonTextReader(String json) {
+		this(new StringReader(json), Math.max(16, Math.min(json.length(), DEFAULT_BUFFER_SIZE)));
+	}
+
+	private JsonTextReader(Reader in, int bufferSize) {
+		this.in = in;
+		this.buf = new char[bufferSize];
+		this.stack[0] = EMPTY_DOCUMENT;
+	}
+
+	public Token peek() throws IOException {
+		if (peeked != null) {
+			return peeked;
+		}
+		int scope = stack[depth - 1];
+		int c;
+		switch (scope) {
+		case EMPTY_ARRAY:
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			c = nextNonSpace();
+			if (c == ']') {
+				return peeked(Token.END_ARRAY);
+			}
+			pos--;
+			break;
+		case NONEMPTY_ARRAY:
+			c = nextNonSpace();
+			if (c == ']') {
+				return peeked(Token.END_ARRAY);
+			} else if (c != ',') {
+				throw syntaxError(c, "',' or ']'");
+			}
+			break;
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonSpace();
+			if (c == '}') {
+				return peeked(Token.END_OBJECT);
+			}
+			if (scope == NONEMPTY_OBJECT) {
+				if (c != ',') {
+					throw syntaxError(c, "',' or '}'");
+				}
+				c = nextNonSpace();
+			}
+			if (c != '"') {
+				throw syntaxError(c, "a name");
+			}
+			stack[depth - 1] = DANGLING_NAME;
+			return peeked(Token.NAME);
+		case DANGLING_NAME:
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			c = nextNonSpace();
+			if (c != ':') {
+				throw syntaxError(c, "':'");
+			}
+			break;
+		default:
+			// Between top-level values.
+			c = nextNonSpaceOrEof();
+			if (c == -1) {
+				return peeked(Token.END_DOCUMENT);
+			}
+			stack[depth - 1] = NONEMPTY_DOCUMENT;
+			pos--;
+			break;
+		}
+
+		c = nextNonSpace();
+		switch (c) {
+		case '[':
+			return peeked(Token.BEGIN_ARRAY);
+		case '{':
+			return peeked(Token.BEGIN_OBJECT);
+		case '"':
+			return peeked(Token.STRING);
+		case 't':
+			expectLiteral("rue");
+			peekedBoolean = true;
+			return peeked(Token.BOOLEAN);
+		case 'f':
+			expectLiteral("alse");
+			peekedBoolean = false;
+			return peeked(Token.BOOLEAN);
+		case 'n':
+			expectLiteral("ull");
+			return peeked(Token.NULL);
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				pos--;
+				return peeked(Token.NUMBER);
+			}
+			throw syntaxError(c, "a value");
+		}
+	}
+
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+		depth--;
+	}
+
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+		depth--;
+	}
+
+	public boolean hasNext() throws IOException {
+		Token token = peek();
+		return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+	}
+
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		return readString();
+	}
+
+	public String nextString() throws IOException {
+		Token token = peek();
+		if (token == Token.STRING) {
+			peeked = null;
+			return readString();
+		} else if (token == Token.NUMBER) {
+			peeked = null;
+			return readNumber();
+		}
+		throw unexpected("a string", token);
+	}
+
+	public boolean nextBoolean() throws IOException {
+		expect(Token.BOOLEAN);
+		return peekedBoolean;
+	}
+
+	public void nextNull() throws IOException {
+		expect(Token.NULL);
+	}
+
+	public double nextDouble() throws IOException {
+		Token token = peek();
+		String number;
+		if (token == Token.NUMBER) {
+			peeked = null;
+			number = readNumber();
+		} else if (token == Token.STRING) {
+			peeked = null;
+			number = readString();
+		} else {
+			throw unexpected("a number", token);
+		}
+		double value = Double.parseDouble(number);
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			throw new NumberFormatException("JSON forbids NaN and infinities: " + number);
+		}
+		return value;
+	}
+
+	public long nextLong() throws IOException {
+		Token token = peek();
+		if (token == Token.STRING) {
+			peeked = null;
+			return toLong(readString());
+		} else if (token != Token.NUMBER) {
+			throw unexpected("a number", token);
+		}
+		peeked = null;
+
+		// Up to 18 digits can't overflow, and are parsed in place.
+		boolean negative = false;
+		long value = 0L;
+		int digits = 0;
+		int c = peekChar();
+		if (c == '-') {
+			negative = true;
+			pos++;
+			c = peekChar();
+		}
+		while (c >= '0' && c <= '9' && digits < 18) {
+			value = value * 10 + (c - '0');
+			digits++;
+			pos++;
+			c = peekChar();
+		}
+		if (digits > 0 && !isNumberChar(c)) {
+			return negative ? -value : value;
+		}
+		// Long, fractional or exponential: parse the whole text.
+		StringBuilder number = new StringBuilder(32);
+		if (negative) {
+			number.append('-');
+		}
+		if (digits > 0) {
+			number.append(value);
+		}
+		return toLong(number.append(readNumber()).toString());
+	}
+
+	public int nextInt() throws IOException {
+		long value = nextLong();
+		if (value != (int) value) {
+			throw new NumberFormatException("Expected an int but was " + value);
+		}
+		return (int) value;
+	}
+
+	public String nextJson() throws IOException {
+		StringBuilder json = new StringBuilder(64);
+		writeValue(json);
+		return json.toString();
+	}
+
+	public void skipValue() throws IOException {
+		int count = 0;
+		do {
+			Token token = peek();
+			switch (token) {
+			case BEGIN_ARRAY:
+				beginArray();
+				count++;
+				break;
+			case BEGIN_OBJECT:
+				beginObject();
+				count++;
+				break;
+			case END_ARRAY:
+				endArray();
+				count--;
+				break;
+			case END_OBJECT:
+				endObject();
+				count--;
+				break;
+			case NAME:
+			case STRING:
+				peeked = null;
+				skipString();
+				break;
+			case NUMBER:
+				peeked = null;
+				while (isNumberChar(peekChar())) {
+					pos++;
+				}
+				break;
+			case END_DOCUMENT:
+				throw new EOFException("Unexpected end of JSON" + location());
+			default:
+				peeked = null;
+				break;
+			}
+		} while (count != 0);
+	}
+
+	public void close() throws IOException {
+		peeked = null;
+		depth = 1;
+		stack[0] = NONEMPTY_DOCUMENT;
+		in.close();
+	}
+
+	@Override
+	public String toString() {
+		return "JsonTextReader" + location();
+	}
+
+	// Copies the next value to json, compactly.
+	private void writeValue(StringBuilder json) throws IOException {
+		int count = 0;
+		boolean first = true;
+		do {
+			Token token = peek();
+			if (!first && token != Token.END_ARRAY && token != Token.END_OBJECT) {
+				json.append(',');
+			}
+			first = false;
+			switch (token) {
+			case BEGIN_ARRAY:
+				beginArray();
+				json.append('[');
+				first = true;
+				count++;
+				break;
+			case BEGIN_OBJECT:
+				beginObject();
+				json.append('{');
+				first = true;
+				count++;
+				break;
+			case END_ARRAY:
+				endArray();
+				json.append(']');
+				count--;
+				break;
+			case END_OBJECT:
+				endObject();
+				json.append('}');
+				count--;
+				break;
+			case NAME:
+				JsonText.writeString(nextName(), json);
+				json.append(':');
+				first = true;
+				break;
+			case STRING:
+				JsonText.writeString(nextString(), json);
+				break;
+			case NUMBER:
+				json.append(nextString());
+				break;
+			case BOOLEAN:
+				json.append(nextBoolean() ? "true" : "false");
+				break;
+			case NULL:
+				nextNull();
+				json.append("null");
+				break;
+			default:
+				throw new EOFException("Unexpected end of JSON" + location());
+			}
+		} while (count != 0);
+	}
+
+	private Token peeked(Token token) {
+		peeked = token;
+		return token;
+	}
+
+	private void expect(Token expected) throws IOException {
+		Token token = peek();
+		if (token != expected) {
+			throw unexpected(expected.name(), token);
+		}
+		peeked = null;
+	}
+
+	private void push(int scope) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		stack[depth++] = scope;
+	}
+
+	// Reads the rest of a string whose opening quote has been consumed.
+	private String readString() throws IOException {
+		// Most strings have no escapes and fit in the buffer.
+		for (int i = pos; i < limit; i++) {
+			char c = buf[i];
+			if (c == '"') {
+				String s = new String(buf, pos, i - pos);
+				pos = i + 1;
+				return s;
+			} else if (c == '\\') {
+				break;
+			}
+		}
+
+		StringBuilder s = text();
+		while (true) {
+			int start = pos;
+			while (pos < limit) {
+				char c = buf[pos++];
+				if (c == '"') {
+					s.append(buf, start, pos - 1 - start);
+					return s.toString();
+				} else if (c == '\\') {
+					s.append(buf, start, pos - 1 - start);
+					s.append(readEscape());
+					start = pos;
+				}
+			}
+			s.append(buf, start, pos - start);
+			if (!fill()) {
+				throw new EOFException("Unterminated string" + location());
+			}
+		}
+	}
+
+	private void skipString() throws IOException {
+		while (true) {
+			while (pos < limit) {
+				char c = buf[pos++];
+				if (c == '"') {
+					return;
+				} else if (c == '\\') {
+					readEscape();
+				}
+			}
+			if (!fill()) {
+				throw new EOFException("Unterminated string" + location());
+			}
+		}
+	}
+
+	// Reads an escape sequence whose backslash has been consumed.
+	private char readEscape() throws IOException {
+		int c = nextChar();
+		switch (c) {
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int h = nextChar();
+				int digit = Character.digit(h, 16);
+				if (digit < 0) {
+					throw syntaxError(h, "a hex digit");
+				}
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError(c, "an escape sequence");
+		}
+	}
+
+	// Reads the text of the number at pos.
+	private String readNumber() throws IOException {
+		int start = pos;
+		while (pos < limit && isNumberChar(buf[pos])) {
+			pos++;
+		}
+		if (pos < limit) {
+			return new String(buf, start, pos - start);
+		}
+		// The number may continue past the buffer.
+		StringBuilder number = text().append(buf, start, pos - start);
+		for (int c = peekChar(); isNumberChar(c); c = peekChar()) {
+			number.append((char) c);
+			pos++;
+		}
+		return number.toString();
+	}
+
+	private static long toLong(String number) {
+		try {
+			return Long.parseLong(number);
+		} catch (NumberFormatException nfe) {
+			// Eg. 1.0 or 1e3, which are whole numbers. 2^63 would be
+			// clamped to Long.MAX_VALUE, which rounds back to it.
+			double value = Double.parseDouble(number);
+			long result = (long) value;
+			if (result != value || value >= 0x1p63) {
+				throw new NumberFormatException("Expected a long but was " + number);
+			}
+			return result;
+		}
+	}
+
+	private void expectLiteral(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			int c = nextChar();
+			if (c != rest.charAt(i)) {
+				throw syntaxError(c, "a value");
+			}
+		}
+		int c = peekChar();
+		if (c != -1 && !isDelimiter(c)) {
+			throw syntaxError(c, "a delimiter");
+		}
+	}
+
+	private int nextNonSpace() throws IOException {
+		int c = nextNonSpaceOrEof();
+		if (c == -1) {
+			throw new EOFException("Unexpected end of JSON" + location());
+		}
+		return c;
+	}
+
+	private int nextNonSpaceOrEof() throws IOException {
+		while (pos < limit || fill()) {
+			char c = buf[pos++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private int nextChar() throws IOException {
+		if (pos == limit && !fill()) {
+			throw new EOFException("Unexpected end of JSON" + location());
+		}
+		return buf[pos++];
+	}
+
+	// Returns the next char without consuming it, or -1 at the end.
+	private int peekChar() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buf[pos];
+	}
+
+	// Refills the (empty) buffer. Returns false at the end of the input.
+	private boolean fill() throws IOException {
+		offset += limit;
+		pos = 0;
+		limit = 0;
+		int n;
+		do {
+			n = in.read(buf, 0, buf.length);
+		} while (n == 0);
+		if (n < 0) {
+			return false;
+		}
+		limit = n;
+		return true;
+	}
+
+	private StringBuilder text() {
+		if (text == null) {
+			text = new StringBuilder(64);
+		} else {
+			text.setLength(0);
+		}
+		return text;
+	}
+
+	private static boolean isNumberChar(int c) {
+		return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+	}
+
+	private static boolean isDelimiter(int c) {
+		return c == ',' || c == ']' || c == '}' || c == ':' ||
+				c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private String location() {
+		return " at offset " + (offset + pos);
+	}
+
+	private IllegalStateException unexpected(String expected, Token token) {
+		return new IllegalStateException("Expected " + expected + " but was " + token + location());
+	}
+
+	private IOException syntaxError(int c, String expected) {
+		return new IOException("Malformed JSON: expected " + expected + " but found " +
+				(c == -1 ? "the end" : "'" + (char) c + "'") + location() + ".");
+	}
+}
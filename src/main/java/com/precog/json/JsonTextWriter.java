@@ -0,0 +1,159 @@
+package com.precog.json;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes compact JSON text to an {@code Appendable}, adding the commas and
+ * colons between values. Strings and numbers are written by
+ * {@link JsonText}, so no intermediate {@code String} is created for them.
+ * <p>
+ * Only the nesting is checked: a name must be written before each value in
+ * an object, and nowhere else.
+ * <pre>
+ * {@code
+ * new JsonTextWriter(out).beginObject()
+ *     .name("email").value(email)
+ *     .name("password").value(password)
+ *     .endObject();
+ * }
+ * </pre>
+ */
+public final class JsonTextWriter {
+
+	// What the writer is in the middle of.
+	private static final int DOCUMENT = 0;
+	private static final int EMPTY_ARRAY = 1;
+	private static final int NONEMPTY_ARRAY = 2;
+	private static final int EMPTY_OBJECT = 3;
+	private static final int DANGLING_NAME = 4;
+	private static final int NONEMPTY_OBJECT = 5;
+
+	private final Appendable out;
+	private int[] stack = new int[16];
+	private int depth = 1;
+
+	/** Creates a writer of JSON to {@code out}. */
+	public JsonTextWriter(Appendable out) {
+		this.out = out;
+		this.stack[0] = DOCUMENT;
+	}
+
+	public JsonTextWriter beginArray() throws IOException {
+		beforeValue();
+		push(EMPTY_ARRAY);
+		out.append('[');
+		return this;
+	}
+
+	public JsonTextWriter endArray() throws IOException {
+		int scope = stack[depth - 1];
+		if (scope != EMPTY_ARRAY && scope != NONEMPTY_ARRAY) {
+			throw new IllegalStateException("Not in an array.");
+		}
+		depth--;
+		out.append(']');
+		return this;
+	}
+
+	public JsonTextWriter beginObject() throws IOException {
+		beforeValue();
+		push(EMPTY_OBJECT);
+		out.append('{');
+		return this;
+	}
+
+	public JsonTextWriter endObject() throws IOException {
+		int scope = stack[depth - 1];
+		if (scope != EMPTY_OBJECT && scope != NONEMPTY_OBJECT) {
+			throw new IllegalStateException("Not in an object, or a name has no value.");
+		}
+		depth--;
+		out.append('}');
+		return this;
+	}
+
+	/** Writes the name of the next member of the current object. */
+	public JsonTextWriter name(String name) throws IOException {
+		int scope = stack[depth - 1];
+		if (scope == NONEMPTY_OBJECT) {
+			out.append(',');
+		} else if (scope != EMPTY_OBJECT) {
+			throw new IllegalStateException("A name must be written in an object, before a value.");
+		}
+		stack[depth - 1] = DANGLING_NAME;
+		JsonText.writeString(name, out);
+		out.append(':');
+		return this;
+	}
+
+	/** Writes a string, or {@code null}. */
+	public JsonTextWriter value(CharSequence value) throws IOException {
+		beforeValue();
+		JsonText.writeString(value, out);
+		return this;
+	}
+
+	public JsonTextWriter value(long value) throws IOException {
+		beforeValue();
+		JsonText.writeNumber(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a number.
+	 *
+	 * @throws IllegalArgumentException if {@code value} is NaN or infinite
+	 */
+	public JsonTextWriter value(double value) throws IOException {
+		beforeValue();
+		JsonText.writeNumber(value, out);
+		return this;
+	}
+
+	public JsonTextWriter value(boolean value) throws IOException {
+		beforeValue();
+		out.append(value ? "true" : "false");
+		return this;
+	}
+
+	public JsonTextWriter nullValue() throws IOException {
+		beforeValue();
+		out.append("null");
+		return this;
+	}
+
+	/**
+	 * Writes {@code json}, which must be a single, valid JSON value, as is.
+	 */
+	public JsonTextWriter rawValue(CharSequence json) throws IOException {
+		beforeValue();
+		out.append(json);
+		return this;
+	}
+
+	private void beforeValue() throws IOException {
+		switch (stack[depth - 1]) {
+		case NONEMPTY_ARRAY:
+			out.append(',');
+			break;
+		case EMPTY_ARRAY:
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			break;
+		case DANGLING_NAME:
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			break;
+		case DOCUMENT:
+			break;
+		default:
+			throw new IllegalStateException("A value in an object must follow a name.");
+		}
+	}
+
+	private void push(int scope) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		stack[depth++] = scope;
+	}
+}
@@ -1,11 +1,18 @@
 package com.precog.json;
 
+import java.io.IOException;
+
 /**
  * A simple strategy interface that can be implemented to provide JSON serialization
  * for arbitrary value types.
  *
  * @author Kris Nuttycombe <kris@precog.com>
  */
-public interface ToJson<T> {
+public interface ToJson<T> extends ToJsonWriter<T> {
     public String serialize(T value);
+
+    /** Appends the result of {@link #serialize(Object)} to {@code out}. */
+    public default void write(T value, Appendable out) throws IOException {
+    	out.append(serialize(value));
+    }
 }
@@ -0,0 +1,26 @@
+package com.precog.json;
+
+import java.io.IOException;
+
+/**
+ * A strategy interface for serializing values of arbitrary types to JSON by
+ * writing them straight to an {@code Appendable}, such as the stream a
+ * request body is being written to. Unlike {@link ToJson}, no
+ * {@code String} need be built per value.
+ * <p>
+ * Every {@link ToJson} is also a {@code ToJsonWriter}, which appends the
+ * string it serializes to.
+ *
+ * @see JsonText#writeString(CharSequence, Appendable)
+ */
+public interface ToJsonWriter<T> {
+
+	/**
+	 * Writes {@code value} to {@code out} as a single JSON value.
+	 *
+	 * @param value the value to serialize
+	 * @param out where to write the JSON to
+	 * @throws IOException if {@code out} throws one
+	 */
+	public void write(T value, Appendable out) throws IOException;
+}
@@ -0,0 +1,150 @@
+package com.precog.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.precog.client.rest.Backoff;
+import com.precog.client.rest.HttpException;
+import com.precog.client.rest.TestServer;
+
+import static org.junit.Assert.*;
+
+public class AsyncPrecogClientTest {
+	private static final String RESULT = "{\"data\":[1,{\"a\":2}],\"errors\":[],\"warnings\":[]}";
+
+	private TestServer server;
+	private PrecogClient client;
+
+	@After
+	public void tearDown() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+		server.close();
+	}
+
+	private void start(TestServer.Handler handler) throws IOException {
+		server = new TestServer(handler);
+		client = new PrecogClient(server.getURL(), "apiKey", "0000000001");
+	}
+
+	// Answers async queries with job j1, whose results are ready after two
+	// polls, and synchronous queries after a short wait.
+	private static final class Queries implements TestServer.Handler {
+		final AtomicInteger polls = new AtomicInteger();
+
+		public void handle(TestServer.Exchange exchange) throws IOException {
+			String target = exchange.getTarget();
+			if (exchange.getMethod().equals("POST") && target.contains("/queries?")) {
+				exchange.respond(200, "{\"jobId\":\"j1\"}");
+			} else if (target.contains("/queries/j1?")) {
+				if (polls.incrementAndGet() <= 2) {
+					exchange.respond(202, "");
+				} else {
+					exchange.respond(200, RESULT);
+				}
+			} else {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+				exchange.respond(200, RESULT);
+			}
+		}
+	}
+
+	@Test
+	public void testAppendsWithoutHoldingExecutorThreads() throws Exception {
+		CountingIngest ingest = new CountingIngest();
+		ingest.setDelay(20);
+		start(ingest);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		client.setExecutor(executor);
+		client.setMaxConnections(4);
+		List<CompletableFuture<AppendResult>> results = new ArrayList<CompletableFuture<AppendResult>>();
+		for (int i = 0; i < 40; i++) {
+			results.add(client.async().appendAllFromString("/events", "{}\n{}\n", Formats.JSON_STREAM));
+		}
+		for (CompletableFuture<AppendResult> result : results) {
+			assertEquals(2, result.get(10, TimeUnit.SECONDS).getIngested());
+		}
+		assertEquals(80, ingest.getRecords());
+		assertTrue(server.getConnectionCount() <= 4);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testFailsWithHttpException() throws Exception {
+		CountingIngest ingest = new CountingIngest();
+		ingest.fail(1, 400);
+		start(ingest);
+		try {
+			client.async().appendAllFromString("/events", "{}\n", Formats.JSON_STREAM)
+				.get(5, TimeUnit.SECONDS);
+			fail("Expected the append to fail.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof HttpException);
+		}
+		assertEquals(1, client.async().appendAllFromString("/events", "{}\n", Formats.JSON_STREAM)
+				.get(5, TimeUnit.SECONDS).getIngested());
+	}
+
+	@Test
+	public void testCoalescesQueries() throws Exception {
+		start(new Queries());
+		client.setCoalesceQueries(true);
+		List<CompletableFuture<QueryResult>> results = new ArrayList<CompletableFuture<QueryResult>>();
+		for (int i = 0; i < 5; i++) {
+			results.add(client.async().query("/foo", "count(//bar)"));
+		}
+		for (CompletableFuture<QueryResult> result : results) {
+			assertEquals("{\"a\":2}", result.get(5, TimeUnit.SECONDS).get(1));
+		}
+		assertEquals(1, server.getExchanges().size());
+	}
+
+	@Test
+	public void testPollsForQueryResults() throws Exception {
+		Queries queries = new Queries();
+		start(queries);
+		Query query = client.async().queryAsync("count(//bar)").get(5, TimeUnit.SECONDS);
+		assertEquals("j1", query.getJobId());
+		QueryPoller poller = new QueryPoller(client,
+				Backoff.fixed(1L, TimeUnit.MILLISECONDS).withJitter(0.0), 1);
+		try {
+			QueryResult result = poller.poll(query).get(5, TimeUnit.SECONDS);
+			assertEquals(2, result.size());
+			assertEquals(3, queries.polls.get());
+		} finally {
+			poller.close();
+		}
+	}
+
+	@Test
+	public void testDownloadsQueryResults() throws Exception {
+		Queries queries = new Queries();
+		start(queries);
+		File file = File.createTempFile("results", ".json");
+		try {
+			Query query = client.async().queryAsync("count(//bar)").get(5, TimeUnit.SECONDS);
+			assertTrue(client.async().downloadQueryResults(query, file).get(5, TimeUnit.SECONDS));
+			assertEquals(3, queries.polls.get());
+			assertEquals("[1,{\"a\":2}]", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.precog.client.rest.TestServer;
+import com.precog.json.RawStringToJson;
+
+import static org.junit.Assert.*;
+
+public class BatchingAppenderTest {
+	private final RawStringToJson raw = new RawStringToJson();
+	private CountingIngest ingest;
+	private TestServer server;
+	private PrecogClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		ingest = new CountingIngest();
+		server = new TestServer(ingest);
+		client = new PrecogClient(server.getURL(), "apiKey", "0000000001");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void testSendsFullBatches() throws Exception {
+		BatchingAppender appender = new BatchingAppender(client, 10, 1024, 60000L, 64 * 1024);
+		for (int i = 0; i < 25; i++) {
+			appender.append("/events", "{\"i\":" + i + "}", raw);
+		}
+		appender.flush();
+		assertEquals(25, ingest.getRecords());
+		assertEquals(3, server.getExchanges().size());
+		assertEquals(25, appender.getResult("/events").getIngested());
+		assertEquals(0, appender.getBufferedBytes());
+		appender.close();
+	}
+
+	@Test
+	public void testSendsBatchesAfterLinger() throws Exception {
+		BatchingAppender appender = new BatchingAppender(client, 1000, 1024, 10L, 64 * 1024);
+		appender.append("/events", "{}", raw);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (ingest.getRecords() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, ingest.getRecords());
+		appender.close();
+	}
+
+	@Test
+	public void testReportsFailedBatches() throws Exception {
+		ingest.fail(1, 500);
+		BatchingAppender appender = new BatchingAppender(client, 1, 1024, 60000L, 64 * 1024);
+		appender.append("/events", "{}", raw);
+		appender.close();
+		assertEquals(1, appender.getFailedBatches());
+		assertEquals(0, appender.getBufferedBytes());
+	}
+
+	@Test
+	public void testCloseSendsEveryAcceptedRecord() throws Exception {
+		// Appends race with close(); every append that returned normally
+		// must still be sent.
+		ingest.setDelay(1);
+		for (int round = 0; round < 20; round++) {
+			final BatchingAppender appender =
+					new BatchingAppender(client, 1000, 64 * 1024, 60000L, 1024 * 1024);
+			final AtomicInteger accepted = new AtomicInteger();
+			final CountDownLatch started = new CountDownLatch(1);
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; ; i++) {
+							appender.append("/events/" + (i % 3), "{\"i\":" + i + "}", raw);
+							accepted.incrementAndGet();
+							started.countDown();
+						}
+					} catch (IllegalStateException closed) {
+						// Expected, once close() has been called.
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			int before = ingest.getRecords();
+			writer.start();
+			started.await();
+			Thread.sleep(round % 5);
+			appender.close();
+			writer.join();
+			assertEquals(accepted.get(), ingest.getRecords() - before);
+		}
+	}
+}
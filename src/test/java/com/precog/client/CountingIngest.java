@@ -0,0 +1,57 @@
+package com.precog.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.precog.client.rest.TestServer;
+
+/**
+ * A {@link TestServer.Handler} that answers appends the way the ingest
+ * service does, counting the newline separated records it is sent. Requests
+ * can be made to fail with a status, or to wait before they're answered.
+ */
+public class CountingIngest implements TestServer.Handler {
+	private final AtomicInteger records = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failStatus = 503;
+	private volatile long delayMillis = 0;
+
+	/** Returns the number of records accepted so far. */
+	public int getRecords() {
+		return records.get();
+	}
+
+	/** Fails the next {@code count} requests with {@code status}. */
+	public void fail(int count, int status) {
+		failStatus = status;
+		failures.set(count);
+	}
+
+	/** Waits {@code millis} before answering each request. */
+	public void setDelay(long millis) {
+		delayMillis = millis;
+	}
+
+	public void handle(TestServer.Exchange exchange) throws IOException {
+		if (delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException ie) {
+				throw new IOException(ie);
+			}
+		}
+		if (failures.getAndDecrement() > 0) {
+			exchange.respond(failStatus, "Unavailable");
+			return;
+		}
+		int lines = 0;
+		for (byte b : exchange.body) {
+			if (b == '\n') {
+				lines += 1;
+			}
+		}
+		records.addAndGet(lines);
+		exchange.respond(200, "{\"total\":" + lines + ",\"ingested\":" + lines +
+				",\"failed\":0,\"skipped\":0,\"errors\":[]}");
+	}
+}
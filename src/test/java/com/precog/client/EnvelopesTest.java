@@ -0,0 +1,72 @@
+package com.precog.client;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.precog.client.rest.HttpException;
+import com.precog.client.text.TextTag;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that members that are missing or null keep their defaults, as they
+ * do when Gson reads the responses.
+ */
+public class EnvelopesTest {
+
+	@Test
+	public void testReadsQueries() throws HttpException {
+		assertEquals("j1", Envelopes.decode("{\"jobId\":\"j1\",\"other\":[1]}", Envelopes.QUERY).getJobId());
+		assertNull(Envelopes.decode("{\"jobId\":null}", Envelopes.QUERY).getJobId());
+		assertNull(Envelopes.decode("{\"jobId\":null,\"other\":1}", Envelopes.QUERY).getJobId());
+		assertEquals("j2", Envelopes.decode("{\"other\":null,\"jobId\":\"j2\"}", Envelopes.QUERY)
+				.getJobId());
+		assertNull(Envelopes.decode("{}", Envelopes.QUERY).getJobId());
+		assertNull(Envelopes.decode("null", Envelopes.QUERY));
+		assertNull(Envelopes.decode("", Envelopes.QUERY));
+	}
+
+	@Test
+	public void testReadsAccountsWithNullMembers() throws HttpException {
+		AccountInfo account = Envelopes.decode("{\"accountId\":\"a1\",\"email\":null," +
+				"\"plan\":{\"type\":null,\"other\":2},\"apiKey\":\"k\"}", Envelopes.ACCOUNT_INFO);
+		assertEquals("a1", account.getAccountId());
+		assertNull(account.getEmail());
+		assertEquals("k", account.getApiKey());
+		assertNull(account.getPlan().getType());
+
+		account = Envelopes.decode("{\"plan\":{\"other\":null,\"type\":\"Free\"},\"rootPath\":null}",
+				Envelopes.ACCOUNT_INFO);
+		assertEquals("Free", account.getPlan().getType());
+		assertNull(account.getRootPath());
+		assertNull(Envelopes.decode("{\"plan\":null}", Envelopes.ACCOUNT_INFO).getPlan());
+	}
+
+	@Test
+	public void testReadsAppendResultsWithNullMembers() throws HttpException {
+		AppendResult result = Envelopes.decode("{\"ingestId\":null,\"total\":3,\"ingested\":2," +
+				"\"failed\":null,\"skipped\":1,\"errors\":null}", Envelopes.APPEND_RESULT);
+		assertNull(result.getIngestId());
+		assertEquals(3, result.getTotal());
+		assertEquals(2, result.getIngested());
+		assertEquals(0, result.getFailed());
+		assertEquals(1, result.getSkipped());
+	}
+
+	@Test
+	public void testReadsTextTagsWithNullMembers() throws HttpException {
+		List<TextTag> tags = Envelopes.decode("[{\"message\":\"m\",\"timestamp\":null," +
+				"\"position\":{\"line\":null,\"column\":4,\"text\":\"t\"}}, null]", Envelopes.TEXT_TAGS);
+		assertEquals(2, tags.size());
+		assertEquals("m", tags.get(0).getMessage());
+		assertNull(tags.get(0).getTimestamp());
+		assertEquals(4, tags.get(0).getPosition().getColumn());
+		assertNull(tags.get(1));
+	}
+
+	@Test(expected = HttpException.class)
+	public void testRejectsMalformedResponses() throws HttpException {
+		Envelopes.decode("{\"jobId\":", Envelopes.QUERY);
+	}
+}
@@ -0,0 +1,259 @@
+package com.precog.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.precog.client.rest.Backoff;
+import com.precog.client.rest.HttpException;
+import com.precog.client.rest.TestServer;
+import com.precog.json.RawStringToJson;
+
+import static org.junit.Assert.*;
+
+public class IngestSpoolTest {
+	private static final Backoff BACKOFF = Backoff.fixed(5L, TimeUnit.MILLISECONDS);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final RawStringToJson raw = new RawStringToJson();
+	private CountingIngest ingest;
+	private TestServer server;
+	private PrecogClient client;
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		ingest = new CountingIngest();
+		server = new TestServer(ingest);
+		client = new PrecogClient(server.getURL(), "apiKey", "0000000001");
+		dir = new File(folder.getRoot(), "spool");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	private IngestSpool open(long maxSegmentBytes, long maxDiskBytes) throws IOException {
+		return new IngestSpool(client, dir, maxSegmentBytes, maxDiskBytes, 100, 64 * 1024, BACKOFF);
+	}
+
+	private IngestSpool open() throws IOException {
+		return open(1024, 1024 * 1024);
+	}
+
+	private File segment(long id) {
+		return new File(dir, String.format("%019d", id) + ".seg");
+	}
+
+	@Test
+	public void testShipsRecordsInBatchesPerPath() throws Exception {
+		IngestSpool spool = open();
+		for (int i = 0; i < 100; i++) {
+			spool.append("/events/" + (i / 50), "{\"i\":" + i + "}", raw);
+		}
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertEquals(100, ingest.getRecords());
+		assertEquals(100, spool.getRecordsShipped());
+		assertEquals(0, spool.getBacklogBytes());
+		// Segments are deleted once sent, leaving only the one being written.
+		assertEquals(1, spool.getSegmentCount());
+		for (TestServer.Exchange exchange : server.getExchanges()) {
+			assertTrue(exchange.getTarget().contains("/events/"));
+		}
+		spool.close();
+	}
+
+	@Test
+	public void testKeepsRecordsWhileServiceIsDown() throws Exception {
+		ingest.fail(Integer.MAX_VALUE, 503);
+		IngestSpool spool = open();
+		for (int i = 0; i < 100; i++) {
+			spool.append("/events", "{\"i\":" + i + "}", raw);
+		}
+		assertFalse(spool.flush(50, TimeUnit.MILLISECONDS));
+		assertTrue(spool.getFailedBatches() > 0);
+		spool.close();
+		assertTrue(spool.getSegmentCount() > 1);
+		assertEquals(0, ingest.getRecords());
+
+		// A new spool on the directory carries on once the service is back.
+		ingest.fail(0, 503);
+		spool = open();
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertEquals(100, ingest.getRecords());
+		spool.close();
+	}
+
+	@Test
+	public void testSetsAsideBatchesTheServerRejects() throws Exception {
+		// A service that is down until told otherwise, and then rejects
+		// appends to /bad.
+		final AtomicBoolean down = new AtomicBoolean(true);
+		client.close();
+		server.close();
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (down.get()) {
+					exchange.respond(503, "Unavailable");
+				} else if (exchange.getTarget().contains("/bad")) {
+					exchange.respond(400, "Bad Request");
+				} else {
+					ingest.handle(exchange);
+				}
+			}
+		});
+		client = new PrecogClient(server.getURL(), "apiKey", "0000000001");
+
+		IngestSpool spool = open();
+		final List<String> rejected = Collections.synchronizedList(new ArrayList<String>());
+		spool.setListener(new BatchingAppender.Listener() {
+			public void batchAppended(String path, int records, AppendResult result) {
+			}
+
+			public void batchFailed(String path, int records, Exception error) {
+				if (((HttpException) error).getStatusCode() == 400) {
+					rejected.add(path);
+				}
+			}
+		});
+		for (int i = 0; i < 20; i++) {
+			spool.append(i < 10 ? "/bad" : "/good", "{\"i\":" + i + "}", raw);
+		}
+		down.set(false);
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertEquals(10, ingest.getRecords());
+		assertEquals(10, spool.getRecordsShipped());
+		assertFalse(rejected.isEmpty());
+		assertFalse(rejected.contains("/good"));
+		int deadRecords = 0;
+		for (File dead : new File(dir, "dead-letter").listFiles()) {
+			deadRecords += Files.readAllLines(dead.toPath()).size();
+		}
+		assertEquals(10, deadRecords);
+		spool.close();
+
+		// The rejected batches aren't sent again.
+		int requests = server.getExchanges().size();
+		spool = open();
+		spool.append("/good", "{}", raw);
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertEquals(11, ingest.getRecords());
+		assertEquals(requests + 1, server.getExchanges().size());
+		spool.close();
+	}
+
+	@Test
+	public void testDoesNotResendCheckpointedRecords() throws Exception {
+		IngestSpool spool = open();
+		for (int i = 0; i < 10; i++) {
+			spool.append("/events", "{}", raw);
+		}
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		spool.close();
+
+		spool = open();
+		spool.append("/events", "{}", raw);
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertEquals(11, ingest.getRecords());
+		spool.close();
+	}
+
+	@Test
+	public void testDropsHalfWrittenRecordOnRecovery() throws Exception {
+		ingest.fail(Integer.MAX_VALUE, 503);
+		IngestSpool spool = open(1024 * 1024, 1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			spool.append("/events", "{\"i\":" + i + "}", raw);
+		}
+		spool.close();
+		long length = segment(1).length();
+
+		// As if the process died part way through writing a record.
+		FileOutputStream out = new FileOutputStream(segment(1), true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 0, 7, '/' });
+		} finally {
+			out.close();
+		}
+
+		ingest.fail(0, 503);
+		spool = open(1024 * 1024, 1024 * 1024);
+		assertEquals(length, segment(1).length());
+		spool.append("/events", "{\"i\":3}", raw);
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertEquals(4, ingest.getRecords());
+		spool.close();
+	}
+
+	@Test
+	public void testSkipsCorruptRecords() throws Exception {
+		ingest.fail(Integer.MAX_VALUE, 503);
+		IngestSpool spool = open(64, 1024 * 1024);
+		for (int i = 0; i < 4; i++) {
+			spool.append("/events", "{\"i\":" + i + "}", raw);
+		}
+		spool.close();
+
+		// Flip a byte in the JSON of the first, sealed segment.
+		RandomAccessFile file = new RandomAccessFile(segment(1), "rw");
+		try {
+			file.seek(file.length() - 2);
+			file.write('X');
+		} finally {
+			file.close();
+		}
+
+		ingest.fail(0, 503);
+		spool = open(64, 1024 * 1024);
+		assertTrue(spool.flush(10, TimeUnit.SECONDS));
+		assertTrue(ingest.getRecords() < 4);
+		assertTrue(ingest.getRecords() > 0);
+		spool.close();
+	}
+
+	@Test
+	public void testRejectsRecordsWhenFull() throws Exception {
+		ingest.fail(Integer.MAX_VALUE, 503);
+		IngestSpool spool = open(100, 100);
+		try {
+			for (int i = 0; i < 100; i++) {
+				spool.append("/events", "{\"i\":" + i + "}", raw);
+			}
+			fail("Expected the spool to fill up.");
+		} catch (IOException e) {
+			assertEquals(1, spool.getRecordsRejected());
+			assertTrue(spool.getDiskBytes() <= 100);
+		}
+		spool.close();
+	}
+
+	@Test
+	public void testDirectoryCanOnlyBeUsedOnce() throws Exception {
+		IngestSpool spool = open();
+		try {
+			open();
+			fail("Expected the directory to be locked.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+		}
+		spool.close();
+		open().close();
+	}
+}
@@ -0,0 +1,81 @@
+package com.precog.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.precog.client.rest.TestServer;
+
+import static org.junit.Assert.*;
+
+public class ParallelFileLoaderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AtomicInteger requests = new AtomicInteger();
+	private CountingIngest ingest;
+	private TestServer server;
+	private PrecogClient client;
+
+	@Before
+	public void setUp() throws IOException {
+		ingest = new CountingIngest();
+		// The first part is answered without a receipt.
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (requests.incrementAndGet() == 1) {
+					exchange.respond(200, "");
+				} else {
+					ingest.handle(exchange);
+				}
+			}
+		});
+		client = new PrecogClient(server.getURL(), "apiKey", "0000000001");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	private File file(int records) throws IOException {
+		File file = folder.newFile("records.json");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (int i = 0; i < records; i++) {
+				out.write(("{\"i\":" + i + "}\n").getBytes("UTF-8"));
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void testSkipsPartsWithoutReceipts() throws Exception {
+		ParallelFileLoader loader = new ParallelFileLoader(client, 1, 100);
+		AppendResult result = loader.appendAllFromFile("/events", file(100), Formats.JSON_STREAM);
+		assertTrue(server.getExchanges().size() > 2);
+		// Every part was sent, but only those with receipts are counted.
+		assertEquals(100, ingest.getRecords() + countRecords(server.getExchanges().get(0).body));
+		assertEquals(ingest.getRecords(), result.getIngested());
+	}
+
+	private static int countRecords(byte[] body) {
+		int lines = 0;
+		for (byte b : body) {
+			if (b == '\n') {
+				lines += 1;
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,112 @@
+package com.precog.client;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.precog.client.rest.Path;
+import com.precog.client.text.TextTag;
+
+import static org.junit.Assert.*;
+
+public class QueryCacheTest {
+	private final URL service;
+	private final URL otherService;
+
+	public QueryCacheTest() throws Exception {
+		service = new URL("https://beta.precog.com/analytics/v1/");
+		otherService = new URL("https://nebula.precog.com/analytics/v1/");
+	}
+
+	private static QueryResult result() {
+		return new QueryResult(null, Collections.singletonList("1"),
+				Collections.<TextTag>emptyList(), Collections.<TextTag>emptyList(),
+				Collections.<String>emptyList());
+	}
+
+	@Test
+	public void testCachesByServiceKeyPathAndQuery() {
+		QueryCache cache = new QueryCache();
+		QueryResult result = result();
+		cache.put(service, "key", new Path("/a"), "count(//x)", result, "[1]");
+		assertSame(result, cache.get(service, "key", new Path("/a/"), "count(//x)"));
+		assertNull(cache.get(otherService, "key", new Path("/a"), "count(//x)"));
+		assertNull(cache.get(service, "other", new Path("/a"), "count(//x)"));
+		assertNull(cache.get(service, "key", new Path("/b"), "count(//x)"));
+		assertNull(cache.get(service, "key", new Path("/a"), "count(//y)"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+		assertEquals(0.2, cache.getHitRate(), 0.0);
+	}
+
+	@Test
+	public void testExpiresResults() throws InterruptedException {
+		QueryCache cache = new QueryCache(20, TimeUnit.MILLISECONDS, 10, 1024 * 1024);
+		cache.put(service, "key", new Path("/a"), "1", result(), "[1]");
+		assertNotNull(cache.get(service, "key", new Path("/a"), "1"));
+		Thread.sleep(30);
+		assertNull(cache.get(service, "key", new Path("/a"), "1"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+		assertEquals(1, cache.getExpirationCount());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		QueryCache cache = new QueryCache(1, TimeUnit.MINUTES, 2, 1024 * 1024);
+		cache.put(service, "key", new Path("/"), "1", result(), "[1]");
+		cache.put(service, "key", new Path("/"), "2", result(), "[2]");
+		assertNotNull(cache.get(service, "key", new Path("/"), "1"));
+		cache.put(service, "key", new Path("/"), "3", result(), "[3]");
+		assertNotNull(cache.get(service, "key", new Path("/"), "1"));
+		assertNull(cache.get(service, "key", new Path("/"), "2"));
+		assertNotNull(cache.get(service, "key", new Path("/"), "3"));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testEvictsToStayWithinMaxBytes() {
+		QueryCache cache = new QueryCache(1, TimeUnit.MINUTES, 100, 1000);
+		char[] chars = new char[100];
+		Arrays.fill(chars, '1');
+		String json = "[" + new String(chars) + "]";
+		for (int i = 0; i < 10; i++) {
+			cache.put(service, "key", new Path("/"), "q" + i, result(), json);
+			assertTrue(cache.getBytes() <= 1000);
+		}
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(service, "key", new Path("/"), "q9"));
+
+		// A result too big to ever fit isn't cached at all.
+		cache.put(service, "key", new Path("/"), "big", result(), json + json + json + json + json);
+		assertNull(cache.get(service, "key", new Path("/"), "big"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testInvalidatesPathAndItsAncestors() {
+		QueryCache cache = new QueryCache();
+		cache.put(service, "key", new Path("/"), "root", result(), "[1]");
+		cache.put(service, "key", new Path("/a"), "a", result(), "[1]");
+		cache.put(service, "other", new Path("/a/b"), "ab", result(), "[1]");
+		cache.put(service, "key", new Path("/ab"), "sibling", result(), "[1]");
+		cache.put(service, "key", new Path("/a/b/c"), "below", result(), "[1]");
+		cache.put(otherService, "key", new Path("/a"), "elsewhere", result(), "[1]");
+
+		cache.invalidate(service, new Path("/a/b"));
+		assertNull(cache.get(service, "key", new Path("/"), "root"));
+		assertNull(cache.get(service, "key", new Path("/a"), "a"));
+		assertNull(cache.get(service, "other", new Path("/a/b"), "ab"));
+		assertNotNull(cache.get(service, "key", new Path("/ab"), "sibling"));
+		assertNotNull(cache.get(service, "key", new Path("/a/b/c"), "below"));
+		assertNotNull(cache.get(otherService, "key", new Path("/a"), "elsewhere"));
+		assertEquals(3, cache.getInvalidationCount());
+
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+}
@@ -0,0 +1,75 @@
+package com.precog.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RawResultCopierTest {
+
+	private static String copy(String result, int maxRead, boolean succeeds) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = new TrickleInputStream(result.getBytes("UTF-8"), maxRead);
+		assertEquals(succeeds, RawResultCopier.copyData(in, Channels.newChannel(out)));
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void testCopiesDataVerbatim() throws IOException {
+		String data = "[{\"a\":1.50e3,\"b\":\"x]}\\\"y\"},\n [1, [2, {}]], \"\u00e9\", null]";
+		String result = "{\"serverErrors\":[],\"errors\":[],\"warnings\":[{\"m\":\"}\"}],\"data\":" +
+				data + "}";
+		assertEquals(data, copy(result, Integer.MAX_VALUE, true));
+		// Reads that split every token must give the same copy.
+		assertEquals(data, copy(result, 1, true));
+		assertEquals(data, copy(result, 7, true));
+	}
+
+	@Test
+	public void testSkipsFieldsAfterData() throws IOException {
+		assertEquals("[1,2]", copy("{ \"data\" : [1,2] , \"k\\\"ey\" : true, \"n\": -2 }", 3, true));
+	}
+
+	@Test
+	public void testWritesEmptyArrayWithoutData() throws IOException {
+		assertEquals("[]", copy("{\"errors\":[],\"warnings\":null}", Integer.MAX_VALUE, true));
+	}
+
+	@Test
+	public void testStopsAtErrors() throws IOException {
+		assertEquals("", copy("{\"errors\":[{\"message\":\"bad\"}],\"data\":[1]}",
+				Integer.MAX_VALUE, false));
+		assertEquals("", copy("{\"serverErrors\":[\"oops\"],\"data\":[1]}", 2, false));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsNonObjects() throws IOException {
+		copy("[1,2]", Integer.MAX_VALUE, true);
+	}
+
+	@Test(expected = EOFException.class)
+	public void testRejectsTruncatedData() throws IOException {
+		copy("{\"data\":[1,[2", Integer.MAX_VALUE, true);
+	}
+
+	// Returns no more than maxRead bytes from each read.
+	private static class TrickleInputStream extends ByteArrayInputStream {
+		private final int maxRead;
+
+		TrickleInputStream(byte[] bytes, int maxRead) {
+			super(bytes);
+			this.maxRead = maxRead;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, maxRead));
+		}
+	}
+}
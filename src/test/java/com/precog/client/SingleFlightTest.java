@@ -0,0 +1,204 @@
+package com.precog.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.precog.client.rest.HttpException;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+	private final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+	private final AtomicInteger shared = new AtomicInteger();
+	private final Runnable countShared = new Runnable() {
+		public void run() {
+			shared.incrementAndGet();
+		}
+	};
+
+	// Runs a call for key on a new thread, storing its result or error.
+	private Thread start(final String key, final SingleFlight.Call<String> call,
+			final List<Object> outcomes) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				Object outcome;
+				try {
+					outcome = flight.execute(key, call, countShared);
+				} catch (Exception ex) {
+					outcome = ex;
+				}
+				synchronized (outcomes) {
+					outcomes.add(outcome);
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	// A call that waits for release, and counts how often it's run.
+	private static SingleFlight.Call<String> blocking(final CountDownLatch entered,
+			final CountDownLatch release, final AtomicInteger calls, final String result) {
+		return new SingleFlight.Call<String>() {
+			public String call() throws HttpException {
+				calls.incrementAndGet();
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					throw new HttpException(ie);
+				}
+				if (result == null) {
+					throw new HttpException("Query failed.");
+				}
+				return result;
+			}
+		};
+	}
+
+	// Waits until count callers are waiting on a running call.
+	private void awaitShared(int count) throws InterruptedException {
+		while (shared.get() < count) {
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testSharesRunningCall() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		SingleFlight.Call<String> call = blocking(entered, release, calls, "result");
+		List<Object> outcomes = new ArrayList<Object>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(start("q", call, outcomes));
+		entered.await();
+		for (int i = 0; i < 4; i++) {
+			threads.add(start("q", call, outcomes));
+		}
+		awaitShared(4);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, calls.get());
+		assertEquals(5, outcomes.size());
+		for (Object outcome : outcomes) {
+			assertEquals("result", outcome);
+		}
+		assertEquals(0, flight.size());
+	}
+
+	@Test
+	public void testSharesErrorsWithOwnStackTraces() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		SingleFlight.Call<String> call = blocking(entered, release, calls, null);
+		List<Object> outcomes = new ArrayList<Object>();
+		Thread first = start("q", call, outcomes);
+		entered.await();
+		Thread second = start("q", call, outcomes);
+		awaitShared(1);
+		release.countDown();
+		first.join();
+		second.join();
+		assertEquals(1, calls.get());
+		assertEquals(2, outcomes.size());
+		HttpException a = (HttpException) outcomes.get(0);
+		HttpException b = (HttpException) outcomes.get(1);
+		assertEquals("Query failed.", a.getMessage());
+		assertEquals("Query failed.", b.getMessage());
+		// The waiter's exception wraps the caller's.
+		assertTrue(a.getCause() == b || b.getCause() == a);
+		assertEquals(0, flight.size());
+	}
+
+	@Test
+	public void testRunsNewCallOnceFinished() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		SingleFlight.Call<String> call = new SingleFlight.Call<String>() {
+			public String call() {
+				return "call " + calls.incrementAndGet();
+			}
+		};
+		assertEquals("call 1", flight.execute("q", call, countShared));
+		assertEquals("call 2", flight.execute("q", call, countShared));
+		assertEquals(0, shared.get());
+	}
+
+	@Test
+	public void testDoesNotShareAcrossKeys() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		List<Object> outcomes = new ArrayList<Object>();
+		Thread first = start("a", blocking(entered, release, calls, "a"), outcomes);
+		entered.await();
+		SingleFlight.Call<String> other = new SingleFlight.Call<String>() {
+			public String call() {
+				return "b";
+			}
+		};
+		assertEquals("b", flight.execute("b", other, countShared));
+		assertEquals(1, flight.size());
+		release.countDown();
+		first.join();
+		assertEquals(0, shared.get());
+	}
+
+	@Test
+	public void testSharesSubmittedCalls() throws Exception {
+		final CompletableFuture<String> pending = new CompletableFuture<String>();
+		final AtomicInteger calls = new AtomicInteger();
+		SingleFlight.AsyncCall<String> call = new SingleFlight.AsyncCall<String>() {
+			public CompletableFuture<String> call() {
+				calls.incrementAndGet();
+				return pending;
+			}
+		};
+		CompletableFuture<String> first = flight.submit("q", call, countShared);
+		CompletableFuture<String> second = flight.submit("q", call, countShared);
+		List<Object> outcomes = new ArrayList<Object>();
+		Thread blocked = start("q", blocking(new CountDownLatch(1), new CountDownLatch(0),
+				calls, "blocking"), outcomes);
+		while (shared.get() < 2) {
+			Thread.sleep(1L);
+		}
+		second.cancel(false);
+		assertFalse(first.isDone());
+		pending.complete("shared");
+		blocked.join();
+		assertEquals("shared", first.get());
+		assertEquals(Arrays.<Object>asList("shared"), outcomes);
+		assertEquals(1, calls.get());
+		assertEquals(0, flight.size());
+	}
+
+	@Test
+	public void testUnwrapsErrorsOfSubmittedCalls() throws Exception {
+		final CompletableFuture<String> pending = new CompletableFuture<String>();
+		flight.submit("q", new SingleFlight.AsyncCall<String>() {
+			public CompletableFuture<String> call() {
+				return pending;
+			}
+		}, countShared);
+		List<Object> outcomes = new ArrayList<Object>();
+		Thread blocked = start("q", blocking(new CountDownLatch(1), new CountDownLatch(0),
+				new AtomicInteger(), "blocking"), outcomes);
+		while (shared.get() < 1) {
+			Thread.sleep(1L);
+		}
+		pending.completeExceptionally(new CompletionException(new HttpException("Query failed.")));
+		blocked.join();
+		assertTrue(outcomes.get(0) instanceof HttpException);
+		assertEquals("Query failed.", ((HttpException) outcomes.get(0)).getMessage());
+	}
+}
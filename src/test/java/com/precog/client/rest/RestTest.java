@@ -0,0 +1,574 @@
+package com.precog.client.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.precog.client.metrics.MetricsAdapter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Rest} and {@link ConnectionPool} against a {@link TestServer},
+ * which lets each test decide exactly what goes over the wire.
+ */
+public class RestTest {
+	private final ProxySelector defaultProxySelector = ProxySelector.getDefault();
+
+	private TestServer server;
+	private ConnectionPool pool = new ConnectionPool();
+
+	@After
+	public void tearDown() throws IOException {
+		ProxySelector.setDefault(defaultProxySelector);
+		Authenticator.setDefault(null);
+		pool.close();
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	private static Request get(String path) {
+		return new RequestBuilder(Method.GET, new Path(path)).build();
+	}
+
+	private static TestServer.Handler echo() {
+		return new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.respond(200, exchange.getTarget());
+			}
+		};
+	}
+
+	@Test
+	public void testReusesConnections() throws Exception {
+		server = new TestServer(echo());
+		Rest rest = new Rest(server.getURL(), pool);
+		assertEquals("/a?x=1%262", rest.execute(new RequestBuilder(Method.GET, new Path("/a"))
+				.addParam("x", "1&2").build()).asString());
+		assertEquals("/b", rest.execute(get("/b")).asString());
+		assertEquals(1, server.getConnectionCount());
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getIdleConnections());
+		assertEquals(0, pool.getLeasedConnections());
+	}
+
+	@Test
+	public void testSendsChunkedBodies() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.respond(200, exchange.getBody());
+			}
+		});
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append("record ").append(i).append('\n');
+		}
+		Request request = new RequestBuilder(Method.POST, new Path("/ingest"))
+			.setBody(new ByteArrayInputStream(text.toString().getBytes("UTF-8")))
+			.build();
+		Response response = new Rest(server.getURL(), pool).execute(request);
+		assertEquals(text.toString(), response.asString());
+		assertTrue(server.getExchanges().get(0).chunked);
+	}
+
+	@Test
+	public void testReadsChunkedResponses() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+						"4\r\nWiki\r\n5;ext=1\r\npedia\r\n0\r\nTrailer: x\r\n\r\n");
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		assertEquals("Wikipedia", rest.execute(get("/1")).asString());
+		assertEquals("Wikipedia", rest.execute(get("/2")).asString());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testDoesNotReuseClosedConnections() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.respond(200, "ok", "Connection: close");
+				exchange.close();
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		assertEquals("ok", rest.execute(get("/1")).asString());
+		assertEquals("ok", rest.execute(get("/2")).asString());
+		assertEquals(2, server.getConnectionCount());
+		assertEquals(0, pool.getHits());
+	}
+
+	@Test
+	public void testRetriesRequestOnStaleConnection() throws Exception {
+		// The server drops every connection after one response, without
+		// saying so, as if it had timed out the idle connection.
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.respond(200, exchange.getTarget());
+				exchange.close();
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		assertEquals("/1", rest.execute(get("/1")).asString());
+		assertEquals("/2", rest.execute(get("/2")).asString());
+		assertEquals(2, server.getConnectionCount());
+		assertEquals(2, server.getExchanges().size());
+	}
+
+	@Test
+	public void testDoesNotRetryOneShotBodyOnStaleConnection() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.respond(200, "ok");
+				exchange.close();
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		assertEquals("ok", rest.execute(get("/1")).asString());
+		Request request = new RequestBuilder(Method.POST, new Path("/2"))
+			.setBody(new ByteArrayInputStream(new byte[] { '{', '}' }))
+			.build();
+		try {
+			rest.execute(request);
+			fail("Expected the request to fail, rather than be sent again.");
+		} catch (HttpException e) {
+			// Expected.
+		}
+		assertEquals(0, pool.getLeasedConnections());
+	}
+
+	@Test
+	public void testAcquireTimesOutWhenResponsesAreNotClosed() throws Exception {
+		server = new TestServer(echo());
+		pool.setMaxConnectionsPerHost(1);
+		pool.setAcquireTimeout(100);
+		Rest rest = new Rest(server.getURL(), pool);
+		Response unclosed = rest.execute(get("/1"));
+		try {
+			rest.execute(get("/2"));
+			fail("Expected the request to time out waiting for a connection.");
+		} catch (HttpException e) {
+			assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("Timed out"));
+		}
+		unclosed.getData().close();
+		assertEquals("/3", rest.execute(get("/3")).asString());
+	}
+
+	@Test
+	public void testClosesExpiredConnections() throws Exception {
+		server = new TestServer(echo());
+		pool.setIdleTimeout(1);
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.execute(get("/1")).asString();
+		Thread.sleep(10);
+		pool.closeExpired();
+		assertEquals(0, pool.getIdleConnections());
+		assertEquals(1, pool.getEvictions());
+	}
+
+	@Test
+	public void testFreesConnectionWhenMetricsListenerThrows() throws Exception {
+		server = new TestServer(echo());
+		pool.setMaxConnectionsPerHost(1);
+		pool.setAcquireTimeout(1000);
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.setMetricsListener(new MetricsAdapter() {
+			public void requestCompleted(String service, String method, int statusCode,
+					long latencyNanos, long bytesSent) {
+				throw new IllegalStateException("requestCompleted");
+			}
+		});
+		for (int i = 0; i < 3; i++) {
+			try {
+				rest.execute(get("/a"));
+				fail("Expected the listener's exception.");
+			} catch (IllegalStateException e) {
+				assertEquals("requestCompleted", e.getMessage());
+			}
+		}
+		assertEquals(0, pool.getLeasedConnections());
+
+		rest.setMetricsListener(new MetricsAdapter() {
+			public void responseRead(String service, long bytesReceived) {
+				throw new IllegalStateException("responseRead");
+			}
+		});
+		for (int i = 0; i < 3; i++) {
+			Response response = rest.execute(get("/b"));
+			try {
+				response.asString();
+				fail("Expected the listener's exception.");
+			} catch (IllegalStateException e) {
+				assertEquals("responseRead", e.getMessage());
+			}
+		}
+		assertEquals(0, pool.getLeasedConnections());
+	}
+
+	@Test
+	public void testReportsResponsesWithoutBodiesInOrder() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (exchange.getTarget().equals("/none")) {
+					exchange.write("HTTP/1.1 204 No Content\r\n\r\n");
+				} else {
+					exchange.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n");
+				}
+			}
+		});
+		pool.setMaxConnectionsPerHost(1);
+		Rest rest = new Rest(server.getURL(), pool);
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		rest.setMetricsListener(new MetricsAdapter() {
+			public void requestCompleted(String service, String method, int statusCode,
+					long latencyNanos, long bytesSent) {
+				events.add("completed " + statusCode + " " + (bytesSent > 0));
+			}
+
+			public void responseRead(String service, long bytesReceived) {
+				events.add("read " + (bytesReceived > 0));
+			}
+		});
+		// The connection is freed without the (empty) bodies being closed.
+		assertEquals(204, rest.execute(get("/none")).getStatusCode());
+		assertEquals(0, pool.getLeasedConnections());
+		assertEquals("", rest.execute(get("/zero")).asString());
+		assertEquals(Arrays.asList("completed 204 true", "read true",
+				"completed 200 true", "read true"), events);
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testSendsPlainRequestsThroughProxy() throws Exception {
+		server = new TestServer(echo());
+		useProxy(server.getPort());
+		URL service = new URL("http://precog.invalid:8080/");
+		assertEquals("http://precog.invalid:8080/a",
+				new Rest(service, pool).execute(get("/a")).asString());
+		assertEquals("precog.invalid:8080", server.getExchanges().get(0).headers.get("Host"));
+	}
+
+	@Test
+	public void testAuthenticatesWithProxy() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				String authorization = exchange.headers.get("Proxy-Authorization");
+				if (authorization == null) {
+					exchange.respond(407, "", "Proxy-Authenticate: Basic realm=\"test\"");
+				} else {
+					exchange.respond(200, authorization);
+				}
+			}
+		});
+		useProxy(server.getPort());
+		Authenticator.setDefault(new Authenticator() {
+			protected PasswordAuthentication getPasswordAuthentication() {
+				assertEquals(RequestorType.PROXY, getRequestorType());
+				assertEquals("test", getRequestingPrompt());
+				return new PasswordAuthentication("user", "pass".toCharArray());
+			}
+		});
+		Rest rest = new Rest(new URL("http://precog.invalid/"), pool);
+		assertEquals("Basic dXNlcjpwYXNz", rest.execute(get("/a")).asString());
+		// The credentials are remembered for later requests.
+		assertEquals("Basic dXNlcjpwYXNz", rest.execute(get("/b")).asString());
+		assertEquals(3, server.getExchanges().size());
+	}
+
+	@Test
+	public void testTunnelsHttpsThroughProxy() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (exchange.headers.get("Proxy-Authorization") == null) {
+					exchange.respond(407, "", "Proxy-Authenticate: Basic realm=\"test\"");
+				} else {
+					exchange.respond(403, "");
+				}
+				exchange.close();
+			}
+		});
+		useProxy(server.getPort());
+		Authenticator.setDefault(new Authenticator() {
+			protected PasswordAuthentication getPasswordAuthentication() {
+				return new PasswordAuthentication("user", "pass".toCharArray());
+			}
+		});
+		try {
+			new Rest(new URL("https://precog.invalid/"), pool).execute(get("/a"));
+			fail("Expected the proxy to refuse the tunnel.");
+		} catch (HttpException e) {
+			assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("403"));
+		}
+		List<TestServer.Exchange> exchanges = server.getExchanges();
+		assertEquals(2, exchanges.size());
+		assertEquals("CONNECT precog.invalid:443 HTTP/1.1", exchanges.get(0).requestLine);
+		assertEquals("Basic dXNlcjpwYXNz", exchanges.get(1).headers.get("Proxy-Authorization"));
+		assertEquals(0, pool.getLeasedConnections());
+	}
+
+	@Test
+	public void testExecutesManyAsyncRequestsOnFewConnections() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+				exchange.respond(200, exchange.getTarget());
+			}
+		});
+		pool.setMaxConnectionsPerHost(4);
+		Rest rest = new Rest(server.getURL(), pool);
+		List<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>();
+		for (int i = 0; i < 200; i++) {
+			futures.add(rest.executeAsync(get("/" + i)));
+		}
+		for (int i = 0; i < 200; i++) {
+			assertEquals("/" + i, futures.get(i).get(10, TimeUnit.SECONDS).asString());
+		}
+		assertTrue(server.getConnectionCount() <= 4);
+		assertEquals(200, pool.getHits() + pool.getMisses());
+	}
+
+	@Test
+	public void testSendsAsyncBodies() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				exchange.respond(200, exchange.getBody());
+			}
+		});
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append("record ").append(i).append('\n');
+		}
+		Rest rest = new Rest(server.getURL(), pool);
+		Request request = new RequestBuilder(Method.POST, new Path("/ingest"))
+			.setBody(text.toString())
+			.build();
+		assertEquals(text.toString(), rest.executeAsync(request).get(5, TimeUnit.SECONDS).asString());
+		// A body of unknown length is sent with the length it turned out to have.
+		request = new RequestBuilder(Method.POST, new Path("/ingest"))
+			.setBody(new ByteArrayInputStream(text.toString().getBytes("UTF-8")))
+			.build();
+		assertEquals(text.toString(), rest.executeAsync(request).get(5, TimeUnit.SECONDS).asString());
+		assertFalse(server.getExchanges().get(1).chunked);
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	@Test
+	public void testReadsAsyncResponsesOfEachFraming() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (exchange.getTarget().equals("/chunked")) {
+					exchange.write("HTTP/1.1 100 Continue\r\n\r\n" +
+							"HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+							"4\r\nWiki\r\n5;ext=1\r\npedia\r\n0\r\nTrailer: x\r\n\r\n");
+				} else if (exchange.getTarget().equals("/empty")) {
+					exchange.write("HTTP/1.1 204 No Content\r\n\r\n");
+				} else {
+					exchange.write("HTTP/1.1 200 OK\r\n\r\nuntil closed");
+					exchange.close();
+				}
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		assertEquals("Wikipedia", rest.executeAsync(get("/chunked")).get(5, TimeUnit.SECONDS).asString());
+		Response empty = rest.executeAsync(get("/empty")).get(5, TimeUnit.SECONDS);
+		assertEquals(204, empty.getStatusCode());
+		assertEquals("No Content", empty.getMessage());
+		assertEquals("until closed", rest.executeAsync(get("/eof")).get(5, TimeUnit.SECONDS).asString());
+		assertEquals(1, server.getConnectionCount());
+		assertEquals("Wikipedia", rest.executeAsync(get("/chunked")).get(5, TimeUnit.SECONDS).asString());
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	@Test
+	public void testRetriesAsyncRequests() throws Exception {
+		final AtomicInteger requests = new AtomicInteger();
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (requests.incrementAndGet() == 1) {
+					exchange.respond(503, "busy");
+				} else {
+					exchange.respond(200, "ok");
+				}
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.setRetryPolicy(RetryPolicy.defaults()
+				.withBackoff(Backoff.fixed(1L, TimeUnit.MILLISECONDS).withJitter(0.0)));
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		rest.setMetricsListener(new MetricsAdapter() {
+			public void requestCompleted(String service, String method, int statusCode,
+					long latencyNanos, long bytesSent) {
+				events.add("completed " + statusCode + " " + (bytesSent > 0));
+			}
+
+			public void responseRead(String service, long bytesReceived) {
+				events.add("read " + (bytesReceived > 0));
+			}
+
+			public void requestRetried(String service, String method, int attempt, int status) {
+				events.add("retried " + attempt + " " + status);
+			}
+		});
+		assertEquals("ok", rest.executeAsync(get("/a")).get(5, TimeUnit.SECONDS).asString());
+		assertEquals(Arrays.asList("completed 503 true", "read true", "retried 1 503",
+				"completed 200 true", "read true"), events);
+	}
+
+	@Test
+	public void testAsyncRequestsWaitForAFreeConnection() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+				exchange.respond(200, exchange.getTarget());
+			}
+		});
+		pool.setMaxConnectionsPerHost(1);
+		pool.setAcquireTimeout(100);
+		Rest rest = new Rest(server.getURL(), pool);
+		CompletableFuture<Response> first = rest.executeAsync(get("/1"));
+		CompletableFuture<Response> second = rest.executeAsync(get("/2"));
+		try {
+			second.get(5, TimeUnit.SECONDS);
+			fail("Expected the request to time out waiting for a connection.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof HttpException);
+			assertTrue(e.getCause().getCause().getMessage().contains("Timed out"));
+		}
+		assertEquals("/1", first.get(5, TimeUnit.SECONDS).asString());
+	}
+
+	@Test
+	public void testFailsAsyncRequestsOnceClosed() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				// Never answers.
+			}
+		});
+		Rest rest = new Rest(server.getURL(), pool);
+		CompletableFuture<Response> pending = rest.executeAsync(get("/1"));
+		pool.close();
+		try {
+			pending.get(5, TimeUnit.SECONDS);
+			fail("Expected the request to fail once the pool was closed.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof HttpException);
+		}
+		assertTrue(rest.executeAsync(get("/2")).isCompletedExceptionally());
+	}
+
+	@Test
+	public void testTimesOutAsyncReads() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				// Never answers.
+			}
+		});
+		pool.setReadTimeout(100);
+		Rest rest = new Rest(server.getURL(), pool);
+		try {
+			rest.executeAsync(get("/1")).get(5, TimeUnit.SECONDS);
+			fail("Expected the read to time out.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getCause() instanceof SocketTimeoutException);
+		}
+	}
+
+	@Test
+	public void testSendsAsyncRequestsThroughProxy() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				String authorization = exchange.headers.get("Proxy-Authorization");
+				if (authorization == null) {
+					exchange.respond(407, "", "Proxy-Authenticate: Basic realm=\"test\"");
+				} else {
+					exchange.respond(200, exchange.getTarget() + " " + authorization);
+				}
+			}
+		});
+		useProxy(server.getPort());
+		Authenticator.setDefault(new Authenticator() {
+			protected PasswordAuthentication getPasswordAuthentication() {
+				return new PasswordAuthentication("user", "pass".toCharArray());
+			}
+		});
+		Rest rest = new Rest(new URL("http://precog.invalid/"), pool);
+		assertEquals("http://precog.invalid:80/a Basic dXNlcjpwYXNz",
+				rest.executeAsync(get("/a")).get(5, TimeUnit.SECONDS).asString());
+		assertEquals(2, server.getExchanges().size());
+	}
+
+	@Test
+	public void testTunnelsAsyncHttpsThroughProxy() throws Exception {
+		server = new TestServer(new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (exchange.headers.get("Proxy-Authorization") == null) {
+					exchange.respond(407, "", "Proxy-Authenticate: Basic realm=\"test\"");
+				} else {
+					exchange.respond(403, "");
+				}
+				exchange.close();
+			}
+		});
+		useProxy(server.getPort());
+		Authenticator.setDefault(new Authenticator() {
+			protected PasswordAuthentication getPasswordAuthentication() {
+				return new PasswordAuthentication("user", "pass".toCharArray());
+			}
+		});
+		try {
+			new Rest(new URL("https://precog.invalid/"), pool).executeAsync(get("/a"))
+				.get(5, TimeUnit.SECONDS);
+			fail("Expected the proxy to refuse the tunnel.");
+		} catch (ExecutionException e) {
+			String message = e.getCause().getCause().getMessage();
+			assertTrue(message, message.contains("403"));
+		}
+		List<TestServer.Exchange> exchanges = server.getExchanges();
+		assertEquals(2, exchanges.size());
+		assertEquals("CONNECT precog.invalid:443 HTTP/1.1", exchanges.get(0).requestLine);
+		assertEquals("Basic dXNlcjpwYXNz", exchanges.get(1).headers.get("Proxy-Authorization"));
+	}
+
+	private static void useProxy(int port) {
+		final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", port));
+		ProxySelector.setDefault(new ProxySelector() {
+			public List<Proxy> select(URI uri) {
+				return Collections.singletonList(proxy);
+			}
+
+			public void connectFailed(URI uri, SocketAddress address, IOException ioe) {
+			}
+		});
+	}
+}
@@ -0,0 +1,166 @@
+package com.precog.client.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+	private static final RetryPolicy POLICY = RetryPolicy.defaults()
+		.withBackoff(Backoff.fixed(1L, TimeUnit.MILLISECONDS).withJitter(0.0));
+
+	private TestServer server;
+	private ConnectionPool pool = new ConnectionPool();
+
+	@After
+	public void tearDown() throws IOException {
+		pool.close();
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	// Answers the first `failures` requests with a 503, then 200s.
+	private static TestServer.Handler failing(final int failures) {
+		final AtomicInteger count = new AtomicInteger();
+		return new TestServer.Handler() {
+			public void handle(TestServer.Exchange exchange) throws IOException {
+				if (count.incrementAndGet() <= failures) {
+					exchange.respond(503, "unavailable");
+				} else {
+					exchange.respond(200, exchange.getBody());
+				}
+			}
+		};
+	}
+
+	private static StreamingBody streamingBody(final boolean replayable) {
+		return new StreamingBody() {
+			public long getContentLength() {
+				return 2;
+			}
+
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(new byte[] { '{', '}' });
+			}
+
+			public boolean isReplayable() {
+				return replayable;
+			}
+		};
+	}
+
+	private static RequestBuilder post() {
+		return new RequestBuilder(Method.POST, new Path("/ingest"));
+	}
+
+	@Test
+	public void testBudgetLimitsRetries() {
+		RetryPolicy.Budget budget = POLICY.withBudget(0.5, 2).newBudget();
+		assertTrue(budget.withdraw());
+		assertTrue(budget.withdraw());
+		assertFalse(budget.withdraw());
+		budget.deposit();
+		assertFalse(budget.withdraw());
+		budget.deposit();
+		assertTrue(budget.withdraw());
+		// Deposits stop at the maximum.
+		for (int i = 0; i < 100; i++) {
+			budget.deposit();
+		}
+		assertTrue(budget.withdraw());
+		assertTrue(budget.withdraw());
+		assertFalse(budget.withdraw());
+	}
+
+	@Test
+	public void testEmptyBudgetNeverRetries() {
+		RetryPolicy.Budget budget = POLICY.withBudget(0.0, 0).newBudget();
+		budget.deposit();
+		assertFalse(budget.withdraw());
+	}
+
+	@Test
+	public void testDelayHonoursRetryAfterUpToMaximum() {
+		RetryPolicy policy = RetryPolicy.defaults().withBackoff(
+				Backoff.exponential(100L, 5000L, TimeUnit.MILLISECONDS).withJitter(0.0));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.delayNanos(0, null));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(400), policy.delayNanos(2, null));
+		assertEquals(TimeUnit.SECONDS.toNanos(2), policy.delayNanos(0, " 2 "));
+		assertEquals(TimeUnit.SECONDS.toNanos(5), policy.delayNanos(0, "3600"));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(100),
+				policy.delayNanos(0, "Wed, 21 Oct 2015 07:28:00 GMT"));
+	}
+
+	@Test
+	public void testRetriesStatuses() {
+		assertTrue(POLICY.retriesStatus(503));
+		assertFalse(POLICY.retriesStatus(500));
+		RetryPolicy policy = POLICY.withRetryStatuses(500, 429);
+		assertTrue(policy.retriesStatus(429));
+		assertFalse(policy.retriesStatus(503));
+	}
+
+	@Test
+	public void testRetriesOnlyReplayableRequests() throws IOException {
+		assertTrue(POLICY.canRetry(new RequestBuilder(Method.GET, new Path("/")).build()));
+		assertTrue(POLICY.canRetry(post().setBody("{}").build()));
+		assertTrue(POLICY.canRetry(post().setBody(new byte[] { '1' }).build()));
+		assertTrue(POLICY.canRetry(post().setBody(streamingBody(true)).build()));
+		assertFalse(POLICY.canRetry(post().setBody(streamingBody(false)).build()));
+		assertFalse(POLICY.canRetry(post()
+				.setBody(new ByteArrayInputStream(new byte[] { '1' })).build()));
+		assertFalse(POLICY.withMaxAttempts(1).canRetry(post().setBody("{}").build()));
+	}
+
+	@Test
+	public void testRetriesTransientFailures() throws Exception {
+		server = new TestServer(failing(2));
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.setRetryPolicy(POLICY);
+		Response response = rest.execute(post().setBody(streamingBody(true)).build());
+		assertEquals(200, response.getStatusCode());
+		assertEquals("{}", response.asString());
+		assertEquals(3, server.getExchanges().size());
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() throws Exception {
+		server = new TestServer(failing(10));
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.setRetryPolicy(POLICY.withMaxAttempts(2));
+		Response response = rest.execute(post().setBody("{}").build());
+		assertEquals(503, response.getStatusCode());
+		response.getData().close();
+		assertEquals(2, server.getExchanges().size());
+	}
+
+	@Test
+	public void testSendsOneShotBodiesOnce() throws Exception {
+		server = new TestServer(failing(10));
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.setRetryPolicy(POLICY);
+		Response response = rest.execute(post().setBody(streamingBody(false)).build());
+		assertEquals(503, response.getStatusCode());
+		response.getData().close();
+		assertEquals(1, server.getExchanges().size());
+	}
+
+	@Test
+	public void testSharedBudgetStopsRetries() throws Exception {
+		server = new TestServer(failing(100));
+		Rest rest = new Rest(server.getURL(), pool);
+		rest.setRetryPolicy(POLICY.withMaxAttempts(10).withBudget(0.0, 3));
+		for (int i = 0; i < 3; i++) {
+			rest.execute(post().setBody("{}").build()).getData().close();
+		}
+		// Three retries, then none.
+		assertEquals(6, server.getExchanges().size());
+	}
+}
@@ -0,0 +1,251 @@
+package com.precog.client.rest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bare HTTP/1.1 server on a loopback socket, for testing the client's own
+ * transport. Every request is recorded, then answered by a {@link Handler},
+ * which writes the raw response, so a test controls the framing and whether
+ * the connection is kept alive.
+ */
+public class TestServer implements Closeable {
+
+	/** Answers a request. */
+	public static interface Handler {
+		public void handle(Exchange exchange) throws IOException;
+	}
+
+	/** A request read by the server, and the means to answer it. */
+	public static class Exchange {
+		public final int connection;
+		public final String requestLine;
+		public final Map<String, String> headers;
+		public final byte[] body;
+		public final boolean chunked;
+		private final OutputStream out;
+		private boolean close = false;
+
+		Exchange(int connection, String requestLine, Map<String, String> headers, byte[] body,
+				boolean chunked, OutputStream out) {
+			this.connection = connection;
+			this.requestLine = requestLine;
+			this.headers = headers;
+			this.body = body;
+			this.chunked = chunked;
+			this.out = out;
+		}
+
+		/** Returns the request's method, eg. {@code GET}. */
+		public String getMethod() {
+			return requestLine.substring(0, requestLine.indexOf(' '));
+		}
+
+		/** Returns the request's target, as sent. */
+		public String getTarget() {
+			return requestLine.substring(requestLine.indexOf(' ') + 1, requestLine.lastIndexOf(' '));
+		}
+
+		/** Returns the request body decoded as UTF-8. */
+		public String getBody() throws IOException {
+			return new String(body, "UTF-8");
+		}
+
+		/** Writes {@code raw}, as is, to the connection. */
+		public void write(String raw) throws IOException {
+			out.write(raw.getBytes("UTF-8"));
+			out.flush();
+		}
+
+		/** Answers with {@code status} and a body of {@code text}. */
+		public void respond(int status, String text, String... headers) throws IOException {
+			byte[] bytes = text.getBytes("UTF-8");
+			StringBuilder head = new StringBuilder();
+			head.append("HTTP/1.1 ").append(status).append(" Status ").append(status).append("\r\n");
+			for (String header : headers) {
+				head.append(header).append("\r\n");
+			}
+			head.append("Content-Length: ").append(bytes.length).append("\r\n\r\n");
+			out.write(head.toString().getBytes("ISO-8859-1"));
+			out.write(bytes);
+			out.flush();
+		}
+
+		/** Closes the connection once the handler returns. */
+		public void close() {
+			close = true;
+		}
+	}
+
+	private final Handler handler;
+	private final ServerSocket server;
+	private final List<Exchange> exchanges =
+			Collections.synchronizedList(new ArrayList<Exchange>());
+	private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/** Starts a server that answers every request with {@code handler}. */
+	public TestServer(Handler handler) throws IOException {
+		this.handler = handler;
+		this.server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "test-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/** Returns the URL of the server's root. */
+	public URL getURL() throws IOException {
+		return new URL("http", "127.0.0.1", server.getLocalPort(), "/");
+	}
+
+	/** Returns the port the server listens on. */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/** Returns the requests read so far, in order. */
+	public List<Exchange> getExchanges() {
+		synchronized (exchanges) {
+			return new ArrayList<Exchange>(exchanges);
+		}
+	}
+
+	/** Returns the number of connections accepted so far. */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	public void close() throws IOException {
+		server.close();
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException ioe) {
+				return;
+			}
+			sockets.add(socket);
+			final int connection = connections.incrementAndGet();
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					serve(socket, connection);
+				}
+			}, "test-server-" + connection);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket, int connection) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				String requestLine = readLine(in);
+				if (requestLine == null) {
+					break;
+				}
+				Map<String, String> headers = readHeaders(in);
+				boolean chunked = "chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"));
+				byte[] body;
+				if (chunked) {
+					body = readChunked(in);
+				} else if (headers.containsKey("Content-Length")) {
+					body = readFully(in, Integer.parseInt(headers.get("Content-Length")));
+				} else {
+					body = new byte[0];
+				}
+				Exchange exchange = new Exchange(connection, requestLine, headers, body,
+						chunked, out);
+				exchanges.add(exchange);
+				handler.handle(exchange);
+				if (exchange.close) {
+					break;
+				}
+			}
+		} catch (IOException ioe) {
+			// The client went away.
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				// Nothing more to do.
+			}
+		}
+	}
+
+	private static Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+		}
+		return headers;
+	}
+
+	private static byte[] readChunked(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		while (true) {
+			int size = Integer.parseInt(readLine(in).trim(), 16);
+			if (size == 0) {
+				readHeaders(in);
+				return body.toByteArray();
+			}
+			body.write(readFully(in, size));
+			readLine(in);
+		}
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(bytes, read, length - read);
+			if (n < 0) {
+				throw new IOException("Unexpected end of request body");
+			}
+			read += n;
+		}
+		return bytes;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			if (b != '\r') {
+				sb.append((char) b);
+			}
+		}
+		return b < 0 && sb.length() == 0 ? null : sb.toString();
+	}
+}
@@ -0,0 +1,138 @@
+package com.precog.client.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Utf8DecoderTest {
+
+	private static String decode(byte[] bytes, int maxRead) throws IOException {
+		StringBuilder out = new StringBuilder();
+		assertTrue(Utf8Decoder.decode(new TrickleInputStream(bytes, maxRead), out, Long.MAX_VALUE));
+		return out.toString();
+	}
+
+	// Checks that bytes decode as the JDK decodes them, however they're split.
+	private static void assertDecodes(byte[] bytes) throws IOException {
+		String expected = new String(bytes, "UTF-8");
+		assertEquals(expected, decode(bytes, Integer.MAX_VALUE));
+		assertEquals(expected, decode(bytes, 1));
+		assertEquals(expected, decode(bytes, 3));
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testDecodesValidText() throws IOException {
+		String text = "ascii, caf\u00e9, \u20ac, \u4e2d\u6587, \ud83d\ude00 and \udbff\udfff";
+		assertDecodes(text.getBytes("UTF-8"));
+		assertEquals(text, decode(text.getBytes("UTF-8"), 1));
+	}
+
+	@Test
+	public void testReplacesMalformedSequences() throws IOException {
+		// Stray continuation bytes and invalid lead bytes.
+		assertDecodes(bytes('a', 0x80, 'b', 0xBF, 0xC0, 0xC1, 0xF5, 0xFF, 'c'));
+		// Overlong forms.
+		assertDecodes(bytes(0xC0, 0xAF, 0xE0, 0x80, 0xAF, 0xF0, 0x80, 0x80, 0xAF));
+		// Surrogates encoded directly, whole or in part.
+		assertDecodes(bytes(0xED, 0xA0, 0x80, 0xED, 0xBF, 0xBF, 'x'));
+		assertDecodes(bytes(0xED, 0xA0, 'x', 0xED, 0x9F, 0xBF, 0xED, 0xB0));
+		// Past U+10FFFF.
+		assertDecodes(bytes(0xF4, 0x90, 0x80, 0x80, 'x'));
+		// Sequences cut short by another character.
+		assertDecodes(bytes(0xE2, 0x82, 'a', 0xF0, 0x9F, 0x98, 'b', 0xC3, 'c'));
+	}
+
+	@Test
+	public void testReplacesSequenceCutShortByEnd() throws IOException {
+		assertDecodes(bytes('a', 0xF0, 0x9F, 0x98));
+		assertDecodes(bytes('a', 0xE2, 0x82));
+		assertDecodes(bytes('a', 0xC3));
+	}
+
+	@Test
+	public void testDecodesRandomBytesAsJdkDoes() throws IOException {
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			byte[] bytes = new byte[random.nextInt(64)];
+			for (int j = 0; j < bytes.length; j++) {
+				// Mostly bytes that start or continue multi-byte sequences.
+				bytes[j] = (byte) (random.nextInt(4) == 0 ? random.nextInt(128) : 0x80 + random.nextInt(128));
+			}
+			assertDecodes(bytes);
+		}
+	}
+
+	@Test
+	public void testDecodesTextLongerThanBuffer() throws IOException {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 3 * BufferPool.getDefault().getBufferSize()) {
+			text.append("\u00e9\u20ac\ud83d\ude00x");
+		}
+		assertDecodes(text.toString().getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testStopsAtMaxBytes() throws IOException {
+		byte[] bytes = "abcdef".getBytes("UTF-8");
+		StringBuilder out = new StringBuilder();
+		assertFalse(Utf8Decoder.decode(new ByteArrayInputStream(bytes), out, 4));
+		assertEquals("abcd", out.toString());
+		out.setLength(0);
+		assertTrue(Utf8Decoder.decode(new ByteArrayInputStream(bytes), out, 7));
+		assertEquals("abcdef", out.toString());
+	}
+
+	@Test
+	public void testIsCompleteWhenStreamEndsAtMaxBytes() throws IOException {
+		byte[] bytes = new byte[4096];
+		Arrays.fill(bytes, (byte) 'x');
+		StringBuilder out = new StringBuilder();
+		assertTrue(Utf8Decoder.decode(new ByteArrayInputStream(bytes), out, 4096));
+		assertEquals(4096, out.length());
+		out.setLength(0);
+		assertFalse(Utf8Decoder.decode(new ByteArrayInputStream(bytes), out, 4095));
+		assertEquals(4095, out.length());
+
+		// An error body of exactly the most that's read isn't marked as cut short.
+		Response response = new Response(400, "Bad Request", new ByteArrayInputStream(bytes));
+		assertFalse(response.readErrorBody().endsWith("..."));
+		response = new Response(400, "Bad Request",
+				new ByteArrayInputStream(Arrays.copyOf(bytes, 4097)));
+		assertTrue(response.readErrorBody().endsWith("..."));
+	}
+
+	// Returns no more than maxRead bytes from each read.
+	private static class TrickleInputStream extends InputStream {
+		private final ByteArrayInputStream in;
+		private final int maxRead;
+
+		TrickleInputStream(byte[] bytes, int maxRead) {
+			this.in = new ByteArrayInputStream(bytes);
+			this.maxRead = maxRead;
+		}
+
+		@Override
+		public int read() {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return in.read(b, off, Math.min(len, maxRead));
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.precog.json;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.precog.json.JsonInput.Token;
+
+import static org.junit.Assert.*;
+
+public class JsonTextReaderTest {
+
+	private static final String DOCUMENT =
+			"{ \"name\" : \"caf\\u00e9 \\\"quoted\\\"\\n\\/\", \"tags\": [ \"a\", \"\" ],\n" +
+			"  \"count\": -42, \"ratio\": 1.50e3, \"ok\": true, \"no\": false, \"none\": null,\n" +
+			"  \"nested\": { \"empty\": {}, \"list\": [[], [1, [2]]] } }";
+
+	// Reads DOCUMENT token by token.
+	private static void readDocument(JsonTextReader reader) throws IOException {
+		reader.beginObject();
+		assertEquals("name", reader.nextName());
+		assertEquals("caf\u00e9 \"quoted\"\n/", reader.nextString());
+		assertEquals("tags", reader.nextName());
+		reader.beginArray();
+		assertEquals("a", reader.nextString());
+		assertTrue(reader.hasNext());
+		assertEquals("", reader.nextString());
+		assertFalse(reader.hasNext());
+		reader.endArray();
+		assertEquals("count", reader.nextName());
+		assertEquals(-42, reader.nextInt());
+		assertEquals("ratio", reader.nextName());
+		assertEquals(Token.NUMBER, reader.peek());
+		assertEquals(1500.0, reader.nextDouble(), 0.0);
+		assertEquals("ok", reader.nextName());
+		assertTrue(reader.nextBoolean());
+		assertEquals("no", reader.nextName());
+		assertFalse(reader.nextBoolean());
+		assertEquals("none", reader.nextName());
+		assertEquals(Token.NULL, reader.peek());
+		reader.nextNull();
+		assertEquals("nested", reader.nextName());
+		assertEquals("{\"empty\":{},\"list\":[[],[1,[2]]]}", reader.nextJson());
+		reader.endObject();
+		assertEquals(Token.END_DOCUMENT, reader.peek());
+	}
+
+	@Test
+	public void testReadsTokens() throws IOException {
+		readDocument(new JsonTextReader(DOCUMENT));
+	}
+
+	@Test
+	public void testReadsAcrossBufferBoundaries() throws IOException {
+		readDocument(new JsonTextReader(new TrickleReader(DOCUMENT)));
+		StringBuilder long1 = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			long1.append((char) ('a' + i % 26));
+		}
+		String json = "[\"" + long1 + "\", \"" + long1 + "\\t\", 123456789012345678]";
+		JsonTextReader reader = new JsonTextReader(new StringReader(json));
+		reader.beginArray();
+		assertEquals(long1.toString(), reader.nextString());
+		assertEquals(long1 + "\t", reader.nextString());
+		assertEquals(123456789012345678L, reader.nextLong());
+		reader.endArray();
+	}
+
+	@Test
+	public void testReadsLongs() throws IOException {
+		JsonTextReader reader = new JsonTextReader(
+				"[9223372036854775807, -9223372036854775808, 1.0, 1e3, \"17\", 0, -0]");
+		reader.beginArray();
+		assertEquals(Long.MAX_VALUE, reader.nextLong());
+		assertEquals(Long.MIN_VALUE, reader.nextLong());
+		assertEquals(1L, reader.nextLong());
+		assertEquals(1000L, reader.nextLong());
+		assertEquals(17L, reader.nextLong());
+		assertEquals(0L, reader.nextLong());
+		assertEquals(0L, reader.nextLong());
+		reader.endArray();
+	}
+
+	@Test
+	public void testRejectsNumbersThatDoNotFit() throws IOException {
+		JsonTextReader reader = new JsonTextReader("[1.5, 3000000000, 9223372036854775808]");
+		reader.beginArray();
+		try {
+			reader.nextLong();
+			fail("1.5 isn't a long.");
+		} catch (NumberFormatException e) {
+			// Expected.
+		}
+		try {
+			reader.nextInt();
+			fail("3000000000 isn't an int.");
+		} catch (NumberFormatException e) {
+			// Expected.
+		}
+		try {
+			reader.nextLong();
+			fail("2^63 isn't a long.");
+		} catch (NumberFormatException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testKeepsTextOfNumbers() throws IOException {
+		JsonTextReader reader = new JsonTextReader("[1.50e3, 12345678901234567890.125]");
+		reader.beginArray();
+		assertEquals("1.50e3", reader.nextString());
+		assertEquals("12345678901234567890.125", reader.nextJson());
+		reader.endArray();
+	}
+
+	@Test
+	public void testSkipsValues() throws IOException {
+		JsonTextReader reader = new JsonTextReader(
+				"{\"a\": {\"b\": [1, \"]\\\"\", {\"c\": null}]}, \"d\": -1.5e-3, \"e\": 2}");
+		reader.beginObject();
+		assertEquals("a", reader.nextName());
+		reader.skipValue();
+		reader.skipValue();
+		reader.skipValue();
+		assertEquals("e", reader.nextName());
+		assertEquals(2, reader.nextInt());
+		reader.endObject();
+	}
+
+	@Test
+	public void testReadsNullMembers() throws IOException {
+		JsonTextReader reader = new JsonTextReader("{\"a\":null,\"b\":null}");
+		reader.beginObject();
+		assertEquals("a", reader.nextName());
+		assertEquals(Token.NULL, reader.peek());
+		reader.nextNull();
+		assertEquals("b", reader.nextName());
+		reader.skipValue();
+		assertFalse(reader.hasNext());
+		reader.endObject();
+		assertEquals(Token.END_DOCUMENT, reader.peek());
+	}
+
+	@Test
+	public void testReadsSeveralTopLevelValues() throws IOException {
+		JsonTextReader reader = new JsonTextReader("{\"a\":1}\n{\"a\":2}\n");
+		assertEquals("{\"a\":1}", reader.nextJson());
+		assertEquals("{\"a\":2}", reader.nextJson());
+		assertEquals(Token.END_DOCUMENT, reader.peek());
+		assertEquals(Token.END_DOCUMENT, new JsonTextReader("  ").peek());
+	}
+
+	@Test
+	public void testRejectsMalformedJson() throws IOException {
+		String[] malformed = {
+			"[1,]", "[1 2]", "{\"a\" 1}", "{\"a\":1,}", "{a:1}", "[tru]", "[nul]",
+			"[NaN]", "[\"\\x\"]", "[\"\\u12G4\"]", "[truex]"
+		};
+		for (String json : malformed) {
+			JsonTextReader reader = new JsonTextReader(json);
+			try {
+				while (reader.peek() != Token.END_DOCUMENT) {
+					reader.skipValue();
+				}
+				fail("Expected " + json + " to be rejected.");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed JSON"));
+			}
+		}
+	}
+
+	@Test
+	public void testRejectsTruncatedJson() throws IOException {
+		String[] truncated = { "[1, 2", "{\"a\":", "[\"abc", "{\"ab" };
+		for (String json : truncated) {
+			try {
+				new JsonTextReader(json).skipValue();
+				fail("Expected " + json + " to be rejected.");
+			} catch (EOFException e) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRejectsWrongToken() throws IOException {
+		JsonTextReader reader = new JsonTextReader("[true]");
+		reader.beginArray();
+		reader.nextString();
+	}
+
+	// Returns a char at a time.
+	private static class TrickleReader extends Reader {
+		private final StringReader in;
+
+		TrickleReader(String text) {
+			this.in = new StringReader(text);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return in.read(cbuf, off, Math.min(len, 1));
+		}
+
+		@Override
+		public void close() {
+			in.close();
+		}
+	}
+}